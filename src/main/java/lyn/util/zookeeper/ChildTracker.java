@@ -0,0 +1,333 @@
+package lyn.util.zookeeper;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks children of a znode for directories too large to hand around whole on every
+ * change.
+ * <ul>
+ * <li>children are kept in a front coded <code>NameSet</code>, replaced as a whole so
+ * readers never take a lock</li>
+ * <li>listings are asynchronous with a children watch, and one no newer than the
+ * children held by <code>czxid</code> and <code>cversion</code> is dropped;
+ * <code>refresh</code> checks <code>cversion</code> by <code>exists</code> and lists
+ * only when it moved</li>
+ * <li>listeners get names added and removed, computed by one merge of sorted sets, one
+ * change at a time in <code>cversion</code> order</li>
+ * <li>a failed listing is retried with backoff, and so is one lost with an expired
+ * session once connected again</li>
+ * </ul>
+ * A deleted znode is reported as all children removed and tracked again once created.
+ * Listeners are called on zookeeper event thread, so they must not block on zookeeper
+ * results.
+ *
+ * @author Yanpeng Lin
+ */
+public class ChildTracker {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChildTracker.class);
+
+    /* delay of the first retry of a failed listing, doubled up to the maximum */
+    private static final long RETRY_MILLIS = 100;
+    private static final long MAX_RETRY_MILLIS = 10000;
+
+    private final ZooKeeperConnection zkConnection;
+
+    private final String path;
+
+    /* guarded by this */
+    private volatile NameSet children = NameSet.EMPTY;
+    private long czxid = -1;
+    private int cversion = -1;
+
+    /* held while a change is computed and notified, so that changes are not reordered */
+    private final Object notifying = new Object();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /* reused so that it is not duplicated */
+    private final ChildWatcher watcher;
+
+    private final ListingCallback callback = new ListingCallback();
+
+    private volatile boolean started = false;
+
+    private ScheduledExecutorService retrier = null;
+
+    /* listings failed in a row */
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private final AtomicLong listings = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    /**
+     * Notified of changes of children.
+     */
+    public interface Listener {
+        /**
+         * @param path
+         * @param added names in order
+         * @param removed names in order
+         */
+        void childrenChanged(String path, List<String> added, List<String> removed);
+    }
+
+    public ChildTracker(ZooKeeperConnection zkConnection, String path) {
+        this.zkConnection = zkConnection;
+        this.path = path;
+        this.watcher = new ChildWatcher(zkConnection);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return current children, never modified once returned
+     */
+    public NameSet getChildren() {
+        return children;
+    }
+
+    /**
+     * @return listings received
+     */
+    public long getListings() {
+        return listings.get();
+    }
+
+    /**
+     * @return listings and refreshes skipped as no newer than children held
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Lists children and starts tracking them.
+     *
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public void start() throws KeeperException, InterruptedException {
+        retrier = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "child-tracker-" + path);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        started = true;
+        final Stat STAT = new Stat();
+        try {
+            final List<String> NAMES = zkConnection.getChildren(path, watcher, STAT);
+            listings.incrementAndGet();
+            apply(NAMES, STAT);
+        } catch (KeeperException.NoNodeException e) {
+            if (zkConnection.exists(path, watcher) != null)
+                list();
+        }
+    }
+
+    /**
+     * Stops tracking, pending watches are ignored once they fire.
+     */
+    public void close() {
+        started = false;
+        if (retrier != null)
+            retrier.shutdownNow();
+    }
+
+    /**
+     * Lists children again only when they changed, for callers not relying on the watch.
+     *
+     * @return true when children were listed
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public boolean refresh() throws KeeperException, InterruptedException {
+        final Stat STAT = zkConnection.exists(path, false);
+        synchronized (this) {
+            if (STAT != null && STAT.getCzxid() == czxid && STAT.getCversion() == cversion
+                    && STAT.getNumChildren() == children.size()) {
+                skipped.incrementAndGet();
+                return false;
+            }
+        }
+        final Stat LISTED = new Stat();
+        try {
+            final List<String> NAMES = zkConnection.getChildren(path, watcher, LISTED);
+            listings.incrementAndGet();
+            apply(NAMES, LISTED);
+        } catch (KeeperException.NoNodeException e) {
+            deleted();
+            // wait for it to be created again
+            if (zkConnection.exists(path, watcher) != null)
+                list();
+        }
+        return true;
+    }
+
+    private void list() {
+        zkConnection.getChildren(path, watcher, callback, null);
+    }
+
+    /**
+     * Lists again after a delay growing with failures in a row, until a listing
+     * succeeds or the tracker is closed.
+     */
+    private void retry() {
+        final int FAILURES = failures.incrementAndGet();
+        try {
+            retrier.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (started)
+                        list();
+                }
+            }, Math.min(MAX_RETRY_MILLIS, RETRY_MILLIS << Math.min(FAILURES - 1, 16)), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // closed meanwhile
+        }
+    }
+
+    /**
+     * Replaces children by a listing newer than them and notifies the difference.
+     */
+    private void apply(List<String> names, Stat stat) {
+        final List<String> ADDED = new ArrayList<>();
+        final List<String> REMOVED = new ArrayList<>();
+        synchronized (notifying) {
+            synchronized (this) {
+                // a znode created again starts over from cversion 0
+                if (stat.getCzxid() == czxid && stat.getCversion() <= cversion) {
+                    skipped.incrementAndGet();
+                    return;
+                }
+                final NameSet LISTED = NameSet.of(names);
+                NameSet.diff(children, LISTED, ADDED, REMOVED);
+                children = LISTED;
+                czxid = stat.getCzxid();
+                cversion = stat.getCversion();
+            }
+            notifyListeners(ADDED, REMOVED);
+        }
+    }
+
+    private void deleted() {
+        synchronized (notifying) {
+            final List<String> REMOVED;
+            synchronized (this) {
+                REMOVED = children.toList();
+                children = NameSet.EMPTY;
+                czxid = -1;
+                cversion = -1;
+            }
+            notifyListeners(Collections.<String> emptyList(), REMOVED);
+        }
+    }
+
+    private void notifyListeners(List<String> added, List<String> removed) {
+        if (added.isEmpty() && removed.isEmpty())
+            return;
+        LOGGER.debug("{} children {} added, {} removed", path, added.size(), removed.size());
+        final List<String> ADDED = Collections.unmodifiableList(added);
+        final List<String> REMOVED = Collections.unmodifiableList(removed);
+        for (Listener listener : listeners)
+            listener.childrenChanged(path, ADDED, REMOVED);
+    }
+
+    class ListingCallback implements AsyncCallback.Children2Callback, AsyncCallback.StatCallback {
+        @Override
+        public void processResult(int rc, String path, Object ctx, List<String> names, Stat stat) {
+            if (!started)
+                return;
+            if (rc == KeeperException.Code.OK.intValue()) {
+                failures.set(0);
+                listings.incrementAndGet();
+                apply(names, stat);
+            } else if (rc == KeeperException.Code.NONODE.intValue()) {
+                failures.set(0);
+                deleted();
+                // wait for it to be created again
+                zkConnection.exists(path, watcher, this, null);
+            } else {
+                // the watch may not be set, so it is listed again
+                LOGGER.warn("failed to list children of {}, retrying: {}", path, KeeperException.Code.get(rc));
+                retry();
+            }
+        }
+
+        @Override
+        public void processResult(int rc, String path, Object ctx, Stat stat) {
+            if (!started || rc == KeeperException.Code.NONODE.intValue())
+                return;
+            if (rc == KeeperException.Code.OK.intValue()) {
+                // created meanwhile
+                list();
+            } else {
+                LOGGER.warn("failed to watch {}, retrying: {}", path, KeeperException.Code.get(rc));
+                retry();
+            }
+        }
+    }
+
+    /**
+     * Lists children again when they change, the znode is created or the session
+     * expired.
+     */
+    class ChildWatcher implements Watcher {
+        private WeakReference<ZooKeeperConnection> zkConnectionRef;
+
+        public ChildWatcher(ZooKeeperConnection zkConnection) {
+            this.zkConnectionRef = new WeakReference<ZooKeeperConnection>(zkConnection);
+        }
+
+        @Override
+        public void process(WatchedEvent event) {
+            if (!started || zkConnectionRef.get() == null)
+                return;
+            switch (event.getType()) {
+            case NodeChildrenChanged:
+            case NodeCreated:
+            case NodeDeleted:
+                list();
+                break;
+            case None:
+                // watches of the session are gone, listed again once connected
+                if (event.getState() == Event.KeeperState.Expired)
+                    retry();
+                break;
+            default:
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package lyn.util.zookeeper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lyn.util.zookeeper.metrics.Histogram;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures round trip times to the servers of a connect string, so that a connection
+ * goes to the servers nearby rather than one picked at random.
+ * <ul>
+ * <li>a probe is the <code>ruok</code> four letter word on a socket of its own, which
+ * needs no session and is answered by the server without touching its data</li>
+ * <li>round trips are recorded in a histogram per server and ranked by a moving
+ * average, so that one slow answer does not move the choice</li>
+ * <li><code>select</code> keeps servers within <code>NEARBY_FACTOR</code> of the
+ * fastest one, and at least <code>minServers</code> of them fastest first, a majority
+ * by default</li>
+ * </ul>
+ * Zookeeper shuffles the servers of a connect string, so ordering them would not help:
+ * servers far away are left out instead, and a connection falls back to all of them
+ * when none nearby answers. A session only fails over among the servers selected, so
+ * fewer of them trade availability for latency: with a single one, losing it leaves
+ * the client disconnected until its session expires, even though the ensemble still
+ * serves. Keeping a majority means the client can always reach a server of any
+ * quorum.
+ *
+ * @author Yanpeng Lin
+ */
+public class LatencyProbe {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LatencyProbe.class);
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static final int DEFAULT_PORT = 2181;
+
+    /* a server is nearby within this factor of the fastest one */
+    private static final int NEARBY_FACTOR = 2;
+
+    /* and within this much, so that jitter of a local network does not split servers */
+    private static final long NEARBY_SLACK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final String connectString;
+
+    private final String chroot;
+
+    private final List<Server> servers;
+
+    private final int timeoutMillis;
+
+    private final int minServers;
+
+    private final AtomicLong probes = new AtomicLong();
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * A server and its round trip times.
+     */
+    public static class Server {
+        private final String host;
+        private final int port;
+        private final Histogram latency = new Histogram();
+        private final AtomicLong failures = new AtomicLong();
+        /* moving average in nanoseconds, Long.MAX_VALUE when unreachable or not probed */
+        private volatile long average = Long.MAX_VALUE;
+
+        Server(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        /**
+         * @return round trip times in nanoseconds
+         */
+        public Histogram getLatency() {
+            return latency;
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        /**
+         * @return moving average of round trip times in nanoseconds, Long.MAX_VALUE when
+         *         the last probe failed
+         */
+        public long getAverage() {
+            return average;
+        }
+
+        void succeeded(long nanos) {
+            latency.record(nanos);
+            final long AVERAGE = average;
+            average = (AVERAGE == Long.MAX_VALUE) ? nanos : AVERAGE - AVERAGE / 4 + nanos / 4;
+        }
+
+        void failed() {
+            failures.incrementAndGet();
+            average = Long.MAX_VALUE;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    public LatencyProbe(String connectString) {
+        this(connectString, 1000);
+    }
+
+    public LatencyProbe(String connectString, int timeoutMillis) {
+        this(connectString, timeoutMillis, 0);
+    }
+
+    /**
+     * @param connectString servers as given to zookeeper, with an optional chroot
+     * @param timeoutMillis of a probe
+     * @param minServers kept by <code>select</code> at least, a majority of the servers
+     *            when 0
+     */
+    public LatencyProbe(String connectString, int timeoutMillis, int minServers) {
+        if (minServers < 0)
+            throw new IllegalArgumentException("negative minimum of servers " + minServers);
+        this.connectString = connectString;
+        this.timeoutMillis = timeoutMillis;
+        final int CHROOT = connectString.indexOf('/');
+        this.chroot = (CHROOT < 0) ? "" : connectString.substring(CHROOT);
+        final List<Server> SERVERS = new ArrayList<>();
+        for (String server : ((CHROOT < 0) ? connectString : connectString.substring(0, CHROOT)).split(",")) {
+            server = server.trim();
+            if (server.isEmpty())
+                continue;
+            final int PORT = server.lastIndexOf(':');
+            if (PORT < 0)
+                SERVERS.add(new Server(server, DEFAULT_PORT));
+            else
+                SERVERS.add(new Server(server.substring(0, PORT), Integer.parseInt(server.substring(PORT + 1))));
+        }
+        if (SERVERS.isEmpty())
+            throw new IllegalArgumentException("no server in " + connectString);
+        this.servers = Collections.unmodifiableList(SERVERS);
+        this.minServers = Math.min(SERVERS.size(), (minServers > 0) ? minServers : SERVERS.size() / 2 + 1);
+    }
+
+    public String getConnectString() {
+        return connectString;
+    }
+
+    public List<Server> getServers() {
+        return servers;
+    }
+
+    /**
+     * @return servers kept by <code>select</code> at least
+     */
+    public int getMinServers() {
+        return minServers;
+    }
+
+    /**
+     * @return rounds of probes done
+     */
+    public long getProbes() {
+        return probes.get();
+    }
+
+    /**
+     * Probes all servers once.
+     */
+    public void probe() {
+        for (Server server : servers) {
+            try {
+                server.succeeded(ruok(server));
+            } catch (IOException e) {
+                LOGGER.debug("failed to probe {}: {}", server, e.toString());
+                server.failed();
+            }
+        }
+        probes.incrementAndGet();
+    }
+
+    private long ruok(Server server) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(server.host, server.port), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            socket.setTcpNoDelay(true);
+            final long START = System.nanoTime();
+            socket.getOutputStream().write("ruok".getBytes(US_ASCII));
+            socket.getOutputStream().flush();
+            final InputStream IN = socket.getInputStream();
+            final byte[] ANSWER = new byte[4];
+            int read = 0;
+            while (read < ANSWER.length) {
+                final int COUNT = IN.read(ANSWER, read, ANSWER.length - read);
+                if (COUNT < 0)
+                    break;
+                read += COUNT;
+            }
+            final long NANOS = System.nanoTime() - START;
+            if (read < ANSWER.length || !"imok".equals(new String(ANSWER, US_ASCII)))
+                throw new IOException("not serving");
+            return NANOS;
+        }
+    }
+
+    /**
+     * Probes all servers periodically on a daemon thread.
+     *
+     * @param period
+     * @param unit
+     */
+    public synchronized void start(long period, TimeUnit unit) {
+        if (scheduler != null)
+            return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread THREAD = new Thread(runnable, "latency-probe");
+                THREAD.setDaemon(true);
+                return THREAD;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                probe();
+            }
+        }, 0, period, unit);
+    }
+
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Chooses servers nearby, probing first when never probed.
+     *
+     * @return connect string of the servers nearby fastest first, topped up with the
+     *         next fastest to <code>minServers</code>, or all servers when none answered
+     */
+    public String select() {
+        if (probes.get() == 0)
+            probe();
+        // averages read once, probes may update them meanwhile
+        final long[][] RANKED = new long[servers.size()][];
+        for (int idx = 0; idx < RANKED.length; idx++)
+            RANKED[idx] = new long[] { servers.get(idx).average, idx };
+        Arrays.sort(RANKED, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] left, long[] right) {
+                return Long.compare(left[0], right[0]);
+            }
+        });
+        final long FASTEST = RANKED[0][0];
+        if (FASTEST == Long.MAX_VALUE)
+            return connectString;
+        final long LIMIT = Math.max(FASTEST * NEARBY_FACTOR, FASTEST + NEARBY_SLACK_NANOS);
+        final StringBuilder SELECTED = new StringBuilder();
+        for (int idx = 0; idx < RANKED.length; idx++) {
+            final long[] SERVER = RANKED[idx];
+            // servers far away kept too, to fail over to when those nearby are lost
+            if (idx >= minServers && SERVER[0] > LIMIT)
+                break;
+            if (SELECTED.length() > 0)
+                SELECTED.append(',');
+            SELECTED.append(servers.get((int) SERVER[1]));
+        }
+        return SELECTED.append(chroot).toString();
+    }
+}
@@ -0,0 +1,238 @@
+package lyn.util.zookeeper;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable sorted set of znode names, front coded to take little memory for large
+ * directories of similar names like sequential ones.
+ * <p>
+ * Names are stored in blocks of <code>BLOCK_SIZE</code> in one byte array: each name is
+ * the length of the UTF-8 prefix shared with the previous name, the length of the rest
+ * and the rest, and the first name of a block shares nothing so that blocks are found
+ * by binary search.
+ *
+ * @author Yanpeng Lin
+ */
+public final class NameSet implements Iterable<String> {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final int BLOCK_SIZE = 16;
+
+    public static final NameSet EMPTY = new NameSet(new byte[0], new int[0], 0);
+
+    private final byte[] data;
+    private final int[] blocks;
+    private final int size;
+
+    private NameSet(byte[] data, int[] blocks, int size) {
+        this.data = data;
+        this.blocks = blocks;
+        this.size = size;
+    }
+
+    /**
+     * @param names in any order, duplicates dropped
+     * @return set of names
+     */
+    public static NameSet of(Collection<String> names) {
+        if (names.isEmpty())
+            return EMPTY;
+        final String[] SORTED = names.toArray(new String[names.size()]);
+        Arrays.sort(SORTED);
+        int size = 0;
+        int length = 0;
+        byte[] data = new byte[Math.max(16, SORTED.length * 4)];
+        final int[] BLOCKS = new int[(SORTED.length + BLOCK_SIZE - 1) / BLOCK_SIZE];
+        byte[] previous = new byte[0];
+        for (int idx = 0; idx < SORTED.length; idx++) {
+            if (idx > 0 && SORTED[idx].equals(SORTED[idx - 1]))
+                continue;
+            final byte[] NAME = SORTED[idx].getBytes(UTF_8);
+            int shared = 0;
+            if (size % BLOCK_SIZE == 0) {
+                BLOCKS[size / BLOCK_SIZE] = length;
+            } else {
+                final int LIMIT = Math.min(previous.length, NAME.length);
+                while (shared < LIMIT && previous[shared] == NAME[shared])
+                    shared++;
+            }
+            final int REST = NAME.length - shared;
+            if (length + REST + 10 > data.length)
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + REST + 10));
+            length = writeVarInt(data, length, shared);
+            length = writeVarInt(data, length, REST);
+            System.arraycopy(NAME, shared, data, length, REST);
+            length += REST;
+            previous = NAME;
+            size++;
+        }
+        return new NameSet(Arrays.copyOf(data, length), Arrays.copyOf(BLOCKS, (size + BLOCK_SIZE - 1) / BLOCK_SIZE),
+                size);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return bytes taken by encoded names
+     */
+    public int getEncodedBytes() {
+        return data.length + blocks.length * 4;
+    }
+
+    public boolean contains(String name) {
+        int low = 0;
+        int high = blocks.length - 1;
+        // last block whose first name is not after name
+        while (low <= high) {
+            final int MID = (low + high) >>> 1;
+            if (new Cursor(blocks[MID], MID * BLOCK_SIZE).next().compareTo(name) <= 0)
+                low = MID + 1;
+            else
+                high = MID - 1;
+        }
+        if (high < 0)
+            return false;
+        final Cursor CURSOR = new Cursor(blocks[high], high * BLOCK_SIZE);
+        for (int idx = 0; idx < BLOCK_SIZE && CURSOR.hasNext(); idx++) {
+            final int CMP = CURSOR.next().compareTo(name);
+            if (CMP == 0)
+                return true;
+            if (CMP > 0)
+                return false;
+        }
+        return false;
+    }
+
+    /**
+     * @return names in order
+     */
+    @Override
+    public Iterator<String> iterator() {
+        return new Cursor(0, 0);
+    }
+
+    /**
+     * @return names in order, decoded once
+     */
+    public List<String> toList() {
+        final List<String> NAMES = new ArrayList<>(size);
+        for (String name : this)
+            NAMES.add(name);
+        return NAMES;
+    }
+
+    /**
+     * Merges two sets in one pass.
+     *
+     * @param before
+     * @param after
+     * @param added names of after only
+     * @param removed names of before only
+     */
+    public static void diff(NameSet before, NameSet after, List<String> added, List<String> removed) {
+        final Iterator<String> OLD = before.iterator();
+        final Iterator<String> NEW = after.iterator();
+        String oldName = OLD.hasNext() ? OLD.next() : null;
+        String newName = NEW.hasNext() ? NEW.next() : null;
+        while (oldName != null || newName != null) {
+            final int CMP = (oldName == null) ? 1 : (newName == null) ? -1 : oldName.compareTo(newName);
+            if (CMP < 0) {
+                removed.add(oldName);
+                oldName = OLD.hasNext() ? OLD.next() : null;
+            } else if (CMP > 0) {
+                added.add(newName);
+                newName = NEW.hasNext() ? NEW.next() : null;
+            } else {
+                oldName = OLD.hasNext() ? OLD.next() : null;
+                newName = NEW.hasNext() ? NEW.next() : null;
+            }
+        }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof NameSet))
+            return false;
+        final NameSet SET = (NameSet) other;
+        return size == SET.size && Arrays.equals(data, SET.data);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(data);
+    }
+
+    @Override
+    public String toString() {
+        return toList().toString();
+    }
+
+    private static int writeVarInt(byte[] bytes, int offset, int value) {
+        while ((value & ~0x7f) != 0) {
+            bytes[offset++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        bytes[offset++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * Decodes names from the start of a block.
+     */
+    private class Cursor implements Iterator<String> {
+        private int offset;
+        private int index;
+        private byte[] name = new byte[64];
+
+        Cursor(int offset, int index) {
+            this.offset = offset;
+            this.index = index;
+        }
+
+        private int readVarInt() {
+            int value = 0;
+            for (int shift = 0;; shift += 7) {
+                final int B = data[offset++];
+                value |= (B & 0x7f) << shift;
+                if ((B & 0x80) == 0)
+                    return value;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < size;
+        }
+
+        @Override
+        public String next() {
+            if (index >= size)
+                throw new NoSuchElementException();
+            final int SHARED = readVarInt();
+            final int REST = readVarInt();
+            if (SHARED + REST > name.length)
+                name = Arrays.copyOf(name, Math.max(name.length * 2, SHARED + REST));
+            System.arraycopy(data, offset, name, SHARED, REST);
+            offset += REST;
+            index++;
+            return new String(name, 0, SHARED + REST, UTF_8);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
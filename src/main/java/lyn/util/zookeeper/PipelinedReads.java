@@ -0,0 +1,151 @@
+package lyn.util.zookeeper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Results of reads sent without waiting in between, one round trip for all of them.
+ * <ul>
+ * <li>an instance is the callback of every read of a round, the index of a path is
+ * passed as the context of its reads</li>
+ * <li>the data and children of a path are read together or alone, the code of a read
+ * not sent is OK</li>
+ * <li>results are read once <code>await</code> returns, the latch orders them after the
+ * callbacks</li>
+ * </ul>
+ *
+ * @author Yanpeng Lin
+ */
+public class PipelinedReads implements AsyncCallback.DataCallback, AsyncCallback.Children2Callback {
+    private final CountDownLatch done;
+
+    private final List<Result> results;
+
+    /**
+     * Data and children of one path.
+     */
+    public static class Result {
+        private KeeperException.Code dataCode = KeeperException.Code.OK;
+        private byte[] data;
+        private Stat dataStat;
+        private KeeperException.Code childrenCode = KeeperException.Code.OK;
+        private List<String> children = Collections.emptyList();
+        private Stat childrenStat;
+
+        public KeeperException.Code getDataCode() {
+            return dataCode;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public Stat getDataStat() {
+            return dataStat;
+        }
+
+        public KeeperException.Code getChildrenCode() {
+            return childrenCode;
+        }
+
+        public List<String> getChildren() {
+            return children;
+        }
+
+        public Stat getChildrenStat() {
+            return childrenStat;
+        }
+
+        /**
+         * @return true when the path was deleted before either read
+         */
+        public boolean isMissing() {
+            return dataCode == KeeperException.Code.NONODE || childrenCode == KeeperException.Code.NONODE;
+        }
+
+        /**
+         * @param path
+         * @throws KeeperException of the first read failed
+         */
+        public void check(String path) throws KeeperException {
+            if (dataCode != KeeperException.Code.OK)
+                throw KeeperException.create(dataCode, path);
+            if (childrenCode != KeeperException.Code.OK)
+                throw KeeperException.create(childrenCode, path);
+        }
+    }
+
+    /**
+     * @param size paths read
+     * @param readData whether data of each path is read
+     * @param listChildren whether children of each path are listed
+     */
+    public PipelinedReads(int size, boolean readData, boolean listChildren) {
+        this.done = new CountDownLatch((readData ? size : 0) + (listChildren ? size : 0));
+        this.results = new ArrayList<>(size);
+        for (int idx = 0; idx < size; idx++)
+            results.add(new Result());
+    }
+
+    /**
+     * Reads all paths on one connection with watches and waits for every result.
+     *
+     * @param zkConnection
+     * @param paths
+     * @param watcher set on each read
+     * @param readData
+     * @param listChildren
+     * @return results in the order of paths
+     * @throws InterruptedException
+     */
+    public static PipelinedReads read(ZooKeeperConnection zkConnection, List<String> paths, Watcher watcher,
+            boolean readData, boolean listChildren) throws InterruptedException {
+        final PipelinedReads READS = new PipelinedReads(paths.size(), readData, listChildren);
+        for (int idx = 0; idx < paths.size(); idx++) {
+            if (readData)
+                zkConnection.getData(paths.get(idx), watcher, READS, idx);
+            if (listChildren)
+                zkConnection.getChildren(paths.get(idx), watcher, (AsyncCallback.Children2Callback) READS, idx);
+        }
+        READS.await();
+        return READS;
+    }
+
+    public void await() throws InterruptedException {
+        done.await();
+    }
+
+    public int size() {
+        return results.size();
+    }
+
+    public Result get(int idx) {
+        return results.get(idx);
+    }
+
+    @Override
+    public void processResult(int rc, String path, Object ctx, byte[] bytes, Stat stat) {
+        final Result RESULT = results.get((Integer) ctx);
+        RESULT.dataCode = KeeperException.Code.get(rc);
+        RESULT.data = bytes;
+        RESULT.dataStat = stat;
+        done.countDown();
+    }
+
+    @Override
+    public void processResult(int rc, String path, Object ctx, List<String> names, Stat stat) {
+        final Result RESULT = results.get((Integer) ctx);
+        RESULT.childrenCode = KeeperException.Code.get(rc);
+        if (names != null)
+            RESULT.children = names;
+        RESULT.childrenStat = stat;
+        done.countDown();
+    }
+}
@@ -0,0 +1,275 @@
+package lyn.util.zookeeper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Report of reconciling a subtree to a desired state, see
+ * <code>ZooKeeperConnection.reconcile</code>.
+ * <ul>
+ * <li>the subtree is read level by level, with all reads of a level in flight
+ * together</li>
+ * <li>only nodes whose data differ are set, nodes missing are created, and nodes
+ * neither desired nor ancestors of desired nodes are deleted; ephemeral nodes are left
+ * to their sessions</li>
+ * <li>deletes go deepest first, then creates parents first, then sets, in
+ * transactions bounded by <code>maxBatchBytes</code>; sets and deletes check the
+ * version read, so a batch fails when the subtree changed meanwhile</li>
+ * </ul>
+ * Batches are atomic but reconciliation is not, a failed batch leaves the batches
+ * before it applied and running reconciliation again completes it.
+ *
+ * @author Yanpeng Lin
+ */
+public class Reconciliation {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Reconciliation.class);
+
+    /* rough size of an operation in a transaction besides path and data */
+    private static final int OP_OVERHEAD = 32;
+
+    private static final int MAX_BATCH_OPS = 1000;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final String root;
+    private final boolean dryRun;
+
+    private final List<String> creates = new ArrayList<>();
+    private final List<String> updates = new ArrayList<>();
+    private final List<String> deletes = new ArrayList<>();
+    private int reads = 0;
+    private int batches = 0;
+
+    private Reconciliation(String root, boolean dryRun) {
+        this.root = root;
+        this.dryRun = dryRun;
+    }
+
+    public String getRoot() {
+        return root;
+    }
+
+    /**
+     * @return true when changes were computed but not applied
+     */
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    /**
+     * @return paths created, parents first
+     */
+    public List<String> getCreates() {
+        return Collections.unmodifiableList(creates);
+    }
+
+    /**
+     * @return paths whose data were set
+     */
+    public List<String> getUpdates() {
+        return Collections.unmodifiableList(updates);
+    }
+
+    /**
+     * @return paths deleted, children first
+     */
+    public List<String> getDeletes() {
+        return Collections.unmodifiableList(deletes);
+    }
+
+    /**
+     * @return nodes read
+     */
+    public int getReads() {
+        return reads;
+    }
+
+    /**
+     * @return transactions committed, none for a dry run
+     */
+    public int getBatches() {
+        return batches;
+    }
+
+    /**
+     * @return true when the subtree was already in the desired state
+     */
+    public boolean isEmpty() {
+        return creates.isEmpty() && updates.isEmpty() && deletes.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return root + (dryRun ? " dry run" : "") + ": " + reads + " read, " + creates.size() + " created, "
+                + updates.size() + " updated, " + deletes.size() + " deleted in " + batches + " batches";
+    }
+
+    static Reconciliation reconcile(ZooKeeperConnection zooKeeper, String root, Map<String, byte[]> desired,
+            boolean dryRun, int maxBatchBytes) throws KeeperException, InterruptedException {
+        if (root.equals("/"))
+            throw new IllegalArgumentException("cannot reconcile the whole tree");
+        ZooKeeperConnection.getParent(root);
+        if (maxBatchBytes <= 0)
+            throw new IllegalArgumentException("maxBatchBytes must be positive");
+        final TreeMap<String, byte[]> DESIRED = new TreeMap<>();
+        for (Map.Entry<String, byte[]> entry : desired.entrySet()) {
+            final String PATH = entry.getKey();
+            if (!PATH.equals(root) && !PATH.startsWith(root + "/"))
+                throw new IllegalArgumentException(PATH + " is not under " + root);
+            ZooKeeperConnection.getName(PATH);
+            DESIRED.put(PATH, (entry.getValue() == null) ? EMPTY : entry.getValue());
+        }
+
+        final Reconciliation RESULT = new Reconciliation(root, dryRun);
+        final NavigableMap<String, PipelinedReads.Result> CURRENT = read(zooKeeper, root);
+        RESULT.reads = CURRENT.size();
+
+        // ancestors of desired and ephemeral nodes are kept, and created empty when missing
+        final TreeMap<String, byte[]> KEPT = new TreeMap<>();
+        final List<String> ANCHORED = new ArrayList<>(DESIRED.keySet());
+        for (Map.Entry<String, PipelinedReads.Result> entry : CURRENT.entrySet()) {
+            if (entry.getValue().getDataStat().getEphemeralOwner() != 0)
+                ANCHORED.add(entry.getKey());
+        }
+        for (String path : ANCHORED) {
+            for (String ancestor = path; !ancestor.equals(root);) {
+                ancestor = ZooKeeperConnection.getParent(ancestor);
+                if (!KEPT.containsKey(ancestor) && !DESIRED.containsKey(ancestor))
+                    KEPT.put(ancestor, null);
+            }
+        }
+        if (!DESIRED.containsKey(root))
+            KEPT.put(root, null);
+
+        final List<Op> OPS = new ArrayList<>();
+        for (String path : CURRENT.descendingKeySet()) {
+            final PipelinedReads.Result NODE = CURRENT.get(path);
+            if (!DESIRED.containsKey(path) && !KEPT.containsKey(path) && NODE.getDataStat().getEphemeralOwner() == 0) {
+                RESULT.deletes.add(path);
+                OPS.add(new Op(Op.DELETE, path, null, NODE.getDataStat().getVersion()));
+            }
+        }
+        final TreeMap<String, byte[]> TREE = new TreeMap<>(KEPT);
+        TREE.putAll(DESIRED);
+        for (Map.Entry<String, byte[]> entry : TREE.entrySet()) {
+            if (!CURRENT.containsKey(entry.getKey())) {
+                final byte[] DATA = (entry.getValue() == null) ? EMPTY : entry.getValue();
+                RESULT.creates.add(entry.getKey());
+                OPS.add(new Op(Op.CREATE, entry.getKey(), DATA, -1));
+            }
+        }
+        for (Map.Entry<String, byte[]> entry : DESIRED.entrySet()) {
+            final PipelinedReads.Result NODE = CURRENT.get(entry.getKey());
+            if (NODE != null && !Arrays.equals((NODE.getData() == null) ? EMPTY : NODE.getData(), entry.getValue())) {
+                RESULT.updates.add(entry.getKey());
+                OPS.add(new Op(Op.SET, entry.getKey(), entry.getValue(), NODE.getDataStat().getVersion()));
+            }
+        }
+
+        if (!dryRun && !OPS.isEmpty()) {
+            if (!CURRENT.containsKey(root) && !ZooKeeperConnection.getParent(root).equals("/"))
+                ZooKeeperConnection.createFullPath(zooKeeper, ZooKeeperConnection.getParent(root), EMPTY,
+                        CreateMode.PERSISTENT, true);
+            apply(zooKeeper, OPS, maxBatchBytes, RESULT);
+        }
+        LOGGER.debug("{}", RESULT);
+        return RESULT;
+    }
+
+    private static void apply(ZooKeeperConnection zooKeeper, List<Op> ops, int maxBatchBytes, Reconciliation result)
+            throws KeeperException, InterruptedException {
+        Transaction tx = zooKeeper.transaction();
+        int bytes = 0;
+        int count = 0;
+        for (Op op : ops) {
+            final int SIZE = op.size();
+            if (count > 0 && (bytes + SIZE > maxBatchBytes || count >= MAX_BATCH_OPS)) {
+                ZooKeeperConnection.commit(tx);
+                result.batches++;
+                tx = zooKeeper.transaction();
+                bytes = 0;
+                count = 0;
+            }
+            op.add(tx);
+            bytes += SIZE;
+            count++;
+        }
+        ZooKeeperConnection.commit(tx);
+        result.batches++;
+    }
+
+    /**
+     * Reads a subtree a level at a time with pipelined requests.
+     *
+     * @return data, stat and children of nodes by path, empty when the root does not
+     *         exist
+     */
+    static NavigableMap<String, PipelinedReads.Result> read(ZooKeeperConnection zooKeeper, String root)
+            throws KeeperException, InterruptedException {
+        final TreeMap<String, PipelinedReads.Result> NODES = new TreeMap<>();
+        List<String> level = Collections.singletonList(root);
+        while (!level.isEmpty()) {
+            final PipelinedReads READS = PipelinedReads.read(zooKeeper, level, null, true, true);
+            final List<String> NEXT = new ArrayList<>();
+            for (int i = 0; i < level.size(); i++) {
+                final String PATH = level.get(i);
+                final PipelinedReads.Result NODE = READS.get(i);
+                // deleted meanwhile
+                if (NODE.isMissing())
+                    continue;
+                NODE.check(PATH);
+                NODES.put(PATH, NODE);
+                for (String child : NODE.getChildren())
+                    NEXT.add(PATH + "/" + child);
+            }
+            level = NEXT;
+        }
+        return NODES;
+    }
+
+    private static class Op {
+        static final int DELETE = 0;
+        static final int CREATE = 1;
+        static final int SET = 2;
+
+        final int type;
+        final String path;
+        final byte[] data;
+        final int version;
+
+        Op(int type, String path, byte[] data, int version) {
+            this.type = type;
+            this.path = path;
+            this.data = data;
+            this.version = version;
+        }
+
+        int size() {
+            return path.length() + ((data == null) ? 0 : data.length) + OP_OVERHEAD;
+        }
+
+        void add(Transaction tx) {
+            switch (type) {
+            case DELETE:
+                ZooKeeperConnection.delete(tx, path, version);
+                break;
+            case CREATE:
+                ZooKeeperConnection.create(tx, path, data, CreateMode.PERSISTENT);
+                break;
+            default:
+                ZooKeeperConnection.setData(tx, path, data, version);
+            }
+        }
+    }
+}
@@ -0,0 +1,893 @@
+package lyn.util.zookeeper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import lyn.util.zookeeper.metrics.Histogram;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.Transaction;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A connection to several ensembles, each path served by the ensemble of its shard.
+ * <ul>
+ * <li>a path goes to the shard of its longest assigned prefix, or else to a shard
+ * chosen by hash of its top level name, so that a subtree stays on one shard</li>
+ * <li>listings of a path whose subtree spans shards, like <code>/</code>, are sent to
+ * all of those shards in parallel and merged, as is <code>listTree</code></li>
+ * <li>each shard counts requests and errors and records latencies of synchronous
+ * requests</li>
+ * <li><code>rebalance</code> moves a prefix to another shard in process: writes wait
+ * while its subtree is copied, routing is switched, then the source copy is
+ * deleted. Child versions of copied parents are raised to those of the source, so
+ * sequential children go on being numbered after the copied ones. Watches set on
+ * the source copy fire <code>NodeDeleted</code> as it is deleted, watchers read
+ * again to find the node on its new shard.</li>
+ * </ul>
+ * Parents of a path served by another shard are created there as empty placeholders.
+ * Sessions are per shard and ephemeral nodes are not moved. Transactions, and so helpers
+ * built on them like <code>reconcile</code>, <code>ChunkedValues</code>,
+ * <code>StripedCounter</code> and <code>BatchedDistributedQueue</code>, work on paths
+ * served by one shard and fail with <code>IllegalArgumentException</code> otherwise.
+ *
+ * @author Yanpeng Lin
+ */
+public class ShardedZooKeeperConnection extends ZooKeeperConnection {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardedZooKeeperConnection.class);
+
+    private final Map<String, Shard> shards;
+
+    private final Shard[] ring;
+
+    /* replaced as a whole, shards by assigned prefix */
+    private volatile Map<String, Shard> prefixes = Collections.emptyMap();
+
+    /*
+     * held shared by writes and exclusively by rebalancing, writes route under it so that
+     * one waiting for rebalance goes to the new shard
+     */
+    private final ReentrantReadWriteLock moving = new ReentrantReadWriteLock();
+
+    private final ExecutorService fanOut;
+
+    /* child of a copied parent created and deleted to raise its child version */
+    private static final String PLACEHOLDER = ".rebalance";
+
+    /* ops per transaction raising a child version */
+    private static final int MAX_BUMP_OPS = 1000;
+
+    /**
+     * @param ensembles connect strings by shard name, the first shard also serves
+     *            <code>/</code> and session level calls
+     * @param timeout
+     */
+    public ShardedZooKeeperConnection(Map<String, String> ensembles, int timeout) {
+        super(ensembles.toString(), timeout);
+        if (ensembles.isEmpty())
+            throw new IllegalArgumentException("no ensemble");
+        final Map<String, Shard> SHARDS = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : ensembles.entrySet())
+            SHARDS.put(entry.getKey(), new Shard(entry.getKey(), newConnection(entry.getValue(), timeout)));
+        this.shards = Collections.unmodifiableMap(SHARDS);
+        this.ring = SHARDS.values().toArray(new Shard[SHARDS.size()]);
+        this.fanOut = Executors.newFixedThreadPool(ring.length, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "shard-fan-out");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    protected ZooKeeperConnection newConnection(String connectString, int timeout) {
+        return new ZooKeeperConnection(connectString, timeout);
+    }
+
+    /**
+     * A shard and its metrics.
+     */
+    public static class Shard {
+        private final String name;
+        private final ZooKeeperConnection connection;
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final Histogram latency = new Histogram();
+
+        Shard(String name, ZooKeeperConnection connection) {
+            this.name = name;
+            this.connection = connection;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public ZooKeeperConnection getConnection() {
+            return connection;
+        }
+
+        /**
+         * @return requests sent, synchronous and asynchronous
+         */
+        public long getRequests() {
+            return requests.get();
+        }
+
+        /**
+         * @return synchronous requests failed
+         */
+        public long getErrors() {
+            return errors.get();
+        }
+
+        /**
+         * @return latencies of synchronous requests in nanoseconds
+         */
+        public Histogram getLatency() {
+            return latency;
+        }
+
+        long begin() {
+            requests.incrementAndGet();
+            return System.nanoTime();
+        }
+
+        void end(long start) {
+            latency.record(System.nanoTime() - start);
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + requests.get() + " requests, " + errors.get() + " errors, latency " + latency;
+        }
+    }
+
+    public Collection<Shard> getShards() {
+        return shards.values();
+    }
+
+    public Shard getShard(String name) {
+        final Shard SHARD = shards.get(name);
+        if (SHARD == null)
+            throw new IllegalArgumentException("unknown shard " + name);
+        return SHARD;
+    }
+
+    /**
+     * @param path
+     * @return name of the shard serving path
+     */
+    public String route(String path) {
+        return shard(path).name;
+    }
+
+    /**
+     * @param path
+     * @return connection of the shard serving path, for recipes bound to one ensemble
+     */
+    public ZooKeeperConnection getConnection(String path) {
+        return shard(path).connection;
+    }
+
+    /**
+     * Routes a prefix to a shard without moving data, to configure routing.
+     *
+     * @param prefix
+     * @param shard
+     */
+    public void assign(String prefix, String shard) {
+        ZooKeeperConnection.getName(prefix);
+        final Shard SHARD = getShard(shard);
+        moving.writeLock().lock();
+        try {
+            final Map<String, Shard> PREFIXES = new HashMap<>(prefixes);
+            PREFIXES.put(prefix, SHARD);
+            prefixes = PREFIXES;
+        } finally {
+            moving.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Moves a prefix to a shard. Persistent nodes of the subtree served by the current
+     * shard are copied, routing is switched and the copied nodes are deleted from the
+     * current shard. Writes wait meanwhile. A copied parent gets the child version of
+     * its source, so that names of sequential children created after the move neither
+     * collide with nor sort before copied ones. Watchers of copied nodes receive
+     * <code>NodeDeleted</code> from the current shard.
+     *
+     * @param prefix
+     * @param shard
+     * @return nodes moved
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public int rebalance(String prefix, String shard) throws KeeperException, InterruptedException {
+        ZooKeeperConnection.getName(prefix);
+        final Shard TARGET = getShard(shard);
+        moving.writeLock().lock();
+        try {
+            final Shard SOURCE = shard(prefix);
+            if (SOURCE == TARGET) {
+                assign(prefix, shard);
+                return 0;
+            }
+            final NavigableMap<String, PipelinedReads.Result> TREE = Reconciliation.read(SOURCE.connection, prefix);
+            final List<String> MOVED = new ArrayList<>();
+            for (Map.Entry<String, PipelinedReads.Result> entry : TREE.entrySet()) {
+                // ephemeral nodes belong to the session, deeper prefixes stay where assigned
+                if (entry.getValue().getDataStat().getEphemeralOwner() != 0 || shard(entry.getKey()) != SOURCE)
+                    continue;
+                ZooKeeperConnection.updateOrCreate(TARGET.connection, entry.getKey(), entry.getValue().getData(),
+                        CreateMode.PERSISTENT);
+                MOVED.add(entry.getKey());
+            }
+            for (String path : MOVED)
+                bumpCversion(TARGET.connection, path, TREE.get(path).getDataStat().getCversion());
+            assign(prefix, shard);
+            for (int idx = MOVED.size() - 1; idx >= 0; idx--) {
+                try {
+                    SOURCE.connection.delete(MOVED.get(idx), -1);
+                } catch (KeeperException.NoNodeException | KeeperException.NotEmptyException e) {
+                    // kept for ephemeral nodes or deeper prefixes
+                }
+            }
+            LOGGER.info("moved {} nodes of {} from {} to {}", MOVED.size(), prefix, SOURCE.name, TARGET.name);
+            return MOVED.size();
+        } finally {
+            moving.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Raises the child version of a node up to cversion, by creating and deleting a
+     * placeholder child, as sequential names are numbered by child version.
+     */
+    private static void bumpCversion(ZooKeeperConnection zkConnection, String path, int cversion)
+            throws KeeperException, InterruptedException {
+        final String PLACEHOLDER_PATH = path + "/" + PLACEHOLDER;
+        int current;
+        // a create raises it by one at least, read again as a delete may raise it too
+        while ((current = zkConnection.exists(path, false).getCversion()) < cversion) {
+            Transaction tx = zkConnection.transaction();
+            for (int ops = 0; ops < Math.min(cversion - current, MAX_BUMP_OPS / 2); ops++) {
+                ZooKeeperConnection.create(tx, PLACEHOLDER_PATH, new byte[0], CreateMode.PERSISTENT);
+                ZooKeeperConnection.delete(tx, PLACEHOLDER_PATH, -1);
+            }
+            ZooKeeperConnection.commit(tx);
+        }
+    }
+
+    private Shard shard(String path) {
+        final Map<String, Shard> PREFIXES = prefixes;
+        if (!PREFIXES.isEmpty()) {
+            for (String prefix = path; prefix.length() > 1; prefix = prefix.substring(0, Math.max(1,
+                    prefix.lastIndexOf('/')))) {
+                final Shard SHARD = PREFIXES.get(prefix);
+                if (SHARD != null)
+                    return SHARD;
+            }
+        }
+        if (path.length() <= 1)
+            return ring[0];
+        final int END = path.indexOf('/', 1);
+        return ring[(mix(path.substring(1, (END < 0) ? path.length() : END).hashCode()) & 0x7fffffff) % ring.length];
+    }
+
+    /* murmur3 finalizer, spreads similar names */
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    /**
+     * @return shards which may serve nodes under path, the shard of path first
+     */
+    private Set<Shard> owners(String path) {
+        final Set<Shard> OWNERS = new LinkedHashSet<>();
+        OWNERS.add(shard(path));
+        if (path.equals("/")) {
+            Collections.addAll(OWNERS, ring);
+            return OWNERS;
+        }
+        for (Map.Entry<String, Shard> entry : prefixes.entrySet()) {
+            if (entry.getKey().startsWith(path + "/"))
+                OWNERS.add(entry.getValue());
+        }
+        return OWNERS;
+    }
+
+    @Override
+    public void connect() throws IOException, InterruptedException {
+        final List<ZooKeeperConnection> CONNECTED = new ArrayList<>();
+        try {
+            for (Shard shard : ring) {
+                shard.connection.connect();
+                CONNECTED.add(shard.connection);
+            }
+        } catch (IOException | InterruptedException e) {
+            for (ZooKeeperConnection connection : CONNECTED)
+                connection.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        for (Shard shard : ring) {
+            if (!shard.connection.isConnected())
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        fanOut.shutdownNow();
+        for (Shard shard : ring)
+            shard.connection.close();
+    }
+
+    /**
+     * Operations are sent at commit to the shard serving their paths, and must all be
+     * served by one shard.
+     */
+    @Override
+    public Transaction transaction() {
+        return new ShardTransaction();
+    }
+
+    /**
+     * @throws IllegalArgumentException when paths of ops are served by different shards
+     */
+    @Override
+    public List<OpResult> multi(Iterable<Op> ops) throws InterruptedException, KeeperException {
+        moving.readLock().lock();
+        try {
+            Shard shard = null;
+            for (Op op : ops) {
+                final Shard SERVING = shard(op.getPath());
+                if (shard != null && SERVING != shard)
+                    throw new IllegalArgumentException("transaction spans shards " + shard.name + " and "
+                            + SERVING.name + " at " + op.getPath());
+                shard = SERVING;
+            }
+            if (shard == null)
+                return Collections.emptyList();
+            final Shard SHARD = shard;
+            final long START = SHARD.begin();
+            try {
+                return SHARD.connection.multi(ops);
+            } catch (KeeperException e) {
+                SHARD.errors.incrementAndGet();
+                throw e;
+            } finally {
+                SHARD.end(START);
+            }
+        } finally {
+            moving.readLock().unlock();
+        }
+    }
+
+    /**
+     * Buffers operations until commit, when their shard is known.
+     */
+    class ShardTransaction extends Transaction {
+        private final List<Op> ops = new ArrayList<>();
+
+        ShardTransaction() {
+            // operations are sent by multi of a shard
+            super(null);
+        }
+
+        @Override
+        public Transaction create(String path, byte[] data, List<ACL> acl, CreateMode createMode) {
+            ops.add(Op.create(path, data, acl, createMode));
+            return this;
+        }
+
+        @Override
+        public Transaction delete(String path, int version) {
+            ops.add(Op.delete(path, version));
+            return this;
+        }
+
+        @Override
+        public Transaction check(String path, int version) {
+            ops.add(Op.check(path, version));
+            return this;
+        }
+
+        @Override
+        public Transaction setData(String path, byte[] data, int version) {
+            ops.add(Op.setData(path, data, version));
+            return this;
+        }
+
+        @Override
+        public List<OpResult> commit() throws InterruptedException, KeeperException {
+            return multi(ops);
+        }
+    }
+
+    @Override
+    public long getSessionId() {
+        return ring[0].connection.getSessionId();
+    }
+
+    @Override
+    public byte[] getSessionPasswd() {
+        return ring[0].connection.getSessionPasswd();
+    }
+
+    @Override
+    public int getSessionTimeout() {
+        return ring[0].connection.getSessionTimeout();
+    }
+
+    @Override
+    public ZooKeeper.States getState() {
+        return ring[0].connection.getState();
+    }
+
+    @Override
+    public void addAuthInfo(String scheme, byte[] auth) {
+        for (Shard shard : ring)
+            shard.connection.addAuthInfo(scheme, auth);
+    }
+
+    @Override
+    public void register(Watcher watcher) {
+        for (Shard shard : ring)
+            shard.connection.register(watcher);
+    }
+
+    @Override
+    public String create(String path, byte[] data, List<ACL> acl, CreateMode createMode) throws KeeperException,
+            InterruptedException {
+        moving.readLock().lock();
+        final Shard SHARD = shard(path);
+        final long START = SHARD.begin();
+        try {
+            try {
+                return SHARD.connection.create(path, data, acl, createMode);
+            } catch (KeeperException.NoNodeException e) {
+                final String PARENT = ZooKeeperConnection.getParent(path);
+                if (shard(PARENT) == SHARD)
+                    throw e;
+                // parents served by another shard are placeholders here
+                ZooKeeperConnection.createFullPath(SHARD.connection, PARENT, new byte[0], CreateMode.PERSISTENT, true);
+                return SHARD.connection.create(path, data, acl, createMode);
+            }
+        } catch (KeeperException e) {
+            SHARD.errors.incrementAndGet();
+            throw e;
+        } finally {
+            moving.readLock().unlock();
+            SHARD.end(START);
+        }
+    }
+
+    @Override
+    public void create(String path, byte[] data, List<ACL> acl, CreateMode createMode, AsyncCallback.StringCallback cb,
+            Object ctx) {
+        moving.readLock().lock();
+        try {
+            final Shard SHARD = shard(path);
+            SHARD.requests.incrementAndGet();
+            SHARD.connection.create(path, data, acl, createMode, cb, ctx);
+        } finally {
+            moving.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void delete(String path, int version) throws KeeperException, InterruptedException {
+        moving.readLock().lock();
+        final Shard SHARD = shard(path);
+        final long START = SHARD.begin();
+        try {
+            SHARD.connection.delete(path, version);
+        } catch (KeeperException e) {
+            SHARD.errors.incrementAndGet();
+            throw e;
+        } finally {
+            moving.readLock().unlock();
+            SHARD.end(START);
+        }
+    }
+
+    @Override
+    public void delete(String path, int version, AsyncCallback.VoidCallback cb, Object ctx) {
+        moving.readLock().lock();
+        try {
+            final Shard SHARD = shard(path);
+            SHARD.requests.incrementAndGet();
+            SHARD.connection.delete(path, version, cb, ctx);
+        } finally {
+            moving.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Stat exists(String path, Watcher watcher) throws KeeperException, InterruptedException {
+        final Shard SHARD = shard(path);
+        final long START = SHARD.begin();
+        try {
+            return SHARD.connection.exists(path, watcher);
+        } catch (KeeperException e) {
+            SHARD.errors.incrementAndGet();
+            throw e;
+        } finally {
+            SHARD.end(START);
+        }
+    }
+
+    @Override
+    public Stat exists(String path, boolean watch) throws KeeperException, InterruptedException {
+        final Shard SHARD = shard(path);
+        final long START = SHARD.begin();
+        try {
+            return SHARD.connection.exists(path, watch);
+        } catch (KeeperException e) {
+            SHARD.errors.incrementAndGet();
+            throw e;
+        } finally {
+            SHARD.end(START);
+        }
+    }
+
+    @Override
+    public void exists(String path, Watcher watcher, AsyncCallback.StatCallback cb, Object ctx) {
+        final Shard SHARD = shard(path);
+        SHARD.requests.incrementAndGet();
+        SHARD.connection.exists(path, watcher, cb, ctx);
+    }
+
+    @Override
+    public void exists(String path, boolean watch, AsyncCallback.StatCallback cb, Object ctx) {
+        final Shard SHARD = shard(path);
+        SHARD.requests.incrementAndGet();
+        SHARD.connection.exists(path, watch, cb, ctx);
+    }
+
+    @Override
+    public byte[] getData(String path, boolean watch, Stat stat) throws KeeperException, InterruptedException {
+        final Shard SHARD = shard(path);
+        final long START = SHARD.begin();
+        try {
+            return SHARD.connection.getData(path, watch, stat);
+        } catch (KeeperException e) {
+            SHARD.errors.incrementAndGet();
+            throw e;
+        } finally {
+            SHARD.end(START);
+        }
+    }
+
+    @Override
+    public byte[] getData(String path, Watcher watcher, Stat stat) throws KeeperException, InterruptedException {
+        final Shard SHARD = shard(path);
+        final long START = SHARD.begin();
+        try {
+            return SHARD.connection.getData(path, watcher, stat);
+        } catch (KeeperException e) {
+            SHARD.errors.incrementAndGet();
+            throw e;
+        } finally {
+            SHARD.end(START);
+        }
+    }
+
+    @Override
+    public void getData(String path, Watcher watcher, AsyncCallback.DataCallback cb, Object ctx) {
+        final Shard SHARD = shard(path);
+        SHARD.requests.incrementAndGet();
+        SHARD.connection.getData(path, watcher, cb, ctx);
+    }
+
+    @Override
+    public void getData(String path, boolean watch, AsyncCallback.DataCallback cb, Object ctx) {
+        final Shard SHARD = shard(path);
+        SHARD.requests.incrementAndGet();
+        SHARD.connection.getData(path, watch, cb, ctx);
+    }
+
+    @Override
+    public Stat setData(String path, byte[] data, int version) throws KeeperException, InterruptedException {
+        moving.readLock().lock();
+        final Shard SHARD = shard(path);
+        final long START = SHARD.begin();
+        try {
+            return SHARD.connection.setData(path, data, version);
+        } catch (KeeperException e) {
+            SHARD.errors.incrementAndGet();
+            throw e;
+        } finally {
+            moving.readLock().unlock();
+            SHARD.end(START);
+        }
+    }
+
+    @Override
+    public void setData(String path, byte[] data, int version, AsyncCallback.StatCallback cb, Object ctx) {
+        moving.readLock().lock();
+        try {
+            final Shard SHARD = shard(path);
+            SHARD.requests.incrementAndGet();
+            SHARD.connection.setData(path, data, version, cb, ctx);
+        } finally {
+            moving.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<ACL> getACL(String path, Stat stat) throws KeeperException, InterruptedException {
+        final Shard SHARD = shard(path);
+        final long START = SHARD.begin();
+        try {
+            return SHARD.connection.getACL(path, stat);
+        } catch (KeeperException e) {
+            SHARD.errors.incrementAndGet();
+            throw e;
+        } finally {
+            SHARD.end(START);
+        }
+    }
+
+    @Override
+    public void getACL(String path, Stat stat, AsyncCallback.ACLCallback cb, Object ctx) {
+        final Shard SHARD = shard(path);
+        SHARD.requests.incrementAndGet();
+        SHARD.connection.getACL(path, stat, cb, ctx);
+    }
+
+    @Override
+    public Stat setACL(String path, List<ACL> acl, int version) throws KeeperException, InterruptedException {
+        moving.readLock().lock();
+        final Shard SHARD = shard(path);
+        final long START = SHARD.begin();
+        try {
+            return SHARD.connection.setACL(path, acl, version);
+        } catch (KeeperException e) {
+            SHARD.errors.incrementAndGet();
+            throw e;
+        } finally {
+            moving.readLock().unlock();
+            SHARD.end(START);
+        }
+    }
+
+    @Override
+    public void setACL(String path, List<ACL> acl, int version, AsyncCallback.StatCallback cb, Object ctx) {
+        moving.readLock().lock();
+        try {
+            final Shard SHARD = shard(path);
+            SHARD.requests.incrementAndGet();
+            SHARD.connection.setACL(path, acl, version, cb, ctx);
+        } finally {
+            moving.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> getChildren(String path, Watcher watcher) throws KeeperException, InterruptedException {
+        return listChildren(path, watcher, false, null);
+    }
+
+    @Override
+    public List<String> getChildren(String path, boolean watch) throws KeeperException, InterruptedException {
+        return listChildren(path, null, watch, null);
+    }
+
+    @Override
+    public List<String> getChildren(String path, Watcher watcher, Stat stat) throws KeeperException,
+            InterruptedException {
+        return listChildren(path, watcher, false, stat);
+    }
+
+    @Override
+    public List<String> getChildren(String path, boolean watch, Stat stat) throws KeeperException,
+            InterruptedException {
+        return listChildren(path, null, watch, stat);
+    }
+
+    /*
+     * asynchronous listings are served by the shard of the path alone
+     */
+
+    @Override
+    public void getChildren(String path, Watcher watcher, AsyncCallback.ChildrenCallback cb, Object ctx) {
+        final Shard SHARD = shard(path);
+        SHARD.requests.incrementAndGet();
+        SHARD.connection.getChildren(path, watcher, cb, ctx);
+    }
+
+    @Override
+    public void getChildren(String path, boolean watch, AsyncCallback.ChildrenCallback cb, Object ctx) {
+        final Shard SHARD = shard(path);
+        SHARD.requests.incrementAndGet();
+        SHARD.connection.getChildren(path, watch, cb, ctx);
+    }
+
+    @Override
+    public void getChildren(String path, Watcher watcher, AsyncCallback.Children2Callback cb, Object ctx) {
+        final Shard SHARD = shard(path);
+        SHARD.requests.incrementAndGet();
+        SHARD.connection.getChildren(path, watcher, cb, ctx);
+    }
+
+    @Override
+    public void getChildren(String path, boolean watch, AsyncCallback.Children2Callback cb, Object ctx) {
+        final Shard SHARD = shard(path);
+        SHARD.requests.incrementAndGet();
+        SHARD.connection.getChildren(path, watch, cb, ctx);
+    }
+
+    @Override
+    public void sync(String path, AsyncCallback.VoidCallback cb, Object ctx) {
+        shard(path).connection.sync(path, cb, ctx);
+    }
+
+    /**
+     * Lists children on all shards serving nodes under path at once and merges them,
+     * stat is the one of the shard of path.
+     */
+    private List<String> listChildren(String path, Watcher watcher, boolean watch, Stat stat) throws KeeperException,
+            InterruptedException {
+        final List<Shard> OWNERS = new ArrayList<>(owners(path));
+        final PipelinedReads LISTING = new PipelinedReads(OWNERS.size(), false, true);
+        final long START = System.nanoTime();
+        for (int idx = 0; idx < OWNERS.size(); idx++) {
+            final Shard SHARD = OWNERS.get(idx);
+            SHARD.requests.incrementAndGet();
+            if (watcher != null)
+                SHARD.connection.getChildren(path, watcher, LISTING, idx);
+            else
+                SHARD.connection.getChildren(path, watch, LISTING, idx);
+        }
+        LISTING.await();
+        final Set<String> NAMES = new TreeSet<>();
+        boolean found = false;
+        for (int idx = 0; idx < OWNERS.size(); idx++) {
+            final Shard SHARD = OWNERS.get(idx);
+            SHARD.end(START);
+            // other shards hold only parents of their prefixes
+            final PipelinedReads.Result RESULT = LISTING.get(idx);
+            if (RESULT.isMissing())
+                continue;
+            if (RESULT.getChildrenCode() != KeeperException.Code.OK) {
+                SHARD.errors.incrementAndGet();
+                throw KeeperException.create(RESULT.getChildrenCode(), path);
+            }
+            found = true;
+            NAMES.addAll(RESULT.getChildren());
+        }
+        if (!found) {
+            OWNERS.get(0).errors.incrementAndGet();
+            throw KeeperException.create(KeeperException.Code.NONODE, path);
+        }
+        if (stat != null && LISTING.get(0).getChildrenStat() != null) {
+            copy(LISTING.get(0).getChildrenStat(), stat);
+        }
+        return new ArrayList<>(NAMES);
+    }
+
+    private static void copy(Stat from, Stat to) {
+        to.setCzxid(from.getCzxid());
+        to.setMzxid(from.getMzxid());
+        to.setCtime(from.getCtime());
+        to.setMtime(from.getMtime());
+        to.setVersion(from.getVersion());
+        to.setCversion(from.getCversion());
+        to.setAversion(from.getAversion());
+        to.setEphemeralOwner(from.getEphemeralOwner());
+        to.setDataLength(from.getDataLength());
+        to.setNumChildren(from.getNumChildren());
+        to.setPzxid(from.getPzxid());
+    }
+
+    /**
+     * Lists all nodes under path, each shard serving part of the subtree walked in
+     * parallel with pipelined listings.
+     *
+     * @param path
+     * @return paths under path in order, path excluded
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public List<String> listTree(final String path) throws KeeperException, InterruptedException {
+        final List<Future<List<String>>> WALKS = new ArrayList<>();
+        for (final Shard shard : owners(path)) {
+            WALKS.add(fanOut.submit(new Callable<List<String>>() {
+                @Override
+                public List<String> call() throws Exception {
+                    final List<String> PATHS = new ArrayList<>();
+                    for (String node : walk(shard, path)) {
+                        // parents of deeper prefixes and stale copies are served elsewhere
+                        if (shard(node) == shard)
+                            PATHS.add(node);
+                    }
+                    return PATHS;
+                }
+            }));
+        }
+        final Set<String> PATHS = new TreeSet<>();
+        for (Future<List<String>> walk : WALKS) {
+            try {
+                PATHS.addAll(walk.get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof KeeperException)
+                    throw (KeeperException) e.getCause();
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        return new ArrayList<>(PATHS);
+    }
+
+    private static List<String> walk(Shard shard, String path) throws KeeperException, InterruptedException {
+        final List<String> PATHS = new ArrayList<>();
+        List<String> level = Collections.singletonList(path);
+        while (!level.isEmpty()) {
+            final PipelinedReads LISTING = new PipelinedReads(level.size(), false, true);
+            for (int idx = 0; idx < level.size(); idx++) {
+                shard.requests.incrementAndGet();
+                shard.connection.getChildren(level.get(idx), false, LISTING, idx);
+            }
+            LISTING.await();
+            final List<String> NEXT = new ArrayList<>();
+            for (int idx = 0; idx < level.size(); idx++) {
+                final PipelinedReads.Result RESULT = LISTING.get(idx);
+                if (RESULT.isMissing())
+                    continue;
+                if (RESULT.getChildrenCode() != KeeperException.Code.OK) {
+                    shard.errors.incrementAndGet();
+                    throw KeeperException.create(RESULT.getChildrenCode(), level.get(idx));
+                }
+                final String PARENT = level.get(idx).equals("/") ? "" : level.get(idx);
+                for (String child : RESULT.getChildren()) {
+                    // zookeeper's own subtree
+                    if (PARENT.isEmpty() && child.equals("zookeeper"))
+                        continue;
+                    NEXT.add(PARENT + "/" + child);
+                }
+            }
+            PATHS.addAll(NEXT);
+            level = NEXT;
+        }
+        return PATHS;
+    }
+}
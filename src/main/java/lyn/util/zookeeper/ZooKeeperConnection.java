@@ -2,11 +2,17 @@ package lyn.util.zookeeper;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
+import lyn.util.zookeeper.metrics.Histogram;
+
 import org.apache.zookeeper.AsyncCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
 import org.apache.zookeeper.OpResult;
 import org.apache.zookeeper.Transaction;
 import org.apache.zookeeper.WatchedEvent;
@@ -26,19 +32,62 @@ public class ZooKeeperConnection {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ZooKeeperConnection.class);
 
+    private static final int MAX_UPDATE_ATTEMPTS = 10;
+
     private ZooKeeper zooKeeper;
 
     private final String zookeeperNodes;
 
     private final int timeout;
 
+    private final LatencyProbe latencyProbe;
+
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong updateConflicts = new AtomicLong();
+    private final AtomicLong updateFailures = new AtomicLong();
+    private final Histogram updateAttempts = new Histogram();
+
     public ZooKeeperConnection(String zookeeperNodes, int timeout) {
+        this(zookeeperNodes, timeout, null);
+    }
+
+    /**
+     * @param zookeeperNodes
+     * @param timeout
+     * @param latencyProbe of zookeeperNodes, to connect to the servers nearby first
+     */
+    public ZooKeeperConnection(String zookeeperNodes, int timeout, LatencyProbe latencyProbe) {
         LOGGER.debug("connectting to zookeeper {} with timeout {}", zookeeperNodes, timeout);
         this.zookeeperNodes = zookeeperNodes;
         this.timeout = timeout;
+        this.latencyProbe = latencyProbe;
     }
 
+    public LatencyProbe getLatencyProbe() {
+        return latencyProbe;
+    }
+
+    /*
+     * With a latency probe, connects to the servers nearby and falls back to all servers
+     * when none of them answers. Zookeeper keeps reconnecting within the servers chosen,
+     * a connection made again after its session expired chooses again.
+     */
     public void connect() throws IOException, InterruptedException {
+        if (latencyProbe != null) {
+            final String NEARBY = latencyProbe.select();
+            if (!NEARBY.equals(zookeeperNodes)) {
+                try {
+                    connect(NEARBY);
+                    return;
+                } catch (IOException e) {
+                    LOGGER.warn("failed to connect to zookeeper nearby {}, trying all servers", NEARBY);
+                }
+            }
+        }
+        connect(zookeeperNodes);
+    }
+
+    private void connect(String connectString) throws IOException, InterruptedException {
         final AtomicReference<Watcher.Event.KeeperState> connectionState = new AtomicReference<Watcher.Event.KeeperState>();
         final Watcher watcher = new Watcher() {
             @Override
@@ -46,7 +95,7 @@ public class ZooKeeperConnection {
                 connectionState.set(watchedEvent.getState());
             }
         };
-        zooKeeper = new ZooKeeper(zookeeperNodes, timeout, watcher);
+        zooKeeper = new ZooKeeper(connectString, timeout, watcher);
         final long startTime = System.currentTimeMillis();
         while ((System.currentTimeMillis() - startTime) < timeout && connectionState.get() == null)
             Thread.sleep(500);
@@ -68,6 +117,10 @@ public class ZooKeeperConnection {
         return zooKeeper.transaction();
     }
 
+    public List<OpResult> multi(Iterable<Op> ops) throws InterruptedException, KeeperException {
+        return zooKeeper.multi(ops);
+    }
+
     public static Transaction create(final Transaction tx, final String path, final byte[] data,
             final CreateMode createMode) {
         return tx.create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, createMode);
@@ -312,14 +365,156 @@ public class ZooKeeperConnection {
         updateOrCreate(this, path, value, createMode);
     }
 
+    /**
+     * Sets data of a node, or creates it with its parents when missing. The update is
+     * tried first, so updating an existing node takes one request and creating one takes
+     * two unless parents are missing too.
+     */
     public static void updateOrCreate(ZooKeeperConnection zooKeeper, String path, byte[] value, CreateMode createMode)
             throws InterruptedException, KeeperException {
-        boolean success = false;
-        if (zooKeeper.exists(path, false) == null) {
-            success = createFullPath(zooKeeper, path, value, createMode, true);
+        for (int attempt = 1;; attempt++) {
+            try {
+                zooKeeper.setData(path, value, -1);
+                return;
+            } catch (KeeperException.NoNodeException e) {
+                // created below
+            }
+            try {
+                try {
+                    zooKeeper.create(path, value, ZooDefs.Ids.OPEN_ACL_UNSAFE, createMode);
+                } catch (KeeperException.NoNodeException e) {
+                    createFullPath(zooKeeper, path, value, createMode, false);
+                }
+                return;
+            } catch (KeeperException.NodeExistsException e) {
+                // another writer created it meanwhile, so the next attempt sets its data
+                if (attempt >= MAX_UPDATE_ATTEMPTS)
+                    throw e;
+            }
         }
-        if (!success)
-            zooKeeper.setData(path, value, -1);
+    }
+
+    /**
+     * Computes data of a node from its current data.
+     */
+    public interface Updater {
+        /**
+         * @param data current data
+         * @param stat current stat
+         * @return new data, or null to leave the node unchanged
+         */
+        byte[] update(byte[] data, Stat stat);
+    }
+
+    public Stat update(String path, Updater updater) throws KeeperException, InterruptedException {
+        return update(this, path, updater);
+    }
+
+    public static Stat update(ZooKeeperConnection zooKeeper, String path, Updater updater) throws KeeperException,
+            InterruptedException {
+        return update(zooKeeper, path, updater, MAX_UPDATE_ATTEMPTS, 10);
+    }
+
+    /**
+     * Compare-and-set loop: reads a node, sets the data computed at the version read and
+     * starts over when the node was changed meanwhile. Retries back off exponentially
+     * with jitter from <code>backoffMillis</code> up to one second.
+     *
+     * @param zooKeeper
+     * @param path
+     * @param updater called again for each attempt
+     * @param maxAttempts
+     * @param backoffMillis
+     * @return stat of the node updated, or read when unchanged
+     * @throws KeeperException.BadVersionException when still contended after <code>maxAttempts</code>
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public static Stat update(ZooKeeperConnection zooKeeper, String path, Updater updater, int maxAttempts,
+            long backoffMillis) throws KeeperException, InterruptedException {
+        if (maxAttempts <= 0)
+            throw new IllegalArgumentException("maxAttempts must be positive");
+        zooKeeper.updates.incrementAndGet();
+        for (int attempt = 1;; attempt++) {
+            final Stat STAT = new Stat();
+            final byte[] DATA = updater.update(zooKeeper.getData(path, false, STAT), STAT);
+            if (DATA == null) {
+                zooKeeper.updateAttempts.record(attempt);
+                return STAT;
+            }
+            try {
+                final Stat UPDATED = zooKeeper.setData(path, DATA, STAT.getVersion());
+                zooKeeper.updateAttempts.record(attempt);
+                return UPDATED;
+            } catch (KeeperException.BadVersionException e) {
+                zooKeeper.updateConflicts.incrementAndGet();
+                if (attempt >= maxAttempts) {
+                    zooKeeper.updateAttempts.record(attempt);
+                    zooKeeper.updateFailures.incrementAndGet();
+                    throw e;
+                }
+            }
+            final long BACKOFF = Math.min(1000, backoffMillis << Math.min(attempt - 1, 16));
+            if (BACKOFF > 0)
+                Thread.sleep(ThreadLocalRandom.current().nextLong(BACKOFF) + 1);
+        }
+    }
+
+    /**
+     * @return calls of <code>update</code>
+     */
+    public long getUpdates() {
+        return updates.get();
+    }
+
+    /**
+     * @return attempts of <code>update</code> failed on version check
+     */
+    public long getUpdateConflicts() {
+        return updateConflicts.get();
+    }
+
+    /**
+     * @return calls of <code>update</code> still contended after all attempts
+     */
+    public long getUpdateFailures() {
+        return updateFailures.get();
+    }
+
+    /**
+     * @return attempts taken per call of <code>update</code>
+     */
+    public Histogram getUpdateAttempts() {
+        return updateAttempts;
+    }
+
+    public Reconciliation reconcile(String root, Map<String, byte[]> desired, boolean dryRun)
+            throws KeeperException, InterruptedException {
+        return reconcile(this, root, desired, dryRun);
+    }
+
+    public static Reconciliation reconcile(ZooKeeperConnection zooKeeper, String root, Map<String, byte[]> desired,
+            boolean dryRun) throws KeeperException, InterruptedException {
+        return Reconciliation.reconcile(zooKeeper, root, desired, dryRun, 512 * 1024);
+    }
+
+    /**
+     * Brings a subtree to a desired state with the fewest writes: creates nodes missing,
+     * sets nodes whose data differ and deletes nodes neither desired nor ancestors of
+     * desired nodes, in transactions of at most <code>maxBatchBytes</code>.
+     *
+     * @param zooKeeper
+     * @param root root of the subtree, created when missing
+     * @param desired data by path, paths under or equal to root
+     * @param dryRun computes changes without applying them
+     * @param maxBatchBytes
+     * @return changes applied, or to be applied for a dry run
+     * @throws KeeperException when the subtree changed while reconciling
+     * @throws InterruptedException
+     */
+    public static Reconciliation reconcile(ZooKeeperConnection zooKeeper, String root, Map<String, byte[]> desired,
+            boolean dryRun, int maxBatchBytes) throws KeeperException, InterruptedException {
+        return Reconciliation.reconcile(zooKeeper, root, desired, dryRun, maxBatchBytes);
     }
 
     public static String buildPath(String parent, String firstPart, String... restOfParts) {
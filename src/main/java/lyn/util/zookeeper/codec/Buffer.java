@@ -0,0 +1,137 @@
+package lyn.util.zookeeper.codec;
+
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * A growable byte buffer, pooled per thread so that encoding a payload does not
+ * allocate intermediate arrays. Buffers grown beyond <code>MAX_POOLED_CAPACITY</code>
+ * are dropped instead of pooled.
+ *
+ * @author Yanpeng Lin
+ */
+public final class Buffer extends OutputStream {
+    /* a little more than the max znode payload */
+    static final int MAX_POOLED_CAPACITY = 1 << 21;
+
+    private static final int MAX_POOLED_BUFFERS = 4;
+
+    private static final ThreadLocal<ArrayDeque<Buffer>> POOL = new ThreadLocal<ArrayDeque<Buffer>>() {
+        @Override
+        protected ArrayDeque<Buffer> initialValue() {
+            return new ArrayDeque<>(MAX_POOLED_BUFFERS);
+        }
+    };
+
+    private byte[] array;
+    private int size = 0;
+
+    public Buffer(int capacity) {
+        this.array = new byte[capacity];
+    }
+
+    /**
+     * @return an empty buffer of current thread's pool, to be returned by <code>release</code>
+     */
+    public static Buffer acquire() {
+        Buffer buffer = POOL.get().poll();
+        return (buffer != null) ? buffer : new Buffer(4096);
+    }
+
+    /**
+     * Returns a buffer to current thread's pool, it must not be used afterwards.
+     *
+     * @param buffer
+     */
+    public static void release(Buffer buffer) {
+        final ArrayDeque<Buffer> BUFFERS = POOL.get();
+        if (buffer.array.length > MAX_POOLED_CAPACITY || BUFFERS.size() >= MAX_POOLED_BUFFERS)
+            return;
+        buffer.size = 0;
+        BUFFERS.push(buffer);
+    }
+
+    /**
+     * @return backing array, valid up to <code>size</code>
+     */
+    public byte[] array() {
+        return array;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return array.length;
+    }
+
+    public void reset() {
+        size = 0;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > array.length)
+            array = Arrays.copyOf(array, Math.max(capacity, array.length * 2));
+    }
+
+    /**
+     * Marks bytes written directly into the backing array as written.
+     *
+     * @param length
+     */
+    public void advance(int length) {
+        if (length < 0 || size + length > array.length)
+            throw new IndexOutOfBoundsException("advance " + length + " at " + size + " of " + array.length);
+        size += length;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(size + 1);
+        array[size++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        ensureCapacity(size + length);
+        System.arraycopy(bytes, offset, array, size, length);
+        size += length;
+    }
+
+    @Override
+    public void write(byte[] bytes) {
+        write(bytes, 0, bytes.length);
+    }
+
+    public void writeInt(int value) {
+        ensureCapacity(size + 4);
+        array[size++] = (byte) (value >>> 24);
+        array[size++] = (byte) (value >>> 16);
+        array[size++] = (byte) (value >>> 8);
+        array[size++] = (byte) value;
+    }
+
+    public void writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+
+    /**
+     * Writes an unsigned int in 7 bits per byte, low bits first.
+     *
+     * @param value
+     */
+    public void writeVarInt(int value) {
+        while ((value & ~0x7f) != 0) {
+            write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        write(value);
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(array, size);
+    }
+}
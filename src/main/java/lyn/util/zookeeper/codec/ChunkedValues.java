@@ -0,0 +1,581 @@
+package lyn.util.zookeeper.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+import lyn.util.zookeeper.ZooKeeperConnection;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Transaction;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Values larger than a znode payload, split into chunk znodes under a manifest znode.
+ * <ul>
+ * <li>chunks of a value are children named by a generation unique to the write,
+ * created by pipelined asynchronous requests with at most <code>window</code> in
+ * flight</li>
+ * <li>a write is committed by one transaction replacing the manifest at the version
+ * read before writing and deleting chunks of the previous generation, so readers see
+ * either value and concurrent writers fail on version check</li>
+ * <li>a reader fetches up to <code>window</code> chunks ahead in parallel and checks
+ * length and CRC32 of the value at the end</li>
+ * </ul>
+ * Chunks of the previous value are deleted once the next one is committed, so a
+ * reader of the previous value fails with <code>ValueReplacedException</code>.
+ * <code>read</code> retries then with the current value. Asynchronous results are
+ * delivered on zookeeper event thread, so streams must not be used from watchers.
+ *
+ * @author Yanpeng Lin
+ */
+public class ChunkedValues {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChunkedValues.class);
+
+    static final int MANIFEST_MAGIC = 0x43484b31;
+
+    /* chunk name prefix */
+    static final String CHUNK_PREFIX = "chunk-";
+
+    private static final int MAX_READ_ATTEMPTS = 3;
+
+    private static final int MAX_RESOLVE_ATTEMPTS = 5;
+
+    private static final long RESOLVE_BACKOFF_MILLIS = 200;
+
+    private static final AtomicLong WRITERS = new AtomicLong();
+
+    private final ZooKeeperConnection zkConnection;
+
+    private final int chunkSize;
+
+    private final int window;
+
+    public ChunkedValues(ZooKeeperConnection zkConnection) {
+        this(zkConnection, 512 * 1024, 8);
+    }
+
+    /**
+     * @param zkConnection
+     * @param chunkSize bytes per chunk znode, below the znode payload limit
+     * @param window chunk requests in flight per stream
+     */
+    public ChunkedValues(ZooKeeperConnection zkConnection, int chunkSize, int window) {
+        if (chunkSize <= 0 || chunkSize > PayloadFormat.MAX_PAYLOAD)
+            throw new IllegalArgumentException("chunkSize must be in (0, " + PayloadFormat.MAX_PAYLOAD + "]");
+        if (window <= 0)
+            throw new IllegalArgumentException("window must be positive");
+        this.zkConnection = zkConnection;
+        this.chunkSize = chunkSize;
+        this.window = window;
+    }
+
+    /**
+     * Replaces the value of a manifest znode, created when missing.
+     *
+     * @param path manifest path
+     * @param value
+     * @throws KeeperException.BadVersionException when replaced by another writer meanwhile
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public void write(String path, byte[] value) throws KeeperException, InterruptedException {
+        ChunkedOutputStream out = openWriter(path);
+        boolean written = false;
+        try {
+            out.write(value);
+            written = true;
+            out.close();
+        } catch (IOException e) {
+            throw unwrap(e);
+        } finally {
+            // chunks written before a failure are deleted, close does so by itself
+            if (!written)
+                out.abort();
+        }
+    }
+
+    /**
+     * Opens a writer replacing the value once closed. Nothing is replaced when the
+     * writer is aborted or fails.
+     *
+     * @param path manifest path
+     * @return writer of the new value
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public ChunkedOutputStream openWriter(String path) throws KeeperException, InterruptedException {
+        if (zkConnection.exists(path, false) == null)
+            ZooKeeperConnection.createFullPath(zkConnection, path, new byte[0], CreateMode.PERSISTENT, true);
+        Stat stat = new Stat();
+        final byte[] MANIFEST = zkConnection.getData(path, false, stat);
+        // unique among writers of this session too
+        final String GENERATION = (stat.getVersion() + 1) + "-" + Long.toHexString(zkConnection.getSessionId()) + "-"
+                + WRITERS.incrementAndGet();
+        return new ChunkedOutputStream(path, stat.getVersion(), Manifest.decode(MANIFEST), GENERATION);
+    }
+
+    /**
+     * Reads the whole value, again when it was replaced while reading.
+     *
+     * @param path manifest path
+     * @return value read
+     * @throws KeeperException
+     * @throws InterruptedException
+     * @throws IOException when the value is corrupted or replaced repeatedly
+     */
+    public ByteBuffer read(String path) throws KeeperException, InterruptedException, IOException {
+        for (int attempt = 1;; attempt++) {
+            try (ChunkedInputStream in = openReader(path)) {
+                final byte[] VALUE = new byte[(int) in.manifest.length];
+                int offset = 0;
+                while (offset < VALUE.length) {
+                    final int READ = in.read(VALUE, offset, VALUE.length - offset);
+                    if (READ < 0)
+                        throw new IOException("value of " + path + " ended at " + offset + " of " + VALUE.length);
+                    offset += READ;
+                }
+                if (in.read() >= 0)
+                    throw new IOException("value of " + path + " longer than " + VALUE.length);
+                return ByteBuffer.wrap(VALUE);
+            } catch (ValueReplacedException e) {
+                if (attempt >= MAX_READ_ATTEMPTS)
+                    throw e;
+                LOGGER.debug("{} replaced while reading, attempt {}", path, attempt);
+            }
+        }
+    }
+
+    /**
+     * @param path manifest path
+     * @return reader of the current value
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public ChunkedInputStream openReader(String path) throws KeeperException, InterruptedException {
+        return new ChunkedInputStream(path, Manifest.decode(zkConnection.getData(path, false, null)));
+    }
+
+    /**
+     * Deletes the manifest and all of its chunks in one transaction.
+     *
+     * @param path manifest path
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public void delete(String path) throws KeeperException, InterruptedException {
+        Stat stat = new Stat();
+        List<String> chunks = zkConnection.getChildren(path, false, stat);
+        Transaction tx = zkConnection.transaction();
+        for (String chunk : chunks)
+            ZooKeeperConnection.delete(tx, path + "/" + chunk, -1);
+        // fails when replaced meanwhile, or not empty when a writer added chunks
+        ZooKeeperConnection.delete(tx, path, stat.getVersion());
+        ZooKeeperConnection.commit(tx);
+    }
+
+    static String chunkName(String generation, int index) {
+        return String.format("%s%s-%06d", CHUNK_PREFIX, generation, index);
+    }
+
+    /**
+     * @return whether the request may have been applied although it failed
+     */
+    static boolean isUncertain(KeeperException e) {
+        switch (e.code()) {
+        case CONNECTIONLOSS:
+        case OPERATIONTIMEOUT:
+        case SESSIONEXPIRED:
+        case SESSIONMOVED:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private static KeeperException unwrap(IOException e) throws InterruptedException {
+        if (e.getCause() instanceof KeeperException)
+            return (KeeperException) e.getCause();
+        if (e instanceof InterruptedIOException)
+            throw new InterruptedException(e.getMessage());
+        throw new IllegalStateException(e);
+    }
+
+    /**
+     * Content of manifest znode, an empty manifest holds an empty value.
+     */
+    static class Manifest {
+        final String generation;
+        final long length;
+        final int chunkSize;
+        final int chunks;
+        final long crc;
+
+        Manifest(String generation, long length, int chunkSize, int chunks, long crc) {
+            this.generation = generation;
+            this.length = length;
+            this.chunkSize = chunkSize;
+            this.chunks = chunks;
+            this.crc = crc;
+        }
+
+        byte[] encode() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(MANIFEST_MAGIC);
+                out.writeUTF(generation);
+                out.writeLong(length);
+                out.writeInt(chunkSize);
+                out.writeInt(chunks);
+                out.writeLong(crc);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return bytes.toByteArray();
+        }
+
+        static Manifest decode(byte[] data) {
+            if (data == null || data.length == 0)
+                return new Manifest("", 0, 0, 0, new CRC32().getValue());
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+                if (in.readInt() != MANIFEST_MAGIC)
+                    throw new IllegalArgumentException("not a chunked value manifest");
+                return new Manifest(in.readUTF(), in.readLong(), in.readInt(), in.readInt(), in.readLong());
+            } catch (IOException e) {
+                throw new IllegalArgumentException("malformed manifest", e);
+            }
+        }
+    }
+
+    /**
+     * Thrown when chunks of the value being read were deleted by a newer value.
+     */
+    public static class ValueReplacedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ValueReplacedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Buffers a chunk and creates it asynchronously once full. The manifest is replaced
+     * by <code>close</code>.
+     */
+    public class ChunkedOutputStream extends OutputStream {
+        private final String path;
+        private final int baseVersion;
+        private final Manifest previous;
+        private final String generation;
+
+        private final Semaphore inFlight = new Semaphore(window);
+        private final AtomicReference<KeeperException> failure = new AtomicReference<>();
+        private final List<String> created = new ArrayList<>();
+        private final CRC32 crc = new CRC32();
+
+        private byte[] chunk = new byte[chunkSize];
+        private int position = 0;
+        private long length = 0;
+        private boolean closed = false;
+
+        ChunkedOutputStream(String path, int baseVersion, Manifest previous, String generation) {
+            this.path = path;
+            this.baseVersion = baseVersion;
+            this.previous = previous;
+            this.generation = generation;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int count) throws IOException {
+            if (closed)
+                throw new IOException("writer of " + path + " closed");
+            while (count > 0) {
+                final int COPIED = Math.min(count, chunkSize - position);
+                System.arraycopy(bytes, offset, chunk, position, COPIED);
+                crc.update(bytes, offset, COPIED);
+                position += COPIED;
+                length += COPIED;
+                offset += COPIED;
+                count -= COPIED;
+                if (position == chunkSize)
+                    flushChunk();
+            }
+        }
+
+        private void flushChunk() throws IOException {
+            checkFailure();
+            final byte[] DATA = (position == chunk.length) ? chunk : Arrays.copyOf(chunk, position);
+            final String CHUNK_PATH = path + "/" + chunkName(generation, created.size());
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted writing " + CHUNK_PATH);
+            }
+            created.add(CHUNK_PATH);
+            zkConnection.create(CHUNK_PATH, DATA, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT,
+                    new AsyncCallback.StringCallback() {
+                        @Override
+                        public void processResult(int rc, String chunkPath, Object ctx, String name) {
+                            if (rc != KeeperException.Code.OK.intValue())
+                                failure.compareAndSet(null, KeeperException.create(KeeperException.Code.get(rc),
+                                        chunkPath));
+                            inFlight.release();
+                        }
+                    }, null);
+            // the array is held by the request until sent, so the next chunk gets a new one
+            chunk = new byte[chunkSize];
+            position = 0;
+        }
+
+        private void awaitChunks() throws IOException {
+            try {
+                inFlight.acquire(window);
+                inFlight.release(window);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted writing " + path);
+            }
+        }
+
+        private void checkFailure() throws IOException {
+            if (failure.get() != null)
+                throw new IOException("failed to write chunks of " + path, failure.get());
+        }
+
+        /**
+         * Commits the value written. When the commit is lost with the connection, the
+         * manifest is read again to know whether it was applied, and chunks are kept
+         * when that is still unknown.
+         *
+         * @throws IOException with a <code>KeeperException.BadVersionException</code> cause
+         *             when replaced by another writer meanwhile
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            // chunks are deleted unless committed or possibly committed
+            boolean keep = false;
+            try {
+                if (position > 0)
+                    flushChunk();
+                awaitChunks();
+                checkFailure();
+                final Manifest MANIFEST = new Manifest(generation, length, chunkSize, created.size(), crc.getValue());
+                Transaction tx = zkConnection.transaction();
+                ZooKeeperConnection.setData(tx, path, MANIFEST.encode(), baseVersion);
+                for (int index = 0; index < previous.chunks; index++)
+                    ZooKeeperConnection.delete(tx, path + "/" + chunkName(previous.generation, index), -1);
+                keep = true;
+                try {
+                    ZooKeeperConnection.commit(tx);
+                } catch (KeeperException e) {
+                    if (!isUncertain(e)) {
+                        keep = false;
+                        throw e;
+                    }
+                    final Boolean APPLIED = applied();
+                    if (APPLIED == null)
+                        throw new IOException("commit of " + path + " generation " + generation
+                                + " unknown, its chunks are kept", e);
+                    if (!APPLIED) {
+                        keep = false;
+                        throw e;
+                    }
+                }
+                LOGGER.debug("{} committed {} bytes in {} chunks", path, length, created.size());
+            } catch (KeeperException e) {
+                throw new IOException("failed to commit " + path, e);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted committing " + path);
+            } finally {
+                if (!keep)
+                    abort();
+            }
+        }
+
+        /**
+         * Reads the manifest again, after a sync so that a commit sent before is seen.
+         *
+         * @return whether the manifest is of this generation, null when it could not be
+         *         read
+         */
+        private Boolean applied() throws InterruptedException {
+            for (int attempt = 1; attempt <= MAX_RESOLVE_ATTEMPTS; attempt++) {
+                try {
+                    final CountDownLatch SYNCED = new CountDownLatch(1);
+                    zkConnection.sync(path, new AsyncCallback.VoidCallback() {
+                        @Override
+                        public void processResult(int rc, String syncPath, Object ctx) {
+                            SYNCED.countDown();
+                        }
+                    }, null);
+                    SYNCED.await();
+                    return generation.equals(Manifest.decode(zkConnection.getData(path, false, null)).generation);
+                } catch (KeeperException.NoNodeException e) {
+                    return false;
+                } catch (KeeperException e) {
+                    LOGGER.debug("failed to read manifest of {}, attempt {}", path, attempt);
+                    Thread.sleep(RESOLVE_BACKOFF_MILLIS * attempt);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Deletes chunks written, leaving the current value in place.
+         */
+        public void abort() {
+            closed = true;
+            try {
+                awaitChunks();
+                for (String chunkPath : created) {
+                    try {
+                        zkConnection.delete(chunkPath, -1);
+                    } catch (KeeperException.NoNodeException e) {
+                        // never created
+                    }
+                }
+            } catch (IOException | KeeperException | InterruptedException e) {
+                LOGGER.warn("failed to delete chunks of " + path + " generation " + generation, e);
+            }
+            created.clear();
+        }
+    }
+
+    /**
+     * Fetches chunks of a value ahead of the position read.
+     */
+    public class ChunkedInputStream extends InputStream {
+        private final String path;
+        final Manifest manifest;
+
+        private final Chunk[] chunks;
+        private final CRC32 crc = new CRC32();
+
+        private int current = -1;
+        private int fetched = 0;
+        private byte[] data = new byte[0];
+        private int position = 0;
+        private long read = 0;
+
+        ChunkedInputStream(String path, Manifest manifest) {
+            this.path = path;
+            this.manifest = manifest;
+            this.chunks = new Chunk[manifest.chunks];
+            fetchAhead();
+        }
+
+        /**
+         * @return length of the value
+         */
+        public long getLength() {
+            return manifest.length;
+        }
+
+        private void fetchAhead() {
+            while (fetched < chunks.length && fetched <= current + window) {
+                final Chunk CHUNK = new Chunk();
+                chunks[fetched] = CHUNK;
+                zkConnection.getData(path + "/" + chunkName(manifest.generation, fetched), false, CHUNK, null);
+                fetched++;
+            }
+        }
+
+        /**
+         * @return false at the end of value
+         */
+        private boolean nextChunk() throws IOException {
+            if (current >= 0)
+                chunks[current] = null;
+            if (current + 1 >= chunks.length) {
+                if (read != manifest.length || crc.getValue() != manifest.crc)
+                    throw new IOException("corrupted value of " + path + ", " + read + " of " + manifest.length
+                            + " bytes read");
+                return false;
+            }
+            current++;
+            fetchAhead();
+            final Chunk CHUNK = chunks[current];
+            try {
+                CHUNK.done.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted reading " + path);
+            }
+            if (CHUNK.code == KeeperException.Code.NONODE)
+                throw new ValueReplacedException("value of " + path + " replaced while reading");
+            if (CHUNK.code != KeeperException.Code.OK)
+                throw new IOException("failed to read " + path, KeeperException.create(CHUNK.code, path));
+            data = CHUNK.data;
+            position = 0;
+            crc.update(data, 0, data.length);
+            read += data.length;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (position >= data.length) {
+                if (!nextChunk())
+                    return -1;
+            }
+            return data[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int count) throws IOException {
+            if (count == 0)
+                return 0;
+            while (position >= data.length) {
+                if (!nextChunk())
+                    return -1;
+            }
+            final int COPIED = Math.min(count, data.length - position);
+            System.arraycopy(data, position, bytes, offset, COPIED);
+            position += COPIED;
+            return COPIED;
+        }
+
+        @Override
+        public int available() {
+            return data.length - position;
+        }
+    }
+
+    static class Chunk implements AsyncCallback.DataCallback {
+        final CountDownLatch done = new CountDownLatch(1);
+        KeeperException.Code code;
+        byte[] data;
+
+        @Override
+        public void processResult(int rc, String path, Object ctx, byte[] bytes, Stat stat) {
+            code = KeeperException.Code.get(rc);
+            data = bytes;
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package lyn.util.zookeeper.codec;
+
+import java.io.IOException;
+
+/**
+ * Converts typed values to znode payloads and back. The id and version of a codec are
+ * written in payload header by <code>PayloadFormat</code>, so a codec can change its
+ * format and still read payloads written by older versions.
+ *
+ * @author Yanpeng Lin
+ */
+public interface Codec<T> {
+    /**
+     * @return id of the format in [0, 255], ids below 16 are reserved for <code>Codecs</code>
+     */
+    int getId();
+
+    /**
+     * @return version of the format written by <code>encode</code> in [0, 255]
+     */
+    int getVersion();
+
+    /**
+     * @param value
+     * @param out pooled buffer, only valid during the call
+     * @throws IOException
+     */
+    void encode(T value, Buffer out) throws IOException;
+
+    /**
+     * @param version version of the format the payload was written in
+     * @param data array holding the value, which may be pooled or shared, so it must be copied when kept
+     * @param offset
+     * @param length
+     * @return decoded value
+     * @throws IOException
+     */
+    T decode(int version, byte[] data, int offset, int length) throws IOException;
+}
@@ -0,0 +1,94 @@
+package lyn.util.zookeeper.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Built-in codecs.
+ *
+ * @author Yanpeng Lin
+ */
+public final class Codecs {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Raw bytes, copied when decoded.
+     */
+    public static final Codec<byte[]> BYTES = new Codec<byte[]>() {
+        @Override
+        public int getId() {
+            return 0;
+        }
+
+        @Override
+        public int getVersion() {
+            return 0;
+        }
+
+        @Override
+        public void encode(byte[] value, Buffer out) {
+            out.write(value);
+        }
+
+        @Override
+        public byte[] decode(int version, byte[] data, int offset, int length) {
+            return Arrays.copyOfRange(data, offset, offset + length);
+        }
+    };
+
+    /**
+     * UTF-8 strings.
+     */
+    public static final Codec<String> STRING = new Codec<String>() {
+        @Override
+        public int getId() {
+            return 1;
+        }
+
+        @Override
+        public int getVersion() {
+            return 0;
+        }
+
+        @Override
+        public void encode(String value, Buffer out) {
+            out.write(value.getBytes(UTF_8));
+        }
+
+        @Override
+        public String decode(int version, byte[] data, int offset, int length) {
+            return new String(data, offset, length, UTF_8);
+        }
+    };
+
+    /**
+     * 8-byte big-endian longs, the format of <code>BlockIdGenerator</code> counters.
+     */
+    public static final Codec<Long> LONG = new Codec<Long>() {
+        @Override
+        public int getId() {
+            return 2;
+        }
+
+        @Override
+        public int getVersion() {
+            return 0;
+        }
+
+        @Override
+        public void encode(Long value, Buffer out) {
+            out.writeLong(value);
+        }
+
+        @Override
+        public Long decode(int version, byte[] data, int offset, int length) {
+            if (length != 8)
+                throw new IllegalArgumentException("long of " + length + " bytes");
+            return ByteBuffer.wrap(data, offset, length).getLong();
+        }
+    };
+
+    private Codecs() {
+    }
+}
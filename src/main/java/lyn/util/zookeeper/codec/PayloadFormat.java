@@ -0,0 +1,220 @@
+package lyn.util.zookeeper.codec;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Frames encoded values with a self-describing header and compresses large ones.
+ * <p>
+ * The header takes 4 bytes: magic byte <code>0xC1</code>, which never occurs in UTF-8
+ * text, format version and flags, codec id and codec version. A compressed payload
+ * is followed by its uncompressed length. Values of at least
+ * <code>compressionThreshold</code> bytes are deflated and kept compressed only when
+ * smaller. Payloads without header, like ones written before codecs, are passed to
+ * the codec as they are with its current version.
+ * <p>
+ * Encoding goes through pooled buffers and a deflater per thread, so only the
+ * payload array handed to zookeeper is allocated.
+ *
+ * @author Yanpeng Lin
+ */
+public class PayloadFormat {
+    static final int MAGIC = 0xC1;
+    static final int FORMAT_VERSION = 1;
+    static final int COMPRESSED = 0x01;
+    static final int HEADER_LENGTH = 4;
+
+    /* default jute.maxbuffer, the largest payload a znode accepts */
+    public static final int MAX_PAYLOAD = 0xfffff;
+
+    private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater();
+        }
+    };
+
+    private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private final int compressionThreshold;
+
+    private final int compressionLevel;
+
+    private final AtomicLong encodedBytes = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+
+    public PayloadFormat() {
+        this(4096, Deflater.BEST_SPEED);
+    }
+
+    /**
+     * @param compressionThreshold encoded size in bytes from which values are compressed
+     * @param compressionLevel <code>Deflater</code> level
+     */
+    public PayloadFormat(int compressionThreshold, int compressionLevel) {
+        if (compressionThreshold < 0)
+            throw new IllegalArgumentException("compressionThreshold must not be negative");
+        if (compressionLevel < Deflater.NO_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("invalid compressionLevel " + compressionLevel);
+        this.compressionThreshold = compressionThreshold;
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * @return bytes encoded by codecs, before compression and header
+     */
+    public long getEncodedBytes() {
+        return encodedBytes.get();
+    }
+
+    /**
+     * @return bytes of payloads encoded
+     */
+    public long getStoredBytes() {
+        return storedBytes.get();
+    }
+
+    /**
+     * @param data
+     * @return true when payload starts with a header of this format
+     */
+    public static boolean isFramed(byte[] data) {
+        return data != null && data.length >= HEADER_LENGTH && (data[0] & 0xff) == MAGIC;
+    }
+
+    /**
+     * @param value
+     * @param codec
+     * @return payload with header
+     * @throws IllegalArgumentException when the value cannot be encoded or the payload is too large
+     */
+    public <T> byte[] encode(T value, Codec<T> codec) {
+        final Buffer RAW = Buffer.acquire();
+        try {
+            codec.encode(value, RAW);
+            final int SIZE = RAW.size();
+            encodedBytes.addAndGet(SIZE);
+            byte[] payload = (SIZE >= compressionThreshold) ? compress(RAW, codec) : null;
+            if (payload == null) {
+                payload = new byte[HEADER_LENGTH + SIZE];
+                writeHeader(payload, codec, 0);
+                System.arraycopy(RAW.array(), 0, payload, HEADER_LENGTH, SIZE);
+            }
+            if (payload.length > MAX_PAYLOAD)
+                throw new IllegalArgumentException("payload of " + payload.length + " bytes exceeds " + MAX_PAYLOAD);
+            storedBytes.addAndGet(payload.length);
+            return payload;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("failed to encode by codec " + codec.getId(), e);
+        } finally {
+            Buffer.release(RAW);
+        }
+    }
+
+    /**
+     * @return compressed payload or null when compression does not save space
+     */
+    private <T> byte[] compress(Buffer raw, Codec<T> codec) {
+        final Buffer PACKED = Buffer.acquire();
+        final Deflater DEFLATER = DEFLATERS.get();
+        try {
+            final int LIMIT = HEADER_LENGTH + raw.size();
+            PACKED.ensureCapacity(LIMIT);
+            PACKED.advance(HEADER_LENGTH);
+            PACKED.writeVarInt(raw.size());
+            DEFLATER.reset();
+            DEFLATER.setLevel(compressionLevel);
+            DEFLATER.setInput(raw.array(), 0, raw.size());
+            DEFLATER.finish();
+            while (!DEFLATER.finished()) {
+                if (PACKED.size() >= LIMIT)
+                    return null;
+                PACKED.advance(DEFLATER.deflate(PACKED.array(), PACKED.size(), LIMIT - PACKED.size()));
+            }
+            final byte[] PAYLOAD = PACKED.toByteArray();
+            writeHeader(PAYLOAD, codec, COMPRESSED);
+            return PAYLOAD;
+        } finally {
+            Buffer.release(PACKED);
+        }
+    }
+
+    private static void writeHeader(byte[] payload, Codec<?> codec, int flags) {
+        payload[0] = (byte) MAGIC;
+        payload[1] = (byte) ((FORMAT_VERSION << 4) | flags);
+        payload[2] = (byte) codec.getId();
+        payload[3] = (byte) codec.getVersion();
+    }
+
+    /**
+     * @param data payload with or without header
+     * @param codec
+     * @return decoded value or null when data is null
+     * @throws IllegalArgumentException when payload was written by another codec, a newer
+     *             format or cannot be decoded
+     */
+    public <T> T decode(byte[] data, Codec<T> codec) {
+        if (data == null)
+            return null;
+        try {
+            if (!isFramed(data))
+                return codec.decode(codec.getVersion(), data, 0, data.length);
+            final int FORMAT = (data[1] & 0xff) >>> 4;
+            final int FLAGS = data[1] & 0x0f;
+            final int CODEC_ID = data[2] & 0xff;
+            if (FORMAT > FORMAT_VERSION)
+                throw new IllegalArgumentException("unsupported payload format " + FORMAT);
+            if (CODEC_ID != codec.getId())
+                throw new IllegalArgumentException("payload of codec " + CODEC_ID + " read by codec " + codec.getId());
+            final int VERSION = data[3] & 0xff;
+            if ((FLAGS & COMPRESSED) == 0)
+                return codec.decode(VERSION, data, HEADER_LENGTH, data.length - HEADER_LENGTH);
+            return decompress(data, codec, VERSION);
+        } catch (IOException | DataFormatException e) {
+            throw new IllegalArgumentException("failed to decode by codec " + codec.getId(), e);
+        }
+    }
+
+    private static <T> T decompress(byte[] data, Codec<T> codec, int version) throws IOException,
+            DataFormatException {
+        int offset = HEADER_LENGTH;
+        int size = 0;
+        for (int shift = 0;; shift += 7) {
+            if (offset >= data.length || shift > 28)
+                throw new DataFormatException("malformed uncompressed length");
+            final int B = data[offset++];
+            size |= (B & 0x7f) << shift;
+            if ((B & 0x80) == 0)
+                break;
+        }
+        if (size < 0 || size > Buffer.MAX_POOLED_CAPACITY * 8)
+            throw new DataFormatException("uncompressed length " + size);
+
+        final Buffer RAW = Buffer.acquire();
+        final Inflater INFLATER = INFLATERS.get();
+        try {
+            RAW.ensureCapacity(size);
+            INFLATER.reset();
+            INFLATER.setInput(data, offset, data.length - offset);
+            while (RAW.size() < size && !INFLATER.finished()) {
+                final int INFLATED = INFLATER.inflate(RAW.array(), RAW.size(), size - RAW.size());
+                if (INFLATED == 0 && (INFLATER.needsInput() || INFLATER.needsDictionary()))
+                    throw new DataFormatException("truncated payload");
+                RAW.advance(INFLATED);
+            }
+            if (RAW.size() != size)
+                throw new DataFormatException("inflated " + RAW.size() + " bytes of " + size);
+            return codec.decode(version, RAW.array(), 0, size);
+        } finally {
+            Buffer.release(RAW);
+        }
+    }
+}
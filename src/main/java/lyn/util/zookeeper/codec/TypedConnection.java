@@ -0,0 +1,72 @@
+package lyn.util.zookeeper.codec;
+
+import lyn.util.zookeeper.ZooKeeperConnection;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Transaction;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Typed reads and writes of znodes over a <code>ZooKeeperConnection</code>, with
+ * payloads framed by a <code>PayloadFormat</code>.
+ *
+ * @author Yanpeng Lin
+ */
+public class TypedConnection {
+    private final ZooKeeperConnection zkConnection;
+
+    private final PayloadFormat format;
+
+    public TypedConnection(ZooKeeperConnection zkConnection) {
+        this(zkConnection, new PayloadFormat());
+    }
+
+    public TypedConnection(ZooKeeperConnection zkConnection, PayloadFormat format) {
+        this.zkConnection = zkConnection;
+        this.format = format;
+    }
+
+    public ZooKeeperConnection getConnection() {
+        return zkConnection;
+    }
+
+    public PayloadFormat getFormat() {
+        return format;
+    }
+
+    public <T> String create(String path, T value, Codec<T> codec, CreateMode createMode) throws KeeperException,
+            InterruptedException {
+        return zkConnection.create(path, format.encode(value, codec), ZooDefs.Ids.OPEN_ACL_UNSAFE, createMode);
+    }
+
+    public <T> Stat setData(String path, T value, Codec<T> codec, int version) throws KeeperException,
+            InterruptedException {
+        return zkConnection.setData(path, format.encode(value, codec), version);
+    }
+
+    public <T> T getData(String path, Codec<T> codec, boolean watch, Stat stat) throws KeeperException,
+            InterruptedException {
+        return format.decode(zkConnection.getData(path, watch, stat), codec);
+    }
+
+    public <T> T getData(String path, Codec<T> codec, Watcher watcher, Stat stat) throws KeeperException,
+            InterruptedException {
+        return format.decode(zkConnection.getData(path, watcher, stat), codec);
+    }
+
+    public <T> void updateOrCreate(String path, T value, Codec<T> codec, CreateMode createMode)
+            throws KeeperException, InterruptedException {
+        ZooKeeperConnection.updateOrCreate(zkConnection, path, format.encode(value, codec), createMode);
+    }
+
+    public <T> Transaction create(Transaction tx, String path, T value, Codec<T> codec, CreateMode createMode) {
+        return ZooKeeperConnection.create(tx, path, format.encode(value, codec), createMode);
+    }
+
+    public <T> Transaction setData(Transaction tx, String path, T value, Codec<T> codec, int version) {
+        return ZooKeeperConnection.setData(tx, path, format.encode(value, codec), version);
+    }
+}
@@ -0,0 +1,97 @@
+package lyn.util.zookeeper.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative long values, like latencies in nanoseconds.
+ * Values are counted in log-linear buckets: 8 buckets per power of two, so recorded
+ * percentiles are accurate within 12.5%.
+ *
+ * @author Yanpeng Lin
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(64 << SUB_BUCKET_BITS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        buckets.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value))
+            current = max.get();
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return (n == 0) ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * @param percent in (0, 100]
+     * @return upper bound of the bucket holding the percentile or 0 when empty
+     */
+    public long getPercentile(double percent) {
+        final long N = count.get();
+        if (N == 0)
+            return 0;
+        final long RANK = Math.max(1, (long) Math.ceil(percent / 100 * N));
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= RANK)
+                return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < buckets.length(); i++)
+            buckets.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        final int EXPONENT = 63 - Long.numberOfLeadingZeros(value);
+        final int SUB = (int) (value >>> (EXPONENT - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return ((EXPONENT - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + SUB;
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        final int SHIFT = (index >> SUB_BUCKET_BITS) - 1;
+        final long LOWER = (long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1))) << SHIFT;
+        return LOWER + (1L << SHIFT) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.1f p50=%d p99=%d max=%d", getCount(), getMean(), getPercentile(50),
+                getPercentile(99), getMax());
+    }
+}
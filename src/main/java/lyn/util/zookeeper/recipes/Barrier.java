@@ -0,0 +1,37 @@
+package lyn.util.zookeeper.recipes;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.KeeperException;
+
+/**
+ * A barrier of N parties shared by processes through zookeeper.
+ * 
+ * @author Yanpeng Lin
+ */
+public interface Barrier {
+    final String BARRIERS = "/barriers";
+
+    /**
+     * Joins the barrier and waits until all parties joined.
+     * 
+     * @param timeout max time to wait for other parties
+     * @param unit
+     * @return true when all parties joined, false when waiting time elapsed and the party
+     *         stays joined until it leaves
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    boolean enter(long timeout, TimeUnit unit) throws KeeperException, InterruptedException;
+
+    /**
+     * Leaves the barrier, a double barrier waits until all parties left.
+     * 
+     * @param timeout max time to wait for other parties
+     * @param unit
+     * @return true when left, false when waiting time elapsed
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    boolean leave(long timeout, TimeUnit unit) throws KeeperException, InterruptedException;
+}
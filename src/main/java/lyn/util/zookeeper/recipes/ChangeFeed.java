@@ -0,0 +1,78 @@
+package lyn.util.zookeeper.recipes;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A stream of changes of a subtree ordered by zxid, so that other systems mirror it
+ * without polling zookeeper.
+ *
+ * @author Yanpeng Lin
+ */
+public interface ChangeFeed {
+    /**
+     * Waits for changes and returns those available at once.
+     *
+     * @param maxChanges
+     * @param timeout
+     * @param unit
+     * @return changes ordered by zxid, empty when none arrived in time
+     * @throws InterruptedException
+     */
+    List<Change> poll(int maxChanges, long timeout, TimeUnit unit) throws InterruptedException;
+
+    enum Type {
+        CREATED, UPDATED, DELETED
+    }
+
+    /**
+     * A change of a znode. Its zxid is the mzxid of a created or updated znode and the
+     * pzxid of the parent of a deleted one, and is used as checkpoint to resume from.
+     */
+    final class Change {
+        private final Type type;
+        private final String path;
+        private final byte[] data;
+        private final int version;
+        private final long zxid;
+
+        public Change(Type type, String path, byte[] data, int version, long zxid) {
+            this.type = type;
+            this.path = path;
+            this.data = data;
+            this.version = version;
+            this.zxid = zxid;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return data read, null when deleted
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * @return data version read, -1 when deleted
+         */
+        public int getVersion() {
+            return version;
+        }
+
+        public long getZxid() {
+            return zxid;
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + path + " version " + version + " zxid 0x" + Long.toHexString(zxid);
+        }
+    }
+}
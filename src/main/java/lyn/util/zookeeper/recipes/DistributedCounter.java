@@ -0,0 +1,44 @@
+package lyn.util.zookeeper.recipes;
+
+import org.apache.zookeeper.KeeperException;
+
+/**
+ * A long counter shared by processes through zookeeper.
+ * 
+ * @author Yanpeng Lin
+ */
+public interface DistributedCounter {
+    final String COUNTERS = "/counters";
+
+    /**
+     * Adds <code>delta</code> locally, it is published by the next flush.
+     * 
+     * @param delta
+     */
+    void add(long delta);
+
+    /**
+     * Approximate read without zookeeper request, which may miss recent updates of
+     * other processes.
+     * 
+     * @return cached value with local updates not flushed yet
+     */
+    long get();
+
+    /**
+     * Exact read, flushes local updates and reads current value from zookeeper.
+     * 
+     * @return current value
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    long getExact() throws KeeperException, InterruptedException;
+
+    /**
+     * Publishes local updates.
+     * 
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    void flush() throws KeeperException, InterruptedException;
+}
@@ -0,0 +1,58 @@
+package lyn.util.zookeeper.recipes;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.KeeperException;
+
+/**
+ * A mutual exclusion lock shared by processes through zookeeper. Like
+ * <code>java.util.concurrent.locks.Lock</code>, it is released by the thread
+ * holding it.
+ * 
+ * @author Yanpeng Lin
+ */
+public interface DistributedLock {
+    final String LOCKS = "/locks";
+
+    /**
+     * Acquires the lock, waiting until it is released by other holders.
+     * 
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    void lock() throws KeeperException, InterruptedException;
+
+    /**
+     * Acquires the lock only when it is not held by others.
+     * 
+     * @return true when the lock was acquired
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    boolean tryLock() throws KeeperException, InterruptedException;
+
+    /**
+     * Acquires the lock when it is released by others within the waiting time.
+     * 
+     * @param timeout max time to wait for the lock
+     * @param unit
+     * @return true when the lock was acquired, false when waiting time elapsed
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    boolean tryLock(long timeout, TimeUnit unit) throws KeeperException, InterruptedException;
+
+    /**
+     * Releases the lock held by current thread.
+     * 
+     * @throws IllegalMonitorStateException when current thread does not hold the lock
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    void unlock() throws KeeperException, InterruptedException;
+
+    /**
+     * @return true when current thread holds the lock
+     */
+    boolean isHeldByCurrentThread();
+}
@@ -0,0 +1,54 @@
+package lyn.util.zookeeper.recipes;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.KeeperException;
+
+/**
+ * A FIFO work queue shared by processes through zookeeper. Each item is delivered
+ * to one consumer.
+ * 
+ * @author Yanpeng Lin
+ */
+public interface DistributedQueue {
+    final String QUEUES = "/queues";
+
+    /**
+     * @param item
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    void offer(byte[] item) throws KeeperException, InterruptedException;
+
+    /**
+     * Enqueues items in their order.
+     * 
+     * @param items
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    void offerAll(List<byte[]> items) throws KeeperException, InterruptedException;
+
+    /**
+     * Claims items without waiting.
+     * 
+     * @param maxItems
+     * @return items claimed, empty when queue is empty
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    List<byte[]> poll(int maxItems) throws KeeperException, InterruptedException;
+
+    /**
+     * Claims items, waiting for any item within the waiting time.
+     * 
+     * @param maxItems
+     * @param timeout max time to wait for items
+     * @param unit
+     * @return items claimed, empty when waiting time elapsed
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    List<byte[]> take(int maxItems, long timeout, TimeUnit unit) throws KeeperException, InterruptedException;
+}
@@ -0,0 +1,21 @@
+package lyn.util.zookeeper.recipes;
+
+/**
+ * A pair of distributed locks, the read lock may be held by many readers at the same
+ * time as long as the write lock is not held. Like
+ * <code>java.util.concurrent.locks.ReadWriteLock</code>.
+ * 
+ * @author Yanpeng Lin
+ */
+public interface DistributedReadWriteLock {
+
+    /**
+     * @return the lock shared by readers
+     */
+    DistributedLock readLock();
+
+    /**
+     * @return the exclusive lock for writers
+     */
+    DistributedLock writeLock();
+}
@@ -0,0 +1,49 @@
+package lyn.util.zookeeper.recipes;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.KeeperException;
+
+/**
+ * A counting semaphore of a fixed number of permits shared by processes through
+ * zookeeper. Like <code>java.util.concurrent.Semaphore</code>, a permit may be
+ * released by a thread other than the one acquiring it.
+ *
+ * @author Yanpeng Lin
+ */
+public interface DistributedSemaphore {
+    final String SEMAPHORES = "/semaphores";
+
+    /**
+     * Acquires a permit, waiting until one is released by other holders.
+     *
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    void acquire() throws KeeperException, InterruptedException;
+
+    /**
+     * Acquires a permit when one is released by others within the waiting time.
+     *
+     * @param timeout max time to wait for a permit
+     * @param unit
+     * @return true when a permit was acquired, false when waiting time elapsed
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    boolean tryAcquire(long timeout, TimeUnit unit) throws KeeperException, InterruptedException;
+
+    /**
+     * Releases a permit held by this process.
+     *
+     * @throws IllegalStateException when this process holds no permit
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    void release() throws KeeperException, InterruptedException;
+
+    /**
+     * @return number of permits shared by all processes
+     */
+    int getPermits();
+}
@@ -24,7 +24,8 @@ public interface Elect<R> {
         LOSTCONNECTION(-2),
         /* Local States */
         LEADING(3),
-        LEADED(4);
+        LEADED(4),
+        SUCCEEDING(5);
 
         private final int stateCode;
 
@@ -62,6 +63,7 @@ public interface Elect<R> {
      *            <ul>
      *            <li>LEADING, become leader now</li>
      *            <li>LEADED, become follower</li>
+     *            <li>SUCCEEDING, leader is handing off to this candidate, warm up before return</li>
      *            <li>LOSTELECTION, need re-participate</li>
      *            <li>LOSTCONNECTION, need re-connection zookeeper</li>
      *            </ul>
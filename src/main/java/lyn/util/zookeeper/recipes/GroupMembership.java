@@ -0,0 +1,65 @@
+package lyn.util.zookeeper.recipes;
+
+import java.util.Map;
+
+import org.apache.zookeeper.KeeperException;
+
+/**
+ * A group of members shared by processes through zookeeper, like service discovery.
+ * Each member is identified by an id and publishes a payload, like an endpoint.
+ * 
+ * @author Yanpeng Lin
+ */
+public interface GroupMembership {
+    final String GROUPS = "/groups";
+
+    /**
+     * Joins the group as an ephemeral member.
+     * 
+     * @param memberId unique id within the group
+     * @param payload
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    void join(String memberId, byte[] payload) throws KeeperException, InterruptedException;
+
+    /**
+     * Replaces payload of the member joined.
+     * 
+     * @param payload
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    void update(byte[] payload) throws KeeperException, InterruptedException;
+
+    /**
+     * Leaves the group.
+     * 
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    void leave() throws KeeperException, InterruptedException;
+
+    /**
+     * @return immutable snapshot of members, id to payload
+     */
+    Map<String, byte[]> getMembers();
+
+    /**
+     * @param listener notified of membership changes after the snapshot was replaced
+     */
+    void addListener(Listener listener);
+
+    void removeListener(Listener listener);
+
+    /**
+     * Receives membership deltas, invoked by a single thread following the group.
+     */
+    interface Listener {
+        void memberAdded(String memberId, byte[] payload);
+
+        void memberUpdated(String memberId, byte[] payload);
+
+        void memberRemoved(String memberId);
+    }
+}
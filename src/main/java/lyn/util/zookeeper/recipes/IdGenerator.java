@@ -0,0 +1,24 @@
+package lyn.util.zookeeper.recipes;
+
+import org.apache.zookeeper.KeeperException;
+
+/**
+ * A generator of cluster-unique long ids shared through zookeeper.
+ * 
+ * @author Yanpeng Lin
+ */
+public interface IdGenerator {
+    final String SEQUENCES = "/sequences";
+
+    /**
+     * @return an id not returned by any generator of the same sequence before
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    long nextId() throws KeeperException, InterruptedException;
+
+    /**
+     * Stops background work. Ids leased but not returned are skipped.
+     */
+    void close();
+}
@@ -0,0 +1,46 @@
+package lyn.util.zookeeper.recipes;
+
+import java.util.Set;
+
+/**
+ * An assignment of partitions, numbered from 0, to workers which are candidates of
+ * the election. The leader publishes the assignment and workers follow it.
+ *
+ * @author Yanpeng Lin
+ */
+public interface PartitionAssignment {
+    final String ASSIGNMENTS = "/assignments";
+
+    /**
+     * @return number of partitions assigned
+     */
+    int getPartitions();
+
+    /**
+     * @return immutable set of partitions assigned to this worker
+     */
+    Set<Integer> getAssignedPartitions();
+
+    /**
+     * @param partition
+     * @return candidate name owning the partition or null when not assigned yet
+     */
+    String getOwner(int partition);
+
+    /**
+     * @param listener notified of changes of partitions assigned to this worker
+     */
+    void addListener(Listener listener);
+
+    void removeListener(Listener listener);
+
+    /**
+     * Receives deltas of partitions assigned to this worker, invoked by a single thread
+     * following the assignment. Revocations are reported before assignments.
+     */
+    interface Listener {
+        void partitionsAssigned(Set<Integer> partitions);
+
+        void partitionsRevoked(Set<Integer> partitions);
+    }
+}
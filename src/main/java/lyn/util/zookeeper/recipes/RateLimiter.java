@@ -0,0 +1,32 @@
+package lyn.util.zookeeper.recipes;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A rate limit of permits per second shared by processes through zookeeper.
+ *
+ * @author Yanpeng Lin
+ */
+public interface RateLimiter {
+    final String RATE_LIMITS = "/ratelimits";
+
+    /**
+     * @param permits
+     * @return true when permits were acquired without waiting
+     */
+    boolean tryAcquire(int permits);
+
+    /**
+     * @param permits
+     * @param timeout
+     * @param unit
+     * @return true when permits were acquired before timeout
+     * @throws InterruptedException
+     */
+    boolean tryAcquire(int permits, long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Gives up the share of this process and stops background work.
+     */
+    void close();
+}
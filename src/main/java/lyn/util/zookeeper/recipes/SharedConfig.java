@@ -0,0 +1,78 @@
+package lyn.util.zookeeper.recipes;
+
+import java.util.Set;
+
+/**
+ * A configuration subtree shared by processes through zookeeper. Each znode below the
+ * configuration root is a key, named by its path relative to the root, like
+ * <code>db/url</code>.
+ *
+ * @author Yanpeng Lin
+ */
+public interface SharedConfig {
+    final String CONFIGS = "/configs";
+
+    /**
+     * @return current snapshot, never modified once returned
+     */
+    Snapshot getSnapshot();
+
+    /**
+     * @param listener notified after the snapshot was replaced
+     */
+    void addListener(Listener listener);
+
+    void removeListener(Listener listener);
+
+    /**
+     * Parses raw values into typed ones. Decoders are used as cache keys, so a decoder
+     * should be a shared instance or implement <code>equals</code>.
+     */
+    interface Decoder<T> {
+        T decode(byte[] data);
+    }
+
+    /**
+     * An immutable view of all keys at one version.
+     */
+    interface Snapshot {
+        /**
+         * @return version increased by every change applied
+         */
+        long getVersion();
+
+        Set<String> keys();
+
+        /**
+         * @param key
+         * @return raw value shared by all readers so it must not be modified, null when key does not exist
+         */
+        byte[] get(String key);
+
+        /**
+         * @param key
+         * @return mzxid of key znode or -1 when key does not exist
+         */
+        long getMzxid(String key);
+
+        /**
+         * Decodes a value once per change of the key and decoder.
+         *
+         * @param key
+         * @param decoder
+         * @return decoded value or null when key does not exist
+         */
+        <T> T get(String key, Decoder<T> decoder);
+    }
+
+    /**
+     * Receives changes, invoked by a single thread following the configuration.
+     */
+    interface Listener {
+        /**
+         * @param snapshot snapshot including the changes
+         * @param changedKeys keys created, updated or deleted since the previous snapshot
+         */
+        void configChanged(Snapshot snapshot, Set<String> changedKeys);
+    }
+}
@@ -0,0 +1,337 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lyn.util.zookeeper.PipelinedReads;
+import lyn.util.zookeeper.ZooKeeperConnection;
+import lyn.util.zookeeper.recipes.DistributedQueue;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Transaction;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A distributed queue batching zookeeper requests.
+ * <ul>
+ * <li>items are enqueued by transactions of up to <code>batchSize</code> sequential creates</li>
+ * <li>a consumer lists the queue once and claims items from its local snapshot until
+ * it runs out, instead of listing per item</li>
+ * <li>up to <code>window</code> items are claimed at once: their data are read in one
+ * pipelined round trip, then they are deleted by transactions of up to
+ * <code>batchSize</code> deletes. A transaction failed by a concurrent consumer falls
+ * back to pipelined deletes per item, an item belongs to the consumer deleting it.</li>
+ * <li>consumers start claiming at a random window of the snapshot, so they rarely
+ * collide on the same items</li>
+ * <li>only consumers waiting on an empty queue watch it, and they list it again only
+ * once their snapshot is used up</li>
+ * <li>a failure stops claiming, items deleted already are returned since they belong to
+ * this consumer, and the failure is thrown only when none was claimed; an interrupt is
+ * set again on the thread when items are returned</li>
+ * <li>a transaction whose result is lost with the connection applied when none of its
+ * items is left, and one interrupted is taken as applied, so that items are delivered
+ * at least once rather than lost</li>
+ * </ul>
+ * Items are delivered roughly in FIFO order across consumers.
+ * 
+ * @author Yanpeng Lin
+ */
+public class BatchedDistributedQueue implements DistributedQueue {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchedDistributedQueue.class);
+
+    /* item name prefix */
+    static final String ITEM_PREFIX = "item_";
+
+    /* max windows from queue head where a consumer starts claiming */
+    private static final int SPREAD_WINDOWS = 8;
+
+    private final ZooKeeperConnection zkConnection;
+
+    private final String queuePath;
+
+    private final int batchSize;
+
+    private final int window;
+
+    private final Random random = new Random();
+
+    /* guarded by this: item names of the last listing not claimed yet */
+    private final Deque<String> snapshot = new ArrayDeque<>();
+
+    private final AtomicLong listings = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+
+    public BatchedDistributedQueue(ZooKeeperConnection zkConnection, String name) {
+        this(zkConnection, name, 100, 100);
+    }
+
+    /**
+     * @param zkConnection
+     * @param name queue name, the queue path is <code>/queues/&lt;name&gt;</code>
+     * @param batchSize max operations per transaction
+     * @param window max items claimed at once
+     */
+    public BatchedDistributedQueue(ZooKeeperConnection zkConnection, String name, int batchSize, int window) {
+        if (batchSize <= 0 || window <= 0)
+            throw new IllegalArgumentException("batchSize and window must be positive");
+        this.zkConnection = zkConnection;
+        this.queuePath = ZooKeeperConnection.buildPath(QUEUES, name);
+        this.batchSize = batchSize;
+        this.window = window;
+    }
+
+    public String getQueuePath() {
+        return queuePath;
+    }
+
+    /**
+     * @return listings of queue by this consumer
+     */
+    public long getListings() {
+        return listings.get();
+    }
+
+    /**
+     * @return items of the snapshot claimed by other consumers first
+     */
+    public long getConflicts() {
+        return conflicts.get();
+    }
+
+    @Override
+    public void offer(byte[] item) throws KeeperException, InterruptedException {
+        offerAll(Collections.singletonList(item));
+    }
+
+    @Override
+    public void offerAll(List<byte[]> items) throws KeeperException, InterruptedException {
+        for (int from = 0; from < items.size(); from += batchSize) {
+            final List<byte[]> BATCH = items.subList(from, Math.min(items.size(), from + batchSize));
+            while (true) {
+                Transaction transaction = zkConnection.transaction();
+                for (byte[] item : BATCH)
+                    ZooKeeperConnection.create(transaction, queuePath + "/" + ITEM_PREFIX, item,
+                            CreateMode.PERSISTENT_SEQUENTIAL);
+                try {
+                    ZooKeeperConnection.commit(transaction);
+                    break;
+                } catch (KeeperException.NoNodeException e) {
+                    ZooKeeperConnection.createFullPath(zkConnection, queuePath, new byte[0], CreateMode.PERSISTENT,
+                            true);
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized List<byte[]> poll(int maxItems) throws KeeperException, InterruptedException {
+        List<byte[]> claimed = new ArrayList<>();
+        try {
+            while (claimed.size() < maxItems) {
+                if (snapshot.isEmpty() && !list(null))
+                    break;
+                claim(Math.min(maxItems - claimed.size(), window), claimed);
+            }
+        } catch (KeeperException e) {
+            // items deleted are gone from the queue, so they are returned rather than lost
+            if (claimed.isEmpty())
+                throw e;
+            LOGGER.warn("stopped claiming from " + queuePath + " after " + claimed.size() + " items", e);
+        } catch (InterruptedException e) {
+            if (claimed.isEmpty())
+                throw e;
+            Thread.currentThread().interrupt();
+        }
+        return claimed;
+    }
+
+    @Override
+    public List<byte[]> take(int maxItems, long timeout, TimeUnit unit) throws KeeperException,
+            InterruptedException {
+        final long DEADLINE = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            final CountDownLatch changed = new CountDownLatch(1);
+            synchronized (this) {
+                List<byte[]> claimed = poll(maxItems);
+                if (!claimed.isEmpty())
+                    return claimed;
+                // watch the queue, unless items arrived since it was polled
+                if (list(new QueueWatcher(changed)))
+                    continue;
+            }
+            if (!changed.await(DEADLINE - System.nanoTime(), TimeUnit.NANOSECONDS))
+                return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Lists queue into local snapshot, starting at a random window near the head.
+     * 
+     * @return false when queue is empty
+     */
+    private boolean list(Watcher watcher) throws KeeperException, InterruptedException {
+        List<String> items;
+        try {
+            items = (watcher != null) ? zkConnection.getChildren(queuePath, watcher) : zkConnection.getChildren(
+                    queuePath, false);
+        } catch (KeeperException.NoNodeException e) {
+            if (watcher != null && zkConnection.exists(queuePath, watcher) != null)
+                return true;
+            return false;
+        }
+        listings.incrementAndGet();
+        items = ReentrantDistributedLock.filter(items, ITEM_PREFIX);
+        if (items.isEmpty())
+            return false;
+        final int WINDOWS = Math.min(SPREAD_WINDOWS, (items.size() + window - 1) / window);
+        Collections.rotate(items, -random.nextInt(WINDOWS) * window);
+        snapshot.clear();
+        snapshot.addAll(items);
+        return true;
+    }
+
+    /**
+     * Claims up to <code>maxItems</code> of local snapshot into claimed, which holds
+     * items deleted before a failure when it is thrown.
+     */
+    private void claim(int maxItems, List<byte[]> claimed) throws KeeperException, InterruptedException {
+        final List<String> NAMES = new ArrayList<>();
+        while (NAMES.size() < maxItems && !snapshot.isEmpty())
+            NAMES.add(snapshot.poll());
+
+        // read items in one pipelined round trip
+        final byte[][] data = new byte[NAMES.size()][];
+        final KeeperException.Code[] codes = new KeeperException.Code[NAMES.size()];
+        final CountDownLatch READ = new CountDownLatch(NAMES.size());
+        for (int idx = 0; idx < NAMES.size(); idx++) {
+            zkConnection.getData(queuePath + "/" + NAMES.get(idx), false, new AsyncCallback.DataCallback() {
+                @Override
+                public void processResult(int rc, String path, Object ctx, byte[] bytes, Stat stat) {
+                    final int IDX = (Integer) ctx;
+                    codes[IDX] = KeeperException.Code.get(rc);
+                    data[IDX] = bytes;
+                    READ.countDown();
+                }
+            }, idx);
+        }
+        READ.await();
+
+        final List<Integer> readable = new ArrayList<>();
+        for (int idx = 0; idx < NAMES.size(); idx++) {
+            if (codes[idx] == KeeperException.Code.OK)
+                readable.add(idx);
+            else if (codes[idx] == KeeperException.Code.NONODE)
+                conflicts.incrementAndGet();
+            else
+                throw KeeperException.create(codes[idx], queuePath + "/" + NAMES.get(idx));
+        }
+
+        final int CLAIMED = claimed.size();
+        for (int from = 0; from < readable.size(); from += batchSize) {
+            final List<Integer> BATCH = readable.subList(from, Math.min(readable.size(), from + batchSize));
+            Transaction transaction = zkConnection.transaction();
+            for (int idx : BATCH)
+                ZooKeeperConnection.delete(transaction, queuePath + "/" + NAMES.get(idx), -1);
+            try {
+                ZooKeeperConnection.commit(transaction);
+                for (int idx : BATCH)
+                    claimed.add(data[idx]);
+            } catch (KeeperException.NoNodeException e) {
+                deleteEach(NAMES, BATCH, data, claimed);
+            } catch (KeeperException.ConnectionLossException e) {
+                if (applied(NAMES, BATCH)) {
+                    for (int idx : BATCH)
+                        claimed.add(data[idx]);
+                }
+                throw e;
+            } catch (InterruptedException e) {
+                // sent already, most likely applied
+                for (int idx : BATCH)
+                    claimed.add(data[idx]);
+                throw e;
+            }
+        }
+        LOGGER.debug("claimed {} of {} items from {}", claimed.size() - CLAIMED, NAMES.size(), queuePath);
+    }
+
+    /**
+     * Reads items of a transaction whose result is unknown. Being atomic, it was not
+     * applied when an item is still there; it is taken as applied when none is left or
+     * when they cannot be read, even though another consumer may have claimed them.
+     */
+    private boolean applied(List<String> names, List<Integer> indexes) throws InterruptedException {
+        final List<String> PATHS = new ArrayList<>();
+        for (int idx : indexes)
+            PATHS.add(queuePath + "/" + names.get(idx));
+        final PipelinedReads READS = PipelinedReads.read(zkConnection, PATHS, null, true, false);
+        for (int pos = 0; pos < PATHS.size(); pos++) {
+            if (READS.get(pos).getDataCode() == KeeperException.Code.OK)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Deletes items one by one in one pipelined round trip, those deleted by this
+     * consumer, or lost with the connection, are added to claimed before a failure of
+     * another is thrown.
+     */
+    private void deleteEach(List<String> names, List<Integer> indexes, byte[][] data, List<byte[]> claimed)
+            throws KeeperException, InterruptedException {
+        final KeeperException.Code[] codes = new KeeperException.Code[indexes.size()];
+        final CountDownLatch DELETED = new CountDownLatch(indexes.size());
+        for (int pos = 0; pos < indexes.size(); pos++) {
+            zkConnection.delete(queuePath + "/" + names.get(indexes.get(pos)), -1, new AsyncCallback.VoidCallback() {
+                @Override
+                public void processResult(int rc, String path, Object ctx) {
+                    codes[(Integer) ctx] = KeeperException.Code.get(rc);
+                    DELETED.countDown();
+                }
+            }, pos);
+        }
+        DELETED.await();
+
+        KeeperException failure = null;
+        for (int pos = 0; pos < indexes.size(); pos++) {
+            if (codes[pos] == KeeperException.Code.OK)
+                claimed.add(data[indexes.get(pos)]);
+            else if (codes[pos] == KeeperException.Code.NONODE)
+                conflicts.incrementAndGet();
+            else {
+                // a delete lost with the connection may have applied
+                if (codes[pos] == KeeperException.Code.CONNECTIONLOSS)
+                    claimed.add(data[indexes.get(pos)]);
+                if (failure == null)
+                    failure = KeeperException.create(codes[pos], queuePath + "/" + names.get(indexes.get(pos)));
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    static class QueueWatcher implements Watcher {
+        private final CountDownLatch changed;
+
+        QueueWatcher(CountDownLatch changed) {
+            this.changed = changed;
+        }
+
+        @Override
+        public void process(WatchedEvent event) {
+            changed.countDown();
+        }
+    }
+}
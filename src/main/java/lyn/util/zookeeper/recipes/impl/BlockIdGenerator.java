@@ -0,0 +1,215 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import lyn.util.zookeeper.ZooKeeperConnection;
+import lyn.util.zookeeper.recipes.IdGenerator;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An id generator leasing blocks of ids from a counter znode, which holds the next id
+ * not leased yet. A block is leased by a versioned <code>setData</code>, so concurrent
+ * generators never lease overlapping blocks.
+ * <p>
+ * Ids of the leased block are handed out by a lock-free local counter. Once
+ * <code>prefetchThreshold</code> ids are left, the next block is leased in background,
+ * so callers rarely wait for zookeeper. Ids are unique but only ordered within a
+ * process, and ids left in a block at shutdown are skipped. Once closed, blocks are
+ * leased in place.
+ * 
+ * @author Yanpeng Lin
+ */
+public class BlockIdGenerator implements IdGenerator {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BlockIdGenerator.class);
+
+    private final ZooKeeperConnection zkConnection;
+
+    private final String counterPath;
+
+    private final int blockSize;
+
+    private final int prefetchThreshold;
+
+    private final AtomicReference<Block> current = new AtomicReference<>();
+
+    /* next block being leased in background, null when not prefetching */
+    private final AtomicReference<FutureTask<Block>> prefetched = new AtomicReference<>();
+
+    private final ExecutorService prefetcher;
+
+    private volatile boolean closed = false;
+
+    private final AtomicLong leases = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+
+    public BlockIdGenerator(ZooKeeperConnection zkConnection, String name) {
+        this(zkConnection, name, 10000, 2500);
+    }
+
+    /**
+     * @param zkConnection
+     * @param name sequence name, the counter path is <code>/sequences/&lt;name&gt;</code>
+     * @param blockSize ids leased at once
+     * @param prefetchThreshold ids left in current block when the next one is prefetched
+     */
+    public BlockIdGenerator(ZooKeeperConnection zkConnection, String name, int blockSize, int prefetchThreshold) {
+        if (blockSize <= 0)
+            throw new IllegalArgumentException("blockSize must be positive");
+        if (prefetchThreshold < 0 || prefetchThreshold >= blockSize)
+            throw new IllegalArgumentException("prefetchThreshold must be in [0, blockSize)");
+        this.zkConnection = zkConnection;
+        this.counterPath = ZooKeeperConnection.buildPath(SEQUENCES, name);
+        this.blockSize = blockSize;
+        this.prefetchThreshold = prefetchThreshold;
+        this.prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "id-prefetch-" + counterPath);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public String getCounterPath() {
+        return counterPath;
+    }
+
+    /**
+     * @return blocks leased from zookeeper
+     */
+    public long getLeases() {
+        return leases.get();
+    }
+
+    /**
+     * @return lease attempts failed by concurrent generators
+     */
+    public long getConflicts() {
+        return conflicts.get();
+    }
+
+    @Override
+    public long nextId() throws KeeperException, InterruptedException {
+        while (true) {
+            final Block BLOCK = current.get();
+            if (BLOCK != null) {
+                final long ID = BLOCK.next.getAndIncrement();
+                if (ID < BLOCK.end) {
+                    if (BLOCK.end - ID == prefetchThreshold + 1)
+                        prefetch();
+                    return ID;
+                }
+            }
+            advance(BLOCK);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        // a prefetch never run is cancelled, so that a caller waiting for it leases in place
+        for (Runnable task : prefetcher.shutdownNow())
+            ((FutureTask<?>) task).cancel(false);
+    }
+
+    /**
+     * Replaces an exhausted block by the prefetched one or a block leased in place.
+     */
+    private synchronized void advance(Block exhausted) throws KeeperException, InterruptedException {
+        if (current.get() != exhausted)
+            return;
+        FutureTask<Block> task = prefetched.getAndSet(null);
+        Block block = null;
+        if (task != null) {
+            try {
+                block = task.get();
+            } catch (ExecutionException e) {
+                LOGGER.warn("failed to prefetch a block of " + counterPath, e.getCause());
+            } catch (CancellationException e) {
+                // closed before prefetched
+            }
+        }
+        current.set((block != null) ? block : lease());
+    }
+
+    private void prefetch() {
+        if (closed)
+            return;
+        FutureTask<Block> task = new FutureTask<>(new Callable<Block>() {
+            @Override
+            public Block call() throws Exception {
+                return lease();
+            }
+        });
+        if (!prefetched.compareAndSet(null, task))
+            return;
+        try {
+            prefetcher.execute(task);
+        } catch (RejectedExecutionException e) {
+            // closed meanwhile
+            task.cancel(false);
+        }
+    }
+
+    /**
+     * Leases a block by compare-and-set on the counter znode.
+     */
+    Block lease() throws KeeperException, InterruptedException {
+        while (true) {
+            Stat stat = new Stat();
+            final long START;
+            try {
+                START = decode(zkConnection.getData(counterPath, false, stat));
+            } catch (KeeperException.NoNodeException e) {
+                ZooKeeperConnection.createFullPath(zkConnection, counterPath, encode(0), CreateMode.PERSISTENT, true);
+                continue;
+            }
+            try {
+                zkConnection.setData(counterPath, encode(START + blockSize), stat.getVersion());
+            } catch (KeeperException.BadVersionException e) {
+                conflicts.incrementAndGet();
+                continue;
+            }
+            leases.incrementAndGet();
+            LOGGER.debug("leased [{}, {}) of {}", START, START + blockSize, counterPath);
+            return new Block(START, START + blockSize);
+        }
+    }
+
+    static byte[] encode(long value) {
+        return ByteBuffer.allocate(8).putLong(value).array();
+    }
+
+    static long decode(byte[] data) {
+        return (data == null || data.length < 8) ? 0 : ByteBuffer.wrap(data).getLong();
+    }
+
+    /**
+     * Ids in [start, end) leased by this generator.
+     */
+    static class Block {
+        final long end;
+        final AtomicLong next;
+
+        Block(long start, long end) {
+            this.end = end;
+            this.next = new AtomicLong(start);
+        }
+    }
+}
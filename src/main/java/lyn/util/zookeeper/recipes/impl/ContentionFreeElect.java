@@ -1,7 +1,6 @@
 package lyn.util.zookeeper.recipes.impl;
 
 import java.lang.ref.WeakReference;
-import java.nio.ByteBuffer;
 import java.util.List;
 
 import lyn.util.zookeeper.ZooKeeperConnection;
@@ -25,41 +24,65 @@ public class ContentionFreeElect extends NaiveElect implements Elect<Object> {
     /* election member name prefix */
     private final String MEMBER_PREFIX = "ctf_";
 
+    public ContentionFreeElect() {
+        super();
+    }
+
+    /**
+     * @param election election znode
+     */
+    public ContentionFreeElect(String election) {
+        super(election);
+    }
+
     @Override
     public ElectState participate(ZooKeeperConnection zkConnection, boolean isStartElection)
             throws KeeperException, InterruptedException {
-        final String MEMBER_PATH_PREFIX = ELECTION + "/" + MEMBER_PREFIX;
+        final String MEMBER_PATH_PREFIX = election + "/" + MEMBER_PREFIX;
 
         if (zkConnection == null || !zkConnection.isConnected())
-            return ElectState.LOSTCONNECTION;
+            return enter(ElectState.LOSTCONNECTION);
 
-        if (zkConnection.exists(ELECTION, false) == null) {
+        if (zkConnection.exists(election, false) == null) {
             if (!isStartElection)
-                return ElectState.NOELECTION;
+                return enter(ElectState.NOELECTION);
             // initialize election when `isStartElection = true`
-            zkConnection.create(ELECTION, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            ZooKeeperConnection.createFullPath(zkConnection, election, new byte[0], CreateMode.PERSISTENT);
         }
 
-        final String ACTUAL_MEMBER_PATH = zkConnection.create(MEMBER_PATH_PREFIX,
-                ByteBuffer.allocate(4).putInt(this.hashCode()).array(),
+        final String ACTUAL_MEMBER_PATH = zkConnection.create(MEMBER_PATH_PREFIX, memberData(),
                 ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+        Stat memberStat = zkConnection.exists(ACTUAL_MEMBER_PATH, new HandoffWatcher(zkConnection,
+                ACTUAL_MEMBER_PATH, this));
+        if (memberStat == null)
+            return enter(ElectState.LOSTELECTION);
+        memberPath = ACTUAL_MEMBER_PATH;
+        fencingToken = memberStat.getCzxid();
 
         List<String> candidates = fetchCandidates(zkConnection);
         if (isEmpty(candidates))
-            return ElectState.LOSTELECTION;
+            return enter(ElectState.LOSTELECTION);
 
         // leader should exist with smallest sequential id
         final String LEADER_PATH = candidates.get(0);
-        if (LEADER_PATH.equalsIgnoreCase(ACTUAL_MEMBER_PATH))
-            return ElectState.LEADING;
+        if ((election + "/" + LEADER_PATH).equals(ACTUAL_MEMBER_PATH)) {
+            observeLeader(LEADER_PATH, fencingToken);
+            return enter(ElectState.LEADING);
+        }
 
         // set watcher on prior candidate
         final String PRIOR_PATH = fetchPriorCandidate(candidates, ACTUAL_MEMBER_PATH);
-        Stat watchStat = zkConnection.exists(ELECTION + "/" + PRIOR_PATH, new ContentionFreeWatcher(zkConnection,
+        Stat watchStat = zkConnection.exists(election + "/" + PRIOR_PATH, new ContentionFreeWatcher(zkConnection,
                 ACTUAL_MEMBER_PATH, this));
 
-        LOGGER.debug(ELECTION + "/" + PRIOR_PATH + "-->" + watchStat);
-        return (watchStat != null) ? ElectState.LEADED : ElectState.LOSTELECTION;
+        LOGGER.debug(election + "/" + PRIOR_PATH + "-->" + watchStat);
+        if (watchStat == null)
+            return enter(ElectState.LOSTELECTION);
+        if (PRIOR_PATH.equals(LEADER_PATH))
+            observeLeader(LEADER_PATH, watchStat.getCzxid());
+        else
+            refreshLeader(zkConnection, LEADER_PATH);
+        return enter(ElectState.LEADED);
     }
 
     @Override
@@ -101,14 +124,22 @@ public class ContentionFreeElect extends NaiveElect implements Elect<Object> {
 
         @Override
         public void process(WatchedEvent event) {
+            final long EVENT_NANOS = System.nanoTime();
             ElectState state;
             List<String> candidates = null;
             ZooKeeperConnection zkConnection = zkConnectionRef.get();
+            if (event.getType() == Event.EventType.NodeDeleted) {
+                if (takeOverHandoff(event.getPath(), elect, EVENT_NANOS))
+                    return;
+                // only the successor of leader sees leader loss
+                if (ZooKeeperConnection.getName(event.getPath()).equals(leaderName))
+                    metrics.leaderLost(EVENT_NANOS);
+            }
 
             try {
                 candidates = fetchCandidates(zkConnection);
             } catch (KeeperException | InterruptedException e) {
-                elect.update(ElectState.LOSTCONNECTION);
+                transit(elect, ElectState.LOSTCONNECTION, EVENT_NANOS);
                 return;
             }
 
@@ -116,26 +147,29 @@ public class ContentionFreeElect extends NaiveElect implements Elect<Object> {
             // which means a re-participating
             LOGGER.debug("candidates: " + candidates);
             if (isEmpty(candidates)) {
-                elect.update(ElectState.LOSTELECTION);
+                transit(elect, ElectState.LOSTELECTION, EVENT_NANOS);
                 return;
             }
 
             if (event.getType() == Event.EventType.NodeDeleted) {
                 final String LEADER_PATH = candidates.get(0);
-                if ((ELECTION + "/" + LEADER_PATH).equalsIgnoreCase(this.memberPath)) {
-                    elect.update(ElectState.LEADING);
+                if ((election + "/" + LEADER_PATH).equalsIgnoreCase(this.memberPath)) {
+                    observeLeader(LEADER_PATH, fencingToken);
+                    transit(elect, ElectState.LEADING, EVENT_NANOS);
                     return;
                 } else {
                     // setting watcher on prior
                     try {
                         final String PRIOR_PATH = fetchPriorCandidate(candidates, this.memberPath);
-                        Stat watchStat = zkConnection.exists(ELECTION + "/" + PRIOR_PATH, new ContentionFreeWatcher(
+                        Stat watchStat = zkConnection.exists(election + "/" + PRIOR_PATH, new ContentionFreeWatcher(
                                 zkConnection, this.memberPath, elect));
                         state = (watchStat != null) ? ElectState.LEADED : ElectState.LOSTCONNECTION;
-                        elect.update(state);
+                        if (watchStat != null)
+                            refreshLeader(zkConnection, LEADER_PATH);
+                        transit(elect, state, EVENT_NANOS);
                         return;
                     } catch (KeeperException | InterruptedException e) {
-                        elect.update(ElectState.LOSTCONNECTION);
+                        transit(elect, ElectState.LOSTCONNECTION, EVENT_NANOS);
                         LOGGER.warn("LOSTCONNECTION when setting watcher on prior", e);
                         return;
                     }
@@ -143,7 +177,7 @@ public class ContentionFreeElect extends NaiveElect implements Elect<Object> {
             }
             // except lost zk connection and leader node missing
             // pass a lost election state to have a re-participating action
-            elect.update(ElectState.LOSTELECTION);
+            transit(elect, ElectState.LOSTELECTION, EVENT_NANOS);
         }
     }
 }
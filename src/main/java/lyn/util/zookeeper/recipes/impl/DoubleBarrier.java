@@ -0,0 +1,94 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import lyn.util.zookeeper.ZooKeeperConnection;
+
+import org.apache.zookeeper.KeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A double barrier, parties enter like <code>ReadyNodeBarrier</code> and leave together.
+ * <p>
+ * Leaving is chained instead of watching all parties: the lowest party waits for the
+ * highest one to leave, any other party leaves at once and waits for the lowest one.
+ * The lowest party leaves last and removes the ready znode, so the barrier can be
+ * entered again. Each departure notifies at most one party, except the last one which
+ * notifies every party waiting.
+ * 
+ * @author Yanpeng Lin
+ */
+public class DoubleBarrier extends ReadyNodeBarrier {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DoubleBarrier.class);
+
+    public DoubleBarrier(ZooKeeperConnection zkConnection, String name, int parties) {
+        super(zkConnection, name, parties);
+    }
+
+    /**
+     * Leaves the barrier and waits until all parties left.
+     */
+    @Override
+    public boolean leave(long timeout, TimeUnit unit) throws KeeperException, InterruptedException {
+        final String MEMBER_PATH = memberPath;
+        if (MEMBER_PATH == null)
+            return true;
+        final String MEMBER_NAME = ZooKeeperConnection.getName(MEMBER_PATH);
+        final long DEADLINE = System.nanoTime() + unit.toNanos(timeout);
+        String lowest = null;
+        while (lowest == null) {
+            List<String> members = fetchMembers();
+            if (!members.contains(MEMBER_NAME)) {
+                // member znode already gone with session
+                memberPath = null;
+                return true;
+            }
+            if (members.size() == 1) {
+                // last party cleans up for next round, before parties waiting for it return
+                delete(barrierPath + "/" + READY);
+                delete(MEMBER_PATH);
+                memberPath = null;
+                LOGGER.debug("{} left {} last", MEMBER_PATH, barrierPath);
+                return true;
+            }
+            if (!members.get(0).equals(MEMBER_NAME)) {
+                lowest = members.get(0);
+                break;
+            }
+            // lowest party waits for the highest one
+            if (!await(members.get(members.size() - 1), DEADLINE)) {
+                delete(MEMBER_PATH);
+                memberPath = null;
+                return false;
+            }
+        }
+
+        delete(MEMBER_PATH);
+        memberPath = null;
+        // lowest party leaves once all the others left
+        return await(lowest, DEADLINE);
+    }
+
+    /**
+     * Waits until the member is deleted.
+     * 
+     * @return false when deadline passed
+     */
+    private boolean await(String member, long deadline) throws KeeperException, InterruptedException {
+        final CountDownLatch left = new CountDownLatch(1);
+        if (zkConnection.exists(barrierPath + "/" + member, new ReadyWatcher(left)) == null)
+            return true;
+        return left.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    private void delete(String path) throws KeeperException, InterruptedException {
+        try {
+            zkConnection.delete(path, -1);
+        } catch (KeeperException.NoNodeException e) {
+            // already gone
+        }
+    }
+}
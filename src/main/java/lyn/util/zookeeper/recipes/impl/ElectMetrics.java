@@ -0,0 +1,212 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import lyn.util.zookeeper.metrics.Histogram;
+import lyn.util.zookeeper.recipes.Elect.ElectState;
+
+/**
+ * Instrumentation of an election candidate:
+ * <ul>
+ * <li>counters per state transition</li>
+ * <li>histograms of time spent in each state</li>
+ * <li>histogram of leaderless gap, from an event showing leader loss until a leader is
+ * known again by this candidate</li>
+ * <li>histogram of latency from a zookeeper event to the <code>update</code> call</li>
+ * </ul>
+ * Time values are recorded in nanoseconds.
+ *
+ * @author Yanpeng Lin
+ */
+public class ElectMetrics implements ElectMetricsMXBean {
+    private static final ElectState[] STATES = ElectState.values();
+
+    /* transitions[from][to], from index 0 stands for no state */
+    private final AtomicLongArray transitions = new AtomicLongArray((STATES.length + 1) * STATES.length);
+    private final Histogram[] timeInState = new Histogram[STATES.length];
+    private final Histogram leaderless = new Histogram();
+    private final Histogram eventToUpdate = new Histogram();
+
+    /* guarded by this */
+    private ElectState state = null;
+    private long enteredNanos = 0;
+    private long leaderLostNanos = -1;
+
+    private ObjectName objectName = null;
+
+    public ElectMetrics() {
+        for (int i = 0; i < STATES.length; i++)
+            timeInState[i] = new Histogram();
+    }
+
+    /**
+     * Records a transition to <code>to</code>.
+     * 
+     * @param to
+     * @param eventNanos <code>System.nanoTime()</code> of the zookeeper event causing the
+     *            transition or 0 when caused by a local call
+     */
+    public synchronized void transition(ElectState to, long eventNanos) {
+        final long NOW = System.nanoTime();
+        transitions.incrementAndGet(index(state, to));
+        if (eventNanos > 0)
+            eventToUpdate.record(NOW - eventNanos);
+        if (to == ElectState.LEADING || to == ElectState.LEADED)
+            leaderFound(NOW);
+        if (to == state)
+            return;
+        if (state != null)
+            timeInState[state.ordinal()].record(NOW - enteredNanos);
+        state = to;
+        enteredNanos = NOW;
+    }
+
+    /**
+     * Starts a leaderless gap unless one is already open.
+     * 
+     * @param eventNanos <code>System.nanoTime()</code> of the event showing leader loss
+     */
+    public synchronized void leaderLost(long eventNanos) {
+        if (leaderLostNanos < 0)
+            leaderLostNanos = eventNanos;
+    }
+
+    /**
+     * Closes a leaderless gap when a leader is known again without a state change,
+     * like a follower keeping <code>LEADED</code> across a failover.
+     * 
+     * @param nanos <code>System.nanoTime()</code> when the leader was found
+     */
+    public synchronized void leaderFound(long nanos) {
+        if (leaderLostNanos >= 0) {
+            leaderless.record(nanos - leaderLostNanos);
+            leaderLostNanos = -1;
+        }
+    }
+
+    public long getTransitionCount(ElectState from, ElectState to) {
+        return transitions.get(index(from, to));
+    }
+
+    public Histogram getTimeInState(ElectState state) {
+        return timeInState[state.ordinal()];
+    }
+
+    public Histogram getLeaderless() {
+        return leaderless;
+    }
+
+    public Histogram getEventToUpdate() {
+        return eventToUpdate;
+    }
+
+    /**
+     * Registers metrics to platform MBean server as
+     * <code>lyn.util.zookeeper:type=Elect,name=&lt;name&gt;</code>.
+     * 
+     * @param name
+     * @return object name registered
+     * @throws JMException
+     */
+    public synchronized ObjectName register(String name) throws JMException {
+        unregister();
+        ObjectName registered = new ObjectName("lyn.util.zookeeper:type=Elect,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, registered);
+        objectName = registered;
+        return registered;
+    }
+
+    public synchronized void unregister() throws JMException {
+        if (objectName == null)
+            return;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(objectName))
+            server.unregisterMBean(objectName);
+        objectName = null;
+    }
+
+    @Override
+    public synchronized String getState() {
+        return (state == null) ? "NONE" : state.name();
+    }
+
+    @Override
+    public Map<String, Long> getTransitions() {
+        Map<String, Long> counters = new LinkedHashMap<>();
+        for (int from = -1; from < STATES.length; from++) {
+            for (ElectState to : STATES) {
+                ElectState fromState = (from < 0) ? null : STATES[from];
+                long count = getTransitionCount(fromState, to);
+                if (count > 0)
+                    counters.put(((fromState == null) ? "NONE" : fromState.name()) + "->" + to.name(), count);
+            }
+        }
+        return counters;
+    }
+
+    @Override
+    public Map<String, Double> getMeanTimeInStateMillis() {
+        Map<String, Double> means = new LinkedHashMap<>();
+        for (ElectState each : STATES) {
+            if (getTimeInState(each).getCount() > 0)
+                means.put(each.name(), getTimeInState(each).getMean() / 1e6);
+        }
+        return means;
+    }
+
+    @Override
+    public Map<String, Double> getMaxTimeInStateMillis() {
+        Map<String, Double> maxes = new LinkedHashMap<>();
+        for (ElectState each : STATES) {
+            if (getTimeInState(each).getCount() > 0)
+                maxes.put(each.name(), getTimeInState(each).getMax() / 1e6);
+        }
+        return maxes;
+    }
+
+    @Override
+    public long getLeaderlessCount() {
+        return leaderless.getCount();
+    }
+
+    @Override
+    public double getLeaderlessP50Millis() {
+        return leaderless.getPercentile(50) / 1e6;
+    }
+
+    @Override
+    public double getLeaderlessP99Millis() {
+        return leaderless.getPercentile(99) / 1e6;
+    }
+
+    @Override
+    public double getLeaderlessMaxMillis() {
+        return leaderless.getMax() / 1e6;
+    }
+
+    @Override
+    public double getUpdateLatencyP50Millis() {
+        return eventToUpdate.getPercentile(50) / 1e6;
+    }
+
+    @Override
+    public double getUpdateLatencyP99Millis() {
+        return eventToUpdate.getPercentile(99) / 1e6;
+    }
+
+    @Override
+    public double getUpdateLatencyMaxMillis() {
+        return eventToUpdate.getMax() / 1e6;
+    }
+
+    private static int index(ElectState from, ElectState to) {
+        return ((from == null) ? 0 : from.ordinal() + 1) * STATES.length + to.ordinal();
+    }
+}
@@ -0,0 +1,45 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import java.util.Map;
+
+/**
+ * JMX view of <code>ElectMetrics</code>.
+ *
+ * @author Yanpeng Lin
+ */
+public interface ElectMetricsMXBean {
+
+    /**
+     * @return current election state or NONE before participating
+     */
+    String getState();
+
+    /**
+     * @return counters keyed by transition like "LEADED->LEADING"
+     */
+    Map<String, Long> getTransitions();
+
+    /**
+     * @return mean milliseconds spent in each state left at least once
+     */
+    Map<String, Double> getMeanTimeInStateMillis();
+
+    /**
+     * @return max milliseconds spent in each state left at least once
+     */
+    Map<String, Double> getMaxTimeInStateMillis();
+
+    long getLeaderlessCount();
+
+    double getLeaderlessP50Millis();
+
+    double getLeaderlessP99Millis();
+
+    double getLeaderlessMaxMillis();
+
+    double getUpdateLatencyP50Millis();
+
+    double getUpdateLatencyP99Millis();
+
+    double getUpdateLatencyMaxMillis();
+}
@@ -0,0 +1,272 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lyn.util.zookeeper.ZooKeeperConnection;
+import lyn.util.zookeeper.recipes.Elect;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A watch-maintained cache of current election leader. Followers and pure observers
+ * resolve the leader and its payload locally instead of listing candidates per request.
+ * <p>
+ * Only one data watch is kept on the leader znode, which fires when the leader updates
+ * its payload or leaves the election. Candidates joining later never become leader,
+ * so candidate churn does not reach observers. Incumbents of <code>WeightedElect</code>
+ * are followed by a data watch on election znode.
+ * <p>
+ * A failed refresh leaves no leader cached and is retried with backoff until it
+ * succeeds, which sets the watches again. So is the refresh after the session expired,
+ * once the connection is made again.
+ *
+ * @author Yanpeng Lin
+ */
+public class LeaderLookup {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LeaderLookup.class);
+
+    /* delay of the first retry of a failed refresh, doubled up to the maximum */
+    private static final long RETRY_MILLIS = 100;
+    private static final long MAX_RETRY_MILLIS = 10000;
+
+    private final ZooKeeperConnection zkConnection;
+
+    private volatile Leader leader = null;
+
+    private volatile boolean closed = false;
+
+    private final LeaderWatcher watcher = new LeaderWatcher();
+
+    private ScheduledExecutorService retrier = null;
+
+    /* refreshes failed in a row */
+    private final AtomicInteger failures = new AtomicInteger();
+
+    public LeaderLookup(ZooKeeperConnection zkConnection) {
+        this.zkConnection = zkConnection;
+    }
+
+    /**
+     * Resolves current leader and sets watches to follow it.
+     *
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public void start() throws KeeperException, InterruptedException {
+        if (retrier == null || retrier.isShutdown()) {
+            retrier = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "leader-lookup");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        closed = false;
+        refresh();
+    }
+
+    /**
+     * Stops following the leader. Pending watches are ignored once they fire.
+     */
+    public void close() {
+        closed = true;
+        if (retrier != null)
+            retrier.shutdownNow();
+        leader = null;
+    }
+
+    /**
+     * @return the cached leader or null when no leader exists
+     */
+    public Leader getLeader() {
+        return leader;
+    }
+
+    /**
+     * @return payload published by the cached leader or null when no leader exists
+     */
+    public byte[] getLeaderPayload() {
+        Leader current = leader;
+        return (current != null) ? current.getPayload() : null;
+    }
+
+    /**
+     * Validates a fencing token against the cached leader, see
+     * <code>NaiveElect.isValidFencingToken</code>.
+     *
+     * @param token fencing token attached to a write
+     * @return false when the token was issued by a leader older than the cached one
+     */
+    public boolean isValidFencingToken(long token) {
+        Leader current = leader;
+        return token >= 0 && (current == null || token >= current.getFencingToken());
+    }
+
+    synchronized void refresh() throws KeeperException, InterruptedException {
+        if (closed)
+            return;
+        while (true) {
+            Stat electionStat = new Stat();
+            final byte[] INCUMBENT;
+            try {
+                INCUMBENT = zkConnection.getData(Elect.ELECTION, watcher, electionStat);
+            } catch (KeeperException.NoNodeException e) {
+                // wait for election to be started
+                leader = null;
+                if (zkConnection.exists(Elect.ELECTION, watcher) == null)
+                    return;
+                continue;
+            }
+            if (INCUMBENT != null && INCUMBENT.length > 0) {
+                resolveIncumbent(new String(INCUMBENT), electionStat.getMzxid());
+                return;
+            }
+
+            List<String> candidates = zkConnection.getChildren(Elect.ELECTION, false);
+            if (candidates.isEmpty()) {
+                leader = null;
+                // wait for the first candidate
+                if (zkConnection.getChildren(Elect.ELECTION, watcher).isEmpty())
+                    return;
+                continue;
+            }
+            final String LEADER_NAME = Collections.min(candidates, new NaiveElect.SequentialComparator());
+            try {
+                Stat stat = new Stat();
+                byte[] data = zkConnection.getData(Elect.ELECTION + "/" + LEADER_NAME, watcher, stat);
+                leader = new Leader(LEADER_NAME, stat.getCzxid(), data);
+                LOGGER.debug("leader resolved: {}", LEADER_NAME);
+                return;
+            } catch (KeeperException.NoNodeException e) {
+                // leader left between listing and reading, resolve again
+            }
+        }
+    }
+
+    /**
+     * Refreshes again after a delay growing with failures in a row, until a refresh
+     * succeeds or the lookup is closed.
+     */
+    private void retry() {
+        final int FAILURES = failures.incrementAndGet();
+        try {
+            retrier.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refresh();
+                        failures.set(0);
+                    } catch (KeeperException e) {
+                        LOGGER.warn("failed to resolve leader, retrying", e);
+                        leader = null;
+                        retry();
+                    } catch (InterruptedException e) {
+                        // closed
+                    }
+                }
+            }, Math.min(MAX_RETRY_MILLIS, RETRY_MILLIS << Math.min(FAILURES - 1, 16)), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // closed meanwhile
+        }
+    }
+
+    /**
+     * <code>WeightedElect</code> records incumbent in election znode, whose data watch
+     * fires when it is replaced. Its payload follows the score in member znode.
+     */
+    private void resolveIncumbent(String incumbent, long mzxid) throws KeeperException, InterruptedException {
+        try {
+            byte[] data = zkConnection.getData(Elect.ELECTION + "/" + incumbent, watcher, null);
+            leader = new Leader(incumbent, mzxid, Arrays.copyOfRange(data, Math.min(8, data.length), data.length));
+            LOGGER.debug("incumbent resolved: {}", incumbent);
+        } catch (KeeperException.NoNodeException e) {
+            // incumbent lost, election znode is updated once another one is elected
+            leader = null;
+        }
+    }
+
+    /**
+     * Registered on every watched znode. A single instance is not duplicated by
+     * zookeeper when registered again on the same znode. A failed refresh is retried,
+     * as its watches may not be set.
+     */
+    class LeaderWatcher implements Watcher {
+        @Override
+        public void process(WatchedEvent event) {
+            if (closed)
+                return;
+            if (event.getType() == Event.EventType.None) {
+                if (event.getState() == Event.KeeperState.Expired) {
+                    // watches of the session are gone, set again once connected
+                    leader = null;
+                    retry();
+                }
+                return;
+            }
+            try {
+                refresh();
+                failures.set(0);
+            } catch (KeeperException | InterruptedException e) {
+                LOGGER.warn("failed to resolve leader, retrying", e);
+                leader = null;
+                retry();
+            }
+        }
+    }
+
+    /**
+     * Immutable identity of an election leader.
+     */
+    public static class Leader {
+        private final String name;
+        private final long fencingToken;
+        private final byte[] payload;
+
+        Leader(String name, long fencingToken, byte[] payload) {
+            this.name = name;
+            this.fencingToken = fencingToken;
+            this.payload = payload;
+        }
+
+        /**
+         * @return name of leader member znode
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return czxid of leader member znode, see <code>NaiveElect.getFencingToken</code>
+         */
+        public long getFencingToken() {
+            return fencingToken;
+        }
+
+        /**
+         * @return payload published by leader, shared by all lookups so it must not be modified
+         */
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        @Override
+        public String toString() {
+            return name + "@" + fencingToken;
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lyn.util.zookeeper.ZooKeeperConnection;
+import lyn.util.zookeeper.recipes.RateLimiter;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A rate limiter leasing a share of the global rate from a lease table znode
+ * <code>/ratelimits/&lt;name&gt;</code>, which holds the share, observed demand and
+ * renewal time of each process.
+ * <ul>
+ * <li>permits are handed out by a lock-free local token bucket at the leased rate, so
+ * zookeeper is only reached once per rebalance period</li>
+ * <li>each period a process records its demand and renews its share in proportion to
+ * demand of all processes by a versioned <code>setData</code></li>
+ * <li>a share grows only up to the rate not leased by others and shrinks before it is
+ * published, so shares never sum up beyond the global rate</li>
+ * </ul>
+ * Leases not renewed for 3 periods are dropped, by wall clock of the process renewing.
+ * A process whose renewals fail gives up its share a period before its lease expires,
+ * as others lease that rate again. A limiter is identified by its
+ * zookeeper session and a sequence number within the process, so limiters may share a
+ * session.
+ *
+ * @author Yanpeng Lin
+ */
+public class LeasedRateLimiter implements RateLimiter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LeasedRateLimiter.class);
+
+    /* periods a lease is kept without renewal */
+    private static final int LEASE_PERIODS = 3;
+
+    /* attempts to renew a lease within a period */
+    private static final int MAX_ATTEMPTS = 5;
+
+    /* waiting permits re-check the bucket at least this often, as the share may grow */
+    private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /* limiters created by this process, to tell apart those sharing a session */
+    private static final AtomicLong IDS = new AtomicLong();
+
+    private final ZooKeeperConnection zkConnection;
+
+    private final String limitPath;
+
+    private final double permitsPerSecond;
+
+    private final long rebalancePeriodMillis;
+
+    private final TokenBucket bucket;
+
+    /* session id and limiter id, assigned when started */
+    private volatile String leaseId = null;
+
+    /* nanoTime of the last renewal written */
+    private volatile long renewedNanos;
+
+    /* permits requested since last rebalance, granted or not */
+    private final AtomicLong demand = new AtomicLong();
+
+    private long lastRebalanceNanos;
+
+    private ScheduledExecutorService rebalancer = null;
+
+    private final AtomicLong rebalances = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+
+    public LeasedRateLimiter(ZooKeeperConnection zkConnection, String name, double permitsPerSecond) {
+        this(zkConnection, name, permitsPerSecond, 10000);
+    }
+
+    /**
+     * @param zkConnection
+     * @param name limit name, the lease table is <code>/ratelimits/&lt;name&gt;</code>
+     * @param permitsPerSecond global rate shared by all processes
+     * @param rebalancePeriodMillis period of lease renewal
+     */
+    public LeasedRateLimiter(ZooKeeperConnection zkConnection, String name, double permitsPerSecond,
+            long rebalancePeriodMillis) {
+        if (permitsPerSecond <= 0)
+            throw new IllegalArgumentException("permitsPerSecond must be positive");
+        if (rebalancePeriodMillis <= 0)
+            throw new IllegalArgumentException("rebalancePeriodMillis must be positive");
+        this.zkConnection = zkConnection;
+        this.limitPath = ZooKeeperConnection.buildPath(RATE_LIMITS, name);
+        this.permitsPerSecond = permitsPerSecond;
+        this.rebalancePeriodMillis = rebalancePeriodMillis;
+        this.bucket = new TokenBucket(0, TimeUnit.SECONDS.toNanos(1));
+    }
+
+    public String getLimitPath() {
+        return limitPath;
+    }
+
+    /**
+     * @return permits per second currently leased by this process
+     */
+    public double getShare() {
+        return bucket.getRate();
+    }
+
+    /**
+     * @return lease renewals written
+     */
+    public long getRebalances() {
+        return rebalances.get();
+    }
+
+    /**
+     * @return renewals retried since the lease table was updated by another process
+     */
+    public long getConflicts() {
+        return conflicts.get();
+    }
+
+    /**
+     * Leases an initial share and starts renewing it.
+     *
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public void start() throws KeeperException, InterruptedException {
+        ZooKeeperConnection.createFullPath(zkConnection, limitPath, new byte[0], CreateMode.PERSISTENT, true);
+        leaseId = Long.toHexString(zkConnection.getSessionId()) + "-" + IDS.incrementAndGet();
+        lastRebalanceNanos = System.nanoTime();
+        renewedNanos = lastRebalanceNanos;
+        rebalance();
+        rebalancer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "rate-rebalance-" + limitPath);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // jitter keeps processes started together from renewing together
+        final long JITTER_MILLIS = new Random().nextInt((int) Math.min(rebalancePeriodMillis, Integer.MAX_VALUE));
+        rebalancer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rebalance();
+                } catch (KeeperException | InterruptedException e) {
+                    LOGGER.warn("failed to renew lease of " + limitPath, e);
+                    lapse();
+                }
+            }
+        }, JITTER_MILLIS, rebalancePeriodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        if (rebalancer != null)
+            rebalancer.shutdownNow();
+        bucket.setRate(0);
+        if (leaseId == null)
+            return;
+        try {
+            for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+                Stat stat = new Stat();
+                Map<String, Lease> leases = decode(zkConnection.getData(limitPath, false, stat));
+                if (leases.remove(leaseId) == null)
+                    return;
+                try {
+                    zkConnection.setData(limitPath, encode(leases), stat.getVersion());
+                    return;
+                } catch (KeeperException.BadVersionException e) {
+                    conflicts.incrementAndGet();
+                }
+            }
+        } catch (KeeperException | InterruptedException e) {
+            LOGGER.warn("failed to release lease of " + limitPath + ", it expires in "
+                    + LEASE_PERIODS * rebalancePeriodMillis + "ms", e);
+        }
+    }
+
+    @Override
+    public boolean tryAcquire(int permits) {
+        demand.addAndGet(permits);
+        return bucket.tryAcquire(permits) == 0;
+    }
+
+    @Override
+    public boolean tryAcquire(int permits, long timeout, TimeUnit unit) throws InterruptedException {
+        demand.addAndGet(permits);
+        final long DEADLINE_NANOS = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            final long WAIT_NANOS = bucket.tryAcquire(permits);
+            if (WAIT_NANOS == 0)
+                return true;
+            final long REMAINING_NANOS = DEADLINE_NANOS - System.nanoTime();
+            if (REMAINING_NANOS <= 0 || (WAIT_NANOS > REMAINING_NANOS && WAIT_NANOS < MAX_WAIT_NANOS))
+                return false;
+            TimeUnit.NANOSECONDS.sleep(Math.min(Math.min(WAIT_NANOS, REMAINING_NANOS), MAX_WAIT_NANOS));
+        }
+    }
+
+    /**
+     * Records demand of the last period and renews the share of this process.
+     */
+    synchronized void rebalance() throws KeeperException, InterruptedException {
+        final long NOW_NANOS = System.nanoTime();
+        final double DEMAND = demand.getAndSet(0) * 1e9 / Math.max(NOW_NANOS - lastRebalanceNanos, 1);
+        lastRebalanceNanos = NOW_NANOS;
+
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            Stat stat = new Stat();
+            Map<String, Lease> leases = decode(zkConnection.getData(limitPath, false, stat));
+            final long NOW_MILLIS = System.currentTimeMillis();
+            leases.put(leaseId, new Lease(bucket.getRate(), DEMAND, NOW_MILLIS));
+            expire(leases, NOW_MILLIS - LEASE_PERIODS * rebalancePeriodMillis);
+
+            final double SHARE = share(leases, leaseId, permitsPerSecond);
+            leases.put(leaseId, new Lease(SHARE, DEMAND, NOW_MILLIS));
+            // shrink before publishing, grow after
+            if (SHARE < bucket.getRate())
+                bucket.setRate(SHARE);
+            try {
+                zkConnection.setData(limitPath, encode(leases), stat.getVersion());
+            } catch (KeeperException.BadVersionException e) {
+                conflicts.incrementAndGet();
+                continue;
+            }
+            bucket.setRate(SHARE);
+            renewedNanos = System.nanoTime();
+            rebalances.incrementAndGet();
+            LOGGER.debug("{} leased {}/s of {}/s to {}, demand {}/s", limitPath, SHARE, permitsPerSecond, leaseId,
+                    DEMAND);
+            return;
+        }
+        LOGGER.info("{} lease of {} not renewed after {} conflicts", limitPath, leaseId, MAX_ATTEMPTS);
+        lapse();
+    }
+
+    /**
+     * Gives up the share a period before the lease expires, since other processes drop
+     * it and lease its rate again by then, unless it is renewed meanwhile.
+     */
+    private void lapse() {
+        final long RENEWED_NANOS = renewedNanos;
+        final long LEFT_NANOS = TimeUnit.MILLISECONDS.toNanos((LEASE_PERIODS - 1) * rebalancePeriodMillis)
+                - (System.nanoTime() - RENEWED_NANOS);
+        if (LEFT_NANOS <= 0) {
+            if (bucket.getRate() > 0)
+                LOGGER.warn("{} lease of {} not renewed, no permits until it is", limitPath, leaseId);
+            bucket.setRate(0);
+            return;
+        }
+        if (rebalancer == null)
+            // leased first by start, renewals are checked once scheduled
+            return;
+        try {
+            rebalancer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (renewedNanos == RENEWED_NANOS)
+                        lapse();
+                }
+            }, LEFT_NANOS, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // closed meanwhile
+        }
+    }
+
+    /**
+     * Drops leases not renewed since <code>expiryMillis</code>.
+     */
+    static void expire(Map<String, Lease> leases, long expiryMillis) {
+        Iterator<Lease> iterator = leases.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().renewedMillis < expiryMillis)
+                iterator.remove();
+        }
+    }
+
+    /**
+     * The target share is proportional to demand, with a floor of a tenth of an even
+     * share so idle processes keep some rate. It is granted up to the rate not leased
+     * by other processes.
+     *
+     * @return share of <code>leaseId</code>
+     */
+    static double share(Map<String, Lease> leases, String leaseId, double permitsPerSecond) {
+        final double FLOOR = permitsPerSecond / leases.size() / 10;
+        double weights = 0;
+        double leasedByOthers = 0;
+        for (Map.Entry<String, Lease> lease : leases.entrySet()) {
+            weights += Math.max(lease.getValue().demand, FLOOR);
+            if (!lease.getKey().equals(leaseId))
+                leasedByOthers += lease.getValue().share;
+        }
+        final double TARGET = permitsPerSecond * Math.max(leases.get(leaseId).demand, FLOOR) / weights;
+        return Math.max(0, Math.min(TARGET, permitsPerSecond - leasedByOthers));
+    }
+
+    static byte[] encode(Map<String, Lease> leases) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(leases.size());
+            for (Map.Entry<String, Lease> lease : leases.entrySet()) {
+                out.writeUTF(lease.getKey());
+                out.writeDouble(lease.getValue().share);
+                out.writeDouble(lease.getValue().demand);
+                out.writeLong(lease.getValue().renewedMillis);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return leases by lease id, empty when the table was not written yet
+     */
+    static Map<String, Lease> decode(byte[] data) {
+        Map<String, Lease> leases = new TreeMap<>();
+        if (data == null || data.length == 0)
+            return leases;
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            final int COUNT = in.readInt();
+            for (int idx = 0; idx < COUNT; idx++)
+                leases.put(in.readUTF(), new Lease(in.readDouble(), in.readDouble(), in.readLong()));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("malformed lease table", e);
+        }
+        return leases;
+    }
+
+    /**
+     * A share leased by a process.
+     */
+    static class Lease {
+        final double share;
+        final double demand;
+        final long renewedMillis;
+
+        Lease(double share, double demand, long renewedMillis) {
+            this.share = share;
+            this.demand = demand;
+            this.renewedMillis = renewedMillis;
+        }
+    }
+
+    /**
+     * A lock-free token bucket, kept as the theoretical arrival time of the next permit
+     * (GCRA). Permits are granted while that time is at most <code>burstNanos</code>
+     * ahead, so up to a second of permits can be taken at once by default. A request
+     * larger than the burst is granted when the bucket is full.
+     */
+    static class TokenBucket {
+        private final long burstNanos;
+
+        private volatile double rate;
+
+        private final AtomicLong arrivalNanos = new AtomicLong(System.nanoTime());
+
+        TokenBucket(double rate, long burstNanos) {
+            this.rate = rate;
+            this.burstNanos = burstNanos;
+        }
+
+        double getRate() {
+            return rate;
+        }
+
+        void setRate(double rate) {
+            this.rate = rate;
+        }
+
+        /**
+         * @param permits
+         * @return 0 when permits were granted, otherwise nanoseconds to wait at the current rate
+         */
+        long tryAcquire(int permits) {
+            final double RATE = rate;
+            if (RATE <= 0)
+                return Long.MAX_VALUE;
+            final long COST_NANOS = (long) Math.ceil(permits * 1e9 / RATE);
+            while (true) {
+                final long NOW_NANOS = System.nanoTime();
+                final long ARRIVAL_NANOS = arrivalNanos.get();
+                final long NEXT_NANOS = Math.max(ARRIVAL_NANOS, NOW_NANOS) + COST_NANOS;
+                if (NEXT_NANOS - NOW_NANOS > burstNanos && ARRIVAL_NANOS - NOW_NANOS > 0)
+                    return Math.min(NEXT_NANOS - NOW_NANOS - burstNanos, ARRIVAL_NANOS - NOW_NANOS);
+                if (arrivalNanos.compareAndSet(ARRIVAL_NANOS, NEXT_NANOS))
+                    return 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import lyn.util.zookeeper.ZooKeeperConnection;
+import lyn.util.zookeeper.recipes.DistributedSemaphore;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A distributed semaphore of K permits. Each permit is a lease, a sequential
+ * ephemeral znode under semaphore path, and the K smallest leases hold permits.
+ * <ul>
+ * <li>the first waiter, K-th in order, is admitted by any release, so it watches
+ * children of semaphore path</li>
+ * <li>other waiters watch their predecessor only, which notifies them by deletion
+ * or by marking its lease once admitted, so a release wakes up a single waiter</li>
+ * </ul>
+ * Threads of the same process queue on a local fair gate, so a process has at most
+ * one waiting lease. A permit released while local threads are waiting is handed
+ * off to them without any zookeeper request, at most <code>maxLocalHandoffs</code>
+ * times in a row before the lease is released to let other processes in.
+ * <p>
+ * All processes must use the same number of permits.
+ *
+ * @author Yanpeng Lin
+ */
+public class LeasedSemaphore implements DistributedSemaphore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LeasedSemaphore.class);
+
+    /* lease name prefix */
+    private final String LEASE_PREFIX = "lease_";
+
+    /* data of a lease admitted after waiting, notifies the successor watching it */
+    static final byte[] ADMITTED = new byte[] { 1 };
+
+    private final ZooKeeperConnection zkConnection;
+
+    private final String semaphorePath;
+
+    private final int permits;
+
+    private final int maxLocalHandoffs;
+
+    /* serializes threads of this process waiting for a lease, fair so that a waiting thread gets handed off */
+    private final ReentrantLock gate = new ReentrantLock(true);
+
+    /* guarded by this: leases held by this process and leases handed off but not taken yet */
+    private final Deque<String> held = new ArrayDeque<>();
+    private final Deque<String> idle = new ArrayDeque<>();
+    private int localHandoffs = 0;
+
+    /* guarded by this: wakes up the gate holder waiting for a lease, null when not waiting */
+    private CountDownLatch handoff = null;
+
+    private final AtomicLong remoteAcquisitions = new AtomicLong();
+    private final AtomicLong localAcquisitions = new AtomicLong();
+
+    public LeasedSemaphore(ZooKeeperConnection zkConnection, String name, int permits) {
+        this(zkConnection, name, permits, 16);
+    }
+
+    /**
+     * @param zkConnection
+     * @param name semaphore name, the semaphore path is <code>/semaphores/&lt;name&gt;</code>
+     * @param permits number of permits shared by all processes
+     * @param maxLocalHandoffs max local handoffs in a row before releasing a lease
+     */
+    public LeasedSemaphore(ZooKeeperConnection zkConnection, String name, int permits, int maxLocalHandoffs) {
+        if (permits <= 0)
+            throw new IllegalArgumentException("permits must be positive");
+        if (maxLocalHandoffs < 0)
+            throw new IllegalArgumentException("maxLocalHandoffs must not be negative");
+        this.zkConnection = zkConnection;
+        this.semaphorePath = ZooKeeperConnection.buildPath(SEMAPHORES, name);
+        this.permits = permits;
+        this.maxLocalHandoffs = maxLocalHandoffs;
+    }
+
+    public String getSemaphorePath() {
+        return semaphorePath;
+    }
+
+    @Override
+    public int getPermits() {
+        return permits;
+    }
+
+    /**
+     * @return permits held by this process
+     */
+    public synchronized int getHeldPermits() {
+        return held.size();
+    }
+
+    /**
+     * @return acquisitions which created a lease
+     */
+    public long getRemoteAcquisitions() {
+        return remoteAcquisitions.get();
+    }
+
+    /**
+     * @return acquisitions served by a lease handed off within this process
+     */
+    public long getLocalAcquisitions() {
+        return localAcquisitions.get();
+    }
+
+    @Override
+    public void acquire() throws KeeperException, InterruptedException {
+        gate.lockInterruptibly();
+        acquire(-1);
+    }
+
+    @Override
+    public boolean tryAcquire(long timeout, TimeUnit unit) throws KeeperException, InterruptedException {
+        final long DEADLINE = System.nanoTime() + unit.toNanos(timeout);
+        if (!gate.tryLock(timeout, unit)) {
+            releaseIdle();
+            return false;
+        }
+        return acquire(Math.max(0, DEADLINE - System.nanoTime()));
+    }
+
+    @Override
+    public void release() throws KeeperException, InterruptedException {
+        final String LEASE;
+        synchronized (this) {
+            LEASE = held.poll();
+            if (LEASE == null)
+                throw new IllegalStateException("no permit held by this process");
+            if ((handoff != null || gate.hasQueuedThreads()) && localHandoffs < maxLocalHandoffs) {
+                localHandoffs++;
+                idle.push(LEASE);
+                if (handoff != null)
+                    handoff.countDown();
+                return;
+            }
+        }
+        delete(LEASE);
+    }
+
+    /**
+     * Acquires a permit for the thread holding the gate, which is released afterwards.
+     *
+     * @param timeoutNanos max time to wait, 0 to fail when no permit is free and negative to wait forever
+     */
+    private boolean acquire(long timeoutNanos) throws KeeperException, InterruptedException {
+        try {
+            if (takeIdle())
+                return true;
+            return acquireRemote(timeoutNanos);
+        } finally {
+            gate.unlock();
+            releaseIdle();
+        }
+    }
+
+    /**
+     * @return true when a lease handed off was taken
+     */
+    private synchronized boolean takeIdle() {
+        final String LEASE = idle.poll();
+        if (LEASE == null)
+            return false;
+        held.push(LEASE);
+        localAcquisitions.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Releases leases handed off when no local thread is left to take them.
+     */
+    private void releaseIdle() throws KeeperException, InterruptedException {
+        List<String> unwanted = new ArrayList<>();
+        synchronized (this) {
+            if (handoff != null || gate.hasQueuedThreads())
+                return;
+            unwanted.addAll(idle);
+            idle.clear();
+            localHandoffs = 0;
+        }
+        for (String lease : unwanted)
+            delete(lease);
+    }
+
+    private boolean acquireRemote(long timeoutNanos) throws KeeperException, InterruptedException {
+        final long DEADLINE = System.nanoTime() + timeoutNanos;
+        ReentrantDistributedLock.Pipeline pipeline = ReentrantDistributedLock.createAndList(zkConnection,
+                semaphorePath, LEASE_PREFIX);
+        final String LEASE_PATH = pipeline.created;
+        final String LEASE_NAME = ZooKeeperConnection.getName(LEASE_PATH);
+        List<String> leases = pipeline.children;
+        boolean waited = false;
+        boolean acquired = false;
+        try {
+            while (true) {
+                leases = ReentrantDistributedLock.filter(leases, LEASE_PREFIX);
+                final int INDEX = leases.indexOf(LEASE_NAME);
+                if (INDEX < 0)
+                    throw new KeeperException.NoNodeException(LEASE_PATH);
+                if (INDEX < permits) {
+                    // a successor watching this lease moves on to watch the children
+                    if (waited)
+                        zkConnection.setData(LEASE_PATH, ADMITTED, -1);
+                    synchronized (this) {
+                        held.push(LEASE_PATH);
+                        localHandoffs = 0;
+                    }
+                    remoteAcquisitions.incrementAndGet();
+                    acquired = true;
+                    return true;
+                }
+                if (timeoutNanos == 0)
+                    return false;
+                waited = true;
+
+                final CountDownLatch released = new CountDownLatch(1);
+                synchronized (this) {
+                    if (takeIdle())
+                        return true;
+                    handoff = released;
+                }
+                try {
+                    if (!watch(leases, LEASE_NAME, INDEX, released)) {
+                        // leases changed meanwhile, list again
+                    } else if (timeoutNanos < 0) {
+                        released.await();
+                    } else if (!released.await(DEADLINE - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                        LOGGER.debug("{} timed out waiting for a permit", LEASE_PATH);
+                        return takeIdle();
+                    }
+                } finally {
+                    synchronized (this) {
+                        handoff = null;
+                    }
+                }
+                if (takeIdle())
+                    return true;
+                leases = zkConnection.getChildren(semaphorePath, false);
+            }
+        } finally {
+            if (!acquired)
+                deleteQuietly(LEASE_PATH);
+        }
+    }
+
+    /**
+     * Watches the znode whose change can admit the waiting lease at <code>index</code>.
+     *
+     * @return false when leases changed meanwhile and should be listed again
+     */
+    private boolean watch(List<String> leases, String leaseName, int index, CountDownLatch released)
+            throws KeeperException, InterruptedException {
+        final ReentrantDistributedLock.PredecessorWatcher WATCHER = new ReentrantDistributedLock.PredecessorWatcher(
+                released);
+        if (index == permits) {
+            // the first waiter is admitted by any release, listing and watching at once
+            List<String> current = ReentrantDistributedLock.filter(zkConnection.getChildren(semaphorePath, WATCHER),
+                    LEASE_PREFIX);
+            return current.indexOf(leaseName) >= permits;
+        }
+        final String PRIOR_PATH = semaphorePath + "/" + leases.get(index - 1);
+        Stat priorStat = zkConnection.exists(PRIOR_PATH, WATCHER);
+        // a predecessor admitted before the watch was set does not notify again
+        return priorStat != null && priorStat.getVersion() == 0;
+    }
+
+    private void delete(String lease) throws KeeperException, InterruptedException {
+        try {
+            zkConnection.delete(lease, -1);
+        } catch (KeeperException.NoNodeException e) {
+            // lease already gone with session
+            LOGGER.warn("{} was lost before release", lease);
+        }
+    }
+
+    private void deleteQuietly(String path) {
+        try {
+            zkConnection.delete(path, -1);
+        } catch (KeeperException | InterruptedException e) {
+            // an ephemeral znode left behind is removed with session
+            LOGGER.warn("failed to withdraw " + path, e);
+        }
+    }
+}
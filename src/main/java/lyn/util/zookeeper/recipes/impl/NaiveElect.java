@@ -4,7 +4,11 @@ import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import lyn.util.zookeeper.ZooKeeperConnection;
 import lyn.util.zookeeper.recipes.Elect;
@@ -15,6 +19,7 @@ import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.common.PathUtils;
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,19 +33,290 @@ public class NaiveElect implements Elect<Object> {
     /* election member name prefix */
     private final String MEMBER_PREFIX = "naive_";
 
+    /* data written by leader into successor member znode to request a handoff */
+    static final byte[] HANDOFF_MARKER = "\0elect.handoff:".getBytes();
+
+    /* election znode holding member znodes */
+    protected final String election;
+
     protected ElectState stat = null;
 
+    /* data published in member znode, defaults to hash code of this candidate */
+    protected volatile byte[] payload = null;
+
+    /* full path of member znode, null before participating */
+    protected volatile String memberPath = null;
+
+    /* czxid of this candidate's member node, -1 before participating */
+    protected volatile long fencingToken = -1;
+
+    /* leader member path handing off to this candidate, null when no handoff */
+    private volatile String handoffFrom = null;
+    private volatile long handoffAckNanos = 0;
+    private volatile long lastLeaderlessWindowNanos = -1;
+    protected volatile long lastHandoffNanos = -1;
+
+    /* cached identity of the latest leader observed by this candidate */
+    protected volatile String leaderName = null;
+    private final AtomicLong leaderToken = new AtomicLong(-1);
+
+    /* state transitions, time in state and leaderless windows of this candidate */
+    protected final ElectMetrics metrics = new ElectMetrics();
+
+    public NaiveElect() {
+        this(ELECTION);
+    }
+
+    /**
+     * @param election election znode, so that unrelated elections do not share members
+     */
+    public NaiveElect(String election) {
+        PathUtils.validatePath(election);
+        this.election = election;
+    }
+
+    public String getElection() {
+        return election;
+    }
+
     public ElectState getStat() {
         return stat;
     }
 
+    /**
+     * @return metrics of this candidate, see <code>ElectMetrics.register</code> to expose them by JMX
+     */
+    public ElectMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Records a state returned by <code>participate</code>.
+     */
+    ElectState enter(ElectState state) {
+        metrics.transition(state, 0);
+        return state;
+    }
+
+    /**
+     * Records a state caused by a zookeeper event and passes it to <code>update</code>.
+     * 
+     * @param eventNanos <code>System.nanoTime()</code> when the event was received
+     */
+    void transit(Elect<Object> elect, ElectState state, long eventNanos) {
+        metrics.transition(state, eventNanos);
+        elect.update(state);
+    }
+
+    /**
+     * Sets data published in member znode when participating, like an endpoint
+     * for followers to reach the leader. See <code>LeaderLookup</code>.
+     * 
+     * @param payload
+     */
+    public void setPayload(byte[] payload) {
+        this.payload = payload;
+    }
+
+    public byte[] getPayload() {
+        return memberData();
+    }
+
+    /**
+     * Replaces payload of a participating candidate. Observers are notified by
+     * their data watch on the leader znode.
+     * 
+     * @param zkConnection
+     * @param payload
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public void updatePayload(ZooKeeperConnection zkConnection, byte[] payload) throws KeeperException,
+            InterruptedException {
+        this.payload = payload;
+        if (memberPath != null)
+            zkConnection.setData(memberPath, memberData(), -1);
+    }
+
+    public String getMemberPath() {
+        return memberPath;
+    }
+
+    byte[] memberData() {
+        return (payload != null) ? payload : ByteBuffer.allocate(4).putInt(this.hashCode()).array();
+    }
+
+    /**
+     * The fencing token is the czxid of this candidate's member node. Leaders are
+     * elected in creation order, so the token grows monotonically with every new
+     * leader and can be attached to downstream writes while this candidate is
+     * <code>LEADING</code>.
+     * 
+     * @return fencing token of this candidate or -1 when not participating
+     */
+    public long getFencingToken() {
+        return fencingToken;
+    }
+
+    /**
+     * @return fencing token of the latest leader observed or -1 when unknown
+     */
+    public long getLeaderFencingToken() {
+        return leaderToken.get();
+    }
+
+    /**
+     * Validates a fencing token against the cached leader identity without any
+     * zookeeper read, so a storage layer can reject writes of stale leaders.
+     * 
+     * @param token fencing token attached to a write
+     * @return false when the token was issued by a leader older than the latest one observed
+     */
+    public boolean isValidFencingToken(long token) {
+        return token >= 0 && token >= leaderToken.get();
+    }
+
+    /**
+     * Gives up leadership gracefully. The next candidate is asked to warm up by an
+     * <code>update(ElectState.SUCCEEDING)</code> call and leadership is released once
+     * it acknowledged or <code>timeoutMillis</code> elapsed. The warmed successor takes
+     * over on deletion of this member znode without reading zookeeper.
+     * <p>
+     * A candidate not leading simply withdraws from election.
+     * 
+     * @param zkConnection
+     * @param timeoutMillis max time to wait for successor warming up
+     * @return true when successor acknowledged warming up before leadership was released
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public boolean abdicate(ZooKeeperConnection zkConnection, long timeoutMillis) throws KeeperException,
+            InterruptedException {
+        final String MEMBER_PATH = memberPath;
+        if (MEMBER_PATH == null)
+            throw new IllegalStateException("not participating in election");
+        final long START_NANOS = System.nanoTime();
+        boolean warmed = false;
+
+        List<String> candidates = fetchCandidates(zkConnection);
+        if (candidates.size() > 1 && MEMBER_PATH.equals(election + "/" + candidates.get(0))) {
+            final String SUCCESSOR_PATH = election + "/" + candidates.get(1);
+            final CountDownLatch acked = new CountDownLatch(1);
+            try {
+                final int MARKED_VERSION = zkConnection.setData(SUCCESSOR_PATH, handoffMarker(MEMBER_PATH), -1)
+                        .getVersion();
+                // successor acknowledges by restoring its payload
+                Stat successorStat = zkConnection.exists(SUCCESSOR_PATH, new Watcher() {
+                    @Override
+                    public void process(WatchedEvent event) {
+                        acked.countDown();
+                    }
+                });
+                if (successorStat != null && successorStat.getVersion() == MARKED_VERSION)
+                    acked.await(timeoutMillis, TimeUnit.MILLISECONDS);
+                successorStat = zkConnection.exists(SUCCESSOR_PATH, false);
+                warmed = successorStat != null && successorStat.getVersion() > MARKED_VERSION;
+            } catch (KeeperException.NoNodeException e) {
+                LOGGER.info("successor {} left before handoff", SUCCESSOR_PATH);
+            }
+        }
+
+        try {
+            zkConnection.delete(MEMBER_PATH, -1);
+        } catch (KeeperException.NoNodeException e) {
+            // member znode already gone with session
+        }
+        memberPath = null;
+        lastHandoffNanos = System.nanoTime() - START_NANOS;
+        LOGGER.info("{} abdicated in {}ns, successor warmed: {}", MEMBER_PATH, lastHandoffNanos, warmed);
+        return warmed;
+    }
+
+    /**
+     * @return duration of latest <code>abdicate</code> call in nanoseconds or -1 when never abdicated
+     */
+    public long getLastHandoffNanos() {
+        return lastHandoffNanos;
+    }
+
+    /**
+     * The window is measured by the successor from acknowledging a handoff until taking
+     * over, so it is an upper bound of the time the election had no leader.
+     * 
+     * @return latest leaderless window of a handoff to this candidate in nanoseconds or -1
+     */
+    public long getLastLeaderlessWindowNanos() {
+        return lastLeaderlessWindowNanos;
+    }
+
+    static byte[] handoffMarker(String leaderPath) {
+        byte[] path = leaderPath.getBytes();
+        byte[] marker = Arrays.copyOf(HANDOFF_MARKER, HANDOFF_MARKER.length + path.length);
+        System.arraycopy(path, 0, marker, HANDOFF_MARKER.length, path.length);
+        return marker;
+    }
+
+    static String parseHandoffMarker(byte[] data) {
+        if (data == null || data.length < HANDOFF_MARKER.length
+                || !Arrays.equals(HANDOFF_MARKER, Arrays.copyOf(data, HANDOFF_MARKER.length)))
+            return null;
+        return new String(data, HANDOFF_MARKER.length, data.length - HANDOFF_MARKER.length);
+    }
+
+    /**
+     * Takes over leadership without listing candidates when the deleted znode is the
+     * leader which handed off to this candidate. Safe since successor is the second
+     * smallest candidate and no smaller candidate can join later.
+     * 
+     * @return true when leadership was taken over
+     */
+    boolean takeOverHandoff(String deletedPath, Elect<Object> elect, long eventNanos) {
+        final String FROM = handoffFrom;
+        if (FROM == null || !FROM.equals(deletedPath))
+            return false;
+        handoffFrom = null;
+        lastLeaderlessWindowNanos = System.nanoTime() - handoffAckNanos;
+        observeLeader(ZooKeeperConnection.getName(memberPath), fencingToken);
+        LOGGER.info("{} took over from {} in {}ns", memberPath, FROM, lastLeaderlessWindowNanos);
+        transit(elect, ElectState.LEADING, eventNanos);
+        return true;
+    }
+
+    /**
+     * Records the leader observed in a candidate listing. Tokens only move forward
+     * so a delayed watcher cannot roll back the cached leader.
+     */
+    void observeLeader(String leader, long token) {
+        long current = leaderToken.get();
+        while (token > current) {
+            if (leaderToken.compareAndSet(current, token)) {
+                leaderName = leader;
+                return;
+            }
+            current = leaderToken.get();
+        }
+    }
+
+    /**
+     * Refreshes the cached leader token, reading the leader znode only when leader
+     * identity changed since last observation.
+     */
+    void refreshLeader(ZooKeeperConnection zkConnection, String leader) throws KeeperException,
+            InterruptedException {
+        if (leader.equals(leaderName))
+            return;
+        Stat leaderStat = zkConnection.exists(election + "/" + leader, false);
+        if (leaderStat != null)
+            observeLeader(leader, leaderStat.getCzxid());
+    }
+
     public final ElectState fetchElectionState(ZooKeeperConnection zkConnection)
             throws KeeperException, InterruptedException {
         if (zkConnection == null || !zkConnection.isConnected())
             return ElectState.LOSTCONNECTION;
-        if (zkConnection.exists(ELECTION, false) == null)
+        if (zkConnection.exists(election, false) == null)
             return ElectState.NOELECTION;
-        if (zkConnection.getChildren(ELECTION, false).isEmpty())
+        if (zkConnection.getChildren(election, false).isEmpty())
             return ElectState.VOTING;
         return ElectState.VOTED;
     }
@@ -49,9 +325,9 @@ public class NaiveElect implements Elect<Object> {
             throws KeeperException, InterruptedException {
         if (zkConnection == null || !zkConnection.isConnected())
             throw new KeeperException.ConnectionLossException();
-        if (zkConnection.exists(ELECTION, false) == null)
+        if (zkConnection.exists(election, false) == null)
             throw new KeeperException.DataInconsistencyException();
-        List<String> candidates = zkConnection.getChildren(ELECTION, false);
+        List<String> candidates = zkConnection.getChildren(election, false);
         Collections.sort(candidates, new SequentialComparator());
         return candidates;
     }
@@ -59,35 +335,45 @@ public class NaiveElect implements Elect<Object> {
     @Override
     public ElectState participate(ZooKeeperConnection zkConnection, boolean isStartElection)
             throws KeeperException, InterruptedException {
-        final String MEMBER_PATH_PREFIX = ELECTION + "/" + MEMBER_PREFIX;
+        final String MEMBER_PATH_PREFIX = election + "/" + MEMBER_PREFIX;
 
         if (zkConnection == null || !zkConnection.isConnected())
-            return ElectState.LOSTCONNECTION;
+            return enter(ElectState.LOSTCONNECTION);
 
-        if (zkConnection.exists(ELECTION, false) == null) {
+        if (zkConnection.exists(election, false) == null) {
             if (!isStartElection)
-                return ElectState.NOELECTION;
+                return enter(ElectState.NOELECTION);
             // initialize election when `isStartElection = true`
-            zkConnection.create(ELECTION, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            ZooKeeperConnection.createFullPath(zkConnection, election, new byte[0], CreateMode.PERSISTENT);
         }
 
-        final String ACTUAL_MEMBER_PATH = zkConnection.create(MEMBER_PATH_PREFIX,
-                ByteBuffer.allocate(4).putInt(this.hashCode()).array(),
+        final String ACTUAL_MEMBER_PATH = zkConnection.create(MEMBER_PATH_PREFIX, memberData(),
                 ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+        Stat memberStat = zkConnection.exists(ACTUAL_MEMBER_PATH, new HandoffWatcher(zkConnection,
+                ACTUAL_MEMBER_PATH, this));
+        if (memberStat == null)
+            return enter(ElectState.LOSTELECTION);
+        memberPath = ACTUAL_MEMBER_PATH;
+        fencingToken = memberStat.getCzxid();
 
         List<String> candidates = fetchCandidates(zkConnection);
         if (isEmpty(candidates))
-            return ElectState.LOSTELECTION;
+            return enter(ElectState.LOSTELECTION);
 
         // leader should exist with smallest sequential id
         final String LEADER_PATH = candidates.get(0);
-        if (LEADER_PATH.equalsIgnoreCase(ACTUAL_MEMBER_PATH))
-            return ElectState.LEADING;
+        if ((election + "/" + LEADER_PATH).equals(ACTUAL_MEMBER_PATH)) {
+            observeLeader(LEADER_PATH, fencingToken);
+            return enter(ElectState.LEADING);
+        }
 
-        Stat watchStat = zkConnection.exists(ELECTION + "/" + LEADER_PATH, new NaiveWatcher(zkConnection,
+        Stat watchStat = zkConnection.exists(election + "/" + LEADER_PATH, new NaiveWatcher(zkConnection,
                 ACTUAL_MEMBER_PATH, this));
-        LOGGER.debug(ELECTION + "/" + LEADER_PATH + "-->" + watchStat);
-        return (watchStat != null) ? ElectState.LEADED : ElectState.LOSTELECTION;
+        LOGGER.debug(election + "/" + LEADER_PATH + "-->" + watchStat);
+        if (watchStat == null)
+            return enter(ElectState.LOSTELECTION);
+        observeLeader(LEADER_PATH, watchStat.getCzxid());
+        return enter(ElectState.LEADED);
     }
 
     @Override
@@ -96,9 +382,9 @@ public class NaiveElect implements Elect<Object> {
         return stat;
     }
 
-    int parseId(String candidateName) {
-        // candidate := /elect/naive_#
-        int underBarIndex = candidateName.indexOf('_');
+    static int parseId(String candidateName) {
+        // candidate := /elect/naive_#, lock members carry an attempt id before the last '_'
+        int underBarIndex = candidateName.lastIndexOf('_');
         return Integer.parseInt(candidateName.substring(underBarIndex + 1));
     }
 
@@ -106,7 +392,7 @@ public class NaiveElect implements Elect<Object> {
         return list == null || list.isEmpty();
     }
 
-    class SequentialComparator implements Comparator<String> {
+    static class SequentialComparator implements Comparator<String> {
         @Override
         public int compare(String candidate1, String candidate2) {
             int candidateId1 = parseId(candidate1);
@@ -132,13 +418,20 @@ public class NaiveElect implements Elect<Object> {
 
         @Override
         public void process(WatchedEvent event) {
+            final long EVENT_NANOS = System.nanoTime();
             ElectState state;
             List<String> candidates = null;
             ZooKeeperConnection zkConnection = zkConnectionRef.get();
+            if (event.getType() == Event.EventType.NodeDeleted) {
+                if (takeOverHandoff(event.getPath(), elect, EVENT_NANOS))
+                    return;
+                // watched znode is always the leader
+                metrics.leaderLost(EVENT_NANOS);
+            }
             try {
                 candidates = fetchCandidates(zkConnection);
             } catch (KeeperException | InterruptedException e) {
-                elect.update(ElectState.LOSTCONNECTION);
+                transit(elect, ElectState.LOSTCONNECTION, EVENT_NANOS);
                 LOGGER.warn("LOSTCONNECTION when fetching candidates", e);
                 return;
             }
@@ -146,7 +439,7 @@ public class NaiveElect implements Elect<Object> {
             // which means a re-participating
             LOGGER.debug("candidates: " + candidates);
             if (isEmpty(candidates)) {
-                elect.update(ElectState.LOSTELECTION);
+                transit(elect, ElectState.LOSTELECTION, EVENT_NANOS);
                 return;
             }
 
@@ -154,26 +447,29 @@ public class NaiveElect implements Elect<Object> {
                 final String LEADER_PATH = candidates.get(0);
                 LOGGER.debug("candidates: {}", candidates);
 
-                // if ((ELECTION + "/" + LEADER_PATH).equalsIgnoreCase(this.memberPath)) {
+                // if ((election + "/" + LEADER_PATH).equalsIgnoreCase(this.memberPath)) {
                 if (this.memberPath.contains(LEADER_PATH)) {
                     LOGGER.info(Thread.currentThread().getName() + " ## " + event.getType() + " -> " +
                             LEADER_PATH + "--> " + this.memberPath + " ### " + ElectState.LEADING);
-                    elect.update(ElectState.LEADING);
+                    observeLeader(LEADER_PATH, fencingToken);
+                    transit(elect, ElectState.LEADING, EVENT_NANOS);
                     return;
                 } else {
                     // setting watcher on new leader
                     try {
-                        Stat watchStat = zkConnection.exists(ELECTION + "/" + LEADER_PATH, new NaiveWatcher(
+                        Stat watchStat = zkConnection.exists(election + "/" + LEADER_PATH, new NaiveWatcher(
                                 zkConnection, this.memberPath, this.elect));
                         state = (watchStat != null) ? ElectState.LEADED : ElectState.LOSTCONNECTION;
+                        if (watchStat != null)
+                            observeLeader(LEADER_PATH, watchStat.getCzxid());
 
                         LOGGER.info(Thread.currentThread().getName() + " ## " + event.getType() + " -> " +
                                 LEADER_PATH + "--> " + this.memberPath + " ### " + state);
-                        elect.update(state);
+                        transit(elect, state, EVENT_NANOS);
                         return;
                     } catch (KeeperException | InterruptedException e) {
                         LOGGER.warn("LOSTCONNECTION when setting watcher on new leader", e);
-                        elect.update(ElectState.LOSTCONNECTION);
+                        transit(elect, ElectState.LOSTCONNECTION, EVENT_NANOS);
                         return;
                     }
                 }
@@ -181,7 +477,47 @@ public class NaiveElect implements Elect<Object> {
 
             // except lost zk connection and leader node missing
             // pass a lost election state to have a re-participating action
-            elect.update(ElectState.LOSTELECTION);
+            transit(elect, ElectState.LOSTELECTION, EVENT_NANOS);
+        }
+    }
+
+    /**
+     * Watches own member znode for a handoff requested by leader.
+     */
+    class HandoffWatcher implements Watcher {
+        private WeakReference<ZooKeeperConnection> zkConnectionRef;
+        private String memberPath;
+        private Elect<Object> elect = null;
+
+        public HandoffWatcher(ZooKeeperConnection zkConnection, final String THIS_MEMBER_PATH,
+                final Elect<Object> elect) {
+            this.zkConnectionRef = new WeakReference<ZooKeeperConnection>(zkConnection);
+            this.memberPath = THIS_MEMBER_PATH;
+            this.elect = elect;
+        }
+
+        @Override
+        public void process(WatchedEvent event) {
+            if (event.getType() != Event.EventType.NodeDataChanged)
+                return;
+            final long EVENT_NANOS = System.nanoTime();
+            ZooKeeperConnection zkConnection = zkConnectionRef.get();
+            try {
+                byte[] data = zkConnection.getData(this.memberPath, new HandoffWatcher(zkConnection,
+                        this.memberPath, this.elect), null);
+                final String FROM = parseHandoffMarker(data);
+                if (FROM == null)
+                    return;
+                LOGGER.info("{} warming up for handoff from {}", this.memberPath, FROM);
+                transit(elect, ElectState.SUCCEEDING, EVENT_NANOS);
+                handoffFrom = FROM;
+                // acknowledge by restoring payload
+                zkConnection.setData(this.memberPath, memberData(), -1);
+                handoffAckNanos = System.nanoTime();
+            } catch (KeeperException | InterruptedException e) {
+                handoffFrom = null;
+                LOGGER.warn("failed to accept handoff", e);
+            }
         }
     }
 }
@@ -0,0 +1,123 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import lyn.util.zookeeper.ZooKeeperConnection;
+import lyn.util.zookeeper.recipes.Barrier;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A barrier released by a single ready znode. Every party watches the ready znode
+ * before joining, and the party finding all parties joined creates it, so each party
+ * is notified once no matter how many parties join.
+ * <p>
+ * The ready znode stays after release, so a barrier path serves one round.
+ * 
+ * @author Yanpeng Lin
+ */
+public class ReadyNodeBarrier implements Barrier {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReadyNodeBarrier.class);
+
+    /* party name prefix */
+    static final String MEMBER_PREFIX = "party_";
+
+    static final String READY = "ready";
+
+    protected final ZooKeeperConnection zkConnection;
+
+    protected final String barrierPath;
+
+    protected final int parties;
+
+    /* member znode of this party, null when not joined */
+    protected volatile String memberPath = null;
+
+    public ReadyNodeBarrier(ZooKeeperConnection zkConnection, String name, int parties) {
+        if (parties <= 0)
+            throw new IllegalArgumentException("parties must be positive");
+        this.zkConnection = zkConnection;
+        this.barrierPath = ZooKeeperConnection.buildPath(BARRIERS, name);
+        this.parties = parties;
+    }
+
+    public String getBarrierPath() {
+        return barrierPath;
+    }
+
+    @Override
+    public boolean enter(long timeout, TimeUnit unit) throws KeeperException, InterruptedException {
+        if (memberPath != null)
+            throw new IllegalStateException("already joined " + barrierPath);
+        final String READY_PATH = barrierPath + "/" + READY;
+        final CountDownLatch ready = new CountDownLatch(1);
+        // watch before joining, so the release cannot be missed
+        if (zkConnection.exists(READY_PATH, new ReadyWatcher(ready)) != null)
+            ready.countDown();
+
+        while (memberPath == null) {
+            try {
+                memberPath = zkConnection.create(barrierPath + "/" + MEMBER_PREFIX, new byte[0],
+                        ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+            } catch (KeeperException.NoNodeException e) {
+                ZooKeeperConnection.createFullPath(zkConnection, barrierPath, new byte[0], CreateMode.PERSISTENT,
+                        true);
+            }
+        }
+        if (ready.getCount() > 0 && fetchMembers().size() >= parties) {
+            try {
+                zkConnection.create(READY_PATH, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+                LOGGER.debug("{} released by {}", barrierPath, memberPath);
+            } catch (KeeperException.NodeExistsException e) {
+                // released by another party
+            }
+        }
+        return ready.await(timeout, unit);
+    }
+
+    /**
+     * Withdraws this party without waiting for others.
+     */
+    @Override
+    public boolean leave(long timeout, TimeUnit unit) throws KeeperException, InterruptedException {
+        final String MEMBER_PATH = memberPath;
+        if (MEMBER_PATH == null)
+            return true;
+        try {
+            zkConnection.delete(MEMBER_PATH, -1);
+        } catch (KeeperException.NoNodeException e) {
+            // member znode already gone with session
+        }
+        memberPath = null;
+        return true;
+    }
+
+    /**
+     * @return parties joined, sorted by sequential id
+     */
+    List<String> fetchMembers() throws KeeperException, InterruptedException {
+        return ReentrantDistributedLock.filter(zkConnection.getChildren(barrierPath, false), MEMBER_PREFIX);
+    }
+
+    static class ReadyWatcher implements Watcher {
+        private final CountDownLatch ready;
+
+        ReadyWatcher(CountDownLatch ready) {
+            this.ready = ready;
+        }
+
+        @Override
+        public void process(WatchedEvent event) {
+            if (event.getType() != Event.EventType.None)
+                ready.countDown();
+        }
+    }
+}
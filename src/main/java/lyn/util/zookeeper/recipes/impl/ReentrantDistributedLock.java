@@ -0,0 +1,394 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import lyn.util.zookeeper.ZooKeeperConnection;
+import lyn.util.zookeeper.recipes.DistributedLock;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A reentrant distributed lock. Each process contends with one sequential ephemeral
+ * znode under lock path and watches its predecessor only, like
+ * <code>ContentionFreeElect</code>, so a release wakes up a single waiter.
+ * <p>
+ * Threads of the same process queue on a local fair lock first. The znode is kept
+ * while local threads are waiting, so the lock is handed off between them without
+ * any zookeeper request. At most <code>maxLocalHandoffs</code> local handoffs happen
+ * in a row before the znode is released to let other processes in. When the waiters
+ * give up instead, the last of them or the thread handing off releases it.
+ * <p>
+ * Creating the znode and listing its siblings are pipelined on the same session, so
+ * an uncontended acquisition takes one round trip. The znode name carries an id of
+ * the attempt, <code>lock_&lt;id&gt;_&lt;sequence&gt;</code>, so that a znode whose
+ * create was lost with the connection is found again instead of being left behind.
+ * 
+ * @author Yanpeng Lin
+ */
+public class ReentrantDistributedLock implements DistributedLock {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReentrantDistributedLock.class);
+
+    /* lock member name prefix */
+    private final String MEMBER_PREFIX = "lock_";
+
+    /* delay of the first lookup of a create lost with the connection, doubled up to the maximum */
+    private static final long RETRY_MILLIS = 100;
+    private static final long MAX_RETRY_MILLIS = 1000;
+
+    /* attempts to create a member znode in this process, told apart within a session */
+    private static final AtomicLong ATTEMPTS = new AtomicLong();
+
+    private final ZooKeeperConnection zkConnection;
+
+    private final String lockPath;
+
+    private final int maxLocalHandoffs;
+
+    /* serializes threads of this process, fair so that a waiting thread gets handed off */
+    private final ReentrantLock localLock = new ReentrantLock(true);
+
+    /* guarded by localLock: member znode holding the distributed lock, null when not held */
+    private String memberPath = null;
+    private int localHandoffs = 0;
+
+    /* run by unlock once a handoff is decided, before the local lock is released */
+    volatile Runnable handoffHook = null;
+
+    private final AtomicLong remoteAcquisitions = new AtomicLong();
+    private final AtomicLong localAcquisitions = new AtomicLong();
+
+    public ReentrantDistributedLock(ZooKeeperConnection zkConnection, String name) {
+        this(zkConnection, name, 16);
+    }
+
+    /**
+     * @param zkConnection
+     * @param name lock name, the lock path is <code>/locks/&lt;name&gt;</code>
+     * @param maxLocalHandoffs max local handoffs in a row before releasing the znode
+     */
+    public ReentrantDistributedLock(ZooKeeperConnection zkConnection, String name, int maxLocalHandoffs) {
+        if (maxLocalHandoffs < 0)
+            throw new IllegalArgumentException("maxLocalHandoffs must not be negative");
+        this.zkConnection = zkConnection;
+        this.lockPath = ZooKeeperConnection.buildPath(LOCKS, name);
+        this.maxLocalHandoffs = maxLocalHandoffs;
+    }
+
+    public String getLockPath() {
+        return lockPath;
+    }
+
+    /**
+     * @return acquisitions which created a member znode
+     */
+    public long getRemoteAcquisitions() {
+        return remoteAcquisitions.get();
+    }
+
+    /**
+     * @return acquisitions served by a znode held for this process, reentrant ones excluded
+     */
+    public long getLocalAcquisitions() {
+        return localAcquisitions.get();
+    }
+
+    @Override
+    public void lock() throws KeeperException, InterruptedException {
+        try {
+            localLock.lockInterruptibly();
+        } catch (InterruptedException e) {
+            abandoned();
+            throw e;
+        }
+        acquire(-1);
+    }
+
+    @Override
+    public boolean tryLock() throws KeeperException, InterruptedException {
+        if (!localLock.tryLock())
+            return false;
+        return acquire(0);
+    }
+
+    @Override
+    public boolean tryLock(long timeout, TimeUnit unit) throws KeeperException, InterruptedException {
+        final long DEADLINE = System.nanoTime() + unit.toNanos(timeout);
+        try {
+            if (!localLock.tryLock(timeout, unit)) {
+                abandoned();
+                return false;
+            }
+        } catch (InterruptedException e) {
+            abandoned();
+            throw e;
+        }
+        return acquire(Math.max(0, DEADLINE - System.nanoTime()));
+    }
+
+    @Override
+    public void unlock() throws KeeperException, InterruptedException {
+        if (!localLock.isHeldByCurrentThread())
+            throw new IllegalMonitorStateException("lock is not held by current thread");
+        boolean handedOff = false;
+        try {
+            if (localLock.getHoldCount() > 1)
+                return;
+            if (localLock.hasQueuedThreads() && localHandoffs < maxLocalHandoffs) {
+                localHandoffs++;
+                handedOff = true;
+                final Runnable HOOK = handoffHook;
+                if (HOOK != null)
+                    HOOK.run();
+                return;
+            }
+            release();
+        } finally {
+            localLock.unlock();
+            // the waiters may have given up since they were seen
+            if (handedOff)
+                abandoned();
+        }
+    }
+
+    @Override
+    public boolean isHeldByCurrentThread() {
+        return localLock.isHeldByCurrentThread();
+    }
+
+    /**
+     * Acquires the distributed lock for the thread holding local lock, which is
+     * released when the distributed lock is not acquired.
+     * 
+     * @param timeoutNanos max time to wait, 0 to fail when contended and negative to wait forever
+     */
+    private boolean acquire(long timeoutNanos) throws KeeperException, InterruptedException {
+        boolean acquired = false;
+        try {
+            if (localLock.getHoldCount() > 1) {
+                acquired = true;
+            } else if (memberPath != null) {
+                localAcquisitions.incrementAndGet();
+                acquired = true;
+            } else {
+                localHandoffs = 0;
+                acquired = acquireRemote(timeoutNanos);
+            }
+            return acquired;
+        } finally {
+            if (!acquired)
+                localLock.unlock();
+        }
+    }
+
+    private boolean acquireRemote(long timeoutNanos) throws KeeperException, InterruptedException {
+        final long DEADLINE = System.nanoTime() + timeoutNanos;
+        Pipeline pipeline = createAndList(zkConnection, lockPath, MEMBER_PREFIX);
+        final String MEMBER_PATH = pipeline.created;
+        final String MEMBER_NAME = ZooKeeperConnection.getName(MEMBER_PATH);
+        List<String> members = pipeline.children;
+        boolean acquired = false;
+        try {
+            while (true) {
+                members = filter(members, MEMBER_PREFIX);
+                final int INDEX = members.indexOf(MEMBER_NAME);
+                if (INDEX < 0)
+                    throw new KeeperException.NoNodeException(MEMBER_PATH);
+                if (INDEX == 0) {
+                    memberPath = MEMBER_PATH;
+                    remoteAcquisitions.incrementAndGet();
+                    acquired = true;
+                    return true;
+                }
+                if (timeoutNanos == 0)
+                    return false;
+
+                // only the predecessor is watched, so a release wakes up a single waiter
+                final String PRIOR_PATH = lockPath + "/" + members.get(INDEX - 1);
+                final CountDownLatch released = new CountDownLatch(1);
+                if (zkConnection.exists(PRIOR_PATH, new PredecessorWatcher(released)) != null) {
+                    if (timeoutNanos < 0) {
+                        released.await();
+                    } else if (!released.await(DEADLINE - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                        LOGGER.debug("{} timed out waiting for {}", MEMBER_PATH, PRIOR_PATH);
+                        return false;
+                    }
+                }
+                members = zkConnection.getChildren(lockPath, false);
+            }
+        } finally {
+            if (!acquired)
+                deleteQuietly(MEMBER_PATH);
+        }
+    }
+
+    /**
+     * Releases the znode kept for a local handoff once nobody holds or waits for the
+     * local lock, after a waiter gave up. Either the waiter or the thread handing off
+     * sees the local lock free last, so the znode is not left behind.
+     */
+    private void abandoned() {
+        if (!localLock.tryLock())
+            return;
+        try {
+            if (memberPath != null && !localLock.hasQueuedThreads())
+                release();
+        } catch (KeeperException | InterruptedException e) {
+            LOGGER.warn("failed to release " + lockPath + " after a handoff was abandoned", e);
+        } finally {
+            localLock.unlock();
+        }
+    }
+
+    private void release() throws KeeperException, InterruptedException {
+        final String MEMBER_PATH = memberPath;
+        memberPath = null;
+        localHandoffs = 0;
+        if (MEMBER_PATH == null)
+            return;
+        try {
+            zkConnection.delete(MEMBER_PATH, -1);
+        } catch (KeeperException.NoNodeException e) {
+            // member znode already gone with session
+            LOGGER.warn("{} was lost before unlock", MEMBER_PATH);
+        }
+    }
+
+    private void deleteQuietly(String path) {
+        try {
+            zkConnection.delete(path, -1);
+        } catch (KeeperException | InterruptedException e) {
+            // an ephemeral znode left behind is removed with session
+            LOGGER.warn("failed to withdraw " + path, e);
+        }
+    }
+
+    /**
+     * Sends create and list requests without waiting in between. Zookeeper handles
+     * requests of a session in order, so the listing contains the created znode. A
+     * create lost with the connection is looked up by the id of the attempt in its
+     * name, and sent again when it was not applied.
+     */
+    static Pipeline createAndList(ZooKeeperConnection zkConnection, String lockPath, String prefix)
+            throws KeeperException, InterruptedException {
+        final String NAME_PREFIX = prefix + Long.toHexString(zkConnection.getSessionId()) + "-"
+                + ATTEMPTS.incrementAndGet() + "_";
+        while (true) {
+            Pipeline pipeline = new Pipeline();
+            zkConnection.create(lockPath + "/" + NAME_PREFIX, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.EPHEMERAL_SEQUENTIAL, pipeline, null);
+            zkConnection.getChildren(lockPath, false, pipeline, null);
+            pipeline.done.await();
+
+            if (pipeline.createCode == KeeperException.Code.NONODE) {
+                ZooKeeperConnection.createFullPath(zkConnection, lockPath, new byte[0], CreateMode.PERSISTENT, true);
+                continue;
+            }
+            if (pipeline.createCode == KeeperException.Code.CONNECTIONLOSS) {
+                lookup(zkConnection, lockPath, NAME_PREFIX, pipeline);
+                if (pipeline.created == null)
+                    continue;
+                return pipeline;
+            }
+            if (pipeline.createCode != KeeperException.Code.OK)
+                throw KeeperException.create(pipeline.createCode, lockPath);
+            if (pipeline.listCode != KeeperException.Code.OK)
+                pipeline.children = zkConnection.getChildren(lockPath, false);
+            return pipeline;
+        }
+    }
+
+    /**
+     * Lists the lock once connected again, into the pipeline of a create lost with the
+     * connection, with the znode created when it was applied. Gives up after a session
+     * timeout, by then the session and its znode are gone.
+     */
+    private static void lookup(ZooKeeperConnection zkConnection, String lockPath, String namePrefix,
+            Pipeline pipeline) throws KeeperException, InterruptedException {
+        final long DEADLINE = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(zkConnection.getSessionTimeout());
+        for (int attempt = 0;; attempt++) {
+            try {
+                pipeline.children = zkConnection.getChildren(lockPath, false);
+                pipeline.created = null;
+                for (String child : pipeline.children) {
+                    if (child.startsWith(namePrefix))
+                        pipeline.created = lockPath + "/" + child;
+                }
+                return;
+            } catch (KeeperException.NoNodeException e) {
+                // nothing created, the lock path is created by the next attempt
+                pipeline.created = null;
+                return;
+            } catch (KeeperException.ConnectionLossException e) {
+                if (System.nanoTime() - DEADLINE > 0)
+                    throw e;
+                Thread.sleep(Math.min(MAX_RETRY_MILLIS, RETRY_MILLIS << Math.min(attempt, 16)));
+            }
+        }
+    }
+
+    /**
+     * @return lock members sorted by sequential id
+     */
+    static List<String> filter(List<String> children, String... prefixes) {
+        List<String> members = new ArrayList<>(children.size());
+        for (String child : children) {
+            for (String prefix : prefixes) {
+                if (child.startsWith(prefix)) {
+                    members.add(child);
+                    break;
+                }
+            }
+        }
+        Collections.sort(members, new NaiveElect.SequentialComparator());
+        return members;
+    }
+
+    static class Pipeline implements AsyncCallback.StringCallback, AsyncCallback.ChildrenCallback {
+        final CountDownLatch done = new CountDownLatch(2);
+        KeeperException.Code createCode;
+        KeeperException.Code listCode;
+        String created;
+        List<String> children;
+
+        @Override
+        public void processResult(int rc, String path, Object ctx, String name) {
+            createCode = KeeperException.Code.get(rc);
+            created = name;
+            done.countDown();
+        }
+
+        @Override
+        public void processResult(int rc, String path, Object ctx, List<String> children) {
+            listCode = KeeperException.Code.get(rc);
+            this.children = children;
+            done.countDown();
+        }
+    }
+
+    static class PredecessorWatcher implements Watcher {
+        private final CountDownLatch released;
+
+        PredecessorWatcher(CountDownLatch released) {
+            this.released = released;
+        }
+
+        @Override
+        public void process(WatchedEvent event) {
+            // connection events also wake up the waiter to check its member znode
+            released.countDown();
+        }
+    }
+}
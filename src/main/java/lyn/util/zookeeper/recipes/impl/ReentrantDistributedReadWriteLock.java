@@ -0,0 +1,414 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import lyn.util.zookeeper.ZooKeeperConnection;
+import lyn.util.zookeeper.recipes.DistributedLock;
+import lyn.util.zookeeper.recipes.DistributedReadWriteLock;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A reentrant distributed read-write lock on sequential ephemeral znodes. A reader
+ * waits only for the nearest preceding writer and a writer waits for its immediate
+ * predecessor, so a release wakes up the waiters it actually blocks and no herd.
+ * <p>
+ * Readers of the same process share a single read znode: the first reader creates it,
+ * later readers join by a local counter and the last one deletes it. Threads of the
+ * same process are ordered by a local fair read-write lock first, so a local writer
+ * waits for the shared read znode to be released. Once a remote writer queues behind
+ * the shared read znode, local readers stop joining it and queue behind the writer.
+ * 
+ * @author Yanpeng Lin
+ */
+public class ReentrantDistributedReadWriteLock implements DistributedReadWriteLock {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReentrantDistributedReadWriteLock.class);
+
+    /* lock member name prefixes */
+    static final String READ_PREFIX = "read_";
+    static final String WRITE_PREFIX = "write_";
+
+    private final ZooKeeperConnection zkConnection;
+
+    private final String lockPath;
+
+    private final ReentrantReadWriteLock localLock = new ReentrantReadWriteLock(true);
+
+    private final ReadLock readLock = new ReadLock();
+
+    private final WriteLock writeLock = new WriteLock();
+
+    public ReentrantDistributedReadWriteLock(ZooKeeperConnection zkConnection, String name) {
+        this.zkConnection = zkConnection;
+        this.lockPath = ZooKeeperConnection.buildPath(DistributedLock.LOCKS, name);
+    }
+
+    public String getLockPath() {
+        return lockPath;
+    }
+
+    @Override
+    public ReadLock readLock() {
+        return readLock;
+    }
+
+    @Override
+    public WriteLock writeLock() {
+        return writeLock;
+    }
+
+    /**
+     * Creates a member znode and waits until it is not blocked.
+     * 
+     * @param timeoutNanos max time to wait, 0 to fail when blocked and negative to wait forever
+     * @return path of member znode or null when waiting time elapsed
+     */
+    String acquireRemote(String prefix, long timeoutNanos) throws KeeperException, InterruptedException {
+        final long DEADLINE = System.nanoTime() + timeoutNanos;
+        ReentrantDistributedLock.Pipeline pipeline = ReentrantDistributedLock.createAndList(zkConnection, lockPath,
+                prefix);
+        final String MEMBER_PATH = pipeline.created;
+        final String MEMBER_NAME = ZooKeeperConnection.getName(MEMBER_PATH);
+        List<String> members = pipeline.children;
+        boolean acquired = false;
+        try {
+            while (true) {
+                members = ReentrantDistributedLock.filter(members, READ_PREFIX, WRITE_PREFIX);
+                final String BLOCKER = fetchBlocker(members, MEMBER_NAME);
+                if (BLOCKER == null) {
+                    acquired = true;
+                    return MEMBER_PATH;
+                }
+                if (timeoutNanos == 0)
+                    return null;
+
+                final String BLOCKER_PATH = lockPath + "/" + BLOCKER;
+                final CountDownLatch released = new CountDownLatch(1);
+                Watcher watcher = new ReentrantDistributedLock.PredecessorWatcher(released);
+                if (zkConnection.exists(BLOCKER_PATH, watcher) != null) {
+                    if (timeoutNanos < 0) {
+                        released.await();
+                    } else if (!released.await(DEADLINE - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                        LOGGER.debug("{} timed out waiting for {}", MEMBER_PATH, BLOCKER_PATH);
+                        return null;
+                    }
+                }
+                members = zkConnection.getChildren(lockPath, false);
+            }
+        } finally {
+            if (!acquired)
+                delete(MEMBER_PATH);
+        }
+    }
+
+    /**
+     * @param members sorted by sequential id
+     * @return the member blocking <code>member</code> or null when it holds the lock:
+     *         nearest preceding writer of a reader or immediate predecessor of a writer
+     */
+    static String fetchBlocker(List<String> members, String member) {
+        final int INDEX = members.indexOf(member);
+        if (INDEX < 0)
+            throw new IllegalStateException(member + " is lost");
+        if (member.startsWith(WRITE_PREFIX))
+            return (INDEX == 0) ? null : members.get(INDEX - 1);
+        for (int idx = INDEX - 1; idx >= 0; idx--) {
+            if (members.get(idx).startsWith(WRITE_PREFIX))
+                return members.get(idx);
+        }
+        return null;
+    }
+
+    void delete(String memberPath) {
+        try {
+            zkConnection.delete(memberPath, -1);
+        } catch (KeeperException.NoNodeException e) {
+            LOGGER.warn("{} was lost before unlock", memberPath);
+        } catch (KeeperException | InterruptedException e) {
+            // an ephemeral znode left behind is removed with session
+            LOGGER.warn("failed to delete " + memberPath, e);
+        }
+    }
+
+    /**
+     * Readers of this process share one read znode. A reader joins it without a round
+     * trip only while no remote writer has queued behind it, so that a steady stream of
+     * local readers cannot starve that writer: later readers wait for the znode to be
+     * deleted and queue a new one behind the writer.
+     */
+    public class ReadLock implements DistributedLock {
+        /* serializes creation and deletion of the shared read znode */
+        private final ReentrantLock gate = new ReentrantLock();
+
+        /* signalled when the shared read znode is deleted */
+        private final Condition deleted = gate.newCondition();
+
+        /* local readers sharing the znode, 0 when not held */
+        private final AtomicInteger holders = new AtomicInteger();
+
+        /* written under gate */
+        private volatile String memberPath = null;
+
+        /* whether a writer queued behind the shared read znode, reset with a new one */
+        private volatile boolean writerQueued = false;
+
+        private final AtomicLong remoteAcquisitions = new AtomicLong();
+
+        /**
+         * @return acquisitions which created a read znode
+         */
+        public long getRemoteAcquisitions() {
+            return remoteAcquisitions.get();
+        }
+
+        @Override
+        public void lock() throws KeeperException, InterruptedException {
+            checkNotWriting();
+            localLock.readLock().lockInterruptibly();
+            acquire(-1);
+        }
+
+        @Override
+        public boolean tryLock() throws KeeperException, InterruptedException {
+            checkNotWriting();
+            if (!localLock.readLock().tryLock())
+                return false;
+            return acquire(0);
+        }
+
+        @Override
+        public boolean tryLock(long timeout, TimeUnit unit) throws KeeperException, InterruptedException {
+            checkNotWriting();
+            final long DEADLINE = System.nanoTime() + unit.toNanos(timeout);
+            if (!localLock.readLock().tryLock(timeout, unit))
+                return false;
+            return acquire(Math.max(0, DEADLINE - System.nanoTime()));
+        }
+
+        @Override
+        public void unlock() throws KeeperException, InterruptedException {
+            if (localLock.getReadHoldCount() == 0)
+                throw new IllegalMonitorStateException("read lock is not held by current thread");
+            try {
+                if (localLock.getReadHoldCount() == 1)
+                    leave();
+            } finally {
+                localLock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public boolean isHeldByCurrentThread() {
+            return localLock.getReadHoldCount() > 0;
+        }
+
+        /**
+         * A read znode queued behind the write znode of the same thread would never be
+         * acquired, so downgrading is not supported.
+         */
+        private void checkNotWriting() {
+            if (localLock.isWriteLockedByCurrentThread())
+                throw new IllegalStateException("read lock cannot be acquired while holding write lock");
+        }
+
+        private boolean acquire(long timeoutNanos) throws KeeperException, InterruptedException {
+            boolean acquired = false;
+            try {
+                acquired = localLock.getReadHoldCount() > 1 || join(timeoutNanos);
+                return acquired;
+            } finally {
+                if (!acquired)
+                    localLock.readLock().unlock();
+            }
+        }
+
+        /**
+         * @param timeoutNanos max time to wait in total, 0 to fail when blocked and
+         *            negative to wait forever
+         */
+        private boolean join(long timeoutNanos) throws KeeperException, InterruptedException {
+            // joins the shared read znode without blocking while it is held and no writer waits
+            int current;
+            while (!writerQueued && (current = holders.get()) > 0) {
+                if (holders.compareAndSet(current, current + 1))
+                    return true;
+            }
+            final long DEADLINE = System.nanoTime() + timeoutNanos;
+            if (timeoutNanos < 0)
+                gate.lockInterruptibly();
+            else if (!gate.tryLock(timeoutNanos, TimeUnit.NANOSECONDS))
+                return false;
+            try {
+                // a writer queued behind the shared znode goes first
+                while (memberPath != null && writerQueued) {
+                    if (timeoutNanos < 0)
+                        deleted.await();
+                    else if (!deleted.await(remaining(DEADLINE), TimeUnit.NANOSECONDS))
+                        return false;
+                }
+                if (memberPath == null) {
+                    final String MEMBER_PATH = acquireRemote(READ_PREFIX,
+                            (timeoutNanos < 0) ? -1 : remaining(DEADLINE));
+                    if (MEMBER_PATH == null)
+                        return false;
+                    writerQueued = false;
+                    memberPath = MEMBER_PATH;
+                    new QueuedWriterWatcher(MEMBER_PATH).watch();
+                    remoteAcquisitions.incrementAndGet();
+                }
+                holders.incrementAndGet();
+                return true;
+            } finally {
+                gate.unlock();
+            }
+        }
+
+        private long remaining(long deadline) {
+            return Math.max(0, deadline - System.nanoTime());
+        }
+
+        private void leave() {
+            gate.lock();
+            try {
+                if (holders.decrementAndGet() == 0 && memberPath != null) {
+                    delete(memberPath);
+                    memberPath = null;
+                    deleted.signalAll();
+                }
+            } finally {
+                gate.unlock();
+            }
+        }
+
+        /**
+         * Watches the members behind the shared read znode until a writer queues there.
+         * It stops once the znode is replaced, and on any failure it assumes a writer
+         * waits, which only sends readers the slow way.
+         */
+        private class QueuedWriterWatcher implements Watcher, AsyncCallback.ChildrenCallback {
+            private final String memberPath;
+
+            QueuedWriterWatcher(String memberPath) {
+                this.memberPath = memberPath;
+            }
+
+            void watch() {
+                zkConnection.getChildren(lockPath, this, this, null);
+            }
+
+            private boolean isCurrent() {
+                return memberPath.equals(ReadLock.this.memberPath);
+            }
+
+            @Override
+            public void process(WatchedEvent event) {
+                if (!isCurrent())
+                    return;
+                if (event.getType() == Event.EventType.NodeChildrenChanged)
+                    watch();
+                else if (event.getState() == Event.KeeperState.Expired)
+                    writerQueued = true;
+            }
+
+            @Override
+            public void processResult(int rc, String path, Object ctx, List<String> children) {
+                if (!isCurrent())
+                    return;
+                if (rc != KeeperException.Code.OK.intValue()) {
+                    LOGGER.warn("failed to watch writers behind {}: {}", memberPath, KeeperException.Code.get(rc));
+                    writerQueued = true;
+                    return;
+                }
+                final List<String> MEMBERS = ReentrantDistributedLock.filter(children, READ_PREFIX, WRITE_PREFIX);
+                final int INDEX = MEMBERS.indexOf(ZooKeeperConnection.getName(memberPath));
+                if (INDEX < 0) {
+                    writerQueued = true;
+                    return;
+                }
+                for (int idx = INDEX + 1; idx < MEMBERS.size(); idx++) {
+                    if (MEMBERS.get(idx).startsWith(WRITE_PREFIX)) {
+                        LOGGER.debug("{} queued behind {}", MEMBERS.get(idx), memberPath);
+                        writerQueued = true;
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writers hold a znode each, a local writer excludes local readers first.
+     */
+    public class WriteLock implements DistributedLock {
+        /* guarded by write lock of localLock */
+        private String memberPath = null;
+
+        @Override
+        public void lock() throws KeeperException, InterruptedException {
+            localLock.writeLock().lockInterruptibly();
+            acquire(-1);
+        }
+
+        @Override
+        public boolean tryLock() throws KeeperException, InterruptedException {
+            if (!localLock.writeLock().tryLock())
+                return false;
+            return acquire(0);
+        }
+
+        @Override
+        public boolean tryLock(long timeout, TimeUnit unit) throws KeeperException, InterruptedException {
+            final long DEADLINE = System.nanoTime() + unit.toNanos(timeout);
+            if (!localLock.writeLock().tryLock(timeout, unit))
+                return false;
+            return acquire(Math.max(0, DEADLINE - System.nanoTime()));
+        }
+
+        @Override
+        public void unlock() throws KeeperException, InterruptedException {
+            if (!localLock.isWriteLockedByCurrentThread())
+                throw new IllegalMonitorStateException("write lock is not held by current thread");
+            try {
+                if (localLock.getWriteHoldCount() == 1 && memberPath != null) {
+                    delete(memberPath);
+                    memberPath = null;
+                }
+            } finally {
+                localLock.writeLock().unlock();
+            }
+        }
+
+        @Override
+        public boolean isHeldByCurrentThread() {
+            return localLock.isWriteLockedByCurrentThread();
+        }
+
+        private boolean acquire(long timeoutNanos) throws KeeperException, InterruptedException {
+            boolean acquired = false;
+            try {
+                if (localLock.getWriteHoldCount() > 1) {
+                    acquired = true;
+                } else {
+                    memberPath = acquireRemote(WRITE_PREFIX, timeoutNanos);
+                    acquired = memberPath != null;
+                }
+                return acquired;
+            } finally {
+                if (!acquired)
+                    localLock.writeLock().unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,504 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lyn.util.zookeeper.ZooKeeperConnection;
+import lyn.util.zookeeper.recipes.Elect;
+import lyn.util.zookeeper.recipes.PartitionAssignment;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Transaction;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A partition assignment computed by the election leader with rendezvous hashing
+ * over election candidates, and published in assignment znode
+ * <code>/assignments/&lt;name&gt;</code>. Each assignment holds its own election in
+ * <code>/assignments/&lt;name&gt;/members</code>, so partitions go to its workers only.
+ * <ul>
+ * <li>a partition is owned by the candidate with the highest hash of candidate and
+ * partition, so a candidate joining or leaving moves only about 1/N of partitions</li>
+ * <li>only the leader watches candidates, workers keep a single data watch on
+ * assignment znode and read the assignment instead of computing it</li>
+ * <li>listeners receive partitions assigned and revoked since the last assignment</li>
+ * <li>an assignment is published with a check of the leader's member znode, so a
+ * leader that lost its candidacy cannot overwrite the one of its successor</li>
+ * <li>a failed step is retried with backoff by a reload, which joins the election
+ * again when the candidate or its watches are gone, as after the session expired</li>
+ * </ul>
+ * Each instance participates in the election as a <code>ContentionFreeElect</code>
+ * candidate, see <code>getElect</code>.
+ *
+ * @author Yanpeng Lin
+ */
+public class RendezvousPartitionAssignment implements PartitionAssignment {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RendezvousPartitionAssignment.class);
+
+    /* election znode of an assignment, under its assignment znode */
+    static final String MEMBERS = "members";
+
+    /* delay of the first retry of a failed step, doubled up to the maximum */
+    private static final long RETRY_MILLIS = 100;
+    private static final long MAX_RETRY_MILLIS = 10000;
+
+    private final ZooKeeperConnection zkConnection;
+
+    private final String assignmentPath;
+
+    private final int partitions;
+
+    private final Candidate elect;
+
+    /* owner of each partition as last published, null when not assigned */
+    private volatile String[] owners;
+
+    private volatile Set<Integer> assigned = Collections.emptySet();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /* registered on assignment znode and, by leader, on its election znode */
+    private final AssignmentWatcher watcher;
+
+    private volatile boolean started = false;
+
+    private volatile boolean leading = false;
+
+    private ScheduledExecutorService follower = null;
+
+    private final AtomicBoolean reload = new AtomicBoolean();
+
+    /* confined to follower thread: steps failed in a row */
+    private int failures = 0;
+
+    private final AtomicLong publications = new AtomicLong();
+
+    public RendezvousPartitionAssignment(ZooKeeperConnection zkConnection, String name, int partitions) {
+        if (partitions <= 0)
+            throw new IllegalArgumentException("partitions must be positive: " + partitions);
+        this.zkConnection = zkConnection;
+        this.assignmentPath = ZooKeeperConnection.buildPath(ASSIGNMENTS, name);
+        this.partitions = partitions;
+        this.owners = new String[partitions];
+        this.elect = new Candidate(ZooKeeperConnection.buildPath(assignmentPath, MEMBERS));
+        this.watcher = new AssignmentWatcher(zkConnection);
+    }
+
+    public String getAssignmentPath() {
+        return assignmentPath;
+    }
+
+    /**
+     * @return election candidate of this worker
+     */
+    public NaiveElect getElect() {
+        return elect;
+    }
+
+    /**
+     * @return assignments published while this worker was leader
+     */
+    public long getPublications() {
+        return publications.get();
+    }
+
+    public boolean isLeading() {
+        return leading;
+    }
+
+    /**
+     * Participates in the election and starts following the assignment.
+     *
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public void start() throws KeeperException, InterruptedException {
+        ZooKeeperConnection.createFullPath(zkConnection, assignmentPath, new byte[0], CreateMode.PERSISTENT, true);
+        follower = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "assignment-" + assignmentPath);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        started = true;
+        refresh();
+        participate();
+    }
+
+    /**
+     * Leaves the election, so that partitions of this worker are moved to others.
+     *
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public void close() throws KeeperException, InterruptedException {
+        started = false;
+        leading = false;
+        if (follower != null)
+            follower.shutdownNow();
+        final String MEMBER_PATH = elect.getMemberPath();
+        if (MEMBER_PATH == null || !zkConnection.isConnected())
+            return;
+        try {
+            zkConnection.delete(MEMBER_PATH, -1);
+        } catch (KeeperException.NoNodeException e) {
+            // member znode already gone with session
+        }
+    }
+
+    @Override
+    public int getPartitions() {
+        return partitions;
+    }
+
+    @Override
+    public Set<Integer> getAssignedPartitions() {
+        return assigned;
+    }
+
+    @Override
+    public String getOwner(int partition) {
+        final String[] OWNERS = owners;
+        return (partition < OWNERS.length) ? OWNERS[partition] : null;
+    }
+
+    @Override
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    synchronized void participate() throws KeeperException, InterruptedException {
+        if (!started)
+            return;
+        final Elect.ElectState STATE = elect.participate(zkConnection, true);
+        LOGGER.debug("{} participated as {}: {}", assignmentPath, elect.getMemberPath(), STATE);
+        leading = (STATE == Elect.ElectState.LEADING);
+        if (STATE == Elect.ElectState.LOSTCONNECTION)
+            throw new KeeperException.ConnectionLossException();
+        if (leading)
+            rebalance();
+    }
+
+    /**
+     * Computes the assignment of current candidates and publishes it when changed.
+     * Runs on leader only. The assignment znode is written along with a check of the
+     * leader's member znode, so a leader whose candidacy is gone fails to publish.
+     */
+    synchronized void rebalance() throws KeeperException, InterruptedException {
+        while (started && leading) {
+            final String MEMBER_PATH = elect.getMemberPath();
+            List<String> candidates = zkConnection.getChildren(elect.getElection(), watcher);
+            Collections.sort(candidates, new NaiveElect.SequentialComparator());
+            Stat stat = new Stat();
+            final String[] PUBLISHED = decode(zkConnection.getData(assignmentPath, false, stat));
+            final String[] COMPUTED = assign(candidates, partitions);
+            if (Arrays.equals(PUBLISHED, COMPUTED))
+                return;
+            Transaction transaction = zkConnection.transaction();
+            ZooKeeperConnection.check(transaction, MEMBER_PATH, -1);
+            ZooKeeperConnection.setData(transaction, assignmentPath, encode(COMPUTED), stat.getVersion());
+            try {
+                ZooKeeperConnection.commit(transaction);
+                publications.incrementAndGet();
+                LOGGER.debug("{} published for {} candidates", assignmentPath, candidates.size());
+                return;
+            } catch (KeeperException.BadVersionException e) {
+                // published by another leader meanwhile, compute again
+            } catch (KeeperException.NoNodeException e) {
+                // candidacy lost, joined again by a reload
+                leading = false;
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Sets watches again after a failure. The election is joined again when the member
+     * znode is gone, as after the session expired, or when the candidate lost its
+     * connection while watching its predecessor.
+     */
+    synchronized void reload() throws KeeperException, InterruptedException {
+        if (!started)
+            return;
+        final String MEMBER_PATH = elect.getMemberPath();
+        if (MEMBER_PATH == null || elect.getStat() == Elect.ElectState.LOSTCONNECTION
+                || zkConnection.exists(MEMBER_PATH, false) == null) {
+            if (MEMBER_PATH != null) {
+                try {
+                    zkConnection.delete(MEMBER_PATH, -1);
+                } catch (KeeperException.NoNodeException e) {
+                    // member znode already gone with session
+                }
+            }
+            participate();
+        } else if (leading) {
+            rebalance();
+        }
+        refresh();
+        LOGGER.info("reloaded {} as {}", assignmentPath, elect.getMemberPath());
+    }
+
+    /**
+     * Reads the published assignment and reports changes of partitions owned by this worker.
+     */
+    synchronized void refresh() throws KeeperException, InterruptedException {
+        if (!started)
+            return;
+        final String[] PUBLISHED = decode(zkConnection.getData(assignmentPath, watcher, null));
+        owners = (PUBLISHED != null) ? PUBLISHED : new String[partitions];
+        final String MEMBER_PATH = elect.getMemberPath();
+        final String NAME = (MEMBER_PATH != null) ? ZooKeeperConnection.getName(MEMBER_PATH) : null;
+
+        final Set<Integer> CURRENT = assigned;
+        Set<Integer> next = new TreeSet<>();
+        for (int partition = 0; partition < owners.length; partition++) {
+            if (owners[partition] != null && owners[partition].equals(NAME))
+                next.add(partition);
+        }
+        Set<Integer> revoked = new TreeSet<>(CURRENT);
+        revoked.removeAll(next);
+        Set<Integer> added = new TreeSet<>(next);
+        added.removeAll(CURRENT);
+        if (revoked.isEmpty() && added.isEmpty())
+            return;
+        assigned = Collections.unmodifiableSet(next);
+
+        if (!revoked.isEmpty()) {
+            for (Listener listener : listeners)
+                listener.partitionsRevoked(Collections.unmodifiableSet(revoked));
+        }
+        if (!added.isEmpty()) {
+            for (Listener listener : listeners)
+                listener.partitionsAssigned(Collections.unmodifiableSet(added));
+        }
+        LOGGER.debug("{} assigned {} partitions to {}, +{} -{}", assignmentPath, next.size(), NAME, added.size(),
+                revoked.size());
+    }
+
+    /**
+     * Rendezvous hashing, each partition goes to the candidate of the highest weight.
+     *
+     * @param candidates
+     * @param partitions
+     * @return owner of each partition, all null when no candidates
+     */
+    static String[] assign(List<String> candidates, int partitions) {
+        final String[] OWNERS = new String[partitions];
+        if (candidates.isEmpty())
+            return OWNERS;
+        final long[] SEEDS = new long[candidates.size()];
+        for (int idx = 0; idx < SEEDS.length; idx++)
+            SEEDS[idx] = hash(candidates.get(idx));
+        for (int partition = 0; partition < partitions; partition++) {
+            int owner = 0;
+            long highest = weight(SEEDS[0], partition);
+            for (int idx = 1; idx < SEEDS.length; idx++) {
+                final long WEIGHT = weight(SEEDS[idx], partition);
+                if (WEIGHT > highest) {
+                    highest = WEIGHT;
+                    owner = idx;
+                }
+            }
+            OWNERS[partition] = candidates.get(owner);
+        }
+        return OWNERS;
+    }
+
+    /* FNV-1a */
+    static long hash(String candidate) {
+        long hash = 0xcbf29ce484222325L;
+        for (int idx = 0; idx < candidate.length(); idx++) {
+            hash ^= candidate.charAt(idx);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /* murmur3 finalizer over candidate seed and partition */
+    static long weight(long seed, int partition) {
+        long weight = seed + (partition + 1) * 0x9e3779b97f4a7c15L;
+        weight = (weight ^ (weight >>> 33)) * 0xff51afd7ed558ccdL;
+        weight = (weight ^ (weight >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return weight ^ (weight >>> 33);
+    }
+
+    /**
+     * Assignment znode holds distinct owners followed by owner index of each partition.
+     */
+    static byte[] encode(String[] owners) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            List<String> distinct = new ArrayList<>(new TreeSet<>(Arrays.asList(owners)));
+            out.writeInt(distinct.size());
+            for (String owner : distinct)
+                out.writeUTF(owner);
+            out.writeInt(owners.length);
+            for (String owner : owners)
+                out.writeInt(Collections.binarySearch(distinct, owner));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return owner of each partition or null when nothing was published
+     */
+    static String[] decode(byte[] data) {
+        if (data == null || data.length == 0)
+            return null;
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            final String[] DISTINCT = new String[in.readInt()];
+            for (int idx = 0; idx < DISTINCT.length; idx++)
+                DISTINCT[idx] = in.readUTF();
+            final String[] OWNERS = new String[in.readInt()];
+            for (int partition = 0; partition < OWNERS.length; partition++)
+                OWNERS[partition] = DISTINCT[in.readInt()];
+            return OWNERS;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("malformed assignment", e);
+        }
+    }
+
+    private void dispatch(Step step, long delayMillis) {
+        try {
+            follower.schedule(step, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // closed meanwhile
+        }
+    }
+
+    /**
+     * A step run on follower thread, or a reload instead while one is due. A failure
+     * is retried by a reload with backoff until it succeeds or the worker is closed.
+     */
+    abstract class Step implements Runnable {
+        abstract void apply() throws KeeperException, InterruptedException;
+
+        @Override
+        public void run() {
+            try {
+                if (reload.getAndSet(false))
+                    reload();
+                else
+                    apply();
+                failures = 0;
+            } catch (KeeperException e) {
+                LOGGER.warn("failed to follow " + assignmentPath + ", retrying", e);
+                failures++;
+                retry(Math.min(MAX_RETRY_MILLIS, RETRY_MILLIS << Math.min(failures - 1, 16)));
+            } catch (InterruptedException e) {
+                // closed
+            }
+        }
+    }
+
+    private void retry(long delayMillis) {
+        reload.set(true);
+        dispatch(new Step() {
+            @Override
+            void apply() {
+                // reloaded already by another step
+            }
+        }, delayMillis);
+    }
+
+    /**
+     * Candidate following its election state, handled by the follower thread since
+     * state updates arrive on zookeeper event thread.
+     */
+    class Candidate extends ContentionFreeElect {
+        Candidate(String election) {
+            super(election);
+        }
+
+        @Override
+        public Object update(final ElectState stat) {
+            super.update(stat);
+            leading = (stat == ElectState.LEADING);
+            if (!started)
+                return stat;
+            if (stat == ElectState.LOSTCONNECTION) {
+                // predecessor is no longer watched
+                retry(0);
+                return stat;
+            }
+            if (stat != ElectState.LEADING && stat != ElectState.LOSTELECTION)
+                return stat;
+            dispatch(new Step() {
+                @Override
+                void apply() throws KeeperException, InterruptedException {
+                    if (stat == ElectState.LEADING)
+                        rebalance();
+                    else
+                        RendezvousPartitionAssignment.this.participate();
+                }
+            }, 0);
+            return stat;
+        }
+    }
+
+    /**
+     * Registered on assignment znode and election znode. A single instance is not
+     * duplicated by zookeeper when registered again on the same znode. The expiry of
+     * the session is followed by a reload.
+     */
+    class AssignmentWatcher implements Watcher {
+        private WeakReference<ZooKeeperConnection> zkConnectionRef;
+
+        public AssignmentWatcher(ZooKeeperConnection zkConnection) {
+            this.zkConnectionRef = new WeakReference<ZooKeeperConnection>(zkConnection);
+        }
+
+        @Override
+        public void process(final WatchedEvent event) {
+            if (!started || zkConnectionRef.get() == null)
+                return;
+            if (event.getType() == Event.EventType.None) {
+                if (event.getState() == Event.KeeperState.Expired)
+                    // candidate and watches of the session are gone, set again by a reload
+                    retry(0);
+                return;
+            }
+            dispatch(new Step() {
+                @Override
+                void apply() throws KeeperException, InterruptedException {
+                    if (elect.getElection().equals(event.getPath()))
+                        rebalance();
+                    else
+                        refresh();
+                }
+            }, 0);
+        }
+    }
+}
@@ -0,0 +1,668 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import lyn.util.zookeeper.PipelinedReads;
+import lyn.util.zookeeper.ZooKeeperConnection;
+import lyn.util.zookeeper.recipes.DistributedCounter;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.Transaction;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A distributed counter striped across child znodes, the value is the sum of stripes.
+ * <p>
+ * Updates are buffered in local cells and flushed periodically by a transaction of
+ * a versioned <code>setData</code> on one stripe, so concurrent processes rarely
+ * collide on the same znode. A failed flush moves to the next stripe. Several counters sharing a
+ * connection are flushed in one transaction by <code>flush(zkConnection, counters)</code>.
+ * <p>
+ * Every stripe is followed by a data watch, so approximate reads sum cached stripes
+ * without any request. Stripes are read again by a refresh thread; a failed read may
+ * leave its watch unset, so it is followed by a reload of all stripes, retried with
+ * backoff until it succeeds; so is an expired session once connected again.
+ * <p>
+ * A stripe keeps a random token of each of its last writes. A write lost with the
+ * connection may have been applied, so its delta is held until a later flush reads the
+ * stripe again: it is added back only when its token is not among the writers since.
+ * <p>
+ * Flushes of a counter are serialized, so a flush returns only once updates drained by
+ * a flush in flight are written too, and <code>getExact</code> counts them.
+ * 
+ * @author Yanpeng Lin
+ */
+public class StripedCounter implements DistributedCounter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StripedCounter.class);
+
+    /* stripe name prefix */
+    static final String STRIPE_PREFIX = "stripe_";
+
+    private static final int CELLS = 16;
+
+    /* delay of the first retry of a failed refresh, doubled up to the maximum */
+    private static final long RETRY_MILLIS = 100;
+    private static final long MAX_RETRY_MILLIS = 10000;
+
+    /* orders locks of counters flushed together */
+    private static final AtomicLong IDS = new AtomicLong();
+
+    /* tokens of the last writes kept in a stripe, to find out whether a lost one applied */
+    static final int WRITERS = 16;
+
+    private final ZooKeeperConnection zkConnection;
+
+    private final String counterPath;
+
+    private final int stripes;
+
+    private final long flushIntervalMillis;
+
+    private final long id = IDS.incrementAndGet();
+
+    /* held by a flush from taking local deltas until they are settled */
+    private final ReentrantLock flushing = new ReentrantLock();
+
+    /* local deltas not flushed yet, striped by thread */
+    private final AtomicLongArray cells = new AtomicLongArray(CELLS);
+
+    /* watch-maintained value and version of each stripe, version -1 when unknown */
+    private final AtomicReferenceArray<Stripe> cached;
+
+    /* guarded by itself: writes lost with the connection, not known to be applied */
+    private final List<Write> unresolved = new ArrayList<>();
+
+    /* stripe updated by this process, moved on conflicts */
+    private volatile int home;
+
+    private final StripeWatcher watcher;
+
+    private ScheduledExecutorService flusher = null;
+
+    private ScheduledExecutorService refresher = null;
+
+    /* set when watches may be lost, all stripes are read again by the next refresh */
+    private final AtomicBoolean reload = new AtomicBoolean();
+
+    /* confined to refresh thread: refreshes failed in a row */
+    private int failures = 0;
+
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+
+    public StripedCounter(ZooKeeperConnection zkConnection, String name) {
+        this(zkConnection, name, 8, 1000);
+    }
+
+    /**
+     * @param zkConnection
+     * @param name counter name, the counter path is <code>/counters/&lt;name&gt;</code>
+     * @param stripes number of stripe znodes, must be the same for all processes
+     * @param flushIntervalMillis period of background flush, 0 to flush only explicitly
+     */
+    public StripedCounter(ZooKeeperConnection zkConnection, String name, int stripes, long flushIntervalMillis) {
+        if (stripes <= 0)
+            throw new IllegalArgumentException("stripes must be positive");
+        this.zkConnection = zkConnection;
+        this.counterPath = ZooKeeperConnection.buildPath(COUNTERS, name);
+        this.stripes = stripes;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.cached = new AtomicReferenceArray<>(stripes);
+        for (int stripe = 0; stripe < stripes; stripe++)
+            cached.set(stripe, new Stripe(0, -1, null));
+        this.watcher = new StripeWatcher(zkConnection);
+    }
+
+    public String getCounterPath() {
+        return counterPath;
+    }
+
+    /**
+     * @return successful flushes of this counter
+     */
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    /**
+     * @return flushes failed by concurrent updates of the same stripe
+     */
+    public long getConflicts() {
+        return conflicts.get();
+    }
+
+    /**
+     * Creates missing stripes, reads them with data watches and starts background flush.
+     * 
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public void start() throws KeeperException, InterruptedException {
+        home = (int) ((zkConnection.getSessionId() ^ System.identityHashCode(this)) & Integer.MAX_VALUE) % stripes;
+        refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "counter-refresh-" + counterPath);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            ZooKeeperConnection.createFullPath(zkConnection, stripePath(stripe), encode(0), CreateMode.PERSISTENT,
+                    true);
+            refresh(stripe);
+        }
+        if (flushIntervalMillis > 0) {
+            flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "counter-flush-" + counterPath);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            flusher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flush();
+                    } catch (KeeperException | InterruptedException e) {
+                        LOGGER.warn("failed to flush " + counterPath, e);
+                    }
+                }
+            }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Flushes local updates and stops background flush and refresh. Pending watches are
+     * ignored.
+     * 
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public void close() throws KeeperException, InterruptedException {
+        if (flusher != null)
+            flusher.shutdownNow();
+        flush();
+        watcher.closed = true;
+        if (refresher != null)
+            refresher.shutdownNow();
+        synchronized (unresolved) {
+            if (!unresolved.isEmpty())
+                LOGGER.warn("closed {} with {} writes lost with the connection unresolved", counterPath,
+                        unresolved.size());
+        }
+    }
+
+    @Override
+    public void add(long delta) {
+        cells.addAndGet((int) (Thread.currentThread().getId() & (CELLS - 1)), delta);
+    }
+
+    @Override
+    public long get() {
+        long sum = pending();
+        for (int stripe = 0; stripe < stripes; stripe++)
+            sum += cached.get(stripe).value;
+        return sum;
+    }
+
+    @Override
+    public long getExact() throws KeeperException, InterruptedException {
+        flush();
+        // reads of all stripes are pipelined
+        final CountDownLatch DONE = new CountDownLatch(stripes);
+        final long[] read = new long[stripes];
+        final KeeperException.Code[] codes = new KeeperException.Code[stripes];
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            final int STRIPE = stripe;
+            zkConnection.getData(stripePath(stripe), false, new AsyncCallback.DataCallback() {
+                @Override
+                public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+                    codes[STRIPE] = KeeperException.Code.get(rc);
+                    if (stat != null) {
+                        read[STRIPE] = decode(data);
+                        cache(STRIPE, new Stripe(read[STRIPE], stat.getVersion(), data));
+                    }
+                    DONE.countDown();
+                }
+            }, null);
+        }
+        DONE.await();
+        long sum = pending();
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            if (codes[stripe] != KeeperException.Code.OK)
+                throw KeeperException.create(codes[stripe], stripePath(stripe));
+            sum += read[stripe];
+        }
+        return sum;
+    }
+
+    @Override
+    public void flush() throws KeeperException, InterruptedException {
+        flushing.lock();
+        try {
+            resolve();
+            final long DELTA = drain();
+            if (DELTA != 0)
+                flush(DELTA);
+        } finally {
+            flushing.unlock();
+        }
+    }
+
+    /**
+     * Flushes counters sharing a connection in one transaction. Counters whose stripe
+     * was updated concurrently are flushed one by one.
+     * 
+     * @param zkConnection
+     * @param counters
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public static void flush(ZooKeeperConnection zkConnection, StripedCounter... counters) throws KeeperException,
+            InterruptedException {
+        // locked in the same order by all callers
+        final StripedCounter[] LOCKED = counters.clone();
+        Arrays.sort(LOCKED, new Comparator<StripedCounter>() {
+            @Override
+            public int compare(StripedCounter left, StripedCounter right) {
+                return Long.compare(left.id, right.id);
+            }
+        });
+        int locked = 0;
+        try {
+            for (; locked < LOCKED.length; locked++)
+                LOCKED[locked].flushing.lock();
+            flushLocked(zkConnection, counters);
+        } finally {
+            while (locked > 0)
+                LOCKED[--locked].flushing.unlock();
+        }
+    }
+
+    private static void flushLocked(ZooKeeperConnection zkConnection, StripedCounter... counters)
+            throws KeeperException, InterruptedException {
+        // stripes never read are read before any delta is taken
+        for (StripedCounter counter : counters) {
+            counter.resolve();
+            if (counter.cached.get(counter.home).version < 0)
+                counter.refresh(counter.home);
+        }
+        final List<StripedCounter> DIRTY = new ArrayList<>();
+        final List<Write> WRITES = new ArrayList<>();
+        final List<byte[]> DATA = new ArrayList<>();
+        Transaction transaction = zkConnection.transaction();
+        for (StripedCounter counter : counters) {
+            final int HOME = counter.home;
+            final Stripe STRIPE = counter.cached.get(HOME);
+            final long DELTA = counter.drain();
+            if (DELTA == 0)
+                continue;
+            final Write WRITE = new Write(HOME, STRIPE.version, ThreadLocalRandom.current().nextLong(), DELTA);
+            DIRTY.add(counter);
+            WRITES.add(WRITE);
+            DATA.add(encode(STRIPE.value + DELTA, WRITE.token, STRIPE.data));
+            ZooKeeperConnection.setData(transaction, counter.stripePath(HOME), DATA.get(DATA.size() - 1),
+                    STRIPE.version);
+        }
+        if (DIRTY.isEmpty())
+            return;
+
+        List<OpResult> results;
+        try {
+            results = ZooKeeperConnection.commit(transaction);
+        } catch (KeeperException e) {
+            if (isUncertain(e)) {
+                for (int idx = 0; idx < DIRTY.size(); idx++)
+                    DIRTY.get(idx).lost(WRITES.get(idx));
+                throw e;
+            }
+            // the transaction failed as a whole, flush counters on their own
+            int idx = 0;
+            try {
+                for (; idx < DIRTY.size(); idx++) {
+                    DIRTY.get(idx).conflicts.incrementAndGet();
+                    DIRTY.get(idx).flush(WRITES.get(idx).delta);
+                }
+            } finally {
+                // a failed flush settles its own delta, those after it are taken back
+                for (idx++; idx < DIRTY.size(); idx++)
+                    DIRTY.get(idx).add(WRITES.get(idx).delta);
+            }
+            return;
+        } catch (InterruptedException e) {
+            for (int idx = 0; idx < DIRTY.size(); idx++)
+                DIRTY.get(idx).lost(WRITES.get(idx));
+            throw e;
+        }
+        for (int idx = 0; idx < DIRTY.size(); idx++) {
+            StripedCounter counter = DIRTY.get(idx);
+            final Write WRITE = WRITES.get(idx);
+            Stat stat = ((OpResult.SetDataResult) results.get(idx)).getStat();
+            counter.cache(WRITE.stripe, new Stripe(decode(DATA.get(idx)), stat.getVersion(), DATA.get(idx)));
+            counter.flushes.incrementAndGet();
+        }
+    }
+
+    /**
+     * Adds <code>delta</code> to home stripe by compare-and-set, moving to the next
+     * stripe on conflicts. The delta is restored locally when zookeeper fails, unless
+     * the write may have been applied: then it is held until a later flush finds out.
+     */
+    void flush(long delta) throws KeeperException, InterruptedException {
+        while (true) {
+            final int HOME = home;
+            final Stripe STRIPE = cached.get(HOME);
+            if (STRIPE.version < 0) {
+                refresh(HOME, delta);
+                continue;
+            }
+            final Write WRITE = new Write(HOME, STRIPE.version, ThreadLocalRandom.current().nextLong(), delta);
+            final byte[] DATA = encode(STRIPE.value + delta, WRITE.token, STRIPE.data);
+            final Transaction TRANSACTION = zkConnection.transaction();
+            ZooKeeperConnection.setData(TRANSACTION, stripePath(HOME), DATA, STRIPE.version);
+            try {
+                Stat stat = ((OpResult.SetDataResult) ZooKeeperConnection.commit(TRANSACTION).get(0)).getStat();
+                cache(HOME, new Stripe(STRIPE.value + delta, stat.getVersion(), DATA));
+                flushes.incrementAndGet();
+                return;
+            } catch (KeeperException.BadVersionException e) {
+                conflicts.incrementAndGet();
+                refresh(HOME, delta);
+                home = (HOME + 1) % stripes;
+            } catch (KeeperException e) {
+                if (isUncertain(e))
+                    lost(WRITE);
+                else
+                    add(delta);
+                throw e;
+            } catch (InterruptedException e) {
+                lost(WRITE);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Reads a stripe before writing delta to it, the delta is restored when it fails.
+     */
+    private void refresh(int stripe, long delta) throws KeeperException, InterruptedException {
+        try {
+            refresh(stripe);
+        } catch (KeeperException | InterruptedException e) {
+            add(delta);
+            throw e;
+        }
+    }
+
+    /**
+     * @return true when a write failed by e may have been applied
+     */
+    static boolean isUncertain(KeeperException e) {
+        switch (e.code()) {
+        case CONNECTIONLOSS:
+        case OPERATIONTIMEOUT:
+        case SESSIONEXPIRED:
+        case SESSIONMOVED:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private void lost(Write write) {
+        LOGGER.warn("write of {} to {} version {} lost with the connection, resolved by the next flush",
+                write.delta, stripePath(write.stripe), write.version);
+        synchronized (unresolved) {
+            unresolved.add(write);
+        }
+    }
+
+    /**
+     * Settles writes lost with the connection: a delta not applied is added back, one
+     * applied is dropped, and one not readable yet is kept for the next flush.
+     */
+    private void resolve() throws InterruptedException {
+        synchronized (unresolved) {
+            for (Iterator<Write> iterator = unresolved.iterator(); iterator.hasNext();) {
+                final Write WRITE = iterator.next();
+                final Boolean APPLIED;
+                try {
+                    APPLIED = applied(WRITE);
+                } catch (KeeperException e) {
+                    LOGGER.debug("failed to resolve write to {}: {}", stripePath(WRITE.stripe), e.toString());
+                    return;
+                }
+                iterator.remove();
+                if (APPLIED == null)
+                    LOGGER.error("write of {} to {} version {} unknown, overwritten by too many writes since",
+                            WRITE.delta, stripePath(WRITE.stripe), WRITE.version);
+                else if (!APPLIED)
+                    add(WRITE.delta);
+            }
+        }
+    }
+
+    /**
+     * Reads the stripe of a write again, after a sync so that a write sent before is
+     * seen. The write made the version after the one it expected when the stripe holds
+     * its token among the writers since.
+     *
+     * @return whether the write was applied, null when the writers since are not all
+     *         kept
+     */
+    private Boolean applied(Write write) throws KeeperException, InterruptedException {
+        final CountDownLatch SYNCED = new CountDownLatch(1);
+        zkConnection.sync(stripePath(write.stripe), new AsyncCallback.VoidCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx) {
+                SYNCED.countDown();
+            }
+        }, null);
+        SYNCED.await();
+        final Stat STAT = new Stat();
+        final byte[] DATA = zkConnection.getData(stripePath(write.stripe), false, STAT);
+        cache(write.stripe, new Stripe(decode(DATA), STAT.getVersion(), DATA));
+        if (STAT.getVersion() <= write.version)
+            return false;
+        final ByteBuffer BUFFER = ByteBuffer.wrap(DATA);
+        int writers = 0;
+        for (int offset = 8; offset + 8 <= DATA.length; offset += 8, writers++) {
+            if (BUFFER.getLong(offset) == write.token)
+                return true;
+        }
+        return (STAT.getVersion() - write.version <= writers) ? Boolean.FALSE : null;
+    }
+
+    private long drain() {
+        long delta = 0;
+        for (int cell = 0; cell < CELLS; cell++)
+            delta += cells.getAndSet(cell, 0);
+        return delta;
+    }
+
+    private long pending() {
+        long delta = 0;
+        for (int cell = 0; cell < CELLS; cell++)
+            delta += cells.get(cell);
+        return delta;
+    }
+
+    String stripePath(int stripe) {
+        return counterPath + "/" + STRIPE_PREFIX + stripe;
+    }
+
+    /**
+     * Reads a stripe and watches it for updates of other processes.
+     */
+    void refresh(int stripe) throws KeeperException, InterruptedException {
+        Stat stat = new Stat();
+        final byte[] DATA = zkConnection.getData(stripePath(stripe), watcher, stat);
+        cache(stripe, new Stripe(decode(DATA), stat.getVersion(), DATA));
+    }
+
+    /**
+     * Reads all stripes in one pipelined round trip, setting every watch again.
+     */
+    void reload() throws KeeperException, InterruptedException {
+        final List<String> PATHS = new ArrayList<>(stripes);
+        for (int stripe = 0; stripe < stripes; stripe++)
+            PATHS.add(stripePath(stripe));
+        final PipelinedReads READS = PipelinedReads.read(zkConnection, PATHS, watcher, true, false);
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            final PipelinedReads.Result RESULT = READS.get(stripe);
+            RESULT.check(PATHS.get(stripe));
+            cache(stripe, new Stripe(decode(RESULT.getData()), RESULT.getDataStat().getVersion(), RESULT.getData()));
+        }
+        LOGGER.info("reloaded {} stripes of {}", stripes, counterPath);
+    }
+
+    /**
+     * Reads a stripe on refresh thread after a delay, or reloads all stripes instead when
+     * watches may be lost. A failure is retried by a reload with backoff until it
+     * succeeds or the counter is closed.
+     *
+     * @param stripe -1 to reload only
+     * @param delayMillis
+     */
+    private void schedule(final int stripe, long delayMillis) {
+        try {
+            refresher.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (reload.getAndSet(false))
+                            reload();
+                        else if (stripe >= 0)
+                            refresh(stripe);
+                        failures = 0;
+                    } catch (KeeperException e) {
+                        LOGGER.warn("failed to refresh stripes of " + counterPath + ", retrying", e);
+                        failures++;
+                        reload.set(true);
+                        schedule(-1, Math.min(MAX_RETRY_MILLIS, RETRY_MILLIS << Math.min(failures - 1, 16)));
+                    } catch (InterruptedException e) {
+                        // closed
+                    }
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // closed meanwhile
+        }
+    }
+
+    /**
+     * Caches a stripe unless a newer version is cached already.
+     */
+    synchronized void cache(int stripe, Stripe read) {
+        if (read.version < cached.get(stripe).version)
+            return;
+        cached.set(stripe, read);
+    }
+
+    static byte[] encode(long value) {
+        return ByteBuffer.allocate(8).putLong(value).array();
+    }
+
+    /**
+     * Encodes value followed by the token of this write and those of the writes before
+     * it, up to <code>WRITERS</code> of them.
+     */
+    static byte[] encode(long value, long token, byte[] previous) {
+        final int KEPT = Math.min(WRITERS - 1, Math.max(0, (previous.length - 8) / 8));
+        return ByteBuffer.allocate(16 + 8 * KEPT).putLong(value).putLong(token).put(previous, 8, 8 * KEPT).array();
+    }
+
+    static long decode(byte[] data) {
+        return (data == null || data.length < 8) ? 0 : ByteBuffer.wrap(data).getLong();
+    }
+
+    /**
+     * A stripe as read or written, replaced as a whole so that value and version are
+     * read together.
+     */
+    static class Stripe {
+        final long value;
+        final int version;
+        final byte[] data;
+
+        Stripe(long value, int version, byte[] data) {
+            this.value = value;
+            this.version = version;
+            this.data = (data != null) ? data : new byte[0];
+        }
+    }
+
+    /**
+     * A delta written to a stripe at a version, marked by a random token.
+     */
+    static class Write {
+        final int stripe;
+        final int version;
+        final long token;
+        final long delta;
+
+        Write(int stripe, int version, long token, long delta) {
+            this.stripe = stripe;
+            this.version = version;
+            this.token = token;
+            this.delta = delta;
+        }
+    }
+
+    /**
+     * Registered on every stripe. A single instance is not duplicated by zookeeper when
+     * registered again on the same znode.
+     */
+    class StripeWatcher implements Watcher {
+        private WeakReference<ZooKeeperConnection> zkConnectionRef;
+        private volatile boolean closed = false;
+
+        public StripeWatcher(ZooKeeperConnection zkConnection) {
+            this.zkConnectionRef = new WeakReference<ZooKeeperConnection>(zkConnection);
+        }
+
+        @Override
+        public void process(WatchedEvent event) {
+            if (closed || zkConnectionRef.get() == null)
+                return;
+            if (event.getType() == Event.EventType.None) {
+                if (event.getState() != Event.KeeperState.Expired)
+                    return;
+                // watches of the session are gone, set again by a reload
+                reload.set(true);
+                schedule(-1, 0);
+            } else if (event.getType() == Event.EventType.NodeDataChanged) {
+                final String NAME = ZooKeeperConnection.getName(event.getPath());
+                schedule(Integer.parseInt(NAME.substring(STRIPE_PREFIX.length())), 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,602 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lyn.util.zookeeper.PipelinedReads;
+import lyn.util.zookeeper.ZooKeeperConnection;
+import lyn.util.zookeeper.recipes.ChangeFeed;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A change feed following a subtree by a children watch and a data watch on every
+ * znode.
+ * <ul>
+ * <li>events received together are applied by one refresh, with pipelined reads, one
+ * round trip per subtree level, and changes are sorted by zxid before delivery</li>
+ * <li>a refresh reads again until no event is pending; watch events and read results
+ * are delivered in server order, so every change up to the last read is in the batch
+ * and batches never go back in zxid</li>
+ * <li>a round reads before it changes anything, a failed one keeps its events and is
+ * retried with backoff, and the subtree is reloaded and diffed once its session
+ * expired</li>
+ * <li>changes wait in a bounded queue; while it is full watches are not registered
+ * again, so changes of a znode coalesce into its latest state instead of piling up</li>
+ * <li>a feed resumes from a checkpoint zxid and the paths a mirror holds: only znodes
+ * modified after the checkpoint are delivered, and held paths gone are deleted</li>
+ * </ul>
+ * Events are handled by a refresh thread, since pipelined reads cannot complete on
+ * zookeeper event thread which delivers their results.
+ *
+ * @author Yanpeng Lin
+ */
+public class WatchedChangeFeed implements ChangeFeed {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WatchedChangeFeed.class);
+
+    /* delay of the first retry of a failed refresh, doubled up to the maximum */
+    private static final long RETRY_MILLIS = 100;
+    private static final long MAX_RETRY_MILLIS = 10000;
+
+    /* deletes before creates before updates of one transaction, parents created first */
+    static final Comparator<Change> ZXID_ORDER = new Comparator<Change>() {
+        @Override
+        public int compare(Change c1, Change c2) {
+            if (c1.getZxid() != c2.getZxid())
+                return (c1.getZxid() < c2.getZxid()) ? -1 : 1;
+            final int RANK1 = rank(c1.getType());
+            final int RANK2 = rank(c2.getType());
+            if (RANK1 != RANK2)
+                return RANK1 - RANK2;
+            return (c1.getType() == Type.DELETED) ? c2.getPath().compareTo(c1.getPath()) : c1.getPath().compareTo(
+                    c2.getPath());
+        }
+
+        private int rank(Type type) {
+            return (type == Type.DELETED) ? 0 : (type == Type.CREATED) ? 1 : 2;
+        }
+    };
+
+    private final ZooKeeperConnection zkConnection;
+
+    private final String rootPath;
+
+    private final BlockingQueue<Change> queue;
+
+    /* confined to refresh thread after start: children, mzxid and czxid by znode path */
+    private final Map<String, Set<String>> children = new HashMap<>();
+    private final Map<String, Long> mzxids = new HashMap<>();
+    private final Map<String, Long> czxids = new HashMap<>();
+
+    /* registered on all znodes of the subtree, reused so that it is not duplicated */
+    private final FeedWatcher watcher;
+
+    private final ConcurrentLinkedQueue<WatchedEvent> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicBoolean reload = new AtomicBoolean();
+
+    /* confined to refresh thread: applied to state, delivered once no event is pending */
+    private final List<Change> held = new ArrayList<>();
+
+    private volatile boolean started = false;
+
+    private ScheduledExecutorService refresher = null;
+
+    /* confined to refresh thread: refreshes failed in a row */
+    private int failures = 0;
+
+    private long lastZxid = -1;
+
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong changes = new AtomicLong();
+
+    public WatchedChangeFeed(ZooKeeperConnection zkConnection, String rootPath) {
+        this(zkConnection, rootPath, 1024);
+    }
+
+    /**
+     * @param zkConnection
+     * @param rootPath root of the subtree, not delivered itself
+     * @param capacity changes queued for consumers
+     */
+    public WatchedChangeFeed(ZooKeeperConnection zkConnection, String rootPath, int capacity) {
+        ZooKeeperConnection.getParent(rootPath);
+        this.zkConnection = zkConnection;
+        this.rootPath = rootPath;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.watcher = new FeedWatcher(zkConnection);
+    }
+
+    public String getRootPath() {
+        return rootPath;
+    }
+
+    /**
+     * @return znodes read from zookeeper
+     */
+    public long getReads() {
+        return reads.get();
+    }
+
+    /**
+     * @return changes queued
+     */
+    public long getChanges() {
+        return changes.get();
+    }
+
+    /**
+     * @return changes waiting for consumers
+     */
+    public int getBacklog() {
+        return queue.size();
+    }
+
+    /**
+     * Delivers every znode of the subtree as created and follows changes.
+     *
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public void start() throws KeeperException, InterruptedException {
+        start(-1, Collections.<String> emptySet());
+    }
+
+    /**
+     * Delivers changes after a checkpoint and follows changes.
+     *
+     * @param checkpoint zxid of the last change applied by the mirror
+     * @param known paths held by the mirror, to find those deleted meanwhile
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public void start(long checkpoint, Set<String> known) throws KeeperException, InterruptedException {
+        ZooKeeperConnection.createFullPath(zkConnection, rootPath, new byte[0], CreateMode.PERSISTENT, true);
+        refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "feed-refresh-" + rootPath);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // events during loading are applied by a refresh after delivery of the load
+        scheduled.set(true);
+        started = true;
+        lastZxid = checkpoint;
+        final List<Change> CHANGES = new ArrayList<>();
+        final Map<String, Long> PZXIDS = new HashMap<>();
+        synchronized (this) {
+            load(Collections.singletonList(rootPath), checkpoint, children, mzxids, czxids, PZXIDS, CHANGES);
+            deleted(known, mzxids.keySet(), PZXIDS, CHANGES);
+        }
+        // delivered by refresh thread ahead of any refresh, without blocking the caller
+        refresher.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    deliver(CHANGES);
+                } catch (InterruptedException e) {
+                    // closed
+                }
+            }
+        });
+        schedule(0);
+    }
+
+    /**
+     * Stops following changes, pending watches are ignored once they fire.
+     */
+    public void close() {
+        started = false;
+        if (refresher != null)
+            refresher.shutdownNow();
+    }
+
+    @Override
+    public List<Change> poll(int maxChanges, long timeout, TimeUnit unit) throws InterruptedException {
+        final Change FIRST = queue.poll(timeout, unit);
+        if (FIRST == null)
+            return Collections.emptyList();
+        final List<Change> CHANGES = new ArrayList<>(Math.min(maxChanges, queue.size() + 1));
+        CHANGES.add(FIRST);
+        queue.drainTo(CHANGES, maxChanges - 1);
+        return CHANGES;
+    }
+
+    /**
+     * Refreshes on refresh thread after a delay, a failed refresh is retried with
+     * backoff until it succeeds or the feed is closed.
+     */
+    private void schedule(long delayMillis) {
+        try {
+            refresher.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refresh();
+                        failures = 0;
+                    } catch (KeeperException e) {
+                        LOGGER.warn("failed to refresh change feed of " + rootPath + ", retrying", e);
+                        failures++;
+                        if (scheduled.compareAndSet(false, true))
+                            schedule(Math.min(MAX_RETRY_MILLIS, RETRY_MILLIS << Math.min(failures - 1, 16)));
+                    } catch (InterruptedException e) {
+                        // closed
+                    }
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // closed meanwhile
+        }
+    }
+
+    /**
+     * Applies pending events until none is left and delivers changes found. Changes of
+     * rounds applied before a failure are held, and delivered with those of the rounds
+     * after it, so that no batch goes back in zxid.
+     */
+    void refresh() throws KeeperException, InterruptedException {
+        scheduled.set(false);
+        synchronized (this) {
+            if (reload.getAndSet(false)) {
+                try {
+                    reload(held);
+                } catch (KeeperException | InterruptedException e) {
+                    reload.set(true);
+                    throw e;
+                }
+            }
+            while (started && apply(held))
+                ;
+        }
+        final List<Change> CHANGES = new ArrayList<>(held);
+        held.clear();
+        deliver(CHANGES);
+    }
+
+    /**
+     * Applies one round of pending events, reading everything before changing state;
+     * a failed round leaves state as it was and puts its events back.
+     *
+     * @return false when no event was pending
+     */
+    private boolean apply(List<Change> changes) throws KeeperException, InterruptedException {
+        final List<WatchedEvent> EVENTS = new ArrayList<>();
+        WatchedEvent event;
+        while ((event = pending.poll()) != null)
+            EVENTS.add(event);
+        if (EVENTS.isEmpty())
+            return false;
+        try {
+            apply(EVENTS, changes);
+        } catch (KeeperException | InterruptedException e) {
+            pending.addAll(EVENTS);
+            throw e;
+        }
+        return true;
+    }
+
+    private void apply(List<WatchedEvent> events, List<Change> changes) throws KeeperException,
+            InterruptedException {
+        final Set<String> LISTED = new LinkedHashSet<>();
+        final Set<String> UPDATED = new LinkedHashSet<>();
+        final Set<String> DELETED = new LinkedHashSet<>();
+        for (WatchedEvent event : events) {
+            final String PATH = event.getPath();
+            if (event.getType() == Watcher.Event.EventType.NodeChildrenChanged)
+                LISTED.add(PATH);
+            else if (event.getType() == Watcher.Event.EventType.NodeDataChanged)
+                UPDATED.add(PATH);
+            else if (event.getType() == Watcher.Event.EventType.NodeDeleted && !PATH.equals(rootPath)) {
+                // found deleted by listing its parent, which gives the zxid
+                LISTED.add(ZooKeeperConnection.getParent(PATH));
+                DELETED.add(PATH);
+            } else if (event.getType() == Watcher.Event.EventType.NodeDeleted) {
+                // the whole subtree is dropped, nothing else is left to read
+                remove(rootPath, lastZxid, changes);
+                return;
+            }
+        }
+
+        final List<String> PARENTS = new ArrayList<>();
+        for (String path : LISTED) {
+            if (children.containsKey(path))
+                PARENTS.add(path);
+        }
+        final PipelinedReads LISTINGS = read(PARENTS, false, true);
+        final List<String> RELISTED = new ArrayList<>();
+        for (int idx = 0; idx < PARENTS.size(); idx++) {
+            final PipelinedReads.Result LISTING = LISTINGS.get(idx);
+            if (LISTING.isMissing())
+                continue;
+            LISTING.check(PARENTS.get(idx));
+            for (String child : LISTING.getChildren()) {
+                final String PATH = PARENTS.get(idx) + "/" + child;
+                if (DELETED.contains(PATH) && czxids.containsKey(PATH))
+                    RELISTED.add(PATH);
+            }
+        }
+        // a znode deleted but still listed was created again, told apart by its czxid
+        final Map<String, Set<String>> LOADED_CHILDREN = new HashMap<>();
+        final Map<String, Long> LOADED_MZXIDS = new HashMap<>();
+        final Map<String, Long> LOADED_CZXIDS = new HashMap<>();
+        final List<Change> LOADED = new ArrayList<>();
+        load(RELISTED, -1, LOADED_CHILDREN, LOADED_MZXIDS, LOADED_CZXIDS, new HashMap<String, Long>(), LOADED);
+        final Set<String> RECREATED = new HashSet<>();
+        for (String path : RELISTED) {
+            if (LOADED_CZXIDS.containsKey(path) && !LOADED_CZXIDS.get(path).equals(czxids.get(path)))
+                RECREATED.add(path);
+        }
+        for (Iterator<Change> iterator = LOADED.iterator(); iterator.hasNext();) {
+            final String PATH = iterator.next().getPath();
+            if (!within(PATH, RECREATED)) {
+                iterator.remove();
+                LOADED_CHILDREN.remove(PATH);
+                LOADED_MZXIDS.remove(PATH);
+                LOADED_CZXIDS.remove(PATH);
+            }
+        }
+
+        final List<String> ADDED = new ArrayList<>();
+        for (int idx = 0; idx < PARENTS.size(); idx++) {
+            final PipelinedReads.Result LISTING = LISTINGS.get(idx);
+            // deleted too, found by listing its parent
+            if (LISTING.isMissing() || within(PARENTS.get(idx), RECREATED))
+                continue;
+            for (String child : LISTING.getChildren()) {
+                if (!children.get(PARENTS.get(idx)).contains(child))
+                    ADDED.add(PARENTS.get(idx) + "/" + child);
+            }
+        }
+        load(ADDED, -1, LOADED_CHILDREN, LOADED_MZXIDS, LOADED_CZXIDS, new HashMap<String, Long>(), LOADED);
+
+        final List<String> STALE = new ArrayList<>();
+        for (String path : UPDATED) {
+            if (!path.equals(rootPath) && mzxids.containsKey(path))
+                STALE.add(path);
+        }
+        final PipelinedReads STALE_READS = read(STALE, true, false);
+        for (int idx = 0; idx < STALE.size(); idx++) {
+            if (!STALE_READS.get(idx).isMissing())
+                STALE_READS.get(idx).check(STALE.get(idx));
+        }
+
+        // all read, state is changed from here on
+        for (String path : RECREATED)
+            // deleted right before it was created again, loaded below
+            remove(path, LOADED_CZXIDS.get(path), changes);
+        for (int idx = 0; idx < PARENTS.size(); idx++) {
+            final String PATH = PARENTS.get(idx);
+            final Set<String> KNOWN = children.get(PATH);
+            if (KNOWN == null || LISTINGS.get(idx).isMissing() || within(PATH, RECREATED))
+                continue;
+            final PipelinedReads.Result LISTING = LISTINGS.get(idx);
+            final long PZXID = LISTING.getChildrenStat().getPzxid();
+            for (Iterator<String> iterator = KNOWN.iterator(); iterator.hasNext();) {
+                final String CHILD = iterator.next();
+                if (!LISTING.getChildren().contains(CHILD)) {
+                    iterator.remove();
+                    remove(PATH + "/" + CHILD, PZXID, changes);
+                }
+            }
+            for (String child : LISTING.getChildren()) {
+                // deleted before it was loaded, its parent is listed again
+                if (LOADED_CHILDREN.containsKey(PATH + "/" + child))
+                    KNOWN.add(child);
+            }
+        }
+        children.putAll(LOADED_CHILDREN);
+        mzxids.putAll(LOADED_MZXIDS);
+        czxids.putAll(LOADED_CZXIDS);
+        changes.addAll(LOADED);
+        for (int idx = 0; idx < STALE.size(); idx++) {
+            final String PATH = STALE.get(idx);
+            final PipelinedReads.Result READ = STALE_READS.get(idx);
+            if (READ.isMissing() || !mzxids.containsKey(PATH) || mzxids.get(PATH) == READ.getDataStat().getMzxid())
+                continue;
+            mzxids.put(PATH, READ.getDataStat().getMzxid());
+            changes.add(new Change(Type.UPDATED, PATH, READ.getData(), READ.getDataStat().getVersion(),
+                    READ.getDataStat().getMzxid()));
+        }
+    }
+
+    /**
+     * Loads the subtree again after the session expired, with its watches, and diffs
+     * it against the state held: znodes modified meanwhile are delivered, those gone as
+     * deleted, and those created again as deleted and created.
+     */
+    private void reload(List<Change> changes) throws KeeperException, InterruptedException {
+        final Map<String, Set<String>> LOADED_CHILDREN = new HashMap<>();
+        final Map<String, Long> LOADED_MZXIDS = new HashMap<>();
+        final Map<String, Long> LOADED_CZXIDS = new HashMap<>();
+        final Map<String, Long> PZXIDS = new HashMap<>();
+        final List<Change> LOADED = new ArrayList<>();
+        load(Collections.singletonList(rootPath), -1, LOADED_CHILDREN, LOADED_MZXIDS, LOADED_CZXIDS, PZXIDS,
+                LOADED);
+        final int SIZE = changes.size();
+        for (Change change : LOADED) {
+            final Long MZXID = mzxids.get(change.getPath());
+            final Long CZXID = LOADED_CZXIDS.get(change.getPath());
+            if (MZXID == null)
+                changes.add(change);
+            else if (!CZXID.equals(czxids.get(change.getPath()))) {
+                changes.add(new Change(Type.DELETED, change.getPath(), null, -1, CZXID));
+                changes.add(change);
+            } else if (MZXID != change.getZxid())
+                changes.add(new Change(Type.UPDATED, change.getPath(), change.getData(), change.getVersion(),
+                        change.getZxid()));
+        }
+        deleted(mzxids.keySet(), LOADED_MZXIDS.keySet(), PZXIDS, changes);
+        children.clear();
+        children.putAll(LOADED_CHILDREN);
+        mzxids.clear();
+        mzxids.putAll(LOADED_MZXIDS);
+        czxids.clear();
+        czxids.putAll(LOADED_CZXIDS);
+        LOGGER.info("reloaded change feed of {}, {} changes", rootPath, changes.size() - SIZE);
+    }
+
+    /**
+     * Adds paths held but not found as deleted after the last change of their nearest
+     * ancestor found, or of the root when it is gone as well.
+     */
+    private void deleted(Set<String> held, Set<String> found, Map<String, Long> pzxids, List<Change> changes) {
+        for (String path : new TreeSet<>(held)) {
+            if (found.contains(path) || !path.startsWith(rootPath + "/"))
+                continue;
+            String ancestor = ZooKeeperConnection.getParent(path);
+            while (!ancestor.equals(rootPath) && !pzxids.containsKey(ancestor))
+                ancestor = ZooKeeperConnection.getParent(ancestor);
+            final Long PZXID = pzxids.get(ancestor);
+            changes.add(new Change(Type.DELETED, path, null, -1, (PZXID != null) ? PZXID : lastZxid));
+        }
+    }
+
+    /**
+     * Reads new subtrees with watches, level by level, into children, mzxid and czxid
+     * by znode path given. Znodes modified after checkpoint are delivered, as created
+     * when also created after it.
+     */
+    private void load(List<String> paths, long checkpoint, Map<String, Set<String>> children,
+            Map<String, Long> mzxids, Map<String, Long> czxids, Map<String, Long> pzxids, List<Change> changes)
+            throws KeeperException, InterruptedException {
+        List<String> level = paths;
+        while (!level.isEmpty()) {
+            final PipelinedReads READS = read(level, true, true);
+            List<String> next = new ArrayList<>();
+            for (int idx = 0; idx < level.size(); idx++) {
+                final String PATH = level.get(idx);
+                final PipelinedReads.Result READ = READS.get(idx);
+                if (READ.isMissing())
+                    continue;
+                READ.check(PATH);
+                final Stat STAT = READ.getDataStat();
+                if (!PATH.equals(rootPath)) {
+                    mzxids.put(PATH, STAT.getMzxid());
+                    czxids.put(PATH, STAT.getCzxid());
+                    if (STAT.getCzxid() > checkpoint)
+                        changes.add(new Change(Type.CREATED, PATH, READ.getData(), STAT.getVersion(),
+                                STAT.getMzxid()));
+                    else if (STAT.getMzxid() > checkpoint)
+                        changes.add(new Change(Type.UPDATED, PATH, READ.getData(), STAT.getVersion(),
+                                STAT.getMzxid()));
+                }
+                pzxids.put(PATH, READ.getChildrenStat().getPzxid());
+                children.put(PATH, new HashSet<>(READ.getChildren()));
+                for (String child : READ.getChildren())
+                    next.add(PATH + "/" + child);
+            }
+            level = next;
+        }
+    }
+
+    /**
+     * Drops a znode and its subtree, delivered as deleted at zxid.
+     */
+    private void remove(String path, long zxid, List<Change> changes) {
+        final Set<String> CHILDREN = children.remove(path);
+        if (CHILDREN != null) {
+            for (String child : CHILDREN)
+                remove(path + "/" + child, zxid, changes);
+        }
+        czxids.remove(path);
+        if (!path.equals(rootPath) && mzxids.remove(path) != null)
+            changes.add(new Change(Type.DELETED, path, null, -1, zxid));
+    }
+
+    /**
+     * @return whether path is one of roots or below one of them
+     */
+    private boolean within(String path, Set<String> roots) {
+        if (roots.isEmpty())
+            return false;
+        for (String ancestor = path; ancestor.startsWith(rootPath + "/"); ancestor = ZooKeeperConnection
+                .getParent(ancestor)) {
+            if (roots.contains(ancestor))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Queues changes in zxid order, waiting while the queue is full.
+     */
+    private void deliver(List<Change> changes) throws InterruptedException {
+        if (changes.isEmpty())
+            return;
+        Collections.sort(changes, ZXID_ORDER);
+        for (Change change : changes) {
+            queue.put(change);
+            lastZxid = Math.max(lastZxid, change.getZxid());
+        }
+        this.changes.addAndGet(changes.size());
+        LOGGER.debug("{} queued {} changes up to zxid {}", rootPath, changes.size(), lastZxid);
+    }
+
+    /**
+     * Sends reads of all paths without waiting in between, with watches.
+     */
+    private PipelinedReads read(List<String> paths, boolean readData, boolean listChildren)
+            throws InterruptedException {
+        if (paths.isEmpty())
+            return new PipelinedReads(0, readData, listChildren);
+        final PipelinedReads READS = PipelinedReads.read(zkConnection, paths, watcher, readData, listChildren);
+        reads.addAndGet(paths.size());
+        return READS;
+    }
+
+    /**
+     * Registered on all znodes of the subtree. A single instance is not duplicated by
+     * zookeeper when registered again on the same znode. Events are queued and applied
+     * together by one refresh.
+     */
+    class FeedWatcher implements Watcher {
+        private WeakReference<ZooKeeperConnection> zkConnectionRef;
+
+        public FeedWatcher(ZooKeeperConnection zkConnection) {
+            this.zkConnectionRef = new WeakReference<ZooKeeperConnection>(zkConnection);
+        }
+
+        @Override
+        public void process(WatchedEvent event) {
+            if (!started || zkConnectionRef.get() == null)
+                return;
+            if (event.getType() != Event.EventType.None)
+                pending.add(event);
+            else if (event.getState() == Event.KeeperState.Expired)
+                // watches of the session are gone, set again by a reload
+                reload.set(true);
+            else
+                return;
+            if (scheduled.compareAndSet(false, true))
+                schedule(0);
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lyn.util.zookeeper.PipelinedReads;
+import lyn.util.zookeeper.ZooKeeperConnection;
+import lyn.util.zookeeper.recipes.GroupMembership;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A group membership keeping a local view of members by watches.
+ * <ul>
+ * <li>a children watch on group znode reports joins and leaves, only members added
+ * since the last listing are read, in one pipelined round trip</li>
+ * <li>a data watch on each member znode reports payload updates of that member</li>
+ * <li>the view is an immutable map replaced on every change, so it is read without
+ * locks</li>
+ * </ul>
+ * Events are handled by a refresh thread, since pipelined reads cannot complete on
+ * zookeeper event thread which delivers their results. A failed refresh may leave
+ * watches unset, so it is followed by a reload of all members, retried with backoff
+ * until it succeeds; so is an expired session once connected again.
+ * 
+ * @author Yanpeng Lin
+ */
+public class WatchedGroupMembership implements GroupMembership {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WatchedGroupMembership.class);
+
+    /* delay of the first retry of a failed refresh, doubled up to the maximum */
+    private static final long RETRY_MILLIS = 100;
+    private static final long MAX_RETRY_MILLIS = 10000;
+
+    private final ZooKeeperConnection zkConnection;
+
+    private final String groupPath;
+
+    private volatile Map<String, byte[]> members = Collections.emptyMap();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /* registered on group and member znodes, reused so that it is not duplicated */
+    private final GroupWatcher watcher;
+
+    private volatile boolean started = false;
+
+    private ScheduledExecutorService refresher = null;
+
+    /* set when watches may be lost, all members are read again by the next refresh */
+    private final AtomicBoolean reload = new AtomicBoolean();
+
+    /* confined to refresh thread: refreshes failed in a row */
+    private int failures = 0;
+
+    /* member znode joined by this process, null when not joined */
+    private volatile String memberPath = null;
+
+    private final AtomicLong reads = new AtomicLong();
+
+    public WatchedGroupMembership(ZooKeeperConnection zkConnection, String group) {
+        this.zkConnection = zkConnection;
+        this.groupPath = ZooKeeperConnection.buildPath(GROUPS, group);
+        this.watcher = new GroupWatcher(zkConnection);
+    }
+
+    public String getGroupPath() {
+        return groupPath;
+    }
+
+    /**
+     * @return member payloads read from zookeeper
+     */
+    public long getReads() {
+        return reads.get();
+    }
+
+    /**
+     * Builds the view of members and starts following changes.
+     * 
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public void start() throws KeeperException, InterruptedException {
+        ZooKeeperConnection.createFullPath(zkConnection, groupPath, new byte[0], CreateMode.PERSISTENT, true);
+        refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "group-refresh-" + groupPath);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        started = true;
+        refresh();
+    }
+
+    /**
+     * Stops following changes, pending watches are ignored once they fire.
+     */
+    public void close() {
+        started = false;
+        if (refresher != null)
+            refresher.shutdownNow();
+    }
+
+    @Override
+    public void join(String memberId, byte[] payload) throws KeeperException, InterruptedException {
+        if (memberPath != null)
+            throw new IllegalStateException("already joined as " + memberPath);
+        final String MEMBER_PATH = ZooKeeperConnection.buildPath(groupPath, memberId);
+        try {
+            zkConnection.create(MEMBER_PATH, payload, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+        } catch (KeeperException.NoNodeException e) {
+            ZooKeeperConnection.createFullPath(zkConnection, MEMBER_PATH, payload, CreateMode.EPHEMERAL);
+        }
+        memberPath = MEMBER_PATH;
+    }
+
+    @Override
+    public void update(byte[] payload) throws KeeperException, InterruptedException {
+        if (memberPath == null)
+            throw new IllegalStateException("not joined");
+        zkConnection.setData(memberPath, payload, -1);
+    }
+
+    @Override
+    public void leave() throws KeeperException, InterruptedException {
+        final String MEMBER_PATH = memberPath;
+        if (MEMBER_PATH == null)
+            return;
+        try {
+            zkConnection.delete(MEMBER_PATH, -1);
+        } catch (KeeperException.NoNodeException e) {
+            // member znode already gone with session
+        }
+        memberPath = null;
+    }
+
+    @Override
+    public Map<String, byte[]> getMembers() {
+        return members;
+    }
+
+    @Override
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Lists members, reads added ones and drops removed ones.
+     */
+    synchronized void refresh() throws KeeperException, InterruptedException {
+        if (!started)
+            return;
+        final Set<String> LISTED = new HashSet<>(zkConnection.getChildren(groupPath, watcher));
+        final Map<String, byte[]> CURRENT = members;
+
+        List<String> removed = new ArrayList<>();
+        for (String memberId : CURRENT.keySet()) {
+            if (!LISTED.contains(memberId))
+                removed.add(memberId);
+        }
+        List<String> added = new ArrayList<>();
+        for (String memberId : LISTED) {
+            if (!CURRENT.containsKey(memberId))
+                added.add(memberId);
+        }
+        if (removed.isEmpty() && added.isEmpty())
+            return;
+
+        final Map<String, byte[]> READ = read(added);
+        Map<String, byte[]> next = new TreeMap<>(CURRENT);
+        for (String memberId : removed)
+            next.remove(memberId);
+        next.putAll(READ);
+        members = Collections.unmodifiableMap(next);
+
+        for (String memberId : removed) {
+            for (Listener listener : listeners)
+                listener.memberRemoved(memberId);
+        }
+        for (Map.Entry<String, byte[]> member : READ.entrySet()) {
+            for (Listener listener : listeners)
+                listener.memberAdded(member.getKey(), member.getValue());
+        }
+        LOGGER.debug("{} members of {}, +{} -{}", next.size(), groupPath, READ.size(), removed.size());
+    }
+
+    /**
+     * Lists and reads all members, setting every watch again, and reports the
+     * difference from the view.
+     */
+    synchronized void reload() throws KeeperException, InterruptedException {
+        if (!started)
+            return;
+        final Map<String, byte[]> READ = read(zkConnection.getChildren(groupPath, watcher));
+        final Map<String, byte[]> CURRENT = members;
+        members = Collections.unmodifiableMap(READ);
+
+        for (String memberId : CURRENT.keySet()) {
+            if (!READ.containsKey(memberId)) {
+                for (Listener listener : listeners)
+                    listener.memberRemoved(memberId);
+            }
+        }
+        for (Map.Entry<String, byte[]> member : READ.entrySet()) {
+            final byte[] PREVIOUS = CURRENT.get(member.getKey());
+            if (PREVIOUS == null) {
+                for (Listener listener : listeners)
+                    listener.memberAdded(member.getKey(), member.getValue());
+            } else if (!Arrays.equals(PREVIOUS, member.getValue())) {
+                for (Listener listener : listeners)
+                    listener.memberUpdated(member.getKey(), member.getValue());
+            }
+        }
+        LOGGER.info("reloaded {} members of {}", READ.size(), groupPath);
+    }
+
+    /**
+     * Reads payloads and sets data watches in one pipelined round trip. Members
+     * removed meanwhile are skipped, their removal is reported by children watch.
+     */
+    private Map<String, byte[]> read(List<String> memberIds) throws KeeperException, InterruptedException {
+        final List<String> PATHS = new ArrayList<>(memberIds.size());
+        for (String memberId : memberIds)
+            PATHS.add(groupPath + "/" + memberId);
+        final PipelinedReads READS = PipelinedReads.read(zkConnection, PATHS, watcher, true, false);
+        reads.addAndGet(memberIds.size());
+
+        Map<String, byte[]> read = new TreeMap<>();
+        for (int idx = 0; idx < memberIds.size(); idx++) {
+            final PipelinedReads.Result RESULT = READS.get(idx);
+            if (RESULT.isMissing())
+                continue;
+            RESULT.check(PATHS.get(idx));
+            read.put(memberIds.get(idx), RESULT.getData());
+        }
+        return read;
+    }
+
+    /**
+     * Re-reads payload of an updated member.
+     */
+    synchronized void refreshMember(String memberId) throws KeeperException, InterruptedException {
+        if (!started || !members.containsKey(memberId))
+            return;
+        final byte[] PAYLOAD;
+        try {
+            PAYLOAD = zkConnection.getData(groupPath + "/" + memberId, watcher, null);
+        } catch (KeeperException.NoNodeException e) {
+            // removal is reported by children watch
+            return;
+        }
+        reads.incrementAndGet();
+        Map<String, byte[]> next = new TreeMap<>(members);
+        next.put(memberId, PAYLOAD);
+        members = Collections.unmodifiableMap(next);
+        for (Listener listener : listeners)
+            listener.memberUpdated(memberId, PAYLOAD);
+    }
+
+    /**
+     * Handles an event on refresh thread after a delay, or reloads all members instead
+     * when watches may be lost. A failure is retried by a reload with backoff until it
+     * succeeds or the view is closed.
+     *
+     * @param event null to reload only
+     * @param delayMillis
+     */
+    private void schedule(final WatchedEvent event, long delayMillis) {
+        try {
+            refresher.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (reload.getAndSet(false))
+                            reload();
+                        else if (event != null && event.getType() == Watcher.Event.EventType.NodeChildrenChanged)
+                            refresh();
+                        else if (event != null && event.getType() == Watcher.Event.EventType.NodeDataChanged)
+                            refreshMember(ZooKeeperConnection.getName(event.getPath()));
+                        failures = 0;
+                    } catch (KeeperException e) {
+                        LOGGER.warn("failed to refresh members of " + groupPath + ", retrying", e);
+                        failures++;
+                        reload.set(true);
+                        schedule(null, Math.min(MAX_RETRY_MILLIS, RETRY_MILLIS << Math.min(failures - 1, 16)));
+                    } catch (InterruptedException e) {
+                        // closed
+                    }
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // closed meanwhile
+        }
+    }
+
+    /**
+     * Registered on group and member znodes. A single instance is not duplicated by
+     * zookeeper when registered again on the same znode.
+     */
+    class GroupWatcher implements Watcher {
+        private WeakReference<ZooKeeperConnection> zkConnectionRef;
+
+        public GroupWatcher(ZooKeeperConnection zkConnection) {
+            this.zkConnectionRef = new WeakReference<ZooKeeperConnection>(zkConnection);
+        }
+
+        @Override
+        public void process(final WatchedEvent event) {
+            if (!started || zkConnectionRef.get() == null)
+                return;
+            if (event.getType() == Event.EventType.None) {
+                if (event.getState() != Event.KeeperState.Expired)
+                    return;
+                // watches of the session are gone, set again by a reload
+                reload.set(true);
+            }
+            schedule(event, 0);
+        }
+    }
+}
@@ -0,0 +1,508 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lyn.util.zookeeper.PipelinedReads;
+import lyn.util.zookeeper.ZooKeeperConnection;
+import lyn.util.zookeeper.recipes.SharedConfig;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A shared configuration following the subtree of <code>/configs/&lt;name&gt;</code>
+ * by watches, a children watch and a data watch on every znode.
+ * <ul>
+ * <li>readers get an immutable snapshot by a volatile read, which is replaced as a
+ * whole, so they never see a partial update and never take a lock</li>
+ * <li>events received together are applied to one snapshot, and reads of new or
+ * updated znodes are pipelined, one round trip per subtree level</li>
+ * <li>decoded values are cached on the entry of a key, which is replaced only when its
+ * mzxid changes, so a value is decoded once per change and decoder</li>
+ * <li>a refresh reads before it changes anything, a failed one keeps its events and
+ * is retried with backoff, and the subtree is reloaded once its session expired</li>
+ * </ul>
+ * Events are handled by a refresh thread, since pipelined reads cannot complete on
+ * zookeeper event thread which delivers their results.
+ *
+ * @author Yanpeng Lin
+ */
+public class WatchedSharedConfig implements SharedConfig {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WatchedSharedConfig.class);
+
+    /* cached in place of a null decoded value */
+    private static final Object NULL = new Object();
+
+    /* delay of the first retry of a failed refresh, doubled up to the maximum */
+    private static final long RETRY_MILLIS = 100;
+    private static final long MAX_RETRY_MILLIS = 10000;
+
+    private final ZooKeeperConnection zkConnection;
+
+    private final String configPath;
+
+    private volatile ConfigSnapshot snapshot = new ConfigSnapshot(0, Collections.<String, Entry> emptyMap());
+
+    /* confined to refresh thread after start: entries by key and children by znode path */
+    private final TreeMap<String, Entry> entries = new TreeMap<>();
+    private final Map<String, Set<String>> children = new HashMap<>();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /* registered on all znodes of the subtree, reused so that it is not duplicated */
+    private final ConfigWatcher watcher;
+
+    private final ConcurrentLinkedQueue<WatchedEvent> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicBoolean reload = new AtomicBoolean();
+
+    private volatile boolean started = false;
+
+    private ScheduledExecutorService refresher = null;
+
+    /* confined to refresh thread: refreshes failed in a row */
+    private int failures = 0;
+
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong decodes = new AtomicLong();
+
+    public WatchedSharedConfig(ZooKeeperConnection zkConnection, String name) {
+        this.zkConnection = zkConnection;
+        this.configPath = ZooKeeperConnection.buildPath(CONFIGS, name);
+        this.watcher = new ConfigWatcher(zkConnection);
+    }
+
+    public String getConfigPath() {
+        return configPath;
+    }
+
+    /**
+     * @return znodes read from zookeeper
+     */
+    public long getReads() {
+        return reads.get();
+    }
+
+    /**
+     * @return values decoded, cache hits excluded
+     */
+    public long getDecodes() {
+        return decodes.get();
+    }
+
+    /**
+     * Loads the subtree and starts following changes.
+     *
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public void start() throws KeeperException, InterruptedException {
+        ZooKeeperConnection.createFullPath(zkConnection, configPath, new byte[0], CreateMode.PERSISTENT, true);
+        refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "config-refresh-" + configPath);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        started = true;
+        synchronized (this) {
+            load(Collections.singletonList(configPath), entries, children);
+            publish(new TreeSet<>(entries.keySet()));
+        }
+    }
+
+    /**
+     * Stops following changes, pending watches are ignored once they fire.
+     */
+    public void close() {
+        started = false;
+        if (refresher != null)
+            refresher.shutdownNow();
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    @Override
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Applies all pending events and replaces the snapshot once. Reads are done before
+     * any change, so a failed refresh leaves state as it was and keeps its events.
+     */
+    synchronized void refresh() throws KeeperException, InterruptedException {
+        scheduled.set(false);
+        if (!started)
+            return;
+        final List<WatchedEvent> EVENTS = new ArrayList<>();
+        WatchedEvent event;
+        while ((event = pending.poll()) != null)
+            EVENTS.add(event);
+        final boolean RELOAD = reload.getAndSet(false);
+        try {
+            final Set<String> CHANGED = RELOAD ? reload() : apply(EVENTS);
+            if (!CHANGED.isEmpty())
+                publish(CHANGED);
+        } catch (KeeperException | InterruptedException e) {
+            // applied again by the next refresh
+            pending.addAll(EVENTS);
+            if (RELOAD)
+                reload.set(true);
+            throw e;
+        }
+    }
+
+    private Set<String> apply(List<WatchedEvent> events) throws KeeperException, InterruptedException {
+        final Set<String> LISTED = new LinkedHashSet<>();
+        final Set<String> UPDATED = new LinkedHashSet<>();
+        final Set<String> DELETED = new LinkedHashSet<>();
+        for (WatchedEvent event : events) {
+            if (event.getType() == Watcher.Event.EventType.NodeChildrenChanged && children.containsKey(event.getPath()))
+                LISTED.add(event.getPath());
+            else if (event.getType() == Watcher.Event.EventType.NodeDataChanged)
+                UPDATED.add(event.getPath());
+            else if (event.getType() == Watcher.Event.EventType.NodeDeleted)
+                DELETED.add(event.getPath());
+        }
+
+        final List<String> PARENTS = new ArrayList<>(LISTED);
+        final PipelinedReads LISTINGS = read(PARENTS, false, true);
+        final List<String> ADDED = new ArrayList<>();
+        for (int idx = 0; idx < PARENTS.size(); idx++) {
+            final PipelinedReads.Result LISTING = LISTINGS.get(idx);
+            if (LISTING.isMissing()) {
+                DELETED.add(PARENTS.get(idx));
+                continue;
+            }
+            LISTING.check(PARENTS.get(idx));
+            for (String child : LISTING.getChildren()) {
+                if (!children.get(PARENTS.get(idx)).contains(child))
+                    ADDED.add(PARENTS.get(idx) + "/" + child);
+            }
+        }
+        // a znode deleted and created again is still listed, its subtree is loaded anew
+        for (String path : DELETED) {
+            final int PARENT = PARENTS.indexOf(path.substring(0, Math.max(0, path.lastIndexOf('/'))));
+            if (PARENT < 0 || LISTINGS.get(PARENT).getChildren().contains(ZooKeeperConnection.getName(path)))
+                ADDED.add(path);
+        }
+        final Map<String, Entry> LOADED = new HashMap<>();
+        final Map<String, Set<String>> LOADED_CHILDREN = new HashMap<>();
+        load(ADDED, LOADED, LOADED_CHILDREN);
+
+        final List<String> STALE = new ArrayList<>();
+        for (String path : UPDATED) {
+            if (!path.equals(configPath) && entries.containsKey(key(path)) && !DELETED.contains(path))
+                STALE.add(path);
+        }
+        final Map<String, Entry> RELOADED = update(STALE);
+
+        // all read, state is changed from here on
+        final Set<String> CHANGED = new TreeSet<>();
+        for (String path : DELETED)
+            remove(path, CHANGED);
+        for (int idx = 0; idx < PARENTS.size(); idx++) {
+            final String PATH = PARENTS.get(idx);
+            final Set<String> KNOWN = children.get(PATH);
+            if (KNOWN == null || LISTINGS.get(idx).isMissing())
+                continue;
+            final List<String> LISTING = LISTINGS.get(idx).getChildren();
+            for (Iterator<String> iterator = KNOWN.iterator(); iterator.hasNext();) {
+                final String CHILD = iterator.next();
+                if (!LISTING.contains(CHILD)) {
+                    iterator.remove();
+                    remove(PATH + "/" + CHILD, CHANGED);
+                }
+            }
+            for (String child : LISTING) {
+                // deleted before it was loaded, its parent is listed again
+                if (LOADED_CHILDREN.containsKey(PATH + "/" + child))
+                    KNOWN.add(child);
+            }
+        }
+        children.putAll(LOADED_CHILDREN);
+        entries.putAll(LOADED);
+        CHANGED.addAll(LOADED.keySet());
+        for (Map.Entry<String, Entry> entry : RELOADED.entrySet()) {
+            if (entries.containsKey(entry.getKey())) {
+                entries.put(entry.getKey(), entry.getValue());
+                CHANGED.add(entry.getKey());
+            }
+        }
+        return CHANGED;
+    }
+
+    /**
+     * Loads the subtree again after the session expired, with its watches, and keeps
+     * entries not modified meanwhile along with their decoded values.
+     */
+    private Set<String> reload() throws KeeperException, InterruptedException {
+        final Map<String, Entry> LOADED = new HashMap<>();
+        final Map<String, Set<String>> LOADED_CHILDREN = new HashMap<>();
+        load(Collections.singletonList(configPath), LOADED, LOADED_CHILDREN);
+        final Set<String> CHANGED = new TreeSet<>(entries.keySet());
+        CHANGED.removeAll(LOADED.keySet());
+        for (Map.Entry<String, Entry> entry : LOADED.entrySet()) {
+            final Entry CURRENT = entries.get(entry.getKey());
+            if (CURRENT != null && CURRENT.mzxid == entry.getValue().mzxid)
+                entry.setValue(CURRENT);
+            else
+                CHANGED.add(entry.getKey());
+        }
+        entries.clear();
+        entries.putAll(LOADED);
+        children.clear();
+        children.putAll(LOADED_CHILDREN);
+        LOGGER.info("reloaded config of {}, {} keys changed", configPath, CHANGED.size());
+        return CHANGED;
+    }
+
+    private void publish(Set<String> changed) {
+        final ConfigSnapshot SNAPSHOT = new ConfigSnapshot(snapshot.version + 1,
+                Collections.unmodifiableMap(new TreeMap<>(entries)));
+        snapshot = SNAPSHOT;
+        LOGGER.debug("{} version {}, {} keys changed", configPath, SNAPSHOT.version, changed.size());
+        final Set<String> CHANGED = Collections.unmodifiableSet(changed);
+        for (Listener listener : listeners)
+            listener.configChanged(SNAPSHOT, CHANGED);
+    }
+
+    /**
+     * Reads data and children of new subtrees with watches, level by level, into
+     * entries by key and children by znode path given.
+     */
+    private void load(List<String> paths, Map<String, Entry> entries, Map<String, Set<String>> children)
+            throws KeeperException, InterruptedException {
+        List<String> level = paths;
+        while (!level.isEmpty()) {
+            final PipelinedReads READS = read(level, true, true);
+            List<String> next = new ArrayList<>();
+            for (int idx = 0; idx < level.size(); idx++) {
+                final String PATH = level.get(idx);
+                final PipelinedReads.Result READ = READS.get(idx);
+                if (READ.isMissing())
+                    continue;
+                READ.check(PATH);
+                if (!PATH.equals(configPath))
+                    entries.put(key(PATH), new Entry(READ.getData(), READ.getDataStat().getMzxid()));
+                children.put(PATH, new TreeSet<>(READ.getChildren()));
+                for (String child : READ.getChildren())
+                    next.add(PATH + "/" + child);
+            }
+            level = next;
+        }
+    }
+
+    /**
+     * Re-reads data of updated znodes with watches.
+     *
+     * @return entries modified by key
+     */
+    private Map<String, Entry> update(List<String> paths) throws KeeperException, InterruptedException {
+        final Map<String, Entry> UPDATED = new HashMap<>();
+        final PipelinedReads READS = read(paths, true, false);
+        for (int idx = 0; idx < paths.size(); idx++) {
+            final PipelinedReads.Result READ = READS.get(idx);
+            if (READ.isMissing())
+                continue;
+            READ.check(paths.get(idx));
+            final String KEY = key(paths.get(idx));
+            final Entry CURRENT = entries.get(KEY);
+            if (CURRENT != null && CURRENT.mzxid == READ.getDataStat().getMzxid())
+                continue;
+            UPDATED.put(KEY, new Entry(READ.getData(), READ.getDataStat().getMzxid()));
+        }
+        return UPDATED;
+    }
+
+    /**
+     * Drops a znode and its subtree.
+     */
+    private void remove(String path, Set<String> changed) {
+        final Set<String> CHILDREN = children.remove(path);
+        if (CHILDREN != null) {
+            for (String child : CHILDREN)
+                remove(path + "/" + child, changed);
+        }
+        if (!path.equals(configPath) && entries.remove(key(path)) != null)
+            changed.add(key(path));
+    }
+
+    private String key(String path) {
+        return path.substring(configPath.length() + 1);
+    }
+
+    /**
+     * Sends reads of all paths without waiting in between, data watches and
+     * optionally children watches are set on each of them.
+     */
+    private PipelinedReads read(List<String> paths, boolean readData, boolean listChildren)
+            throws InterruptedException {
+        if (paths.isEmpty())
+            return new PipelinedReads(0, readData, listChildren);
+        final PipelinedReads READS = PipelinedReads.read(zkConnection, paths, watcher, readData, listChildren);
+        reads.addAndGet(paths.size());
+        return READS;
+    }
+
+    /**
+     * Refreshes on refresh thread after a delay, a failed refresh is retried with
+     * backoff until it succeeds or the config is closed.
+     */
+    private void schedule(long delayMillis) {
+        try {
+            refresher.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refresh();
+                        failures = 0;
+                    } catch (KeeperException e) {
+                        LOGGER.warn("failed to refresh config of " + configPath + ", retrying", e);
+                        failures++;
+                        if (scheduled.compareAndSet(false, true))
+                            schedule(Math.min(MAX_RETRY_MILLIS, RETRY_MILLIS << Math.min(failures - 1, 16)));
+                    } catch (InterruptedException e) {
+                        // closed
+                    }
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // closed meanwhile
+        }
+    }
+
+    /**
+     * Value of a key at one mzxid, with values decoded from it.
+     */
+    final class Entry {
+        final byte[] data;
+        final long mzxid;
+        final ConcurrentHashMap<Decoder<?>, Object> decoded = new ConcurrentHashMap<>(2);
+
+        Entry(byte[] data, long mzxid) {
+            this.data = (data != null) ? data : new byte[0];
+            this.mzxid = mzxid;
+        }
+
+        @SuppressWarnings("unchecked")
+        <T> T decode(Decoder<T> decoder) {
+            Object value = decoded.get(decoder);
+            if (value == null) {
+                // decoded at most a few times when raced, the first one is kept
+                decodes.incrementAndGet();
+                final T DECODED = decoder.decode(data);
+                value = decoded.putIfAbsent(decoder, (DECODED != null) ? DECODED : NULL);
+                if (value == null)
+                    return DECODED;
+            }
+            return (value == NULL) ? null : (T) value;
+        }
+    }
+
+    static class ConfigSnapshot implements Snapshot {
+        private final long version;
+        private final Map<String, Entry> entries;
+
+        ConfigSnapshot(long version, Map<String, Entry> entries) {
+            this.version = version;
+            this.entries = entries;
+        }
+
+        @Override
+        public long getVersion() {
+            return version;
+        }
+
+        @Override
+        public Set<String> keys() {
+            return entries.keySet();
+        }
+
+        @Override
+        public byte[] get(String key) {
+            final Entry ENTRY = entries.get(key);
+            return (ENTRY != null) ? ENTRY.data : null;
+        }
+
+        @Override
+        public long getMzxid(String key) {
+            final Entry ENTRY = entries.get(key);
+            return (ENTRY != null) ? ENTRY.mzxid : -1;
+        }
+
+        @Override
+        public <T> T get(String key, Decoder<T> decoder) {
+            final Entry ENTRY = entries.get(key);
+            return (ENTRY != null) ? ENTRY.decode(decoder) : null;
+        }
+
+        @Override
+        public String toString() {
+            return "version " + version + " " + entries.keySet();
+        }
+    }
+
+    /**
+     * Registered on all znodes of the subtree. A single instance is not duplicated by
+     * zookeeper when registered again on the same znode. Events are queued and applied
+     * together by one refresh.
+     */
+    class ConfigWatcher implements Watcher {
+        private WeakReference<ZooKeeperConnection> zkConnectionRef;
+
+        public ConfigWatcher(ZooKeeperConnection zkConnection) {
+            this.zkConnectionRef = new WeakReference<ZooKeeperConnection>(zkConnection);
+        }
+
+        @Override
+        public void process(WatchedEvent event) {
+            if (!started || zkConnectionRef.get() == null)
+                return;
+            if (event.getType() != Event.EventType.None)
+                pending.add(event);
+            else if (event.getState() == Event.KeeperState.Expired)
+                // watches of the session are gone, set again by a reload
+                reload.set(true);
+            else
+                return;
+            if (scheduled.compareAndSet(false, true))
+                schedule(0);
+        }
+    }
+}
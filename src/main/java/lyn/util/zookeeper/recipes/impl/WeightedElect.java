@@ -0,0 +1,383 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import lyn.util.zookeeper.PipelinedReads;
+import lyn.util.zookeeper.ZooKeeperConnection;
+import lyn.util.zookeeper.recipes.Elect;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An election where candidates publish a score, like a priority or negated load, in
+ * their member znode and the candidate with highest score leads. Ties fall back to
+ * sequential id.
+ * <p>
+ * The incumbent leader is recorded in data of election znode, /elect by default, and
+ * replaced by a versioned update only when a challenger scores better by more than
+ * <code>hysteresis</code>, so leadership does not flap. Re-ranking is done by the
+ * candidate whose score changed. When the incumbent is lost, the candidate with
+ * smallest sequential id elects the best one.
+ * <p>
+ * No candidate watches children of election znode, so candidates joining or leaving
+ * wake up nobody. Each candidate watches data of election znode and the member znode
+ * of the incumbent, or of the candidate electing a new one while the incumbent is
+ * lost. Scores are read in one round trip, so events are evaluated off zookeeper
+ * event thread, which delivers the results.
+ * <p>
+ * The fencing token is the mzxid of election znode when this candidate became
+ * incumbent, which grows with every leader change.
+ *
+ * @author Yanpeng Lin
+ */
+public class WeightedElect extends NaiveElect implements Elect<Object> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WeightedElect.class);
+
+    /* election member name prefix */
+    private final String MEMBER_PREFIX = "wgt_";
+
+    private volatile double score;
+
+    private final double hysteresis;
+
+    /* latest state passed to update */
+    private volatile ElectState reported = null;
+
+    /* registered on data of election znode and on the member znode watched, reused so that it is not duplicated */
+    private WeightedWatcher watcher = null;
+
+    /* evaluates events one at a time, its thread ends when idle */
+    private final ExecutorService evaluator = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "weighted-elect");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    public WeightedElect(double score, double hysteresis) {
+        this(ELECTION, score, hysteresis);
+    }
+
+    /**
+     * @param election election znode, so that unrelated elections do not share members
+     * @param score
+     * @param hysteresis
+     */
+    public WeightedElect(String election, double score, double hysteresis) {
+        super(election);
+        if (hysteresis < 0)
+            throw new IllegalArgumentException("hysteresis must not be negative");
+        this.score = score;
+        this.hysteresis = hysteresis;
+    }
+
+    public double getScore() {
+        return score;
+    }
+
+    @Override
+    public ElectState participate(ZooKeeperConnection zkConnection, boolean isStartElection)
+            throws KeeperException, InterruptedException {
+        final String MEMBER_PATH_PREFIX = election + "/" + MEMBER_PREFIX;
+
+        if (zkConnection == null || !zkConnection.isConnected())
+            return enter(ElectState.LOSTCONNECTION);
+
+        if (zkConnection.exists(election, false) == null) {
+            if (!isStartElection)
+                return enter(ElectState.NOELECTION);
+            // initialize election when `isStartElection = true`
+            ZooKeeperConnection.createFullPath(zkConnection, election, new byte[0], CreateMode.PERSISTENT, true);
+        }
+
+        fencingToken = -1;
+        memberPath = zkConnection.create(MEMBER_PATH_PREFIX, memberData(), ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                CreateMode.EPHEMERAL_SEQUENTIAL);
+
+        watcher = new WeightedWatcher(zkConnection, this);
+        ElectState state = evaluate(zkConnection, watcher);
+        // challenge incumbent when joining with a better score
+        if (state == ElectState.LEADED && rerank(zkConnection))
+            state = evaluate(zkConnection, watcher);
+        reported = state;
+        return enter(state);
+    }
+
+    /**
+     * Publishes a new score and re-ranks when it crosses the hysteresis threshold
+     * against current incumbent.
+     * 
+     * @param zkConnection
+     * @param score
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public void updateScore(ZooKeeperConnection zkConnection, double score) throws KeeperException,
+            InterruptedException {
+        this.score = score;
+        if (memberPath == null)
+            return;
+        zkConnection.setData(memberPath, memberData(), -1);
+        rerank(zkConnection);
+    }
+
+    /**
+     * Hands leadership to the best remaining candidate, then withdraws from election.
+     * The successor is notified by watch on election znode without warming up.
+     */
+    @Override
+    public boolean abdicate(ZooKeeperConnection zkConnection, long timeoutMillis) throws KeeperException,
+            InterruptedException {
+        final String MEMBER_PATH = memberPath;
+        if (MEMBER_PATH == null)
+            throw new IllegalStateException("not participating in election");
+        final long START_NANOS = System.nanoTime();
+        final String MEMBER_NAME = ZooKeeperConnection.getName(MEMBER_PATH);
+        boolean handedOff = false;
+
+        while (System.nanoTime() - START_NANOS < timeoutMillis * 1000000L) {
+            Stat electionStat = new Stat();
+            if (!MEMBER_NAME.equals(decode(zkConnection.getData(election, false, electionStat))))
+                break;
+            List<String> candidates = zkConnection.getChildren(election, false);
+            candidates.remove(MEMBER_NAME);
+            Scored best = best(zkConnection, candidates);
+            if (best == null || casIncumbent(zkConnection, best.name, electionStat.getVersion())) {
+                handedOff = best != null;
+                break;
+            }
+        }
+
+        try {
+            zkConnection.delete(MEMBER_PATH, -1);
+        } catch (KeeperException.NoNodeException e) {
+            // member znode already gone with session
+        }
+        memberPath = null;
+        lastHandoffNanos = System.nanoTime() - START_NANOS;
+        LOGGER.info("{} abdicated in {}ns, handed off: {}", MEMBER_PATH, lastHandoffNanos, handedOff);
+        return handedOff;
+    }
+
+    @Override
+    byte[] memberData() {
+        byte[] payload = super.memberData();
+        return ByteBuffer.allocate(8 + payload.length).putDouble(score).put(payload).array();
+    }
+
+    /**
+     * Resolves state of this candidate and watches data of election znode for incumbent
+     * changes, and the member znode of the incumbent for its loss. While the incumbent
+     * is lost, the candidate with smallest sequential id elects the best one and the
+     * others watch it instead, to take over if it is lost too.
+     */
+    ElectState evaluate(ZooKeeperConnection zkConnection, Watcher watcher) throws KeeperException,
+            InterruptedException {
+        final String MEMBER_PATH = memberPath;
+        if (MEMBER_PATH == null)
+            return ElectState.LOSTELECTION;
+        final String MEMBER_NAME = ZooKeeperConnection.getName(MEMBER_PATH);
+        while (true) {
+            Stat electionStat = new Stat();
+            final String INCUMBENT = decode(zkConnection.getData(election, watcher, electionStat));
+            if (INCUMBENT != null && zkConnection.exists(election + "/" + INCUMBENT, watcher) != null) {
+                if (!INCUMBENT.equals(MEMBER_NAME) && zkConnection.exists(MEMBER_PATH, false) == null)
+                    return ElectState.LOSTELECTION;
+                metrics.leaderFound(System.nanoTime());
+                observeLeader(INCUMBENT, electionStat.getMzxid());
+                if (!INCUMBENT.equals(MEMBER_NAME))
+                    return ElectState.LEADED;
+                fencingToken = electionStat.getMzxid();
+                return ElectState.LEADING;
+            }
+
+            List<String> candidates = zkConnection.getChildren(election, false);
+            if (!candidates.contains(MEMBER_NAME))
+                return ElectState.LOSTELECTION;
+            // incumbent lost, elected by candidate with smallest sequential id
+            metrics.leaderLost(System.nanoTime());
+            final String ELECTOR = Collections.min(candidates, new SequentialComparator());
+            if (!MEMBER_NAME.equals(ELECTOR)) {
+                if (zkConnection.exists(election + "/" + ELECTOR, watcher) != null)
+                    return ElectState.LEADED;
+                continue;
+            }
+            Scored best = best(zkConnection, candidates);
+            if (best != null)
+                casIncumbent(zkConnection, best.name, electionStat.getVersion());
+        }
+    }
+
+    /**
+     * Replaces incumbent when the score of this candidate crossed the hysteresis
+     * threshold against it.
+     * 
+     * @return true when incumbent was replaced
+     */
+    boolean rerank(ZooKeeperConnection zkConnection) throws KeeperException, InterruptedException {
+        final String MEMBER_PATH = memberPath;
+        if (MEMBER_PATH == null)
+            return false;
+        final String MEMBER_NAME = ZooKeeperConnection.getName(MEMBER_PATH);
+        while (true) {
+            Stat electionStat = new Stat();
+            final String INCUMBENT = decode(zkConnection.getData(election, false, electionStat));
+            if (INCUMBENT == null)
+                return false;
+            Scored challenger;
+            Scored incumbent;
+            if (INCUMBENT.equals(MEMBER_NAME)) {
+                List<String> candidates = zkConnection.getChildren(election, false);
+                candidates.remove(MEMBER_NAME);
+                challenger = best(zkConnection, candidates);
+                incumbent = new Scored(MEMBER_NAME, score);
+            } else {
+                challenger = new Scored(MEMBER_NAME, score);
+                incumbent = read(zkConnection, INCUMBENT);
+            }
+            // a lost incumbent is replaced by candidate with smallest sequential id
+            if (challenger == null || incumbent == null || challenger.score <= incumbent.score + hysteresis)
+                return false;
+            if (casIncumbent(zkConnection, challenger.name, electionStat.getVersion())) {
+                LOGGER.info("re-ranked from {}({}) to {}({})", incumbent.name, incumbent.score, challenger.name,
+                        challenger.score);
+                return true;
+            }
+        }
+    }
+
+    boolean casIncumbent(ZooKeeperConnection zkConnection, String incumbent, int version)
+            throws KeeperException, InterruptedException {
+        try {
+            zkConnection.setData(election, incumbent.getBytes(), version);
+            return true;
+        } catch (KeeperException.BadVersionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads scores of all candidates in one round trip.
+     *
+     * @return best scored candidate or null when none of them exists
+     */
+    Scored best(ZooKeeperConnection zkConnection, List<String> candidates) throws KeeperException,
+            InterruptedException {
+        final List<String> PATHS = new ArrayList<>(candidates.size());
+        for (String candidate : candidates)
+            PATHS.add(election + "/" + candidate);
+        final PipelinedReads READS = PipelinedReads.read(zkConnection, PATHS, null, true, false);
+        Scored best = null;
+        for (int idx = 0; idx < READS.size(); idx++) {
+            final PipelinedReads.Result RESULT = READS.get(idx);
+            if (RESULT.isMissing())
+                continue;
+            RESULT.check(PATHS.get(idx));
+            Scored scored = new Scored(candidates.get(idx), parseScore(RESULT.getData()));
+            if (best == null || scored.isBetterThan(best))
+                best = scored;
+        }
+        return best;
+    }
+
+    Scored read(ZooKeeperConnection zkConnection, String candidate) throws KeeperException,
+            InterruptedException {
+        try {
+            return new Scored(candidate, parseScore(zkConnection.getData(election + "/" + candidate, false, null)));
+        } catch (KeeperException.NoNodeException e) {
+            return null;
+        }
+    }
+
+    static double parseScore(byte[] data) {
+        // candidates of other elections carry no score
+        return (data != null && data.length >= 8) ? ByteBuffer.wrap(data).getDouble() : Double.NEGATIVE_INFINITY;
+    }
+
+    static String decode(byte[] data) {
+        return (data == null || data.length == 0) ? null : new String(data);
+    }
+
+    void report(Elect<Object> elect, ElectState state, long eventNanos) {
+        if (state == reported)
+            return;
+        reported = state;
+        transit(elect, state, eventNanos);
+    }
+
+    static class Scored {
+        final String name;
+        final double score;
+
+        Scored(String name, double score) {
+            this.name = name;
+            this.score = score;
+        }
+
+        boolean isBetterThan(Scored other) {
+            if (score != other.score)
+                return score > other.score;
+            return parseId(name) < parseId(other.name);
+        }
+    }
+
+    /**
+     * Watches data of election znode for incumbent changes and the member znode of the
+     * incumbent or elector for its loss, evaluated in order of events.
+     */
+    class WeightedWatcher implements Watcher {
+        private WeakReference<ZooKeeperConnection> zkConnectionRef;
+        private Elect<Object> elect = null;
+
+        public WeightedWatcher(ZooKeeperConnection zkConnection, final Elect<Object> elect) {
+            this.zkConnectionRef = new WeakReference<ZooKeeperConnection>(zkConnection);
+            this.elect = elect;
+        }
+
+        @Override
+        public void process(final WatchedEvent event) {
+            final long EVENT_NANOS = System.nanoTime();
+            evaluator.execute(new Runnable() {
+                @Override
+                public void run() {
+                    evaluate(event, EVENT_NANOS);
+                }
+            });
+        }
+
+        private void evaluate(WatchedEvent event, long eventNanos) {
+            ZooKeeperConnection zkConnection = zkConnectionRef.get();
+            if (event.getType() == Event.EventType.None && event.getState() != Event.KeeperState.SyncConnected) {
+                report(elect, ElectState.LOSTCONNECTION, eventNanos);
+                return;
+            }
+            if (zkConnection == null || memberPath == null)
+                return;
+            try {
+                report(elect, WeightedElect.this.evaluate(zkConnection, this), eventNanos);
+            } catch (KeeperException | InterruptedException e) {
+                LOGGER.warn("LOSTCONNECTION when evaluating election", e);
+                report(elect, ElectState.LOSTCONNECTION, eventNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package lyn.util.zookeeper;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * A connection counting synchronous requests sent and watch notifications delivered,
+ * used to measure herd effect of recipes.
+ */
+public class CountingZooKeeperConnection extends ZooKeeperConnection {
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong notifications = new AtomicLong();
+
+    public CountingZooKeeperConnection(String zookeeperNodes, int timeout) {
+        super(zookeeperNodes, timeout);
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getNotifications() {
+        return notifications.get();
+    }
+
+    public void reset() {
+        requests.set(0);
+        notifications.set(0);
+    }
+
+    private Watcher count(final Watcher watcher) {
+        return (watcher == null) ? null : new CountingWatcher(watcher);
+    }
+
+    /**
+     * Equal to the watcher wrapped, so zookeeper does not register the same watcher twice.
+     */
+    private class CountingWatcher implements Watcher {
+        private final Watcher watcher;
+
+        CountingWatcher(Watcher watcher) {
+            this.watcher = watcher;
+        }
+
+        @Override
+        public void process(WatchedEvent event) {
+            if (event.getType() != Event.EventType.None)
+                notifications.incrementAndGet();
+            watcher.process(event);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof CountingWatcher && ((CountingWatcher) other).watcher.equals(watcher);
+        }
+
+        @Override
+        public int hashCode() {
+            return watcher.hashCode();
+        }
+    }
+
+    @Override
+    public String create(String path, byte[] data, List<ACL> acl, CreateMode createMode) throws KeeperException,
+            InterruptedException {
+        requests.incrementAndGet();
+        return super.create(path, data, acl, createMode);
+    }
+
+    @Override
+    public void delete(String path, int version) throws KeeperException, InterruptedException {
+        requests.incrementAndGet();
+        super.delete(path, version);
+    }
+
+    @Override
+    public Stat exists(String path, Watcher watcher) throws KeeperException, InterruptedException {
+        requests.incrementAndGet();
+        return super.exists(path, count(watcher));
+    }
+
+    @Override
+    public Stat exists(String path, boolean watch) throws KeeperException, InterruptedException {
+        requests.incrementAndGet();
+        return super.exists(path, watch);
+    }
+
+    @Override
+    public byte[] getData(String path, boolean watch, Stat stat) throws KeeperException, InterruptedException {
+        requests.incrementAndGet();
+        return super.getData(path, watch, stat);
+    }
+
+    @Override
+    public byte[] getData(String path, Watcher watcher, Stat stat) throws KeeperException, InterruptedException {
+        requests.incrementAndGet();
+        return super.getData(path, count(watcher), stat);
+    }
+
+    @Override
+    public Stat setData(String path, byte[] data, int version) throws KeeperException, InterruptedException {
+        requests.incrementAndGet();
+        return super.setData(path, data, version);
+    }
+
+    @Override
+    public List<String> getChildren(String path, Watcher watcher) throws KeeperException, InterruptedException {
+        requests.incrementAndGet();
+        return super.getChildren(path, count(watcher));
+    }
+
+    @Override
+    public List<String> getChildren(String path, boolean watch) throws KeeperException, InterruptedException {
+        requests.incrementAndGet();
+        return super.getChildren(path, watch);
+    }
+
+    @Override
+    public List<String> getChildren(String path, Watcher watcher, Stat stat) throws KeeperException,
+            InterruptedException {
+        requests.incrementAndGet();
+        return super.getChildren(path, count(watcher), stat);
+    }
+
+    @Override
+    public List<String> getChildren(String path, boolean watch, Stat stat) throws KeeperException,
+            InterruptedException {
+        requests.incrementAndGet();
+        return super.getChildren(path, watch, stat);
+    }
+}
@@ -2,6 +2,8 @@ package lyn.util.zookeeper;
 
 import java.io.IOException;
 import java.net.ServerSocket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.zookeeper.WatchedEvent;
@@ -59,6 +61,36 @@ public class MiniZooKeeperCluster {
         }
     }
 
+    /**
+     * Expires the session of a connection by closing it from another client, and waits
+     * until the connection sees it.
+     */
+    public void expire(ZooKeeperConnection zkConnection) throws IOException, InterruptedException {
+        final CountDownLatch connected = new CountDownLatch(1);
+        final ZooKeeper zk = new ZooKeeper(zkNodes, 30000, new Watcher() {
+            @Override
+            public void process(WatchedEvent watchedEvent) {
+                if (watchedEvent.getState() == Event.KeeperState.SyncConnected) {
+                    connected.countDown();
+                }
+            }
+        }, zkConnection.getSessionId(), zkConnection.getSessionPasswd());
+        try {
+            if (!connected.await(zkTimeout, TimeUnit.MILLISECONDS)) {
+                throw new RuntimeException("failed to connect to zookeeper");
+            }
+        } finally {
+            zk.close();
+        }
+        long startTime = System.currentTimeMillis();
+        while (zkConnection.isConnected() && (System.currentTimeMillis() - startTime) < zkTimeout) {
+            Thread.sleep(5);
+        }
+        if (zkConnection.isConnected()) {
+            throw new RuntimeException("session not expired");
+        }
+    }
+
     private void awaitForStartup() throws IOException {
         final AtomicBoolean connected = new AtomicBoolean(false);
         final ZooKeeper zk = new ZooKeeper(zkNodes, 30000, new Watcher() {
@@ -0,0 +1,165 @@
+package lyn.util.zookeeper;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestChildTracker {
+    private MiniZooKeeperCluster zk;
+    private String tempDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = System.getProperty("java.io.tmpdir") + "zk.tmp";
+        zk = new MiniZooKeeperCluster(tempDir, 6000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (zk != null) {
+            zk.shutdown();
+        }
+
+        Files.walkFileTree(Paths.get(tempDir), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Collects deltas in order.
+     */
+    static class Deltas implements ChildTracker.Listener {
+        final LinkedBlockingQueue<List<List<String>>> deltas = new LinkedBlockingQueue<>();
+
+        @Override
+        public void childrenChanged(String path, List<String> added, List<String> removed) {
+            deltas.add(Arrays.asList(added, removed));
+        }
+
+        List<List<String>> next() throws InterruptedException {
+            final List<List<String>> DELTA = deltas.poll(10, TimeUnit.SECONDS);
+            assertNotNull("no delta", DELTA);
+            return DELTA;
+        }
+    }
+
+    @Test
+    public void testTrackChildren() throws IOException, InterruptedException, KeeperException {
+        final ZooKeeperConnection zkc = new ZooKeeperConnection(zk.getZkNodes(), 10000);
+        zkc.connect();
+        zkc.create("/members", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        for (int i = 0; i < 1000; i++)
+            zkc.create("/members/member_", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL);
+
+        ChildTracker tracker = new ChildTracker(zkc, "/members");
+        Deltas deltas = new Deltas();
+        tracker.addListener(deltas);
+        tracker.start();
+        assertEquals(1000, tracker.getChildren().size());
+        assertTrue(tracker.getChildren().contains("member_0000000500"));
+        List<List<String>> delta = deltas.next();
+        assertEquals(1000, delta.get(0).size());
+        assertTrue(delta.get(1).isEmpty());
+
+        // only deltas are notified
+        zkc.delete("/members/member_0000000500", -1);
+        delta = deltas.next();
+        assertTrue(delta.get(0).isEmpty());
+        assertEquals(Arrays.asList("member_0000000500"), delta.get(1));
+        final String CREATED = ZooKeeperConnection.getName(zkc.create("/members/member_", new byte[0],
+                ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL));
+        delta = deltas.next();
+        assertEquals(Collections.singletonList(CREATED), delta.get(0));
+        assertTrue(tracker.getChildren().contains(CREATED));
+        assertFalse(tracker.getChildren().contains("member_0000000500"));
+
+        // data changes and unchanged listings are skipped
+        zkc.setData("/members/member_0000000001", new byte[] { 1 }, -1);
+        final long LISTINGS = tracker.getListings();
+        assertFalse(tracker.refresh());
+        assertEquals(LISTINGS, tracker.getListings());
+        assertTrue(tracker.getSkipped() > 0);
+
+        // deleted and created again
+        final List<String> NAMES = new ArrayList<>(tracker.getChildren().toList());
+        for (String name : NAMES)
+            zkc.delete("/members/" + name, -1);
+        zkc.delete("/members", -1);
+        int removed = 0;
+        while (removed < NAMES.size())
+            removed += deltas.next().get(1).size();
+        assertEquals(NAMES.size(), removed);
+        assertTrue(tracker.getChildren().isEmpty());
+        zkc.create("/members", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        zkc.create("/members/member_", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL);
+        delta = deltas.next();
+        assertEquals(1, delta.get(0).size());
+        assertEquals(1, tracker.getChildren().size());
+        tracker.close();
+        zkc.close();
+    }
+
+    @Test
+    public void testSessionExpired() throws IOException, InterruptedException, KeeperException {
+        final ZooKeeperConnection zkc = new ZooKeeperConnection(zk.getZkNodes(), 10000);
+        final ZooKeeperConnection admin = new ZooKeeperConnection(zk.getZkNodes(), 10000);
+        zkc.connect();
+        admin.connect();
+        admin.create("/members", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        admin.create("/members/a", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+        ChildTracker tracker = new ChildTracker(zkc, "/members");
+        Deltas deltas = new Deltas();
+        tracker.addListener(deltas);
+        tracker.start();
+        assertEquals(Arrays.asList("a"), deltas.next().get(0));
+
+        // changed while the session is gone, listed again once connected
+        zk.expire(zkc);
+        admin.create("/members/b", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        admin.delete("/members/a", -1);
+        Thread.sleep(300);
+        assertTrue(deltas.deltas.isEmpty());
+        zkc.connect();
+        List<List<String>> delta = deltas.next();
+        assertEquals(Arrays.asList("b"), delta.get(0));
+        assertEquals(Arrays.asList("a"), delta.get(1));
+
+        // the watch is set again
+        admin.create("/members/c", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        assertEquals(Arrays.asList("c"), deltas.next().get(0));
+        assertEquals(2, tracker.getChildren().size());
+        tracker.close();
+        zkc.close();
+        admin.close();
+    }
+}
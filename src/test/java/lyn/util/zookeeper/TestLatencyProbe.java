@@ -0,0 +1,147 @@
+package lyn.util.zookeeper;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestLatencyProbe {
+    private MiniZooKeeperCluster zk;
+    private String tempDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = System.getProperty("java.io.tmpdir") + "zk.tmp";
+        zk = new MiniZooKeeperCluster(tempDir, 6000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (zk != null) {
+            zk.shutdown();
+        }
+
+        Files.walkFileTree(Paths.get(tempDir), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /* answers ruok after a delay, like a server far away */
+    private ServerSocket farAway(final long delayMillis) throws IOException {
+        final ServerSocket SERVER = new ServerSocket(0);
+        final Thread THREAD = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!SERVER.isClosed()) {
+                    try (Socket socket = SERVER.accept()) {
+                        socket.getInputStream().read(new byte[4]);
+                        Thread.sleep(delayMillis);
+                        socket.getOutputStream().write("imok".getBytes("US-ASCII"));
+                    } catch (IOException | InterruptedException e) {
+                        // closed
+                    }
+                }
+            }
+        });
+        THREAD.setDaemon(true);
+        THREAD.start();
+        return SERVER;
+    }
+
+    private static int closedPort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @Test
+    public void testParse() {
+        final LatencyProbe PROBE = new LatencyProbe("zk1:2182, zk2,zk3:2183/app/chroot");
+        assertEquals(3, PROBE.getServers().size());
+        assertEquals("zk1", PROBE.getServers().get(0).getHost());
+        assertEquals(2182, PROBE.getServers().get(0).getPort());
+        assertEquals(2181, PROBE.getServers().get(1).getPort());
+        assertEquals("zk3:2183", PROBE.getServers().get(2).toString());
+    }
+
+    @Test
+    public void testSelect() throws Exception {
+        final ServerSocket FAR = farAway(50);
+        try {
+            final String FAR_NODES = "localhost:" + FAR.getLocalPort();
+            final String DOWN_NODES = "localhost:" + closedPort();
+            final LatencyProbe PROBE = new LatencyProbe(FAR_NODES + "," + zk.getZkNodes() + "," + DOWN_NODES
+                    + "/chroot");
+            // a majority is kept: the server nearby, then the one far away
+            assertEquals(2, PROBE.getMinServers());
+            assertEquals(zk.getZkNodes() + "," + FAR_NODES + "/chroot", PROBE.select());
+            assertEquals(1, PROBE.getProbes());
+
+            final LatencyProbe.Server NEAR = PROBE.getServers().get(1);
+            assertEquals(1, NEAR.getLatency().getCount());
+            assertTrue(PROBE.getServers().get(0).getAverage() >= TimeUnit.MILLISECONDS.toNanos(50));
+            assertEquals(Long.MAX_VALUE, PROBE.getServers().get(2).getAverage());
+            assertEquals(1, PROBE.getServers().get(2).getFailures());
+
+            PROBE.start(10, TimeUnit.MILLISECONDS);
+            final long START = System.currentTimeMillis();
+            while (PROBE.getProbes() < 4 && System.currentTimeMillis() - START < 5000)
+                Thread.sleep(10);
+            PROBE.close();
+            assertTrue(NEAR.getLatency().getCount() >= 4);
+
+            // pruned down to the servers nearby when asked for
+            final LatencyProbe PRUNING = new LatencyProbe(FAR_NODES + "," + zk.getZkNodes() + "," + DOWN_NODES,
+                    1000, 1);
+            assertEquals(zk.getZkNodes(), PRUNING.select());
+            // an unreachable server tops up the minimum last
+            final LatencyProbe ALL = new LatencyProbe(FAR_NODES + "," + zk.getZkNodes() + "," + DOWN_NODES,
+                    1000, 3);
+            assertEquals(zk.getZkNodes() + "," + FAR_NODES + "," + DOWN_NODES, ALL.select());
+
+            // nothing answers
+            final LatencyProbe NONE = new LatencyProbe(DOWN_NODES);
+            assertEquals(DOWN_NODES, NONE.select());
+        } finally {
+            FAR.close();
+        }
+    }
+
+    @Test
+    public void testConnect() throws Exception {
+        final String NODES = "localhost:" + closedPort() + "," + zk.getZkNodes();
+        final LatencyProbe PROBE = new LatencyProbe(NODES);
+        final ZooKeeperConnection zkConnection = new ZooKeeperConnection(NODES, 6000, PROBE);
+        zkConnection.connect();
+        try {
+            assertTrue(zkConnection.isConnected());
+            assertEquals(1, PROBE.getProbes());
+            assertNotNull(zkConnection.exists("/", false));
+        } finally {
+            zkConnection.close();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package lyn.util.zookeeper;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class TestNameSet {
+
+    @Test
+    public void testSequentialNames() {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 100000; i++)
+            names.add(String.format("member_%010d", i));
+        Collections.shuffle(names);
+        NameSet set = NameSet.of(names);
+        assertEquals(100000, set.size());
+        // 17 bytes a name as strings, a few bytes front coded
+        assertTrue(set.getEncodedBytes() < 100000 * 6);
+
+        Collections.sort(names);
+        assertEquals(names, set.toList());
+        assertTrue(set.contains("member_0000000000"));
+        assertTrue(set.contains("member_0000054321"));
+        assertTrue(set.contains("member_0000099999"));
+        assertFalse(set.contains("member_0000100000"));
+        assertFalse(set.contains("member_"));
+        assertFalse(set.contains("a"));
+        assertFalse(set.contains("z"));
+    }
+
+    @Test
+    public void testNames() {
+        NameSet set = NameSet.of(Arrays.asList("b", "a", "ab", "b", "été", "abc"));
+        assertEquals(Arrays.asList("a", "ab", "abc", "b", "été"), set.toList());
+        for (String name : set)
+            assertTrue(set.contains(name));
+        assertFalse(set.contains("aa"));
+        assertFalse(set.contains(""));
+        assertEquals(set, NameSet.of(new TreeSet<>(set.toList())));
+        assertTrue(NameSet.EMPTY.isEmpty());
+        assertFalse(NameSet.EMPTY.contains("a"));
+        assertSame(NameSet.EMPTY, NameSet.of(Collections.<String> emptyList()));
+    }
+
+    @Test
+    public void testDiff() {
+        NameSet before = NameSet.of(Arrays.asList("a", "c", "d", "f"));
+        NameSet after = NameSet.of(Arrays.asList("b", "c", "f", "g"));
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        NameSet.diff(before, after, added, removed);
+        assertEquals(Arrays.asList("b", "g"), added);
+        assertEquals(Arrays.asList("a", "d"), removed);
+
+        added.clear();
+        removed.clear();
+        NameSet.diff(NameSet.EMPTY, before, added, removed);
+        assertEquals(before.toList(), added);
+        assertTrue(removed.isEmpty());
+    }
+}
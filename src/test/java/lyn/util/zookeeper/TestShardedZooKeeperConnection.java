@@ -0,0 +1,254 @@
+package lyn.util.zookeeper;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestShardedZooKeeperConnection {
+    private MiniZooKeeperCluster zkA;
+    private MiniZooKeeperCluster zkB;
+    private String tempDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = System.getProperty("java.io.tmpdir") + "zk.tmp";
+        zkA = new MiniZooKeeperCluster(tempDir + "/a", 6000);
+        zkB = new MiniZooKeeperCluster(tempDir + "/b", 6000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (zkA != null) {
+            zkA.shutdown();
+        }
+        if (zkB != null) {
+            zkB.shutdown();
+        }
+
+        Files.walkFileTree(Paths.get(tempDir), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private ShardedZooKeeperConnection connect() throws Exception {
+        final Map<String, String> ENSEMBLES = new LinkedHashMap<>();
+        ENSEMBLES.put("a", zkA.getZkNodes());
+        ENSEMBLES.put("b", zkB.getZkNodes());
+        final ShardedZooKeeperConnection CONNECTION = new ShardedZooKeeperConnection(ENSEMBLES, 6000);
+        CONNECTION.connect();
+        return CONNECTION;
+    }
+
+    @Test
+    public void testRouting() throws Exception {
+        final ShardedZooKeeperConnection zkConnection = connect();
+        try {
+            assertEquals("a", zkConnection.route("/"));
+            assertEquals(zkConnection.route("/users"), zkConnection.route("/users/1/profile"));
+
+            zkConnection.assign("/apps", "b");
+            assertEquals("b", zkConnection.route("/apps"));
+            assertEquals("b", zkConnection.route("/apps/web"));
+            zkConnection.assign("/apps/web", "a");
+            assertEquals("a", zkConnection.route("/apps/web/config"));
+            assertEquals("b", zkConnection.route("/apps/db"));
+
+            zkConnection.createFullPath("/apps/db/config", "b".getBytes(), CreateMode.PERSISTENT);
+            final ZooKeeperConnection B = zkConnection.getShard("b").getConnection();
+            final ZooKeeperConnection A = zkConnection.getShard("a").getConnection();
+            assertArrayEquals("b".getBytes(), B.getData("/apps/db/config", false, null));
+            assertNull(A.exists("/apps/db", false));
+            assertArrayEquals("b".getBytes(), zkConnection.getData("/apps/db/config", false, null));
+
+            zkConnection.update("/apps/db/config", new ZooKeeperConnection.Updater() {
+                @Override
+                public byte[] update(byte[] data, org.apache.zookeeper.data.Stat stat) {
+                    return "c".getBytes();
+                }
+            });
+            assertArrayEquals("c".getBytes(), B.getData("/apps/db/config", false, null));
+
+            assertTrue(zkConnection.getShard("b").getRequests() > 0);
+            assertTrue(zkConnection.getShard("b").getLatency().getCount() > 0);
+            try {
+                zkConnection.getData("/apps/db/missing", false, null);
+                fail();
+            } catch (KeeperException.NoNodeException e) {
+                assertTrue(zkConnection.getShard("b").getErrors() > 0);
+            }
+            try {
+                ZooKeeperConnection.commit(ZooKeeperConnection.check(
+                        ZooKeeperConnection.check(zkConnection.transaction(), "/apps/db/config", -1), "/apps/web", -1));
+                fail();
+            } catch (IllegalArgumentException e) {
+                // spans shards
+            }
+            ZooKeeperConnection.commit(ZooKeeperConnection.delete(zkConnection.transaction(), "/apps/db/config", -1));
+            assertNull(B.exists("/apps/db/config", false));
+
+            // helpers built on transactions
+            final Map<String, byte[]> DESIRED = new HashMap<>();
+            DESIRED.put("/apps/db/replicas", "3".getBytes());
+            assertEquals(1, zkConnection.reconcile("/apps/db", DESIRED, false).getCreates().size());
+            assertArrayEquals("3".getBytes(), B.getData("/apps/db/replicas", false, null));
+        } finally {
+            zkConnection.close();
+        }
+    }
+
+    @Test
+    public void testFanOut() throws Exception {
+        final ShardedZooKeeperConnection zkConnection = connect();
+        try {
+            boolean spread = false;
+            for (int i = 0; i < 8; i++) {
+                zkConnection.create("/top" + i, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+                zkConnection.create("/top" + i + "/leaf", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                        CreateMode.PERSISTENT);
+                spread |= zkConnection.route("/top" + i).equals("b");
+            }
+            assertTrue(spread);
+
+            final List<String> ROOT = zkConnection.getChildren("/", false);
+            for (int i = 0; i < 8; i++)
+                assertTrue(ROOT.contains("top" + i));
+
+            final List<String> TREE = zkConnection.listTree("/");
+            assertEquals(16, TREE.size());
+            assertEquals("/top0", TREE.get(0));
+            assertEquals("/top0/leaf", TREE.get(1));
+
+            // children of a path spread over shards by prefix
+            zkConnection.createFullPath("/mixed/one", new byte[0], CreateMode.PERSISTENT);
+            zkConnection.assign("/mixed/two", zkConnection.route("/mixed").equals("a") ? "b" : "a");
+            zkConnection.createFullPath("/mixed/two/x", new byte[0], CreateMode.PERSISTENT);
+            assertEquals(Arrays.asList("one", "two"), zkConnection.getChildren("/mixed", false));
+            assertEquals(Arrays.asList("/mixed/one", "/mixed/two", "/mixed/two/x"), zkConnection.listTree("/mixed"));
+        } finally {
+            zkConnection.close();
+        }
+    }
+
+    @Test
+    public void testRebalance() throws Exception {
+        final ShardedZooKeeperConnection zkConnection = connect();
+        try {
+            zkConnection.assign("/data", "a");
+            zkConnection.createFullPath("/data/x/y", "y".getBytes(), CreateMode.PERSISTENT);
+            zkConnection.create("/data/x/session", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+
+            assertEquals(3, zkConnection.rebalance("/data", "b"));
+            assertEquals("b", zkConnection.route("/data/x"));
+            assertArrayEquals("y".getBytes(), zkConnection.getData("/data/x/y", false, null));
+
+            final ZooKeeperConnection A = zkConnection.getShard("a").getConnection();
+            // kept with its session on the former shard
+            assertNotNull(A.exists("/data/x/session", false));
+            assertNull(A.exists("/data/x/y", false));
+            assertEquals(0, zkConnection.rebalance("/data", "b"));
+        } finally {
+            zkConnection.close();
+        }
+    }
+
+    @Test
+    public void testRebalanceRacingWrites() throws Exception {
+        final ShardedZooKeeperConnection zkConnection = connect();
+        try {
+            zkConnection.assign("/data", "a");
+            zkConnection.createFullPath("/data/seed", new byte[0], CreateMode.PERSISTENT);
+            final List<String> CREATED = Collections.synchronizedList(new ArrayList<String>());
+            final AtomicReference<Exception> FAILURE = new AtomicReference<>();
+            final Thread WRITER = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 300; i++) {
+                            CREATED.add(zkConnection.create("/data/node-" + i, new byte[0],
+                                    ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+                        }
+                    } catch (Exception e) {
+                        FAILURE.set(e);
+                    }
+                }
+            });
+            WRITER.start();
+            while (CREATED.size() < 50 && WRITER.isAlive())
+                Thread.sleep(1);
+            zkConnection.rebalance("/data", "b");
+            WRITER.join();
+            assertNull(FAILURE.get());
+
+            assertEquals(300, CREATED.size());
+            final ZooKeeperConnection A = zkConnection.getShard("a").getConnection();
+            final ZooKeeperConnection B = zkConnection.getShard("b").getConnection();
+            for (String path : CREATED) {
+                assertNotNull(path, B.exists(path, false));
+                assertNull(path, A.exists(path, false));
+            }
+            assertEquals(301, zkConnection.getChildren("/data", false).size());
+        } finally {
+            zkConnection.close();
+        }
+    }
+
+    @Test
+    public void testRebalanceSequential() throws Exception {
+        final ShardedZooKeeperConnection zkConnection = connect();
+        try {
+            zkConnection.assign("/queue", "a");
+            zkConnection.createFullPath("/queue", new byte[0], CreateMode.PERSISTENT);
+            final List<String> ITEMS = new ArrayList<>();
+            for (int i = 0; i < 5; i++)
+                ITEMS.add(zkConnection.create("/queue/item-", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                        CreateMode.PERSISTENT_SEQUENTIAL));
+            zkConnection.delete(ITEMS.get(0), -1);
+            zkConnection.delete(ITEMS.get(1), -1);
+
+            final int CVERSION = zkConnection.exists("/queue", false).getCversion();
+            assertEquals(4, zkConnection.rebalance("/queue", "b"));
+            assertTrue(zkConnection.exists("/queue", false).getCversion() >= CVERSION);
+            // numbered after the copied items, although fewer children were created on b
+            final String NEXT = zkConnection.create("/queue/item-", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.PERSISTENT_SEQUENTIAL);
+            assertTrue(NEXT, NEXT.compareTo(ITEMS.get(4)) > 0);
+            final List<String> CHILDREN = zkConnection.getChildren("/queue", false);
+            Collections.sort(CHILDREN);
+            assertEquals(Arrays.asList("item-0000000002", "item-0000000003", "item-0000000004", "item-0000000007"),
+                    CHILDREN);
+        } finally {
+            zkConnection.close();
+        }
+    }
+}
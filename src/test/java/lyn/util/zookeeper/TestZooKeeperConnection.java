@@ -9,7 +9,13 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
@@ -139,6 +145,152 @@ public class TestZooKeeperConnection {
         zkc.close();
     }
 
+    @Test
+    public void testUpdateOrCreateRequests() throws IOException, InterruptedException, KeeperException {
+        CountingZooKeeperConnection zkc = new CountingZooKeeperConnection(zk.getZkNodes(), 30000);
+        zkc.connect();
+        zkc.create("/zkc", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        zkc.reset();
+        zkc.updateOrCreate("/zkc/test", new byte[] { 1 }, CreateMode.PERSISTENT);
+        assertEquals(2, zkc.getRequests());
+        zkc.reset();
+        zkc.updateOrCreate("/zkc/test", new byte[] { 2 }, CreateMode.PERSISTENT);
+        assertEquals(1, zkc.getRequests());
+        assertArrayEquals(new byte[] { 2 }, zkc.getData("/zkc/test", false, null));
+
+        // missing parents are created
+        zkc.updateOrCreate("/zkc/a/b", new byte[] { 3 }, CreateMode.PERSISTENT);
+        assertArrayEquals(new byte[] { 3 }, zkc.getData("/zkc/a/b", false, null));
+        zkc.close();
+    }
+
+    @Test
+    public void testUpdate() throws Exception {
+        final ZooKeeperConnection zkc = new ZooKeeperConnection(zk.getZkNodes(), 30000);
+        zkc.connect();
+        zkc.create("/counter", ByteBuffer.allocate(8).putLong(0).array(), ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                CreateMode.PERSISTENT);
+        final ZooKeeperConnection.Updater INCREMENT = new ZooKeeperConnection.Updater() {
+            @Override
+            public byte[] update(byte[] data, Stat stat) {
+                return ByteBuffer.allocate(8).putLong(ByteBuffer.wrap(data).getLong() + 1).array();
+            }
+        };
+
+        final int THREADS = 4;
+        final int INCREMENTS = 25;
+        final CountDownLatch DONE = new CountDownLatch(THREADS);
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        for (int i = 0; i < THREADS; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < INCREMENTS; j++)
+                            ZooKeeperConnection.update(zkc, "/counter", INCREMENT, 100, 1);
+                    } catch (Exception e) {
+                        failure.set(e);
+                    } finally {
+                        DONE.countDown();
+                    }
+                }
+            }.start();
+        }
+        DONE.await();
+        assertNull(failure.get());
+        Stat stat = new Stat();
+        assertEquals(THREADS * INCREMENTS, ByteBuffer.wrap(zkc.getData("/counter", false, stat)).getLong());
+        assertEquals(THREADS * INCREMENTS, stat.getVersion());
+        assertEquals(THREADS * INCREMENTS, zkc.getUpdates());
+        assertEquals(THREADS * INCREMENTS, zkc.getUpdateAttempts().getCount());
+        assertEquals(THREADS * INCREMENTS + zkc.getUpdateConflicts(), zkc.getUpdateAttempts().getSum());
+        assertEquals(0, zkc.getUpdateFailures());
+
+        // unchanged when the updater returns null
+        Stat unchanged = zkc.update("/counter", new ZooKeeperConnection.Updater() {
+            @Override
+            public byte[] update(byte[] data, Stat stat) {
+                return null;
+            }
+        });
+        assertEquals(THREADS * INCREMENTS, unchanged.getVersion());
+
+        // gives up when always contended
+        try {
+            ZooKeeperConnection.update(zkc, "/counter", new ZooKeeperConnection.Updater() {
+                @Override
+                public byte[] update(byte[] data, Stat stat) {
+                    try {
+                        zkc.setData("/counter", data, -1);
+                    } catch (KeeperException | InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    return data;
+                }
+            }, 3, 1);
+            fail("updated a contended node");
+        } catch (KeeperException.BadVersionException e) {
+            assertEquals(1, zkc.getUpdateFailures());
+        }
+        zkc.close();
+    }
+
+    @Test
+    public void testReconcile() throws IOException, InterruptedException, KeeperException {
+        CountingZooKeeperConnection zkc = new CountingZooKeeperConnection(zk.getZkNodes(), 30000);
+        zkc.connect();
+        Map<String, byte[]> desired = new HashMap<>();
+        for (int i = 0; i < 50; i++)
+            desired.put("/deploy/config/service" + i + "/endpoint", ("10.0.0." + i).getBytes());
+        desired.put("/deploy/config", "v1".getBytes());
+
+        Reconciliation reconciliation = zkc.reconcile("/deploy/config", desired, false);
+        assertEquals(0, reconciliation.getReads());
+        assertEquals(101, reconciliation.getCreates().size());
+        assertEquals("/deploy/config", reconciliation.getCreates().get(0));
+        assertEquals(1, reconciliation.getBatches());
+        assertArrayEquals("10.0.0.7".getBytes(), zkc.getData("/deploy/config/service7/endpoint", false, null));
+        assertArrayEquals("v1".getBytes(), zkc.getData("/deploy/config", false, null));
+
+        // unchanged tree is only read
+        zkc.reset();
+        reconciliation = zkc.reconcile("/deploy/config", desired, false);
+        assertTrue(reconciliation.isEmpty());
+        assertEquals(101, reconciliation.getReads());
+        assertEquals(0, reconciliation.getBatches());
+        assertEquals(0, zkc.getRequests());
+
+        // minimal diff, children deleted before parents
+        zkc.create("/deploy/config/session", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+        desired.put("/deploy/config/service3/endpoint", "10.0.1.3".getBytes());
+        desired.remove("/deploy/config/service4/endpoint");
+        desired.put("/deploy/config/service50/endpoint", "10.0.0.50".getBytes());
+        reconciliation = zkc.reconcile("/deploy/config", desired, true);
+        assertEquals(Arrays.asList("/deploy/config/service3/endpoint"), reconciliation.getUpdates());
+        assertEquals(Arrays.asList("/deploy/config/service4/endpoint", "/deploy/config/service4"),
+                reconciliation.getDeletes());
+        assertEquals(Arrays.asList("/deploy/config/service50", "/deploy/config/service50/endpoint"),
+                reconciliation.getCreates());
+        assertTrue(reconciliation.isDryRun());
+        assertNotNull(zkc.exists("/deploy/config/service4/endpoint", false));
+
+        reconciliation = zkc.reconcile("/deploy/config", desired, false);
+        assertEquals(5, reconciliation.getCreates().size() + reconciliation.getUpdates().size()
+                + reconciliation.getDeletes().size());
+        assertNull(zkc.exists("/deploy/config/service4", false));
+        assertNotNull(zkc.exists("/deploy/config/session", false));
+        assertArrayEquals("10.0.1.3".getBytes(), zkc.getData("/deploy/config/service3/endpoint", false, null));
+
+        // batches bounded by size
+        desired.clear();
+        for (int i = 0; i < 10; i++)
+            desired.put("/deploy/large/node" + i, new byte[100 * 1024]);
+        reconciliation = ZooKeeperConnection.reconcile(zkc, "/deploy/large", desired, false, 256 * 1024);
+        assertEquals(11, reconciliation.getCreates().size());
+        assertEquals(5, reconciliation.getBatches());
+        zkc.close();
+    }
+
     @Test
     public void testCreateIfNotExists() throws IOException, InterruptedException, KeeperException {
         ZooKeeperConnection zkc = new ZooKeeperConnection(zk.getZkNodes(), 30000);
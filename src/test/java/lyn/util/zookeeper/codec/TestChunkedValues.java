@@ -0,0 +1,271 @@
+package lyn.util.zookeeper.codec;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import lyn.util.zookeeper.MiniZooKeeperCluster;
+import lyn.util.zookeeper.ZooKeeperConnection;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.Transaction;
+import org.apache.zookeeper.data.ACL;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestChunkedValues {
+    private MiniZooKeeperCluster zk;
+    private String tempDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = System.getProperty("java.io.tmpdir") + "zk.tmp";
+        zk = new MiniZooKeeperCluster(tempDir, 6000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (zk != null) {
+            zk.shutdown();
+        }
+
+        Files.walkFileTree(Paths.get(tempDir), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static byte[] random(int length, long seed) {
+        final byte[] VALUE = new byte[length];
+        new Random(seed).nextBytes(VALUE);
+        return VALUE;
+    }
+
+    private static byte[] array(ByteBuffer buffer) {
+        final byte[] BYTES = new byte[buffer.remaining()];
+        buffer.get(BYTES);
+        return BYTES;
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException, InterruptedException, KeeperException {
+        final ZooKeeperConnection zkc = new ZooKeeperConnection(zk.getZkNodes(), 10000);
+        zkc.connect();
+        ChunkedValues values = new ChunkedValues(zkc, 256 * 1024, 4);
+
+        // larger than a znode accepts
+        final byte[] TABLE = random(3 * 1024 * 1024 + 17, 1);
+        values.write("/routing/table", TABLE);
+        assertEquals(13, zkc.getChildren("/routing/table", false).size());
+        assertArrayEquals(TABLE, array(values.read("/routing/table")));
+
+        try (InputStream in = values.openReader("/routing/table")) {
+            final byte[] READ = new byte[TABLE.length];
+            int offset = 0;
+            for (int count; (count = in.read(READ, offset, Math.min(1000, READ.length - offset))) > 0;)
+                offset += count;
+            assertEquals(TABLE.length, offset);
+            assertEquals(-1, in.read());
+            assertArrayEquals(TABLE, READ);
+        }
+
+        // replacing deletes chunks of the previous value
+        final byte[] SMALLER = random(300 * 1024, 2);
+        try (OutputStream out = values.openWriter("/routing/table")) {
+            for (int offset = 0; offset < SMALLER.length; offset += 1000)
+                out.write(SMALLER, offset, Math.min(1000, SMALLER.length - offset));
+        }
+        assertEquals(2, zkc.getChildren("/routing/table", false).size());
+        assertArrayEquals(SMALLER, array(values.read("/routing/table")));
+
+        values.write("/routing/table", new byte[0]);
+        assertEquals(0, zkc.getChildren("/routing/table", false).size());
+        assertEquals(0, values.read("/routing/table").remaining());
+
+        values.delete("/routing/table");
+        assertNull(zkc.exists("/routing/table", false));
+        zkc.close();
+    }
+
+    @Test
+    public void testConcurrentWriters() throws IOException, InterruptedException, KeeperException {
+        final ZooKeeperConnection zkc = new ZooKeeperConnection(zk.getZkNodes(), 10000);
+        zkc.connect();
+        ChunkedValues values = new ChunkedValues(zkc, 1024, 2);
+        final byte[] FIRST = random(10 * 1024, 3);
+        final byte[] SECOND = random(5 * 1024, 4);
+
+        ChunkedValues.ChunkedOutputStream first = values.openWriter("/table");
+        first.write(FIRST);
+        values.write("/table", SECOND);
+        try {
+            first.close();
+            fail("committed over a newer value");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof KeeperException.BadVersionException);
+        }
+        // chunks of the failed writer are deleted
+        assertEquals(5, zkc.getChildren("/table", false).size());
+        assertArrayEquals(SECOND, array(values.read("/table")));
+
+        ChunkedValues.ChunkedOutputStream aborted = values.openWriter("/table");
+        aborted.write(FIRST);
+        aborted.abort();
+        assertEquals(5, zkc.getChildren("/table", false).size());
+        assertArrayEquals(SECOND, array(values.read("/table")));
+        zkc.close();
+    }
+
+    @Test
+    public void testReplacedWhileReading() throws IOException, InterruptedException, KeeperException {
+        final ZooKeeperConnection zkc = new ZooKeeperConnection(zk.getZkNodes(), 10000);
+        zkc.connect();
+        ChunkedValues values = new ChunkedValues(zkc, 1024, 1);
+        final byte[] FIRST = random(8 * 1024, 5);
+        values.write("/table", FIRST);
+
+        InputStream in = values.openReader("/table");
+        assertEquals(FIRST[0] & 0xff, in.read());
+        Thread.sleep(100);
+        values.write("/table", random(8 * 1024, 6));
+        try {
+            final byte[] REST = new byte[FIRST.length];
+            while (in.read(REST) >= 0)
+                ;
+            fail("read chunks of a deleted value");
+        } catch (ChunkedValues.ValueReplacedException e) {
+            // expected
+        }
+        in.close();
+        assertFalse(Arrays.equals(FIRST, array(values.read("/table"))));
+        zkc.close();
+    }
+
+    /**
+     * Loses the connection on commit, after or before the transaction is applied.
+     */
+    private static class LossyConnection extends ZooKeeperConnection {
+        volatile boolean applied;
+
+        LossyConnection(String zookeeperNodes, int timeout) {
+            super(zookeeperNodes, timeout);
+        }
+
+        @Override
+        public Transaction transaction() {
+            final Transaction TX = super.transaction();
+            return new Transaction(null) {
+                @Override
+                public Transaction setData(String path, byte[] data, int version) {
+                    TX.setData(path, data, version);
+                    return this;
+                }
+
+                @Override
+                public Transaction delete(String path, int version) {
+                    TX.delete(path, version);
+                    return this;
+                }
+
+                @Override
+                public List<OpResult> commit() throws InterruptedException, KeeperException {
+                    if (applied)
+                        TX.commit();
+                    throw new KeeperException.ConnectionLossException();
+                }
+            };
+        }
+    }
+
+    @Test
+    public void testConnectionLossOnCommit() throws IOException, InterruptedException, KeeperException {
+        final LossyConnection zkc = new LossyConnection(zk.getZkNodes(), 10000);
+        zkc.connect();
+        ChunkedValues values = new ChunkedValues(zkc, 1024, 2);
+        final byte[] FIRST = random(4 * 1024, 7);
+        zkc.applied = true;
+        // applied although lost, so its chunks stay
+        values.write("/table", FIRST);
+        assertArrayEquals(FIRST, array(values.read("/table")));
+        assertEquals(4, zkc.getChildren("/table", false).size());
+
+        zkc.applied = false;
+        try {
+            values.write("/table", random(4 * 1024, 8));
+            fail("committed a lost transaction");
+        } catch (KeeperException.ConnectionLossException e) {
+            // expected
+        }
+        // not applied, so chunks written are deleted
+        assertArrayEquals(FIRST, array(values.read("/table")));
+        assertEquals(4, zkc.getChildren("/table", false).size());
+        zkc.close();
+    }
+
+    /**
+     * Fails a chunk write without sending it.
+     */
+    private static class FailingConnection extends ZooKeeperConnection {
+        volatile int failAt = -1;
+        private int creates = 0;
+
+        FailingConnection(String zookeeperNodes, int timeout) {
+            super(zookeeperNodes, timeout);
+        }
+
+        @Override
+        public void create(String path, byte[] data, List<ACL> acl, CreateMode createMode,
+                AsyncCallback.StringCallback cb, Object ctx) {
+            if (creates++ == failAt)
+                cb.processResult(KeeperException.Code.CONNECTIONLOSS.intValue(), path, ctx, null);
+            else
+                super.create(path, data, acl, createMode, cb, ctx);
+        }
+    }
+
+    @Test
+    public void testFailedChunkWrite() throws IOException, InterruptedException, KeeperException {
+        final FailingConnection zkc = new FailingConnection(zk.getZkNodes(), 10000);
+        zkc.connect();
+        ChunkedValues values = new ChunkedValues(zkc, 1024, 2);
+        final byte[] FIRST = random(4 * 1024, 9);
+        values.write("/table", FIRST);
+
+        zkc.failAt = 6;
+        try {
+            values.write("/table", random(8 * 1024, 10));
+            fail("wrote a value with a chunk missing");
+        } catch (KeeperException.ConnectionLossException e) {
+            // expected
+        }
+        // chunks written before the failure are deleted
+        assertArrayEquals(FIRST, array(values.read("/table")));
+        assertEquals(4, zkc.getChildren("/table", false).size());
+        zkc.close();
+    }
+}
@@ -0,0 +1,122 @@
+package lyn.util.zookeeper.codec;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+public class TestPayloadFormat {
+
+    private static String repeat(String text, int times) {
+        StringBuilder builder = new StringBuilder(text.length() * times);
+        for (int i = 0; i < times; i++)
+            builder.append(text);
+        return builder.toString();
+    }
+
+    @Test
+    public void testHeader() {
+        PayloadFormat format = new PayloadFormat();
+        byte[] payload = format.encode("endpoint", Codecs.STRING);
+        assertTrue(PayloadFormat.isFramed(payload));
+        assertEquals(PayloadFormat.HEADER_LENGTH + 8, payload.length);
+        assertEquals(0xC1, payload[0] & 0xff);
+        assertEquals(PayloadFormat.FORMAT_VERSION << 4, payload[1]);
+        assertEquals(Codecs.STRING.getId(), payload[2]);
+        assertEquals("endpoint", format.decode(payload, Codecs.STRING));
+
+        assertEquals(Long.valueOf(-42), format.decode(format.encode(-42L, Codecs.LONG), Codecs.LONG));
+        byte[] bytes = new byte[] { 1, 2, 3 };
+        assertArrayEquals(bytes, format.decode(format.encode(bytes, Codecs.BYTES), Codecs.BYTES));
+        assertNull(format.decode(null, Codecs.STRING));
+
+        // payloads written before codecs are read as they are
+        assertEquals("legacy", format.decode("legacy".getBytes(), Codecs.STRING));
+        assertFalse(PayloadFormat.isFramed("legacy".getBytes()));
+
+        try {
+            format.decode(payload, Codecs.LONG);
+            fail("decoded by another codec");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        payload[1] = (byte) ((PayloadFormat.FORMAT_VERSION + 1) << 4);
+        try {
+            format.decode(payload, Codecs.STRING);
+            fail("decoded a newer format");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCompression() {
+        PayloadFormat format = new PayloadFormat(1024, Deflater.BEST_SPEED);
+        final String SMALL = repeat("a", 1000);
+        assertEquals(PayloadFormat.HEADER_LENGTH + 1000, format.encode(SMALL, Codecs.STRING).length);
+
+        final String LARGE = repeat("{\"host\":\"10.0.0.1\",\"port\":9000},", 1000);
+        byte[] payload = format.encode(LARGE, Codecs.STRING);
+        assertEquals(PayloadFormat.COMPRESSED, payload[1] & PayloadFormat.COMPRESSED);
+        assertTrue(payload.length < LARGE.length() / 10);
+        assertEquals(LARGE, format.decode(payload, Codecs.STRING));
+        assertEquals(1000 + LARGE.length(), format.getEncodedBytes());
+        assertEquals(PayloadFormat.HEADER_LENGTH + 1000 + payload.length, format.getStoredBytes());
+
+        // incompressible values are kept as they are
+        byte[] noise = new byte[8192];
+        new Random(7).nextBytes(noise);
+        payload = format.encode(noise, Codecs.BYTES);
+        assertEquals(0, payload[1] & PayloadFormat.COMPRESSED);
+        assertArrayEquals(noise, format.decode(payload, Codecs.BYTES));
+
+        // truncated payloads are rejected
+        payload = format.encode(LARGE, Codecs.STRING);
+        try {
+            format.decode(Arrays.copyOf(payload, payload.length / 2), Codecs.STRING);
+            fail("decoded a truncated payload");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPayloadLimit() {
+        byte[] noise = new byte[PayloadFormat.MAX_PAYLOAD];
+        new Random(7).nextBytes(noise);
+        try {
+            new PayloadFormat().encode(noise, Codecs.BYTES);
+            fail("encoded a payload beyond znode limit");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        // compression brings large values below the limit
+        byte[] zeros = new byte[PayloadFormat.MAX_PAYLOAD * 2];
+        byte[] payload = new PayloadFormat().encode(zeros, Codecs.BYTES);
+        assertTrue(payload.length < PayloadFormat.MAX_PAYLOAD);
+        assertArrayEquals(zeros, new PayloadFormat().decode(payload, Codecs.BYTES));
+    }
+
+    @Test
+    public void testBuffer() {
+        Buffer buffer = Buffer.acquire();
+        buffer.writeVarInt(300);
+        buffer.writeInt(1);
+        buffer.writeLong(-1);
+        assertArrayEquals(new byte[] { (byte) 0xac, 0x02, 0, 0, 0, 1, -1, -1, -1, -1, -1, -1, -1, -1 },
+                buffer.toByteArray());
+        Buffer.release(buffer);
+        // released buffers are reused empty
+        Buffer reused = Buffer.acquire();
+        assertSame(buffer, reused);
+        assertEquals(0, reused.size());
+        Buffer.release(reused);
+
+        Buffer large = new Buffer(Buffer.MAX_POOLED_CAPACITY + 1);
+        Buffer.release(large);
+        assertNotSame(large, Buffer.acquire());
+    }
+}
@@ -0,0 +1,91 @@
+package lyn.util.zookeeper.codec;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.zip.Deflater;
+
+import lyn.util.zookeeper.MiniZooKeeperCluster;
+import lyn.util.zookeeper.ZooKeeperConnection;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Transaction;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestTypedConnection {
+    private MiniZooKeeperCluster zk;
+    private String tempDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = System.getProperty("java.io.tmpdir") + "zk.tmp";
+        zk = new MiniZooKeeperCluster(tempDir, 6000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (zk != null) {
+            zk.shutdown();
+        }
+
+        Files.walkFileTree(Paths.get(tempDir), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Test
+    public void testTypedData() throws IOException, InterruptedException, KeeperException {
+        final ZooKeeperConnection zkc = new ZooKeeperConnection(zk.getZkNodes(), 10000);
+        zkc.connect();
+        TypedConnection typed = new TypedConnection(zkc, new PayloadFormat(64, Deflater.BEST_SPEED));
+        assertSame(zkc, typed.getConnection());
+
+        typed.create("/endpoint", "10.0.0.1:9000", Codecs.STRING, CreateMode.PERSISTENT);
+        assertEquals("10.0.0.1:9000", typed.getData("/endpoint", Codecs.STRING, false, null));
+        Stat stat = new Stat();
+        assertEquals("10.0.0.1:9000", typed.getData("/endpoint", Codecs.STRING, (Watcher) null, stat));
+        assertEquals(0, stat.getVersion());
+
+        // large values are stored compressed
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 200; i++)
+            builder.append("10.0.0.").append(i % 10).append(":9000,");
+        final String ENDPOINTS = builder.toString();
+        typed.setData("/endpoint", ENDPOINTS, Codecs.STRING, 0);
+        assertTrue(zkc.getData("/endpoint", false, null).length < ENDPOINTS.length() / 4);
+        assertEquals(ENDPOINTS, typed.getData("/endpoint", Codecs.STRING, false, null));
+
+        typed.updateOrCreate("/counter", 7L, Codecs.LONG, CreateMode.PERSISTENT);
+        typed.updateOrCreate("/counter", 8L, Codecs.LONG, CreateMode.PERSISTENT);
+        assertEquals(Long.valueOf(8), typed.getData("/counter", Codecs.LONG, false, null));
+
+        Transaction tx = zkc.transaction();
+        typed.setData(tx, "/counter", 9L, Codecs.LONG, -1);
+        typed.create(tx, "/name", "typed", Codecs.STRING, CreateMode.PERSISTENT);
+        ZooKeeperConnection.commit(tx);
+        assertEquals(Long.valueOf(9), typed.getData("/counter", Codecs.LONG, false, null));
+        assertEquals("typed", typed.getData("/name", Codecs.STRING, false, null));
+        zkc.close();
+    }
+}
@@ -0,0 +1,39 @@
+package lyn.util.zookeeper.metrics;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestHistogram {
+
+    @Test
+    public void testBuckets() {
+        for (long value : new long[] { 0, 1, 7, 8, 15, 16, 100, 1000, 123456789, Long.MAX_VALUE }) {
+            int index = Histogram.index(value);
+            assertTrue(value + " <= upper bound", value <= Histogram.upperBound(index));
+            if (index > 0)
+                assertTrue(value + " > lower bound", value > Histogram.upperBound(index - 1));
+        }
+        assertEquals(Long.MAX_VALUE, Histogram.upperBound(Histogram.index(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testPercentile() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getPercentile(99));
+        for (int i = 1; i <= 1000; i++)
+            histogram.record(i);
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500500, histogram.getSum());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500.5, histogram.getMean(), 0);
+        assertEquals(500, histogram.getPercentile(50), 500 / 8);
+        assertEquals(990, histogram.getPercentile(99), 990 / 8);
+        assertEquals(1000, histogram.getPercentile(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        histogram.record(-1);
+        assertEquals(0, histogram.getMax());
+    }
+}
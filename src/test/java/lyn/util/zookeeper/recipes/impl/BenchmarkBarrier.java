@@ -0,0 +1,219 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import lyn.util.zookeeper.CountingZooKeeperConnection;
+import lyn.util.zookeeper.MiniZooKeeperCluster;
+import lyn.util.zookeeper.ZooKeeperConnection;
+import lyn.util.zookeeper.recipes.Barrier;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.junit.Test;
+
+/**
+ * Notification benchmark of double barriers. N parties enter and leave a barrier one
+ * after another, and watch notifications and zookeeper requests are reported per party
+ * for <code>DoubleBarrier</code> and a barrier watching all parties.
+ * <p>
+ * The JUnit run covers small barriers only. A full run is started by
+ * <code>-Dbenchmark.barrier.sizes=10,100,500</code> or by the main method.
+ */
+public class BenchmarkBarrier {
+    private static final String SIZES = System.getProperty("benchmark.barrier.sizes", "10,50");
+    private static final int MAX_CONNECTIONS = Integer.getInteger("benchmark.barrier.connections", 32);
+    private static final int STAGGER_MILLIS = Integer.getInteger("benchmark.barrier.staggerMillis", 5);
+    private static final long TIMEOUT_SECONDS = 60;
+
+    public static void main(String[] args) throws Exception {
+        new BenchmarkBarrier().benchmark();
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        List<Result> results = new ArrayList<>();
+        for (String size : SIZES.split(",")) {
+            final int N = Integer.parseInt(size.trim());
+            for (Implementation implementation : Implementation.values())
+                results.add(run(implementation, N));
+        }
+
+        System.out.println(Result.HEADER);
+        for (Result result : results)
+            System.out.println(result);
+
+        for (Result result : results) {
+            // herd effect regression: notifications grow linearly with parties
+            if (result.implementation == Implementation.DOUBLE_BARRIER)
+                assertTrue(result.toString(), result.notifications <= 3 * result.parties);
+        }
+    }
+
+    enum Implementation {
+        DOUBLE_BARRIER, WATCH_ALL;
+
+        Barrier create(ZooKeeperConnection zkConnection, int parties) {
+            switch (this) {
+            case DOUBLE_BARRIER:
+                return new DoubleBarrier(zkConnection, "bench", parties);
+            default:
+                return new WatchAllBarrier(zkConnection, "bench", parties);
+            }
+        }
+    }
+
+    /**
+     * The textbook double barrier, every party watches the children of barrier znode and
+     * lists them on every arrival and departure.
+     */
+    static class WatchAllBarrier implements Barrier {
+        private final ZooKeeperConnection zkConnection;
+        private final String barrierPath;
+        private final int parties;
+        private String memberPath = null;
+
+        WatchAllBarrier(ZooKeeperConnection zkConnection, String name, int parties) {
+            this.zkConnection = zkConnection;
+            this.barrierPath = ZooKeeperConnection.buildPath(BARRIERS, name);
+            this.parties = parties;
+        }
+
+        @Override
+        public boolean enter(long timeout, TimeUnit unit) throws KeeperException, InterruptedException {
+            ZooKeeperConnection.createFullPath(zkConnection, barrierPath, new byte[0], CreateMode.PERSISTENT, true);
+            memberPath = zkConnection.create(barrierPath + "/party_", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.EPHEMERAL_SEQUENTIAL);
+            return awaitChildren(true, timeout, unit);
+        }
+
+        @Override
+        public boolean leave(long timeout, TimeUnit unit) throws KeeperException, InterruptedException {
+            zkConnection.delete(memberPath, -1);
+            return awaitChildren(false, timeout, unit);
+        }
+
+        private boolean awaitChildren(boolean full, long timeout, TimeUnit unit) throws KeeperException,
+                InterruptedException {
+            final long DEADLINE = System.nanoTime() + unit.toNanos(timeout);
+            while (true) {
+                final CountDownLatch changed = new CountDownLatch(1);
+                final int COUNT = ReentrantDistributedLock.filter(zkConnection.getChildren(barrierPath, new Watcher() {
+                    @Override
+                    public void process(WatchedEvent event) {
+                        changed.countDown();
+                    }
+                }), "party_").size();
+                if (full && COUNT >= parties)
+                    ZooKeeperConnection.createIfNotExists(zkConnection, barrierPath + "/ready", new byte[0],
+                            CreateMode.PERSISTENT);
+                // ready flag keeps parties seeing early leavers from waiting forever
+                if (full ? COUNT >= parties || zkConnection.exists(barrierPath + "/ready", false) != null
+                        : COUNT == 0)
+                    return true;
+                if (!changed.await(DEADLINE - System.nanoTime(), TimeUnit.NANOSECONDS))
+                    return false;
+            }
+        }
+    }
+
+    Result run(final Implementation implementation, final int N) throws Exception {
+        final String TEMP_DIR = System.getProperty("java.io.tmpdir") + "zk.bench";
+        final MiniZooKeeperCluster ZK = new MiniZooKeeperCluster(TEMP_DIR, 6000);
+        final List<CountingZooKeeperConnection> connections = new ArrayList<>();
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        try {
+            for (int i = 0; i < Math.min(N, MAX_CONNECTIONS); i++) {
+                CountingZooKeeperConnection connection = new CountingZooKeeperConnection(ZK.getZkNodes(), 30000);
+                connection.connect();
+                connections.add(connection);
+            }
+            // create barrier path up front, so requests count enter and leave only
+            ZooKeeperConnection.createFullPath(connections.get(0), Barrier.BARRIERS + "/bench", new byte[0],
+                    CreateMode.PERSISTENT, true);
+            for (CountingZooKeeperConnection connection : connections)
+                connection.reset();
+
+            final long START_NANOS = System.nanoTime();
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < N; i++) {
+                final ZooKeeperConnection CONNECTION = connections.get(i % connections.size());
+                // parties arrive and finish their work one after another
+                final long ARRIVAL_MILLIS = i * STAGGER_MILLIS;
+                final long WORK_MILLIS = (i * 7 % N) * STAGGER_MILLIS;
+                threads.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Barrier barrier = implementation.create(CONNECTION, N);
+                            Thread.sleep(ARRIVAL_MILLIS);
+                            if (!barrier.enter(TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                                throw new IllegalStateException("barrier timed out entering");
+                            Thread.sleep(WORK_MILLIS);
+                            if (!barrier.leave(TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                                throw new IllegalStateException("barrier timed out leaving");
+                        } catch (Exception e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                }));
+            }
+            for (Thread thread : threads)
+                thread.start();
+            for (Thread thread : threads)
+                thread.join();
+            final long ELAPSED_NANOS = System.nanoTime() - START_NANOS;
+            BenchmarkElect.awaitQuiescence(connections);
+            if (failure.get() != null)
+                throw failure.get();
+
+            long notifications = 0;
+            long requests = 0;
+            for (CountingZooKeeperConnection connection : connections) {
+                notifications += connection.getNotifications();
+                requests += connection.getRequests();
+            }
+            return new Result(implementation, N, ELAPSED_NANOS, notifications, requests);
+        } finally {
+            for (ZooKeeperConnection connection : connections)
+                connection.close();
+            ZK.shutdown();
+            BenchmarkElect.deleteRecursively(TEMP_DIR);
+        }
+    }
+
+    static class Result {
+        static final String HEADER = String.format("%-16s %7s %10s %14s %12s %14s %12s", "barrier", "N",
+                "total(ms)", "notifications", "requests", "notif/party", "req/party");
+
+        final Implementation implementation;
+        final int parties;
+        final long elapsedNanos;
+        final long notifications;
+        final long requests;
+
+        Result(Implementation implementation, int parties, long elapsedNanos, long notifications, long requests) {
+            this.implementation = implementation;
+            this.parties = parties;
+            this.elapsedNanos = elapsedNanos;
+            this.notifications = notifications;
+            this.requests = requests;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-16s %7d %10.1f %14d %12d %14.1f %12.1f", implementation, parties,
+                    elapsedNanos / 1e6, notifications, requests, (double) notifications / parties,
+                    (double) requests / parties);
+        }
+    }
+}
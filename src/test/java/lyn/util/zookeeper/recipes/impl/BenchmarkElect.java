@@ -0,0 +1,262 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import lyn.util.zookeeper.CountingZooKeeperConnection;
+import lyn.util.zookeeper.MiniZooKeeperCluster;
+import lyn.util.zookeeper.ZooKeeperConnection;
+import lyn.util.zookeeper.recipes.Elect.ElectState;
+
+import org.apache.zookeeper.KeeperException;
+import org.junit.Test;
+
+/**
+ * Failover benchmark of election implementations. For each implementation and number
+ * of candidates, the leader znode is deleted repeatedly and the following numbers are
+ * reported per failover:
+ * <ul>
+ * <li>takeover latency from leader znode deletion to a new <code>LEADING</code> update</li>
+ * <li>watch notifications delivered to candidates</li>
+ * <li>zookeeper requests sent by candidates</li>
+ * </ul>
+ * The JUnit run covers small elections only. A full run is started by
+ * <code>-Dbenchmark.elect.sizes=10,100,1000,10000</code> or by the main method.
+ */
+public class BenchmarkElect {
+    private static final String SIZES = System.getProperty("benchmark.elect.sizes", "10,100");
+    private static final int FAILOVERS = Integer.getInteger("benchmark.elect.failovers", 5);
+    private static final int MAX_CONNECTIONS = Integer.getInteger("benchmark.elect.connections", 32);
+    private static final long TAKEOVER_TIMEOUT_MILLIS = 60000;
+
+    public static void main(String[] args) throws Exception {
+        new BenchmarkElect().benchmark();
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        List<Result> results = new ArrayList<>();
+        for (String size : SIZES.split(",")) {
+            final int N = Integer.parseInt(size.trim());
+            for (Implementation implementation : Implementation.values())
+                results.add(run(implementation, N));
+        }
+
+        System.out.println(Result.HEADER);
+        for (Result result : results)
+            System.out.println(result);
+
+        for (Result result : results) {
+            assertEquals(result.toString(), result.failovers, result.latencies.length);
+            // herd effect regression: only successor is notified of leader failure
+            if (result.implementation == Implementation.CONTENTION_FREE)
+                assertTrue(result.toString(), result.notificationsPerFailover() <= 2);
+        }
+    }
+
+    enum Implementation {
+        NAIVE, CONTENTION_FREE, WEIGHTED;
+
+        NaiveElect create(final Round[] round) {
+            switch (this) {
+            case NAIVE:
+                return new NaiveElect() {
+                    @Override
+                    public Object update(ElectState stat) {
+                        round[0].update(stat);
+                        return super.update(stat);
+                    }
+                };
+            case CONTENTION_FREE:
+                return new ContentionFreeElect() {
+                    @Override
+                    public Object update(ElectState stat) {
+                        round[0].update(stat);
+                        return super.update(stat);
+                    }
+                };
+            default:
+                return new WeightedElect(1, 0) {
+                    @Override
+                    public Object update(ElectState stat) {
+                        round[0].update(stat);
+                        return super.update(stat);
+                    }
+                };
+            }
+        }
+    }
+
+    /**
+     * A failover, completed by the first <code>LEADING</code> update.
+     */
+    static class Round {
+        private final CountDownLatch leading = new CountDownLatch(1);
+        private volatile long leadingNanos = 0;
+
+        void update(ElectState stat) {
+            if (stat == ElectState.LEADING && leading.getCount() > 0) {
+                leadingNanos = System.nanoTime();
+                leading.countDown();
+            }
+        }
+
+        boolean await() throws InterruptedException {
+            return leading.await(TAKEOVER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    Result run(Implementation implementation, final int N) throws IOException, InterruptedException,
+            KeeperException {
+        final String TEMP_DIR = System.getProperty("java.io.tmpdir") + "zk.bench";
+        final MiniZooKeeperCluster ZK = new MiniZooKeeperCluster(TEMP_DIR, 6000);
+        final List<CountingZooKeeperConnection> connections = new ArrayList<>();
+        final ZooKeeperConnection ADMIN = new ZooKeeperConnection(ZK.getZkNodes(), 30000);
+        final Round[] round = new Round[] { new Round() };
+        final int FAILOVERS_RUN = Math.min(FAILOVERS, N - 1);
+        final long[] latencies = new long[FAILOVERS_RUN];
+        long notifications = 0;
+        long requests = 0;
+
+        try {
+            ADMIN.connect();
+            for (int i = 0; i < Math.min(N, MAX_CONNECTIONS); i++) {
+                CountingZooKeeperConnection connection = new CountingZooKeeperConnection(ZK.getZkNodes(), 30000);
+                connection.connect();
+                connections.add(connection);
+            }
+            for (int i = 0; i < N; i++)
+                implementation.create(round).participate(connections.get(i % connections.size()), i == 0);
+            awaitQuiescence(connections);
+
+            LeaderLookup lookup = new LeaderLookup(ADMIN);
+            lookup.start();
+            int completed = 0;
+            for (int failover = 0; failover < FAILOVERS_RUN; failover++) {
+                LeaderLookup.Leader leader = lookup.getLeader();
+                for (CountingZooKeeperConnection connection : connections)
+                    connection.reset();
+                round[0] = new Round();
+
+                final long START_NANOS = System.nanoTime();
+                ADMIN.delete(ZooKeeperConnection.buildPath(ELECTION_ROOT, leader.getName()), -1);
+                if (!round[0].await())
+                    break;
+                latencies[completed++] = round[0].leadingNanos - START_NANOS;
+
+                awaitQuiescence(connections);
+                for (CountingZooKeeperConnection connection : connections) {
+                    notifications += connection.getNotifications();
+                    requests += connection.getRequests();
+                }
+                while (lookup.getLeader() == null || lookup.getLeader().getName().equals(leader.getName()))
+                    Thread.sleep(10);
+            }
+            lookup.close();
+            return new Result(implementation, N, FAILOVERS_RUN, Arrays.copyOf(latencies, completed), notifications,
+                    requests);
+        } finally {
+            for (ZooKeeperConnection connection : connections)
+                connection.close();
+            ADMIN.close();
+            ZK.shutdown();
+            deleteRecursively(TEMP_DIR);
+        }
+    }
+
+    private static final String ELECTION_ROOT = NaiveElect.ELECTION;
+
+    /**
+     * Waits until candidates stopped sending requests and receiving notifications.
+     */
+    static void awaitQuiescence(List<CountingZooKeeperConnection> connections) throws InterruptedException {
+        long last = -1;
+        int stable = 0;
+        while (stable < 3) {
+            Thread.sleep(100);
+            long total = 0;
+            for (CountingZooKeeperConnection connection : connections)
+                total += connection.getRequests() + connection.getNotifications();
+            stable = (total == last) ? stable + 1 : 0;
+            last = total;
+        }
+    }
+
+    static void deleteRecursively(String dir) throws IOException {
+        if (!Files.exists(Paths.get(dir)))
+            return;
+        Files.walkFileTree(Paths.get(dir), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    static class Result {
+        static final String HEADER = String.format("%-16s %7s %9s %9s %9s %9s %14s %12s", "election",
+                "N", "p50(ms)", "p90(ms)", "p99(ms)", "max(ms)", "notifications", "requests");
+
+        final Implementation implementation;
+        final int candidates;
+        final int failovers;
+        final long[] latencies;
+        final long notifications;
+        final long requests;
+
+        Result(Implementation implementation, int candidates, int failovers, long[] latencies, long notifications,
+                long requests) {
+            this.implementation = implementation;
+            this.candidates = candidates;
+            this.failovers = failovers;
+            this.latencies = latencies;
+            this.notifications = notifications;
+            this.requests = requests;
+            Arrays.sort(this.latencies);
+        }
+
+        double notificationsPerFailover() {
+            return (latencies.length == 0) ? 0 : (double) notifications / latencies.length;
+        }
+
+        double requestsPerFailover() {
+            return (latencies.length == 0) ? 0 : (double) requests / latencies.length;
+        }
+
+        /**
+         * @return nearest-rank percentile in milliseconds
+         */
+        double percentile(double percent) {
+            if (latencies.length == 0)
+                return Double.NaN;
+            int rank = (int) Math.ceil(percent / 100 * latencies.length);
+            return latencies[Math.max(rank - 1, 0)] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-16s %7d %9.2f %9.2f %9.2f %9.2f %14.1f %12.1f", implementation, candidates,
+                    percentile(50), percentile(90), percentile(99), percentile(100), notificationsPerFailover(),
+                    requestsPerFailover());
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import lyn.util.zookeeper.MiniZooKeeperCluster;
+import lyn.util.zookeeper.ZooKeeperConnection;
+import lyn.util.zookeeper.recipes.DistributedQueue;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.Transaction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestBatchedDistributedQueue {
+    private MiniZooKeeperCluster zk;
+    private String tempDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = System.getProperty("java.io.tmpdir") + "zk.tmp";
+        zk = new MiniZooKeeperCluster(tempDir, 6000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (zk != null) {
+            zk.shutdown();
+        }
+
+        Files.walkFileTree(Paths.get(tempDir), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static List<byte[]> items(int from, int to) {
+        List<byte[]> items = new ArrayList<>();
+        for (int item = from; item < to; item++)
+            items.add(String.valueOf(item).getBytes());
+        return items;
+    }
+
+    @Test
+    public void testOfferPoll() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        zkc1.connect();
+
+        BatchedDistributedQueue queue = new BatchedDistributedQueue(zkc1, "test", 4, 100);
+        assertEquals(DistributedQueue.QUEUES + "/test", queue.getQueuePath());
+        assertTrue(queue.poll(10).isEmpty());
+
+        queue.offerAll(items(0, 10));
+        queue.offer("10".getBytes());
+        assertEquals(11, zkc1.getChildren(queue.getQueuePath(), false).size());
+
+        List<byte[]> claimed = queue.poll(5);
+        assertEquals(5, claimed.size());
+        for (int item = 0; item < 5; item++)
+            assertEquals(String.valueOf(item), new String(claimed.get(item)));
+        // remaining items are claimed from the snapshot of the first poll
+        claimed = queue.poll(10);
+        assertEquals(6, claimed.size());
+        assertEquals("10", new String(claimed.get(5)));
+        // one listing for all items and one finding the queue empty
+        assertEquals(2, queue.getListings());
+        assertTrue(zkc1.getChildren(queue.getQueuePath(), false).isEmpty());
+
+        zkc1.close();
+    }
+
+    @Test
+    public void testTake() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        final ZooKeeperConnection zkc2 = new ZooKeeperConnection(zkNodes, 10000);
+        zkc1.connect();
+        zkc2.connect();
+
+        final BatchedDistributedQueue producer = new BatchedDistributedQueue(zkc1, "test");
+        final BatchedDistributedQueue consumer = new BatchedDistributedQueue(zkc2, "test");
+        assertTrue(consumer.take(10, 200, TimeUnit.MILLISECONDS).isEmpty());
+
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread producing = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                    producer.offerAll(items(0, 3));
+                } catch (KeeperException | InterruptedException e) {
+                    failure.set(e);
+                }
+            }
+        });
+        producing.start();
+        List<byte[]> claimed = new ArrayList<>();
+        final long START_TIMESTAMP = System.currentTimeMillis();
+        while (claimed.size() < 3 && System.currentTimeMillis() - START_TIMESTAMP < 10000)
+            claimed.addAll(consumer.take(10, 10, TimeUnit.SECONDS));
+        producing.join();
+        assertNull(failure.get());
+        assertEquals(3, claimed.size());
+
+        zkc1.close();
+        zkc2.close();
+    }
+
+    @Test
+    public void testConsumers() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final int CONSUMERS = 4;
+        final int ITEMS = 2000;
+        final ZooKeeperConnection producing = new ZooKeeperConnection(zkNodes, 10000);
+        producing.connect();
+        new BatchedDistributedQueue(producing, "test", 500, 50).offerAll(items(0, ITEMS));
+
+        final ConcurrentHashMap<String, Boolean> delivered = new ConcurrentHashMap<>();
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        final List<ZooKeeperConnection> connections = new ArrayList<>();
+        final List<BatchedDistributedQueue> consumers = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < CONSUMERS; i++) {
+            ZooKeeperConnection connection = new ZooKeeperConnection(zkNodes, 10000);
+            connection.connect();
+            connections.add(connection);
+            final BatchedDistributedQueue consumer = new BatchedDistributedQueue(connection, "test", 50, 50);
+            consumers.add(consumer);
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        List<byte[]> claimed;
+                        while (!(claimed = consumer.poll(100)).isEmpty()) {
+                            for (byte[] item : claimed) {
+                                if (delivered.put(new String(item), Boolean.TRUE) != null)
+                                    throw new IllegalStateException("delivered twice: " + new String(item));
+                            }
+                        }
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+
+        assertNull(failure.get());
+        assertEquals(ITEMS, delivered.size());
+        long listings = 0;
+        for (BatchedDistributedQueue consumer : consumers)
+            listings += consumer.getListings();
+        // items are claimed from snapshots rather than listing per item
+        assertTrue("listings: " + listings, listings < ITEMS / 10);
+
+        for (ZooKeeperConnection connection : connections)
+            connection.close();
+        producing.close();
+    }
+
+    /* loses the connection on commits after the first ones, or is interrupted */
+    private static class FailingConnection extends ZooKeeperConnection {
+        final AtomicInteger commits = new AtomicInteger(Integer.MAX_VALUE);
+        /* failed commits are applied, only their result is lost */
+        volatile boolean applied = false;
+        volatile boolean interrupted = false;
+
+        FailingConnection(String zookeeperNodes, int timeout) {
+            super(zookeeperNodes, timeout);
+        }
+
+        @Override
+        public Transaction transaction() {
+            final Transaction TX = super.transaction();
+            return new Transaction(null) {
+                @Override
+                public Transaction delete(String path, int version) {
+                    TX.delete(path, version);
+                    return this;
+                }
+
+                @Override
+                public List<OpResult> commit() throws InterruptedException, KeeperException {
+                    if (commits.getAndDecrement() > 0)
+                        return TX.commit();
+                    if (applied)
+                        TX.commit();
+                    if (interrupted)
+                        throw new InterruptedException();
+                    throw new KeeperException.ConnectionLossException();
+                }
+            };
+        }
+    }
+
+    @Test
+    public void testFailedClaim() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        final FailingConnection zkc2 = new FailingConnection(zkNodes, 10000);
+        zkc1.connect();
+        zkc2.connect();
+        new BatchedDistributedQueue(zkc1, "test").offerAll(items(0, 10));
+
+        // items of the first batch are deleted, so they are returned despite the failure
+        BatchedDistributedQueue queue = new BatchedDistributedQueue(zkc2, "test", 4, 100);
+        zkc2.commits.set(1);
+        List<byte[]> claimed = queue.poll(10);
+        assertEquals(4, claimed.size());
+        for (int item = 0; item < 4; item++)
+            assertEquals(String.valueOf(item), new String(claimed.get(item)));
+        assertEquals(6, zkc1.getChildren(queue.getQueuePath(), false).size());
+
+        // nothing claimed, so the failure is thrown
+        zkc2.commits.set(0);
+        try {
+            queue.poll(10);
+            fail("claimed without a commit");
+        } catch (KeeperException.ConnectionLossException e) {
+            // expected
+        }
+        zkc2.commits.set(Integer.MAX_VALUE);
+        claimed = queue.poll(10);
+        assertEquals(6, claimed.size());
+        assertEquals("9", new String(claimed.get(5)));
+
+        zkc1.close();
+        zkc2.close();
+    }
+
+    @Test
+    public void testUncertainClaim() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        final FailingConnection zkc2 = new FailingConnection(zkNodes, 10000);
+        zkc1.connect();
+        zkc2.connect();
+        new BatchedDistributedQueue(zkc1, "test").offerAll(items(0, 10));
+
+        // deleted although the result of the commit is lost, so the items are returned
+        BatchedDistributedQueue queue = new BatchedDistributedQueue(zkc2, "test", 4, 100);
+        zkc2.commits.set(0);
+        zkc2.applied = true;
+        List<byte[]> claimed = queue.poll(10);
+        assertEquals(4, claimed.size());
+        assertEquals("0", new String(claimed.get(0)));
+        assertEquals(6, zkc1.getChildren(queue.getQueuePath(), false).size());
+
+        // interrupted after the first batch, the items are returned with the interrupt set
+        zkc2.commits.set(1);
+        zkc2.interrupted = true;
+        claimed = queue.poll(10);
+        assertTrue(Thread.interrupted());
+        assertEquals(6, claimed.size());
+        assertEquals("9", new String(claimed.get(5)));
+        assertEquals(0, zkc1.getChildren(queue.getQueuePath(), false).size());
+
+        zkc1.close();
+        zkc2.close();
+    }
+}
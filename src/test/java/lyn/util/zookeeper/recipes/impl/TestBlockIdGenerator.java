@@ -0,0 +1,150 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import lyn.util.zookeeper.MiniZooKeeperCluster;
+import lyn.util.zookeeper.ZooKeeperConnection;
+import lyn.util.zookeeper.recipes.IdGenerator;
+
+import org.apache.zookeeper.KeeperException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestBlockIdGenerator {
+    private MiniZooKeeperCluster zk;
+    private String tempDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = System.getProperty("java.io.tmpdir") + "zk.tmp";
+        zk = new MiniZooKeeperCluster(tempDir, 6000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (zk != null) {
+            zk.shutdown();
+        }
+
+        Files.walkFileTree(Paths.get(tempDir), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Test
+    public void testLease() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        zkc1.connect();
+
+        BlockIdGenerator generator = new BlockIdGenerator(zkc1, "test", 10, 3);
+        assertEquals(IdGenerator.SEQUENCES + "/test", generator.getCounterPath());
+        for (long expected = 0; expected < 6; expected++)
+            assertEquals(expected, generator.nextId());
+        assertEquals(1, generator.getLeases());
+        // the next block is leased once 3 ids are left
+        assertEquals(6, generator.nextId());
+        final long START_TIMESTAMP = System.currentTimeMillis();
+        while (generator.getLeases() < 2 && System.currentTimeMillis() - START_TIMESTAMP < 10000)
+            Thread.sleep(10);
+        assertEquals(2, generator.getLeases());
+        assertEquals(20, BlockIdGenerator.decode(zkc1.getData(generator.getCounterPath(), false, null)));
+        for (long expected = 7; expected < 15; expected++)
+            assertEquals(expected, generator.nextId());
+        generator.close();
+
+        // a restarted generator skips ids left in leased blocks
+        generator = new BlockIdGenerator(zkc1, "test", 10, 3);
+        assertEquals(20, generator.nextId());
+        generator.close();
+
+        zkc1.close();
+    }
+
+    @Test
+    public void testUnique() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        final ZooKeeperConnection zkc2 = new ZooKeeperConnection(zkNodes, 10000);
+        zkc1.connect();
+        zkc2.connect();
+
+        final BlockIdGenerator[] generators = new BlockIdGenerator[] { new BlockIdGenerator(zkc1, "test", 100, 20),
+                new BlockIdGenerator(zkc2, "test", 100, 20) };
+        final int THREADS_PER_GENERATOR = 4;
+        final int IDS = 5000;
+        final ConcurrentHashMap<Long, Boolean> ids = new ConcurrentHashMap<>();
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (final BlockIdGenerator generator : generators) {
+            for (int i = 0; i < THREADS_PER_GENERATOR; i++) {
+                threads.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int id = 0; id < IDS; id++) {
+                                if (ids.put(generator.nextId(), Boolean.TRUE) != null)
+                                    throw new IllegalStateException("duplicated id");
+                            }
+                        } catch (Exception e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                }));
+            }
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+
+        assertNull(failure.get());
+        assertEquals(generators.length * THREADS_PER_GENERATOR * IDS, ids.size());
+        long leased = BlockIdGenerator.decode(zkc1.getData(generators[0].getCounterPath(), false, null));
+        assertEquals(100 * (generators[0].getLeases() + generators[1].getLeases()), leased);
+        for (BlockIdGenerator generator : generators)
+            generator.close();
+
+        zkc1.close();
+        zkc2.close();
+    }
+
+    @Test(timeout = 30000)
+    public void testClose() throws IOException, InterruptedException, KeeperException {
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zk.getZkNodes(), 10000);
+        zkc1.connect();
+
+        BlockIdGenerator generator = new BlockIdGenerator(zkc1, "test", 10, 3);
+        assertEquals(0, generator.nextId());
+        generator.close();
+        // blocks are leased in place once closed
+        for (long expected = 1; expected < 25; expected++)
+            assertEquals(expected, generator.nextId());
+        assertEquals(3, generator.getLeases());
+
+        zkc1.close();
+    }
+}
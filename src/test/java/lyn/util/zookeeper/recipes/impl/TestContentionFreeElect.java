@@ -10,6 +10,7 @@ import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 
@@ -188,6 +189,89 @@ public class TestContentionFreeElect {
 
         zkc3.close();
     }
+
+    @Test
+    public void testFencingToken() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        final ZooKeeperConnection zkc2 = new ZooKeeperConnection(zkNodes, 30000);
+        zkc1.connect();
+        zkc2.connect();
+
+        ContentionFreeElect leader = new ContentionFreeElect();
+        ContentionFreeElect follower = new ContentionFreeElect();
+        assertEquals(-1, leader.getFencingToken());
+        assertEquals(ElectState.LEADING, leader.participate(zkc1, true));
+        assertEquals(ElectState.LEADED, follower.participate(zkc2, false));
+
+        final long LEADER_TOKEN = leader.getFencingToken();
+        assertTrue(LEADER_TOKEN > 0);
+        assertTrue(follower.getFencingToken() > LEADER_TOKEN);
+        assertEquals(LEADER_TOKEN, follower.getLeaderFencingToken());
+        assertTrue(follower.isValidFencingToken(LEADER_TOKEN));
+        assertFalse(follower.isValidFencingToken(LEADER_TOKEN - 1));
+
+        zkc1.close();
+        final long START_TIMESTAMP = System.currentTimeMillis();
+        while (follower.getStat() != ElectState.LEADING && System.currentTimeMillis() - START_TIMESTAMP < 15000) {
+            Thread.sleep(100);
+        }
+        // the old leader is fenced off once the follower took over
+        assertEquals(ElectState.LEADING, follower.getStat());
+        assertEquals(follower.getFencingToken(), follower.getLeaderFencingToken());
+        assertFalse(follower.isValidFencingToken(LEADER_TOKEN));
+        assertTrue(follower.isValidFencingToken(follower.getFencingToken()));
+
+        zkc2.close();
+    }
+
+    @Test
+    public void testAbdicate() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        final ZooKeeperConnection zkc2 = new ZooKeeperConnection(zkNodes, 30000);
+        zkc1.connect();
+        zkc2.connect();
+
+        final List<ElectState> transitions = new ArrayList<>();
+        ContentionFreeElect leader = new ContentionFreeElect();
+        ContentionFreeElect successor = new ContentionFreeElect() {
+            @Override
+            public Object update(ElectState stat) {
+                synchronized (transitions) {
+                    transitions.add(stat);
+                }
+                return super.update(stat);
+            }
+        };
+        successor.setPayload("successor".getBytes());
+        assertEquals(ElectState.LEADING, leader.participate(zkc1, true));
+        assertEquals(ElectState.LEADED, successor.participate(zkc2, false));
+
+        assertTrue(leader.abdicate(zkc1, 10000));
+        assertTrue(leader.getLastHandoffNanos() > 0);
+        assertNull(leader.getMemberPath());
+
+        final long START_TIMESTAMP = System.currentTimeMillis();
+        while (successor.getStat() != ElectState.LEADING && System.currentTimeMillis() - START_TIMESTAMP < 10000) {
+            Thread.sleep(10);
+        }
+        synchronized (transitions) {
+            assertEquals(Arrays.asList(ElectState.SUCCEEDING, ElectState.LEADING), transitions);
+        }
+        assertTrue(successor.getLastLeaderlessWindowNanos() > 0);
+        assertEquals(successor.getFencingToken(), successor.getLeaderFencingToken());
+        // payload restored after handoff
+        assertArrayEquals("successor".getBytes(), zkc2.getData(successor.getMemberPath(), false, null));
+        assertEquals(1, successor.fetchCandidates(zkc2).size());
+
+        // sole candidate simply withdraws
+        assertFalse(successor.abdicate(zkc2, 10000));
+        assertTrue(successor.fetchCandidates(zkc2).isEmpty());
+
+        zkc1.close();
+        zkc2.close();
+    }
 }
 
 class TestableContentionFreeElect extends ContentionFreeElect {
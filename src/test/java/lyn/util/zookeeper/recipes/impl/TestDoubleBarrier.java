@@ -0,0 +1,126 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import lyn.util.zookeeper.MiniZooKeeperCluster;
+import lyn.util.zookeeper.ZooKeeperConnection;
+
+import org.apache.zookeeper.KeeperException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestDoubleBarrier {
+    private MiniZooKeeperCluster zk;
+    private String tempDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = System.getProperty("java.io.tmpdir") + "zk.tmp";
+        zk = new MiniZooKeeperCluster(tempDir, 6000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (zk != null) {
+            zk.shutdown();
+        }
+
+        Files.walkFileTree(Paths.get(tempDir), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Test
+    public void testEnterLeave() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final int PARTIES = 4;
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        final ZooKeeperConnection zkc2 = new ZooKeeperConnection(zkNodes, 10000);
+        zkc1.connect();
+        zkc2.connect();
+
+        final AtomicInteger leaving = new AtomicInteger();
+        final AtomicInteger early = new AtomicInteger();
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < PARTIES; i++) {
+            final ZooKeeperConnection CONNECTION = (i % 2 == 0) ? zkc1 : zkc2;
+            final long WORK_MILLIS = i * 100;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int round = 0; round < 2; round++) {
+                            DoubleBarrier barrier = new DoubleBarrier(CONNECTION, "test", PARTIES);
+                            if (!barrier.enter(10, TimeUnit.SECONDS))
+                                throw new IllegalStateException("not entered");
+                            Thread.sleep(WORK_MILLIS);
+                            leaving.incrementAndGet();
+                            if (!barrier.leave(10, TimeUnit.SECONDS))
+                                throw new IllegalStateException("not left");
+                            // nobody returns before all parties started leaving
+                            if (leaving.get() < PARTIES * (round + 1))
+                                early.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+
+        assertNull(failure.get());
+        assertEquals(0, early.get());
+        // the last party removed ready znode for the next round
+        assertTrue(zkc1.getChildren(new DoubleBarrier(zkc1, "test", PARTIES).getBarrierPath(), false).isEmpty());
+
+        zkc1.close();
+        zkc2.close();
+    }
+
+    @Test
+    public void testLeaveTimeout() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        zkc1.connect();
+
+        DoubleBarrier barrier1 = new DoubleBarrier(zkc1, "test", 2);
+        DoubleBarrier barrier2 = new DoubleBarrier(zkc1, "test", 2);
+        assertFalse(barrier1.enter(0, TimeUnit.SECONDS));
+        assertTrue(barrier2.enter(10, TimeUnit.SECONDS));
+        // the lowest party waits for the other one
+        assertFalse(barrier1.leave(200, TimeUnit.MILLISECONDS));
+        assertTrue(barrier2.leave(10, TimeUnit.SECONDS));
+
+        zkc1.close();
+    }
+}
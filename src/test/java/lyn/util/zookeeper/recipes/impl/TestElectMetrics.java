@@ -0,0 +1,78 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import lyn.util.zookeeper.recipes.Elect.ElectState;
+
+import org.junit.Test;
+
+public class TestElectMetrics {
+
+    @Test
+    public void testTransition() throws InterruptedException {
+        ElectMetrics metrics = new ElectMetrics();
+        assertEquals("NONE", metrics.getState());
+
+        metrics.transition(ElectState.LEADED, 0);
+        Thread.sleep(5);
+        metrics.transition(ElectState.LEADED, System.nanoTime());
+        metrics.transition(ElectState.LEADING, System.nanoTime());
+
+        assertEquals("LEADING", metrics.getState());
+        assertEquals(1, metrics.getTransitionCount(null, ElectState.LEADED));
+        assertEquals(1, metrics.getTransitionCount(ElectState.LEADED, ElectState.LEADED));
+        assertEquals(1, metrics.getTransitionCount(ElectState.LEADED, ElectState.LEADING));
+        assertEquals(3, metrics.getTransitions().size());
+        assertEquals(Long.valueOf(1), metrics.getTransitions().get("LEADED->LEADING"));
+        // self transition does not split time in state
+        assertEquals(1, metrics.getTimeInState(ElectState.LEADED).getCount());
+        assertTrue(metrics.getTimeInState(ElectState.LEADED).getMax() >= 5000000);
+        assertEquals(0, metrics.getTimeInState(ElectState.LEADING).getCount());
+        // local transitions carry no event
+        assertEquals(2, metrics.getEventToUpdate().getCount());
+    }
+
+    @Test
+    public void testLeaderless() throws InterruptedException {
+        ElectMetrics metrics = new ElectMetrics();
+        metrics.transition(ElectState.LEADED, 0);
+        final long LOST_NANOS = System.nanoTime();
+        metrics.leaderLost(LOST_NANOS);
+        Thread.sleep(5);
+        // only the first loss opens a gap
+        metrics.leaderLost(System.nanoTime());
+        metrics.transition(ElectState.LOSTCONNECTION, 0);
+        assertEquals(0, metrics.getLeaderlessCount());
+        metrics.transition(ElectState.LEADING, 0);
+        assertEquals(1, metrics.getLeaderlessCount());
+        assertTrue(metrics.getLeaderless().getMax() >= 5000000);
+
+        metrics.leaderFound(System.nanoTime());
+        assertEquals(1, metrics.getLeaderlessCount());
+        metrics.leaderLost(System.nanoTime());
+        metrics.leaderFound(System.nanoTime());
+        assertEquals(2, metrics.getLeaderlessCount());
+    }
+
+    @Test
+    public void testRegister() throws JMException {
+        ElectMetrics metrics = new ElectMetrics();
+        metrics.transition(ElectState.LEADING, 0);
+        ObjectName name = metrics.register("test");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            assertTrue(server.isRegistered(name));
+            assertEquals("LEADING", server.getAttribute(name, "State"));
+            assertEquals(0L, server.getAttribute(name, "LeaderlessCount"));
+        } finally {
+            metrics.unregister();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+}
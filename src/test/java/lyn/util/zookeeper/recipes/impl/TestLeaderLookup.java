@@ -0,0 +1,136 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import lyn.util.zookeeper.MiniZooKeeperCluster;
+import lyn.util.zookeeper.ZooKeeperConnection;
+import lyn.util.zookeeper.recipes.Elect.ElectState;
+
+import org.apache.zookeeper.KeeperException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestLeaderLookup {
+    private MiniZooKeeperCluster zk;
+    private String tempDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = System.getProperty("java.io.tmpdir") + "zk.tmp";
+        zk = new MiniZooKeeperCluster(tempDir, 6000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (zk != null) {
+            zk.shutdown();
+        }
+
+        Files.walkFileTree(Paths.get(tempDir), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static void awaitPayload(LeaderLookup lookup, String expected) throws InterruptedException {
+        final long START_TIMESTAMP = System.currentTimeMillis();
+        while (System.currentTimeMillis() - START_TIMESTAMP < 10000) {
+            byte[] payload = lookup.getLeaderPayload();
+            if (expected == null ? payload == null : payload != null && expected.equals(new String(payload)))
+                return;
+            Thread.sleep(50);
+        }
+        fail("leader payload is not " + expected);
+    }
+
+    @Test
+    public void testLookup() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection observer = new ZooKeeperConnection(zkNodes, 30000);
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        final ZooKeeperConnection zkc2 = new ZooKeeperConnection(zkNodes, 30000);
+        observer.connect();
+        zkc1.connect();
+        zkc2.connect();
+
+        // no election yet
+        LeaderLookup lookup = new LeaderLookup(observer);
+        lookup.start();
+        assertNull(lookup.getLeader());
+
+        NaiveElect leader = new NaiveElect();
+        leader.setPayload("node1:9000".getBytes());
+        ContentionFreeElect follower = new ContentionFreeElect();
+        follower.setPayload("node2:9000".getBytes());
+        assertEquals(ElectState.LEADING, leader.participate(zkc1, true));
+        assertEquals(ElectState.LEADED, follower.participate(zkc2, false));
+        awaitPayload(lookup, "node1:9000");
+        assertEquals(leader.getFencingToken(), lookup.getLeader().getFencingToken());
+        assertEquals(leader.getMemberPath(), "/elect/" + lookup.getLeader().getName());
+
+        // payload change of leader
+        leader.updatePayload(zkc1, "node1:9001".getBytes());
+        awaitPayload(lookup, "node1:9001");
+
+        // leader lost
+        zkc1.close();
+        awaitPayload(lookup, "node2:9000");
+        assertFalse(lookup.isValidFencingToken(leader.getFencingToken()));
+        assertTrue(lookup.isValidFencingToken(follower.getFencingToken()));
+
+        zkc2.close();
+        awaitPayload(lookup, null);
+
+        lookup.close();
+        observer.close();
+    }
+
+    @Test
+    public void testSessionExpired() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection observer = new ZooKeeperConnection(zkNodes, 10000);
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        observer.connect();
+        zkc1.connect();
+
+        NaiveElect leader = new NaiveElect();
+        leader.setPayload("node1:9000".getBytes());
+        assertEquals(ElectState.LEADING, leader.participate(zkc1, true));
+        LeaderLookup lookup = new LeaderLookup(observer);
+        lookup.start();
+        awaitPayload(lookup, "node1:9000");
+
+        // changed while the session is gone, resolved again once connected
+        zk.expire(observer);
+        awaitPayload(lookup, null);
+        leader.updatePayload(zkc1, "node1:9001".getBytes());
+        observer.connect();
+        awaitPayload(lookup, "node1:9001");
+
+        // watches are set again
+        leader.updatePayload(zkc1, "node1:9002".getBytes());
+        awaitPayload(lookup, "node1:9002");
+
+        lookup.close();
+        zkc1.close();
+        observer.close();
+    }
+}
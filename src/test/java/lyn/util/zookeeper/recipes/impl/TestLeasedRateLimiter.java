@@ -0,0 +1,204 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import lyn.util.zookeeper.MiniZooKeeperCluster;
+import lyn.util.zookeeper.ZooKeeperConnection;
+import lyn.util.zookeeper.recipes.RateLimiter;
+
+import org.apache.zookeeper.KeeperException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestLeasedRateLimiter {
+    private MiniZooKeeperCluster zk;
+    private String tempDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = System.getProperty("java.io.tmpdir") + "zk.tmp";
+        zk = new MiniZooKeeperCluster(tempDir, 6000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (zk != null) {
+            zk.shutdown();
+        }
+
+        Files.walkFileTree(Paths.get(tempDir), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Test
+    public void testTokenBucket() throws InterruptedException {
+        LeasedRateLimiter.TokenBucket bucket = new LeasedRateLimiter.TokenBucket(100, TimeUnit.SECONDS.toNanos(1));
+        int granted = 0;
+        while (bucket.tryAcquire(1) == 0)
+            granted++;
+        // a full bucket holds a second of permits
+        assertTrue("granted " + granted, granted >= 100 && granted <= 101);
+        final long WAIT_NANOS = bucket.tryAcquire(1);
+        assertTrue(WAIT_NANOS > 0 && WAIT_NANOS <= TimeUnit.MILLISECONDS.toNanos(10));
+        TimeUnit.NANOSECONDS.sleep(WAIT_NANOS);
+        assertEquals(0, bucket.tryAcquire(1));
+
+        bucket.setRate(0);
+        assertEquals(Long.MAX_VALUE, bucket.tryAcquire(1));
+
+        // a request larger than the burst is granted by a full bucket only
+        LeasedRateLimiter.TokenBucket large = new LeasedRateLimiter.TokenBucket(10, TimeUnit.SECONDS.toNanos(1));
+        assertEquals(0, large.tryAcquire(50));
+        assertTrue(large.tryAcquire(1) > 0);
+    }
+
+    @Test
+    public void testShare() {
+        final long NOW_MILLIS = System.currentTimeMillis();
+        Map<String, LeasedRateLimiter.Lease> leases = new TreeMap<>();
+        leases.put("a", new LeasedRateLimiter.Lease(0, 900, NOW_MILLIS));
+        leases.put("b", new LeasedRateLimiter.Lease(0, 100, NOW_MILLIS));
+        assertEquals(900, LeasedRateLimiter.share(leases, "a", 1000), 0.001);
+        leases.put("a", new LeasedRateLimiter.Lease(900, 900, NOW_MILLIS));
+        assertEquals(100, LeasedRateLimiter.share(leases, "b", 1000), 0.001);
+
+        // a share only grows up to the rate not leased by others
+        leases.put("a", new LeasedRateLimiter.Lease(900, 100, NOW_MILLIS));
+        leases.put("b", new LeasedRateLimiter.Lease(100, 900, NOW_MILLIS));
+        assertEquals(100, LeasedRateLimiter.share(leases, "b", 1000), 0.001);
+        assertEquals(100, LeasedRateLimiter.share(leases, "a", 1000), 0.001);
+
+        // idle processes keep a floor of a tenth of an even share
+        leases.put("c", new LeasedRateLimiter.Lease(0, 0, NOW_MILLIS - 10000));
+        assertEquals(1000 * (1000.0 / 30) / (1000 + 1000.0 / 30),
+                LeasedRateLimiter.share(new TreeMap<>(LeasedRateLimiter.decode(LeasedRateLimiter.encode(
+                        withShares(leases, 0)))), "c", 1000), 0.001);
+        LeasedRateLimiter.expire(leases, NOW_MILLIS - 5000);
+        assertFalse(leases.containsKey("c"));
+        assertTrue(LeasedRateLimiter.decode(new byte[0]).isEmpty());
+    }
+
+    private static Map<String, LeasedRateLimiter.Lease> withShares(Map<String, LeasedRateLimiter.Lease> leases,
+            double share) {
+        Map<String, LeasedRateLimiter.Lease> copy = new TreeMap<>();
+        for (Map.Entry<String, LeasedRateLimiter.Lease> lease : leases.entrySet())
+            copy.put(lease.getKey(), new LeasedRateLimiter.Lease(share, lease.getValue().demand,
+                    lease.getValue().renewedMillis));
+        return copy;
+    }
+
+    @Test
+    public void testRebalance() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        final ZooKeeperConnection zkc2 = new ZooKeeperConnection(zkNodes, 10000);
+        zkc1.connect();
+        zkc2.connect();
+
+        final LeasedRateLimiter busy = new LeasedRateLimiter(zkc1, "api", 1000, 100);
+        final LeasedRateLimiter idle = new LeasedRateLimiter(zkc2, "api", 1000, 100);
+        assertEquals(RateLimiter.RATE_LIMITS + "/api", busy.getLimitPath());
+        busy.start();
+        idle.start();
+        assertTrue(busy.getShare() + idle.getShare() <= 1000);
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread client = new Thread() {
+            @Override
+            public void run() {
+                while (running.get()) {
+                    if (!busy.tryAcquire(1))
+                        Thread.yield();
+                }
+            }
+        };
+        client.start();
+        final long START_TIMESTAMP = System.currentTimeMillis();
+        while ((busy.getShare() < 800 || idle.getShare() > 200) && System.currentTimeMillis() - START_TIMESTAMP < 10000)
+            Thread.sleep(20);
+        assertTrue(busy.getShare() >= 800);
+        assertTrue(idle.getShare() <= 200);
+        double leased = 0;
+        for (LeasedRateLimiter.Lease lease : LeasedRateLimiter.decode(zkc1.getData(busy.getLimitPath(), false, null))
+                .values())
+            leased += lease.share;
+        assertTrue("leased " + leased, leased <= 1000.001);
+        running.set(false);
+        client.join();
+
+        // shares of a closed process are given to others
+        busy.close();
+        assertEquals(0, busy.getShare(), 0);
+        while (idle.getShare() < 900 && System.currentTimeMillis() - START_TIMESTAMP < 20000)
+            Thread.sleep(20);
+        assertTrue(idle.getShare() >= 900);
+        assertTrue(idle.tryAcquire(10, 1, TimeUnit.SECONDS));
+        assertTrue(idle.getRebalances() > 0);
+
+        idle.close();
+        assertTrue(LeasedRateLimiter.decode(zkc1.getData(idle.getLimitPath(), false, null)).isEmpty());
+        zkc1.close();
+        zkc2.close();
+    }
+
+    @Test
+    public void testLapse() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        final ZooKeeperConnection zkc2 = new ZooKeeperConnection(zkNodes, 10000);
+        zkc1.connect();
+        zkc2.connect();
+
+        // limiters sharing a session hold leases of their own
+        final LeasedRateLimiter first = new LeasedRateLimiter(zkc1, "api", 1000, 100);
+        final LeasedRateLimiter second = new LeasedRateLimiter(zkc1, "api", 1000, 100);
+        final LeasedRateLimiter other = new LeasedRateLimiter(zkc2, "api", 1000, 100);
+        first.start();
+        second.start();
+        other.start();
+        assertEquals(3, LeasedRateLimiter.decode(zkc2.getData(first.getLimitPath(), false, null)).size());
+        second.close();
+        assertEquals(2, LeasedRateLimiter.decode(zkc2.getData(first.getLimitPath(), false, null)).size());
+        assertTrue(first.getShare() > 0);
+
+        // renewals fail, the share is given up before others lease it again
+        zkc1.close();
+        final long START_TIMESTAMP = System.currentTimeMillis();
+        while (first.getShare() > 0 && System.currentTimeMillis() - START_TIMESTAMP < 10000)
+            Thread.sleep(20);
+        assertEquals(0, first.getShare(), 0);
+        assertTrue(System.currentTimeMillis() - START_TIMESTAMP < 1000);
+        assertFalse(first.tryAcquire(1));
+        while (other.getShare() < 900 && System.currentTimeMillis() - START_TIMESTAMP < 10000)
+            Thread.sleep(20);
+        assertTrue(other.getShare() >= 900);
+
+        first.close();
+        other.close();
+        zkc2.close();
+    }
+}
@@ -0,0 +1,205 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import lyn.util.zookeeper.MiniZooKeeperCluster;
+import lyn.util.zookeeper.ZooKeeperConnection;
+import lyn.util.zookeeper.recipes.DistributedSemaphore;
+
+import org.apache.zookeeper.KeeperException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestLeasedSemaphore {
+    private MiniZooKeeperCluster zk;
+    private String tempDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = System.getProperty("java.io.tmpdir") + "zk.tmp";
+        zk = new MiniZooKeeperCluster(tempDir, 6000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (zk != null) {
+            zk.shutdown();
+        }
+
+        Files.walkFileTree(Paths.get(tempDir), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Test
+    public void testPermits() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        final ZooKeeperConnection zkc2 = new ZooKeeperConnection(zkNodes, 10000);
+        final ZooKeeperConnection zkc3 = new ZooKeeperConnection(zkNodes, 10000);
+        zkc1.connect();
+        zkc2.connect();
+        zkc3.connect();
+
+        LeasedSemaphore semaphore1 = new LeasedSemaphore(zkc1, "downstream", 2);
+        LeasedSemaphore semaphore2 = new LeasedSemaphore(zkc2, "downstream", 2);
+        final LeasedSemaphore semaphore3 = new LeasedSemaphore(zkc3, "downstream", 2);
+        assertEquals(DistributedSemaphore.SEMAPHORES + "/downstream", semaphore1.getSemaphorePath());
+        try {
+            semaphore1.release();
+            fail("released without permit");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        semaphore1.acquire();
+        assertTrue(semaphore2.tryAcquire(1, TimeUnit.SECONDS));
+        assertFalse(semaphore3.tryAcquire(100, TimeUnit.MILLISECONDS));
+        // a withdrawn waiter leaves no lease behind
+        assertEquals(2, zkc1.getChildren(semaphore1.getSemaphorePath(), false).size());
+
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    semaphore3.acquire();
+                    acquired.countDown();
+                } catch (KeeperException | InterruptedException e) {
+                    failure.set(e);
+                }
+            }
+        };
+        waiter.start();
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        // any release admits the first waiter
+        semaphore2.release();
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        assertNull(failure.get());
+        assertEquals(1, semaphore3.getHeldPermits());
+        assertEquals(0, semaphore2.getHeldPermits());
+
+        // session loss releases the permit
+        zkc1.close();
+        assertTrue(semaphore2.tryAcquire(5, TimeUnit.SECONDS));
+        semaphore2.release();
+        semaphore3.release();
+        assertTrue(zkc2.getChildren(semaphore2.getSemaphorePath(), false).isEmpty());
+        zkc2.close();
+        zkc3.close();
+    }
+
+    @Test
+    public void testWaiters() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final int PROCESSES = 6;
+        final int PERMITS = 2;
+        final AtomicInteger holders = new AtomicInteger();
+        final AtomicInteger maxHolders = new AtomicInteger();
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        List<ZooKeeperConnection> connections = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int idx = 0; idx < PROCESSES; idx++) {
+            ZooKeeperConnection zkc = new ZooKeeperConnection(zkNodes, 10000);
+            zkc.connect();
+            connections.add(zkc);
+            final LeasedSemaphore semaphore = new LeasedSemaphore(zkc, "pool", PERMITS);
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int round = 0; round < 3; round++) {
+                            semaphore.acquire();
+                            final int HOLDERS = holders.incrementAndGet();
+                            while (maxHolders.get() < HOLDERS)
+                                maxHolders.compareAndSet(maxHolders.get(), HOLDERS);
+                            Thread.sleep(20);
+                            holders.decrementAndGet();
+                            semaphore.release();
+                        }
+                    } catch (KeeperException | InterruptedException e) {
+                        failure.set(e);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join(30000);
+        assertNull(failure.get());
+        assertEquals(0, holders.get());
+        assertTrue(maxHolders.get() <= PERMITS);
+        assertTrue(connections.get(0).getChildren(DistributedSemaphore.SEMAPHORES + "/pool", false).isEmpty());
+        for (ZooKeeperConnection zkc : connections)
+            zkc.close();
+    }
+
+    @Test
+    public void testLocalHandoff() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc = new ZooKeeperConnection(zkNodes, 10000);
+        zkc.connect();
+        final LeasedSemaphore semaphore = new LeasedSemaphore(zkc, "local", 1, 4);
+        final int THREADS = 4;
+        final int ROUNDS = 10;
+        final AtomicInteger holders = new AtomicInteger();
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int idx = 0; idx < THREADS; idx++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int round = 0; round < ROUNDS; round++) {
+                            semaphore.acquire();
+                            if (holders.incrementAndGet() > 1)
+                                failure.set(new IllegalStateException("permit exceeded"));
+                            Thread.sleep(2);
+                            holders.decrementAndGet();
+                            semaphore.release();
+                        }
+                    } catch (KeeperException | InterruptedException e) {
+                        failure.set(e);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join(30000);
+        assertNull(failure.get());
+        assertEquals(THREADS * ROUNDS, semaphore.getRemoteAcquisitions() + semaphore.getLocalAcquisitions());
+        assertTrue(semaphore.getLocalAcquisitions() > 0);
+        assertEquals(0, semaphore.getHeldPermits());
+        assertTrue(zkc.getChildren(semaphore.getSemaphorePath(), false).isEmpty());
+        zkc.close();
+    }
+}
@@ -9,6 +9,8 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
@@ -62,11 +64,10 @@ public class TestNaiveElect {
 
     @Test(expected = NumberFormatException.class)
     public void testParseId() {
-        NaiveElect naive = new NaiveElect();
-        assertEquals(1, naive.parseId("/elect/naive_1"));
-        naive.parseId("/e/n1");
-        naive.parseId("/elect/naive_asdf");
-        assertEquals(12, naive.parseId("/elect/naive_12"));
+        assertEquals(1, NaiveElect.parseId("/elect/naive_1"));
+        NaiveElect.parseId("/e/n1");
+        NaiveElect.parseId("/elect/naive_asdf");
+        assertEquals(12, NaiveElect.parseId("/elect/naive_12"));
     }
 
     @Test
@@ -320,6 +321,96 @@ public class TestNaiveElect {
 
         zkc3.close();
     }
+
+    @Test
+    public void testFencingToken() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        final ZooKeeperConnection zkc2 = new ZooKeeperConnection(zkNodes, 30000);
+        zkc1.connect();
+        zkc2.connect();
+
+        NaiveElect leader = new NaiveElect();
+        NaiveElect follower = new NaiveElect();
+        assertEquals(-1, leader.getFencingToken());
+        assertEquals(ElectState.LEADING, leader.participate(zkc1, true));
+        assertEquals(ElectState.LEADED, follower.participate(zkc2, false));
+
+        final long LEADER_TOKEN = leader.getFencingToken();
+        assertTrue(LEADER_TOKEN > 0);
+        assertTrue(follower.getFencingToken() > LEADER_TOKEN);
+        assertEquals(LEADER_TOKEN, follower.getLeaderFencingToken());
+        assertTrue(follower.isValidFencingToken(LEADER_TOKEN));
+        assertFalse(follower.isValidFencingToken(LEADER_TOKEN - 1));
+
+        zkc1.close();
+        final long START_TIMESTAMP = System.currentTimeMillis();
+        while (follower.getStat() != ElectState.LEADING && System.currentTimeMillis() - START_TIMESTAMP < 15000) {
+            Thread.sleep(100);
+        }
+        // the old leader is fenced off once the follower took over
+        assertEquals(ElectState.LEADING, follower.getStat());
+        assertEquals(follower.getFencingToken(), follower.getLeaderFencingToken());
+        assertFalse(follower.isValidFencingToken(LEADER_TOKEN));
+        assertTrue(follower.isValidFencingToken(follower.getFencingToken()));
+
+        ElectMetrics metrics = follower.getMetrics();
+        assertEquals(1, metrics.getTransitionCount(null, ElectState.LEADED));
+        assertEquals(1, metrics.getTransitionCount(ElectState.LEADED, ElectState.LEADING));
+        assertEquals(1, metrics.getLeaderless().getCount());
+        assertEquals(1, metrics.getEventToUpdate().getCount());
+        assertEquals(1, metrics.getTimeInState(ElectState.LEADED).getCount());
+
+        zkc2.close();
+    }
+
+    @Test
+    public void testAbdicate() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        final ZooKeeperConnection zkc2 = new ZooKeeperConnection(zkNodes, 30000);
+        zkc1.connect();
+        zkc2.connect();
+
+        final List<ElectState> transitions = new ArrayList<>();
+        NaiveElect leader = new NaiveElect();
+        NaiveElect successor = new NaiveElect() {
+            @Override
+            public Object update(ElectState stat) {
+                synchronized (transitions) {
+                    transitions.add(stat);
+                }
+                return super.update(stat);
+            }
+        };
+        successor.setPayload("successor".getBytes());
+        assertEquals(ElectState.LEADING, leader.participate(zkc1, true));
+        assertEquals(ElectState.LEADED, successor.participate(zkc2, false));
+
+        assertTrue(leader.abdicate(zkc1, 10000));
+        assertTrue(leader.getLastHandoffNanos() > 0);
+        assertNull(leader.getMemberPath());
+
+        final long START_TIMESTAMP = System.currentTimeMillis();
+        while (successor.getStat() != ElectState.LEADING && System.currentTimeMillis() - START_TIMESTAMP < 10000) {
+            Thread.sleep(10);
+        }
+        synchronized (transitions) {
+            assertEquals(Arrays.asList(ElectState.SUCCEEDING, ElectState.LEADING), transitions);
+        }
+        assertTrue(successor.getLastLeaderlessWindowNanos() > 0);
+        assertEquals(successor.getFencingToken(), successor.getLeaderFencingToken());
+        // payload restored after handoff
+        assertArrayEquals("successor".getBytes(), zkc2.getData(successor.getMemberPath(), false, null));
+        assertEquals(1, successor.fetchCandidates(zkc2).size());
+
+        // sole candidate simply withdraws
+        assertFalse(successor.abdicate(zkc2, 10000));
+        assertTrue(successor.fetchCandidates(zkc2).isEmpty());
+
+        zkc1.close();
+        zkc2.close();
+    }
 }
 
 class TestableNaiveElect extends NaiveElect {
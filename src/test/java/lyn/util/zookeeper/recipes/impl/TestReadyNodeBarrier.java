@@ -0,0 +1,124 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import lyn.util.zookeeper.MiniZooKeeperCluster;
+import lyn.util.zookeeper.ZooKeeperConnection;
+import lyn.util.zookeeper.recipes.Barrier;
+
+import org.apache.zookeeper.KeeperException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestReadyNodeBarrier {
+    private MiniZooKeeperCluster zk;
+    private String tempDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = System.getProperty("java.io.tmpdir") + "zk.tmp";
+        zk = new MiniZooKeeperCluster(tempDir, 6000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (zk != null) {
+            zk.shutdown();
+        }
+
+        Files.walkFileTree(Paths.get(tempDir), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Test
+    public void testEnter() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final int PARTIES = 5;
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        zkc1.connect();
+
+        assertEquals(Barrier.BARRIERS + "/test", new ReadyNodeBarrier(zkc1, "test", PARTIES).getBarrierPath());
+        final AtomicInteger entered = new AtomicInteger();
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        final CountDownLatch released = new CountDownLatch(PARTIES - 1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < PARTIES - 1; i++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ReadyNodeBarrier barrier = new ReadyNodeBarrier(zkc1, "test", PARTIES);
+                        entered.incrementAndGet();
+                        if (barrier.enter(10, TimeUnit.SECONDS))
+                            released.countDown();
+                        barrier.leave(0, TimeUnit.SECONDS);
+                    } catch (KeeperException | InterruptedException e) {
+                        failure.set(e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        while (entered.get() < PARTIES - 1)
+            Thread.sleep(10);
+        // not released before the last party joins
+        assertFalse(released.await(300, TimeUnit.MILLISECONDS));
+
+        ReadyNodeBarrier last = new ReadyNodeBarrier(zkc1, "test", PARTIES);
+        assertTrue(last.enter(10, TimeUnit.SECONDS));
+        assertTrue(released.await(10, TimeUnit.SECONDS));
+        for (Thread thread : threads)
+            thread.join();
+        assertNull(failure.get());
+        assertTrue(last.leave(0, TimeUnit.SECONDS));
+
+        zkc1.close();
+    }
+
+    @Test
+    public void testTimeout() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        zkc1.connect();
+
+        ReadyNodeBarrier barrier = new ReadyNodeBarrier(zkc1, "test", 2);
+        assertFalse(barrier.enter(200, TimeUnit.MILLISECONDS));
+        try {
+            barrier.enter(0, TimeUnit.SECONDS);
+            fail("entered twice");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertTrue(barrier.leave(0, TimeUnit.SECONDS));
+        assertTrue(new ReadyNodeBarrier(zkc1, "test", 2).fetchMembers().isEmpty());
+
+        zkc1.close();
+    }
+}
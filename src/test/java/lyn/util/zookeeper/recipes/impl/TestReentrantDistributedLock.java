@@ -0,0 +1,312 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import lyn.util.zookeeper.MiniZooKeeperCluster;
+import lyn.util.zookeeper.ZooKeeperConnection;
+import lyn.util.zookeeper.recipes.DistributedLock;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.ACL;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestReentrantDistributedLock {
+    private MiniZooKeeperCluster zk;
+    private String tempDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = System.getProperty("java.io.tmpdir") + "zk.tmp";
+        zk = new MiniZooKeeperCluster(tempDir, 6000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (zk != null) {
+            zk.shutdown();
+        }
+
+        Files.walkFileTree(Paths.get(tempDir), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Test
+    public void testLock() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        final ZooKeeperConnection zkc2 = new ZooKeeperConnection(zkNodes, 10000);
+        zkc1.connect();
+        zkc2.connect();
+
+        final ReentrantDistributedLock lock1 = new ReentrantDistributedLock(zkc1, "test");
+        final ReentrantDistributedLock lock2 = new ReentrantDistributedLock(zkc2, "test");
+        assertEquals(DistributedLock.LOCKS + "/test", lock1.getLockPath());
+
+        lock1.lock();
+        assertTrue(lock1.isHeldByCurrentThread());
+        assertFalse(lock2.tryLock());
+        assertFalse(lock2.tryLock(200, TimeUnit.MILLISECONDS));
+        // withdrawn znodes of failed attempts are removed
+        assertEquals(1, zkc1.getChildren(lock1.getLockPath(), false).size());
+
+        // reentrant acquisition takes no znode
+        assertTrue(lock1.tryLock());
+        lock1.unlock();
+        assertTrue(lock1.isHeldByCurrentThread());
+        assertFalse(lock2.tryLock());
+        assertEquals(1, lock1.getRemoteAcquisitions());
+
+        lock1.unlock();
+        assertFalse(lock1.isHeldByCurrentThread());
+        assertTrue(lock2.tryLock());
+        lock2.unlock();
+        assertTrue(zkc1.getChildren(lock1.getLockPath(), false).isEmpty());
+
+        try {
+            lock1.unlock();
+            fail("unlock without holding");
+        } catch (IllegalMonitorStateException e) {
+            // expected
+        }
+
+        zkc1.close();
+        zkc2.close();
+    }
+
+    @Test
+    public void testWaitForRelease() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        final ZooKeeperConnection zkc2 = new ZooKeeperConnection(zkNodes, 10000);
+        zkc1.connect();
+        zkc2.connect();
+
+        final ReentrantDistributedLock lock1 = new ReentrantDistributedLock(zkc1, "test");
+        final ReentrantDistributedLock lock2 = new ReentrantDistributedLock(zkc2, "test");
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+
+        lock1.lock();
+        final Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (lock2.tryLock(10, TimeUnit.SECONDS)) {
+                        acquired.countDown();
+                        lock2.unlock();
+                    }
+                } catch (KeeperException | InterruptedException e) {
+                    failure.set(e);
+                }
+            }
+        });
+        waiter.start();
+        assertFalse(acquired.await(300, TimeUnit.MILLISECONDS));
+        lock1.unlock();
+        assertTrue(acquired.await(10, TimeUnit.SECONDS));
+        waiter.join();
+        assertNull(failure.get());
+
+        zkc1.close();
+        zkc2.close();
+    }
+
+    @Test
+    public void testMutualExclusion() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        final ZooKeeperConnection zkc2 = new ZooKeeperConnection(zkNodes, 10000);
+        zkc1.connect();
+        zkc2.connect();
+
+        final ReentrantDistributedLock[] locks = new ReentrantDistributedLock[] {
+                new ReentrantDistributedLock(zkc1, "test", 4), new ReentrantDistributedLock(zkc2, "test", 4) };
+        final int THREADS_PER_LOCK = 4;
+        final int ROUNDS = 25;
+        final int[] counter = new int[1];
+        final int[] holders = new int[1];
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (final ReentrantDistributedLock lock : locks) {
+            for (int i = 0; i < THREADS_PER_LOCK; i++) {
+                threads.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int round = 0; round < ROUNDS; round++) {
+                                lock.lock();
+                                try {
+                                    if (++holders[0] != 1)
+                                        throw new AssertionError("lock is held twice");
+                                    counter[0]++;
+                                    holders[0]--;
+                                } finally {
+                                    lock.unlock();
+                                }
+                            }
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                }));
+            }
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+
+        assertNull(failure.get());
+        assertEquals(locks.length * THREADS_PER_LOCK * ROUNDS, counter[0]);
+        for (ReentrantDistributedLock lock : locks) {
+            assertEquals(THREADS_PER_LOCK * ROUNDS, lock.getRemoteAcquisitions() + lock.getLocalAcquisitions());
+            // local threads are handed off without zookeeper requests
+            assertTrue(lock.getLocalAcquisitions() > 0);
+        }
+        assertTrue(zkc1.getChildren(locks[0].getLockPath(), false).isEmpty());
+
+        zkc1.close();
+        zkc2.close();
+    }
+
+    @Test
+    public void testAbandonedHandoff() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        zkc1.connect();
+
+        final ReentrantDistributedLock lock = new ReentrantDistributedLock(zkc1, "test");
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        lock.lock();
+        final Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    lock.lock();
+                    lock.unlock();
+                    failure.set(new IllegalStateException("acquired by an interrupted waiter"));
+                } catch (InterruptedException e) {
+                    // gave up
+                } catch (KeeperException e) {
+                    failure.set(e);
+                }
+            }
+        });
+        waiter.start();
+        while (waiter.getState() != Thread.State.WAITING)
+            Thread.sleep(5);
+        // gives up once the znode is handed off to it, before the local lock is released
+        final AtomicReference<Thread.State> abandoned = new AtomicReference<>();
+        lock.handoffHook = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    waiter.interrupt();
+                    waiter.join();
+                    abandoned.set(waiter.getState());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        lock.unlock();
+        lock.handoffHook = null;
+        assertEquals(Thread.State.TERMINATED, abandoned.get());
+        assertNull(failure.get());
+        assertTrue(zkc1.getChildren(lock.getLockPath(), false).isEmpty());
+
+        // usable again
+        assertTrue(lock.tryLock());
+        assertEquals(1, zkc1.getChildren(lock.getLockPath(), false).size());
+        lock.unlock();
+        assertTrue(zkc1.getChildren(lock.getLockPath(), false).isEmpty());
+
+        zkc1.close();
+    }
+
+    /**
+     * Loses the result of the next create with the connection, after or before it is
+     * applied.
+     */
+    private static class LossyConnection extends ZooKeeperConnection {
+        volatile boolean lose = false;
+        volatile boolean applied = false;
+
+        LossyConnection(String zookeeperNodes, int timeout) {
+            super(zookeeperNodes, timeout);
+        }
+
+        @Override
+        public void create(final String path, byte[] data, List<ACL> acl, CreateMode createMode,
+                final AsyncCallback.StringCallback cb, Object ctx) {
+            if (!lose) {
+                super.create(path, data, acl, createMode, cb, ctx);
+                return;
+            }
+            lose = false;
+            if (!applied) {
+                cb.processResult(KeeperException.Code.CONNECTIONLOSS.intValue(), path, ctx, null);
+                return;
+            }
+            super.create(path, data, acl, createMode, new AsyncCallback.StringCallback() {
+                @Override
+                public void processResult(int rc, String path, Object ctx, String name) {
+                    cb.processResult(KeeperException.Code.CONNECTIONLOSS.intValue(), path, ctx, null);
+                }
+            }, ctx);
+        }
+    }
+
+    @Test
+    public void testConnectionLossOnCreate() throws IOException, InterruptedException, KeeperException {
+        final LossyConnection zkc = new LossyConnection(zk.getZkNodes(), 10000);
+        zkc.connect();
+        final ReentrantDistributedLock lock = new ReentrantDistributedLock(zkc, "test");
+        ZooKeeperConnection.createFullPath(zkc, lock.getLockPath(), new byte[0], CreateMode.PERSISTENT);
+
+        // created although lost, so it is found instead of left behind
+        zkc.lose = true;
+        zkc.applied = true;
+        lock.lock();
+        assertEquals(1, zkc.getChildren(lock.getLockPath(), false).size());
+        lock.unlock();
+        assertTrue(zkc.getChildren(lock.getLockPath(), false).isEmpty());
+
+        // not created, so it is created again
+        zkc.lose = true;
+        zkc.applied = false;
+        assertTrue(lock.tryLock());
+        assertEquals(1, zkc.getChildren(lock.getLockPath(), false).size());
+        lock.unlock();
+        assertTrue(zkc.getChildren(lock.getLockPath(), false).isEmpty());
+        zkc.close();
+    }
+}
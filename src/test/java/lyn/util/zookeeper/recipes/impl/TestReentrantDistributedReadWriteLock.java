@@ -0,0 +1,284 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import lyn.util.zookeeper.MiniZooKeeperCluster;
+import lyn.util.zookeeper.ZooKeeperConnection;
+
+import org.apache.zookeeper.KeeperException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestReentrantDistributedReadWriteLock {
+    private MiniZooKeeperCluster zk;
+    private String tempDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = System.getProperty("java.io.tmpdir") + "zk.tmp";
+        zk = new MiniZooKeeperCluster(tempDir, 6000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (zk != null) {
+            zk.shutdown();
+        }
+
+        Files.walkFileTree(Paths.get(tempDir), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Test
+    public void testFetchBlocker() {
+        List<String> members = Arrays.asList("read_0000000001", "write_0000000002", "read_0000000003",
+                "read_0000000004", "write_0000000005");
+        assertNull(ReentrantDistributedReadWriteLock.fetchBlocker(members, "read_0000000001"));
+        assertEquals("read_0000000001", ReentrantDistributedReadWriteLock.fetchBlocker(members, "write_0000000002"));
+        // readers wait for the nearest preceding writer only
+        assertEquals("write_0000000002", ReentrantDistributedReadWriteLock.fetchBlocker(members, "read_0000000004"));
+        assertEquals("read_0000000004", ReentrantDistributedReadWriteLock.fetchBlocker(members, "write_0000000005"));
+    }
+
+    @Test
+    public void testReadWrite() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        final ZooKeeperConnection zkc2 = new ZooKeeperConnection(zkNodes, 10000);
+        zkc1.connect();
+        zkc2.connect();
+
+        final ReentrantDistributedReadWriteLock lock1 = new ReentrantDistributedReadWriteLock(zkc1, "test");
+        final ReentrantDistributedReadWriteLock lock2 = new ReentrantDistributedReadWriteLock(zkc2, "test");
+
+        // readers of different processes share the lock
+        lock1.readLock().lock();
+        assertTrue(lock2.readLock().tryLock());
+        assertFalse(lock2.writeLock().tryLock(200, TimeUnit.MILLISECONDS));
+        lock2.readLock().unlock();
+        assertFalse(lock2.writeLock().tryLock());
+        lock1.readLock().unlock();
+
+        // writer excludes readers and writers
+        assertTrue(lock2.writeLock().tryLock());
+        assertTrue(lock2.writeLock().tryLock());
+        lock2.writeLock().unlock();
+        assertFalse(lock1.readLock().tryLock());
+        assertFalse(lock1.writeLock().tryLock());
+        try {
+            lock2.readLock().tryLock();
+            fail("downgrading");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        lock2.writeLock().unlock();
+
+        assertTrue(lock1.readLock().tryLock());
+        lock1.readLock().unlock();
+        assertTrue(zkc1.getChildren(lock1.getLockPath(), false).isEmpty());
+
+        try {
+            lock1.readLock().unlock();
+            fail("unlock without holding");
+        } catch (IllegalMonitorStateException e) {
+            // expected
+        }
+
+        zkc1.close();
+        zkc2.close();
+    }
+
+    @Test
+    public void testQueuedWriterBlocksReaders() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        final ZooKeeperConnection zkc2 = new ZooKeeperConnection(zkNodes, 10000);
+        final ZooKeeperConnection zkc3 = new ZooKeeperConnection(zkNodes, 10000);
+        zkc1.connect();
+        zkc2.connect();
+        zkc3.connect();
+
+        final ReentrantDistributedReadWriteLock reader = new ReentrantDistributedReadWriteLock(zkc1, "test");
+        final ReentrantDistributedReadWriteLock writer = new ReentrantDistributedReadWriteLock(zkc2, "test");
+        final ReentrantDistributedReadWriteLock lateReader = new ReentrantDistributedReadWriteLock(zkc3, "test");
+        final CountDownLatch written = new CountDownLatch(1);
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+
+        reader.readLock().lock();
+        Thread writing = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writer.writeLock().lock();
+                    written.countDown();
+                    writer.writeLock().unlock();
+                } catch (KeeperException | InterruptedException e) {
+                    failure.set(e);
+                }
+            }
+        });
+        writing.start();
+        while (zkc1.getChildren(reader.getLockPath(), false).size() < 2)
+            Thread.sleep(10);
+        // a reader arriving after a queued writer waits for it
+        assertFalse(lateReader.readLock().tryLock(200, TimeUnit.MILLISECONDS));
+        assertFalse(written.await(100, TimeUnit.MILLISECONDS));
+
+        reader.readLock().unlock();
+        assertTrue(written.await(10, TimeUnit.SECONDS));
+        writing.join();
+        assertNull(failure.get());
+        assertTrue(lateReader.readLock().tryLock(10, TimeUnit.SECONDS));
+        lateReader.readLock().unlock();
+
+        zkc1.close();
+        zkc2.close();
+        zkc3.close();
+    }
+
+    @Test
+    public void testLocalReadersYieldToQueuedWriter() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        final ZooKeeperConnection zkc2 = new ZooKeeperConnection(zkNodes, 10000);
+        zkc1.connect();
+        zkc2.connect();
+
+        final ReentrantDistributedReadWriteLock reader = new ReentrantDistributedReadWriteLock(zkc1, "test");
+        final ReentrantDistributedReadWriteLock writer = new ReentrantDistributedReadWriteLock(zkc2, "test");
+        final CountDownLatch written = new CountDownLatch(1);
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+
+        reader.readLock().lock();
+        Thread writing = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writer.writeLock().lock();
+                    written.countDown();
+                    writer.writeLock().unlock();
+                } catch (KeeperException | InterruptedException e) {
+                    failure.set(e);
+                }
+            }
+        });
+        writing.start();
+        while (zkc1.getChildren(reader.getLockPath(), false).size() < 2)
+            Thread.sleep(10);
+        Thread.sleep(200);
+
+        // another local reader does not join the shared znode ahead of the queued writer
+        final AtomicInteger joined = new AtomicInteger();
+        final AtomicLong waited = new AtomicLong();
+        Thread reading = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final long START = System.nanoTime();
+                    if (!reader.readLock().tryLock(300, TimeUnit.MILLISECONDS)) {
+                        waited.set(System.nanoTime() - START);
+                        if (!reader.readLock().tryLock(10, TimeUnit.SECONDS))
+                            return;
+                    } else {
+                        joined.incrementAndGet();
+                    }
+                    reader.readLock().unlock();
+                } catch (KeeperException | InterruptedException e) {
+                    failure.set(e);
+                }
+            }
+        });
+        reading.start();
+        assertFalse(written.await(500, TimeUnit.MILLISECONDS));
+
+        reader.readLock().unlock();
+        assertTrue(written.await(10, TimeUnit.SECONDS));
+        writing.join();
+        reading.join();
+        assertNull(failure.get());
+        assertEquals(0, joined.get());
+        // one deadline for the local and the remote wait
+        assertTrue(waited.get() < TimeUnit.MILLISECONDS.toNanos(500));
+        assertEquals(2, reader.readLock().getRemoteAcquisitions());
+        assertTrue(zkc1.getChildren(reader.getLockPath(), false).isEmpty());
+
+        zkc1.close();
+        zkc2.close();
+    }
+
+    @Test
+    public void testLocalReaders() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        zkc1.connect();
+
+        final ReentrantDistributedReadWriteLock lock = new ReentrantDistributedReadWriteLock(zkc1, "test");
+        final int READERS = 8;
+        final CountDownLatch reading = new CountDownLatch(READERS);
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger maxMembers = new AtomicInteger();
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < READERS; i++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        lock.readLock().lock();
+                        try {
+                            reading.countDown();
+                            done.await();
+                        } finally {
+                            lock.readLock().unlock();
+                        }
+                    } catch (KeeperException | InterruptedException e) {
+                        failure.set(e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        assertTrue(reading.await(10, TimeUnit.SECONDS));
+        // concurrent readers of a process share a single znode
+        maxMembers.set(zkc1.getChildren(lock.getLockPath(), false).size());
+        done.countDown();
+        for (Thread thread : threads)
+            thread.join();
+
+        assertNull(failure.get());
+        assertEquals(1, maxMembers.get());
+        assertEquals(1, lock.readLock().getRemoteAcquisitions());
+        assertTrue(zkc1.getChildren(lock.getLockPath(), false).isEmpty());
+
+        zkc1.close();
+    }
+}
@@ -0,0 +1,270 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import lyn.util.zookeeper.MiniZooKeeperCluster;
+import lyn.util.zookeeper.ZooKeeperConnection;
+import lyn.util.zookeeper.recipes.PartitionAssignment;
+
+import org.apache.zookeeper.KeeperException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestRendezvousPartitionAssignment {
+    private MiniZooKeeperCluster zk;
+    private String tempDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = System.getProperty("java.io.tmpdir") + "zk.tmp";
+        zk = new MiniZooKeeperCluster(tempDir, 6000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (zk != null) {
+            zk.shutdown();
+        }
+
+        Files.walkFileTree(Paths.get(tempDir), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Test
+    public void testAssign() {
+        final int PARTITIONS = 1000;
+        List<String> candidates = new ArrayList<>(Arrays.asList("ctf_0000000001", "ctf_0000000002",
+                "ctf_0000000003", "ctf_0000000004"));
+        final String[] BEFORE = RendezvousPartitionAssignment.assign(candidates, PARTITIONS);
+        assertArrayEquals(BEFORE, RendezvousPartitionAssignment.assign(candidates, PARTITIONS));
+        for (String candidate : candidates)
+            assertTrue(count(BEFORE, candidate) > PARTITIONS / 8);
+
+        // a joining candidate only takes partitions from others
+        candidates.add("ctf_0000000005");
+        final String[] JOINED = RendezvousPartitionAssignment.assign(candidates, PARTITIONS);
+        int moved = 0;
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            if (!BEFORE[partition].equals(JOINED[partition])) {
+                assertEquals("ctf_0000000005", JOINED[partition]);
+                moved++;
+            }
+        }
+        assertTrue("moved " + moved, moved > PARTITIONS / 10 && moved < PARTITIONS * 3 / 10);
+
+        // a leaving candidate only gives away its own partitions
+        candidates.remove("ctf_0000000002");
+        final String[] LEFT = RendezvousPartitionAssignment.assign(candidates, PARTITIONS);
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            if (!JOINED[partition].equals(LEFT[partition]))
+                assertEquals("ctf_0000000002", JOINED[partition]);
+        }
+
+        assertArrayEquals(JOINED, RendezvousPartitionAssignment.decode(RendezvousPartitionAssignment.encode(JOINED)));
+        assertNull(RendezvousPartitionAssignment.decode(new byte[0]));
+        assertArrayEquals(new String[3], RendezvousPartitionAssignment.assign(new ArrayList<String>(), 3));
+    }
+
+    private static int count(String[] owners, String owner) {
+        int count = 0;
+        for (String candidate : owners) {
+            if (candidate.equals(owner))
+                count++;
+        }
+        return count;
+    }
+
+    private static void awaitCovered(List<RendezvousPartitionAssignment> workers, int partitions)
+            throws InterruptedException {
+        final long START_TIMESTAMP = System.currentTimeMillis();
+        while (System.currentTimeMillis() - START_TIMESTAMP < 10000) {
+            if (covered(workers, partitions))
+                return;
+            Thread.sleep(20);
+        }
+        fail("partitions not covered");
+    }
+
+    /**
+     * @return true when every worker owns some partitions and no partition is owned twice
+     */
+    private static boolean covered(List<RendezvousPartitionAssignment> workers, int partitions) {
+        Set<Integer> all = new HashSet<>();
+        int total = 0;
+        for (RendezvousPartitionAssignment worker : workers) {
+            if (worker.getAssignedPartitions().isEmpty())
+                return false;
+            all.addAll(worker.getAssignedPartitions());
+            total += worker.getAssignedPartitions().size();
+        }
+        return all.size() == partitions && total == partitions;
+    }
+
+    @Test
+    public void testAssignment() throws IOException, InterruptedException, KeeperException {
+        final int PARTITIONS = 64;
+        final String zkNodes = zk.getZkNodes();
+        List<ZooKeeperConnection> connections = new ArrayList<>();
+        List<RendezvousPartitionAssignment> workers = new ArrayList<>();
+        final List<String> revocations = new CopyOnWriteArrayList<>();
+        for (int idx = 0; idx < 3; idx++) {
+            ZooKeeperConnection zkc = new ZooKeeperConnection(zkNodes, 10000);
+            zkc.connect();
+            connections.add(zkc);
+            final RendezvousPartitionAssignment worker = new RendezvousPartitionAssignment(zkc, "jobs", PARTITIONS);
+            final String WORKER = "worker" + idx;
+            worker.addListener(new PartitionAssignment.Listener() {
+                @Override
+                public void partitionsAssigned(Set<Integer> partitions) {
+                }
+
+                @Override
+                public void partitionsRevoked(Set<Integer> partitions) {
+                    revocations.add(WORKER + partitions);
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        assertTrue(workers.get(0).isLeading());
+        assertEquals(PartitionAssignment.ASSIGNMENTS + "/jobs", workers.get(0).getAssignmentPath());
+        awaitCovered(workers, PARTITIONS);
+        final String WORKER2 = ZooKeeperConnection.getName(workers.get(2).getElect().getMemberPath());
+        for (int partition : workers.get(2).getAssignedPartitions()) {
+            assertEquals(WORKER2, workers.get(0).getOwner(partition));
+            assertEquals(WORKER2, workers.get(1).getOwner(partition));
+        }
+        assertEquals(0, workers.get(1).getPublications());
+        try {
+            workers.get(0).getAssignedPartitions().clear();
+            fail("assignment modified");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        // survivors only receive partitions of the leaving worker
+        revocations.clear();
+        final Set<Integer> ORPHANS = new HashSet<>(workers.get(1).getAssignedPartitions());
+        final Set<Integer> KEPT = new HashSet<>(workers.get(2).getAssignedPartitions());
+        workers.get(1).close();
+        workers.remove(1);
+        awaitCovered(workers, PARTITIONS);
+        assertTrue(revocations.isEmpty());
+        assertTrue(workers.get(1).getAssignedPartitions().containsAll(KEPT));
+        Set<Integer> taken = new HashSet<>(workers.get(1).getAssignedPartitions());
+        taken.addAll(workers.get(0).getAssignedPartitions());
+        assertTrue(taken.containsAll(ORPHANS));
+
+        // leader failure hands publication over to the successor
+        connections.get(0).close();
+        workers.remove(0);
+        final long START_TIMESTAMP = System.currentTimeMillis();
+        while (workers.get(0).getAssignedPartitions().size() != PARTITIONS
+                && System.currentTimeMillis() - START_TIMESTAMP < 10000)
+            Thread.sleep(20);
+        assertEquals(PARTITIONS, workers.get(0).getAssignedPartitions().size());
+        assertTrue(workers.get(0).isLeading());
+        assertEquals(1, workers.get(0).getPublications());
+
+        workers.get(0).close();
+        for (ZooKeeperConnection zkc : connections)
+            zkc.close();
+    }
+
+    @Test
+    public void testIsolatedAssignments() throws IOException, InterruptedException, KeeperException {
+        final int PARTITIONS = 16;
+        ZooKeeperConnection zkc = new ZooKeeperConnection(zk.getZkNodes(), 10000);
+        zkc.connect();
+        // an unrelated election takes no partitions
+        ContentionFreeElect unrelated = new ContentionFreeElect();
+        unrelated.participate(zkc, true);
+
+        RendezvousPartitionAssignment jobs = new RendezvousPartitionAssignment(zkc, "jobs", PARTITIONS);
+        RendezvousPartitionAssignment mail = new RendezvousPartitionAssignment(zkc, "mail", PARTITIONS);
+        jobs.start();
+        mail.start();
+        assertEquals(PartitionAssignment.ASSIGNMENTS + "/jobs/" + RendezvousPartitionAssignment.MEMBERS,
+                ZooKeeperConnection.getParent(jobs.getElect().getMemberPath()));
+        // each leads its own election
+        assertTrue(jobs.isLeading());
+        assertTrue(mail.isLeading());
+        awaitCovered(Arrays.asList(jobs), PARTITIONS);
+        awaitCovered(Arrays.asList(mail), PARTITIONS);
+        assertEquals(PARTITIONS, jobs.getAssignedPartitions().size());
+        assertEquals(PARTITIONS, mail.getAssignedPartitions().size());
+        assertEquals(ZooKeeperConnection.getName(mail.getElect().getMemberPath()), mail.getOwner(0));
+
+        jobs.close();
+        mail.close();
+        zkc.close();
+    }
+
+    @Test
+    public void testSessionExpired() throws IOException, InterruptedException, KeeperException {
+        final int PARTITIONS = 16;
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        final ZooKeeperConnection zkc2 = new ZooKeeperConnection(zkNodes, 10000);
+        zkc1.connect();
+        zkc2.connect();
+        RendezvousPartitionAssignment leader = new RendezvousPartitionAssignment(zkc1, "jobs", PARTITIONS);
+        RendezvousPartitionAssignment follower = new RendezvousPartitionAssignment(zkc2, "jobs", PARTITIONS);
+        leader.start();
+        follower.start();
+        awaitCovered(Arrays.asList(leader, follower), PARTITIONS);
+        final String EXPIRED = leader.getElect().getMemberPath();
+
+        // the follower takes over while the session of the leader is gone
+        zk.expire(zkc1);
+        final long START_TIMESTAMP = System.currentTimeMillis();
+        while (follower.getAssignedPartitions().size() != PARTITIONS
+                && System.currentTimeMillis() - START_TIMESTAMP < 10000)
+            Thread.sleep(20);
+        assertEquals(PARTITIONS, follower.getAssignedPartitions().size());
+        assertTrue(follower.isLeading());
+
+        // the former leader joins again once connected, with its watches set again
+        zkc1.connect();
+        awaitCovered(Arrays.asList(leader, follower), PARTITIONS);
+        assertFalse(leader.isLeading());
+        assertNotEquals(EXPIRED, leader.getElect().getMemberPath());
+        assertEquals(2, zkc2.getChildren(leader.getElect().getElection(), false).size());
+        final String NAME = ZooKeeperConnection.getName(leader.getElect().getMemberPath());
+        for (int partition : leader.getAssignedPartitions())
+            assertEquals(NAME, follower.getOwner(partition));
+
+        // and leaves as before
+        leader.close();
+        awaitCovered(Arrays.asList(follower), PARTITIONS);
+        follower.close();
+        zkc1.close();
+        zkc2.close();
+    }
+}
@@ -0,0 +1,326 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import lyn.util.zookeeper.MiniZooKeeperCluster;
+import lyn.util.zookeeper.ZooKeeperConnection;
+import lyn.util.zookeeper.recipes.DistributedCounter;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.Transaction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestStripedCounter {
+    private MiniZooKeeperCluster zk;
+    private String tempDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = System.getProperty("java.io.tmpdir") + "zk.tmp";
+        zk = new MiniZooKeeperCluster(tempDir, 6000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (zk != null) {
+            zk.shutdown();
+        }
+
+        Files.walkFileTree(Paths.get(tempDir), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static void awaitValue(DistributedCounter counter, long expected) throws InterruptedException {
+        final long START_TIMESTAMP = System.currentTimeMillis();
+        while (counter.get() != expected && System.currentTimeMillis() - START_TIMESTAMP < 10000)
+            Thread.sleep(20);
+        assertEquals(expected, counter.get());
+    }
+
+    @Test
+    public void testCounter() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        final ZooKeeperConnection zkc2 = new ZooKeeperConnection(zkNodes, 10000);
+        zkc1.connect();
+        zkc2.connect();
+
+        StripedCounter counter1 = new StripedCounter(zkc1, "test", 4, 0);
+        StripedCounter counter2 = new StripedCounter(zkc2, "test", 4, 0);
+        assertEquals(DistributedCounter.COUNTERS + "/test", counter1.getCounterPath());
+        counter1.start();
+        counter2.start();
+        assertEquals(4, zkc1.getChildren(counter1.getCounterPath(), false).size());
+
+        counter1.add(5);
+        counter1.add(-2);
+        // local updates are visible locally before flush
+        assertEquals(3, counter1.get());
+        assertEquals(0, counter2.get());
+        assertEquals(0, counter2.getExact());
+
+        counter1.flush();
+        assertEquals(1, counter1.getFlushes());
+        assertEquals(3, counter2.getExact());
+        awaitValue(counter2, 3);
+
+        counter2.add(10);
+        assertEquals(13, counter2.getExact());
+        awaitValue(counter1, 13);
+
+        counter1.close();
+        counter2.close();
+        zkc1.close();
+        zkc2.close();
+    }
+
+    @Test
+    public void testConcurrentFlush() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        final ZooKeeperConnection zkc2 = new ZooKeeperConnection(zkNodes, 10000);
+        zkc1.connect();
+        zkc2.connect();
+
+        final StripedCounter[] counters = new StripedCounter[] { new StripedCounter(zkc1, "test", 2, 5),
+                new StripedCounter(zkc2, "test", 2, 5) };
+        final int THREADS_PER_COUNTER = 4;
+        final int INCREMENTS = 2000;
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (final StripedCounter counter : counters) {
+            counter.start();
+            for (int i = 0; i < THREADS_PER_COUNTER; i++) {
+                threads.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int increment = 0; increment < INCREMENTS; increment++) {
+                                counter.add(1);
+                                if (increment % 500 == 0)
+                                    counter.flush();
+                            }
+                        } catch (KeeperException | InterruptedException e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                }));
+            }
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+
+        assertNull(failure.get());
+        final long EXPECTED = counters.length * THREADS_PER_COUNTER * INCREMENTS;
+        counters[1].flush();
+        assertEquals(EXPECTED, counters[0].getExact());
+        assertEquals(EXPECTED, counters[1].getExact());
+        for (StripedCounter counter : counters)
+            counter.close();
+
+        zkc1.close();
+        zkc2.close();
+    }
+
+    @Test
+    public void testBatchFlush() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        zkc1.connect();
+
+        StripedCounter requests = new StripedCounter(zkc1, "requests", 2, 0);
+        StripedCounter errors = new StripedCounter(zkc1, "errors", 2, 0);
+        requests.start();
+        errors.start();
+        requests.add(100);
+        errors.add(3);
+        StripedCounter.flush(zkc1, requests, errors);
+        assertEquals(1, requests.getFlushes());
+        assertEquals(1, errors.getFlushes());
+        assertEquals(100, requests.getExact());
+        assertEquals(3, errors.getExact());
+
+        // stripes updated concurrently fail the transaction, counters are flushed one by one
+        for (int stripe = 0; stripe < 2; stripe++) {
+            final String STRIPE_PATH = errors.stripePath(stripe);
+            zkc1.setData(STRIPE_PATH, StripedCounter.encode(StripedCounter.decode(zkc1.getData(STRIPE_PATH, false,
+                    null)) + 1), -1);
+        }
+        requests.add(1);
+        errors.add(1);
+        StripedCounter.flush(zkc1, requests, errors);
+        assertEquals(101, requests.getExact());
+        assertEquals(6, errors.getExact());
+
+        requests.close();
+        errors.close();
+        zkc1.close();
+    }
+
+    /* loses the connection on writes, after applying them or not */
+    private static class LossyConnection extends ZooKeeperConnection {
+        volatile boolean lossy;
+        volatile boolean applied;
+
+        LossyConnection(String zookeeperNodes, int timeout) {
+            super(zookeeperNodes, timeout);
+        }
+
+        @Override
+        public Transaction transaction() {
+            final Transaction TX = super.transaction();
+            return new Transaction(null) {
+                @Override
+                public Transaction setData(String path, byte[] data, int version) {
+                    TX.setData(path, data, version);
+                    return this;
+                }
+
+                @Override
+                public List<OpResult> commit() throws InterruptedException, KeeperException {
+                    if (!lossy)
+                        return TX.commit();
+                    if (applied)
+                        TX.commit();
+                    throw new KeeperException.ConnectionLossException();
+                }
+            };
+        }
+    }
+
+    @Test
+    public void testConnectionLossOnFlush() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final LossyConnection zkc1 = new LossyConnection(zkNodes, 10000);
+        final ZooKeeperConnection zkc2 = new ZooKeeperConnection(zkNodes, 10000);
+        zkc1.connect();
+        zkc2.connect();
+        // a single stripe, so that both counters write the same znode
+        StripedCounter counter1 = new StripedCounter(zkc1, "test", 1, 0);
+        StripedCounter counter2 = new StripedCounter(zkc2, "test", 1, 0);
+        counter1.start();
+        counter2.start();
+
+        // applied although lost, and written again by another process since
+        counter1.add(5);
+        zkc1.lossy = true;
+        zkc1.applied = true;
+        try {
+            counter1.flush();
+            fail("flushed a lost write");
+        } catch (KeeperException.ConnectionLossException e) {
+            // expected
+        }
+        counter2.add(1);
+        counter2.flush();
+        zkc1.lossy = false;
+        assertEquals(6, counter1.getExact());
+
+        // not applied, so the delta is added back
+        counter1.add(3);
+        zkc1.lossy = true;
+        zkc1.applied = false;
+        try {
+            counter1.flush();
+            fail("flushed a lost write");
+        } catch (KeeperException.ConnectionLossException e) {
+            // expected
+        }
+        zkc1.lossy = false;
+        assertEquals(9, counter1.getExact());
+
+        // the same for counters flushed together
+        StripedCounter errors = new StripedCounter(zkc1, "errors", 1, 0);
+        errors.start();
+        counter1.add(10);
+        errors.add(2);
+        zkc1.lossy = true;
+        zkc1.applied = true;
+        try {
+            StripedCounter.flush(zkc1, counter1, errors);
+            fail("flushed a lost transaction");
+        } catch (KeeperException.ConnectionLossException e) {
+            // expected
+        }
+        counter1.add(1);
+        zkc1.applied = false;
+        try {
+            StripedCounter.flush(zkc1, counter1, errors);
+            fail("flushed a lost transaction");
+        } catch (KeeperException.ConnectionLossException e) {
+            // expected
+        }
+        zkc1.lossy = false;
+        StripedCounter.flush(zkc1, counter1, errors);
+        assertEquals(20, counter2.getExact());
+        assertEquals(2, errors.getExact());
+
+        counter1.close();
+        counter2.close();
+        errors.close();
+        zkc1.close();
+        zkc2.close();
+    }
+
+    @Test
+    public void testSessionExpired() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection observer = new ZooKeeperConnection(zkNodes, 10000);
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        observer.connect();
+        zkc1.connect();
+        StripedCounter view = new StripedCounter(observer, "test", 4, 0);
+        StripedCounter counter = new StripedCounter(zkc1, "test", 4, 0);
+        view.start();
+        counter.start();
+        counter.add(1);
+        counter.flush();
+        awaitValue(view, 1);
+
+        // flushed while the session is gone, refreshes fail until connected again
+        zk.expire(observer);
+        counter.add(2);
+        counter.flush();
+        Thread.sleep(300);
+        assertEquals(1, view.get());
+        observer.connect();
+        awaitValue(view, 3);
+
+        // watches are set again
+        counter.add(4);
+        counter.flush();
+        awaitValue(view, 7);
+
+        view.close();
+        counter.close();
+        observer.close();
+        zkc1.close();
+    }
+}
@@ -0,0 +1,280 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import lyn.util.zookeeper.MiniZooKeeperCluster;
+import lyn.util.zookeeper.ZooKeeperConnection;
+import lyn.util.zookeeper.recipes.ChangeFeed.Change;
+import lyn.util.zookeeper.recipes.ChangeFeed.Type;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.ZooDefs;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestWatchedChangeFeed {
+    private MiniZooKeeperCluster zk;
+    private String tempDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = System.getProperty("java.io.tmpdir") + "zk.tmp";
+        zk = new MiniZooKeeperCluster(tempDir, 6000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (zk != null) {
+            zk.shutdown();
+        }
+
+        Files.walkFileTree(Paths.get(tempDir), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static List<Change> poll(WatchedChangeFeed feed, int count) throws InterruptedException {
+        final List<Change> CHANGES = new ArrayList<>();
+        final long DEADLINE = System.currentTimeMillis() + 10000;
+        while (CHANGES.size() < count && System.currentTimeMillis() < DEADLINE)
+            CHANGES.addAll(feed.poll(count - CHANGES.size(), 100, TimeUnit.MILLISECONDS));
+        return CHANGES;
+    }
+
+    private static void assertOrdered(List<Change> changes) {
+        for (int i = 1; i < changes.size(); i++)
+            assertTrue(changes.get(i - 1) + " after " + changes.get(i),
+                    changes.get(i - 1).getZxid() <= changes.get(i).getZxid());
+    }
+
+    private static void create(ZooKeeperConnection zkc, String path, String data) throws KeeperException,
+            InterruptedException {
+        zkc.create(path, data.getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    }
+
+    @Test
+    public void testFeed() throws IOException, InterruptedException, KeeperException {
+        final ZooKeeperConnection zkc = new ZooKeeperConnection(zk.getZkNodes(), 10000);
+        zkc.connect();
+        ZooKeeperConnection.createFullPath(zkc, "/mirror/a", "1".getBytes(), CreateMode.PERSISTENT);
+        create(zkc, "/mirror/a/b", "2");
+
+        WatchedChangeFeed feed = new WatchedChangeFeed(zkc, "/mirror");
+        feed.start();
+        List<Change> changes = poll(feed, 2);
+        assertEquals(2, changes.size());
+        assertEquals("/mirror/a", changes.get(0).getPath());
+        assertEquals(Type.CREATED, changes.get(0).getType());
+        assertEquals("/mirror/a/b", changes.get(1).getPath());
+        assertOrdered(changes);
+
+        zkc.setData("/mirror/a", "3".getBytes(), -1);
+        create(zkc, "/mirror/c", "4");
+        zkc.delete("/mirror/a/b", -1);
+        changes = poll(feed, 3);
+        assertOrdered(changes);
+        assertEquals(3, changes.size());
+        assertEquals(Type.UPDATED, changes.get(0).getType());
+        assertEquals("3", new String(changes.get(0).getData()));
+        assertEquals(1, changes.get(0).getVersion());
+        assertEquals(Type.CREATED, changes.get(1).getType());
+        assertEquals("/mirror/c", changes.get(1).getPath());
+        assertEquals(Type.DELETED, changes.get(2).getType());
+        assertEquals("/mirror/a/b", changes.get(2).getPath());
+        assertNull(changes.get(2).getData());
+
+        // subtree deleted children first
+        create(zkc, "/mirror/c/d", "6");
+        assertEquals(1, poll(feed, 1).size());
+        zkc.delete("/mirror/c/d", -1);
+        zkc.delete("/mirror/c", -1);
+        changes = poll(feed, 2);
+        assertEquals(2, changes.size());
+        assertEquals("/mirror/c/d", changes.get(0).getPath());
+        assertEquals("/mirror/c", changes.get(1).getPath());
+        assertTrue(feed.poll(10, 200, TimeUnit.MILLISECONDS).isEmpty());
+        assertEquals(8, feed.getChanges());
+        feed.close();
+        zkc.close();
+    }
+
+    @Test
+    public void testResume() throws IOException, InterruptedException, KeeperException {
+        final ZooKeeperConnection zkc = new ZooKeeperConnection(zk.getZkNodes(), 10000);
+        zkc.connect();
+        ZooKeeperConnection.createFullPath(zkc, "/mirror/a", "1".getBytes(), CreateMode.PERSISTENT);
+        create(zkc, "/mirror/b", "2");
+        create(zkc, "/mirror/c", "3");
+
+        WatchedChangeFeed feed = new WatchedChangeFeed(zkc, "/mirror");
+        feed.start();
+        Set<String> known = new HashSet<>();
+        long checkpoint = -1;
+        for (Change change : poll(feed, 3)) {
+            known.add(change.getPath());
+            checkpoint = change.getZxid();
+        }
+        feed.close();
+        assertEquals(3, known.size());
+
+        // changed while the mirror was away
+        zkc.setData("/mirror/a", "4".getBytes(), -1);
+        zkc.delete("/mirror/b", -1);
+        create(zkc, "/mirror/d", "5");
+
+        feed = new WatchedChangeFeed(zkc, "/mirror");
+        feed.start(checkpoint, known);
+        List<Change> changes = poll(feed, 3);
+        assertOrdered(changes);
+        assertEquals(3, changes.size());
+        assertEquals(Type.UPDATED, changes.get(0).getType());
+        assertEquals("/mirror/a", changes.get(0).getPath());
+        assertEquals(Type.DELETED, changes.get(1).getType());
+        assertEquals("/mirror/b", changes.get(1).getPath());
+        assertEquals(Type.CREATED, changes.get(2).getType());
+        assertEquals("/mirror/d", changes.get(2).getPath());
+        assertTrue(feed.poll(10, 200, TimeUnit.MILLISECONDS).isEmpty());
+        feed.close();
+        zkc.close();
+    }
+
+    @Test
+    public void testBackpressure() throws IOException, InterruptedException, KeeperException {
+        final ZooKeeperConnection zkc = new ZooKeeperConnection(zk.getZkNodes(), 10000);
+        zkc.connect();
+        WatchedChangeFeed feed = new WatchedChangeFeed(zkc, "/mirror", 4);
+        feed.start();
+        for (int i = 0; i < 10; i++)
+            create(zkc, "/mirror/node" + i, "0");
+        Thread.sleep(500);
+        assertEquals(4, feed.getBacklog());
+
+        // updates of a node coalesce while the queue is full
+        for (int i = 1; i <= 5; i++)
+            zkc.setData("/mirror/node0", Integer.toString(i).getBytes(), -1);
+        List<Change> changes = poll(feed, 11);
+        assertOrdered(changes);
+        assertEquals(11, changes.size());
+        assertEquals("5", new String(changes.get(10).getData()));
+        assertEquals(5, changes.get(10).getVersion());
+        assertTrue(feed.poll(10, 200, TimeUnit.MILLISECONDS).isEmpty());
+        feed.close();
+        zkc.close();
+    }
+
+    @Test
+    public void testSessionExpired() throws IOException, InterruptedException, KeeperException {
+        final ZooKeeperConnection zkc = new ZooKeeperConnection(zk.getZkNodes(), 10000);
+        final ZooKeeperConnection admin = new ZooKeeperConnection(zk.getZkNodes(), 10000);
+        zkc.connect();
+        admin.connect();
+        ZooKeeperConnection.createFullPath(admin, "/mirror/a", "1".getBytes(), CreateMode.PERSISTENT);
+        create(admin, "/mirror/b", "2");
+        create(admin, "/mirror/b/c", "3");
+
+        WatchedChangeFeed feed = new WatchedChangeFeed(zkc, "/mirror");
+        feed.start();
+        assertEquals(3, poll(feed, 3).size());
+
+        // changed while the session is gone, refreshes fail until connected again
+        zk.expire(zkc);
+        admin.setData("/mirror/a", "4".getBytes(), -1);
+        admin.delete("/mirror/b/c", -1);
+        admin.delete("/mirror/b", -1);
+        create(admin, "/mirror/d", "5");
+        assertTrue(feed.poll(10, 300, TimeUnit.MILLISECONDS).isEmpty());
+        zkc.connect();
+
+        List<Change> changes = poll(feed, 4);
+        assertOrdered(changes);
+        assertEquals(4, changes.size());
+        assertEquals(Type.UPDATED, changes.get(0).getType());
+        assertEquals("4", new String(changes.get(0).getData()));
+        assertEquals(Type.DELETED, changes.get(1).getType());
+        assertEquals("/mirror/b/c", changes.get(1).getPath());
+        assertEquals(Type.DELETED, changes.get(2).getType());
+        assertEquals("/mirror/b", changes.get(2).getPath());
+        assertEquals(Type.CREATED, changes.get(3).getType());
+        assertEquals("/mirror/d", changes.get(3).getPath());
+
+        // watches are set again
+        admin.setData("/mirror/d", "6".getBytes(), -1);
+        changes = poll(feed, 1);
+        assertEquals(1, changes.size());
+        assertEquals(Type.UPDATED, changes.get(0).getType());
+        assertEquals("/mirror/d", changes.get(0).getPath());
+        assertTrue(feed.poll(10, 200, TimeUnit.MILLISECONDS).isEmpty());
+        feed.close();
+        zkc.close();
+        admin.close();
+    }
+
+    @Test
+    public void testRecreated() throws IOException, InterruptedException, KeeperException {
+        final ZooKeeperConnection zkc = new ZooKeeperConnection(zk.getZkNodes(), 10000);
+        final ZooKeeperConnection admin = new ZooKeeperConnection(zk.getZkNodes(), 10000);
+        zkc.connect();
+        admin.connect();
+        ZooKeeperConnection.createFullPath(admin, "/mirror/a", "1".getBytes(), CreateMode.PERSISTENT);
+        create(admin, "/mirror/a/b", "2");
+
+        WatchedChangeFeed feed = new WatchedChangeFeed(zkc, "/mirror");
+        feed.start();
+        assertEquals(2, poll(feed, 2).size());
+
+        // deleted and created again before its parent is listed
+        admin.multi(Arrays.asList(Op.delete("/mirror/a/b", -1), Op.delete("/mirror/a", -1),
+                Op.create("/mirror/a", "3".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT)));
+        List<Change> changes = poll(feed, 3);
+        assertOrdered(changes);
+        assertEquals(3, changes.size());
+        assertEquals(Type.DELETED, changes.get(0).getType());
+        assertEquals("/mirror/a/b", changes.get(0).getPath());
+        assertEquals(Type.DELETED, changes.get(1).getType());
+        assertEquals("/mirror/a", changes.get(1).getPath());
+        assertEquals(Type.CREATED, changes.get(2).getType());
+        assertEquals("/mirror/a", changes.get(2).getPath());
+        assertEquals("3", new String(changes.get(2).getData()));
+
+        // watches are set again
+        admin.setData("/mirror/a", "4".getBytes(), -1);
+        create(admin, "/mirror/a/c", "5");
+        changes = poll(feed, 2);
+        assertEquals(2, changes.size());
+        assertEquals(Type.UPDATED, changes.get(0).getType());
+        assertEquals("4", new String(changes.get(0).getData()));
+        assertEquals(Type.CREATED, changes.get(1).getType());
+        assertEquals("/mirror/a/c", changes.get(1).getPath());
+        assertTrue(feed.poll(10, 200, TimeUnit.MILLISECONDS).isEmpty());
+        feed.close();
+        zkc.close();
+        admin.close();
+    }
+}
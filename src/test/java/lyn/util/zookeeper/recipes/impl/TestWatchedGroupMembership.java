@@ -0,0 +1,203 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import lyn.util.zookeeper.MiniZooKeeperCluster;
+import lyn.util.zookeeper.ZooKeeperConnection;
+import lyn.util.zookeeper.recipes.GroupMembership;
+
+import org.apache.zookeeper.KeeperException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestWatchedGroupMembership {
+    private MiniZooKeeperCluster zk;
+    private String tempDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = System.getProperty("java.io.tmpdir") + "zk.tmp";
+        zk = new MiniZooKeeperCluster(tempDir, 6000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (zk != null) {
+            zk.shutdown();
+        }
+
+        Files.walkFileTree(Paths.get(tempDir), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static void awaitMembers(GroupMembership group, int expected) throws InterruptedException {
+        final long START_TIMESTAMP = System.currentTimeMillis();
+        while (group.getMembers().size() != expected && System.currentTimeMillis() - START_TIMESTAMP < 10000)
+            Thread.sleep(20);
+        assertEquals(expected, group.getMembers().size());
+    }
+
+    private static void awaitEvents(List<String> events, int expected) throws InterruptedException {
+        final long START_TIMESTAMP = System.currentTimeMillis();
+        while (events.size() < expected && System.currentTimeMillis() - START_TIMESTAMP < 10000)
+            Thread.sleep(20);
+        assertEquals(expected, events.size());
+    }
+
+    @Test
+    public void testMembership() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection observer = new ZooKeeperConnection(zkNodes, 30000);
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        final ZooKeeperConnection zkc2 = new ZooKeeperConnection(zkNodes, 10000);
+        observer.connect();
+        zkc1.connect();
+        zkc2.connect();
+
+        WatchedGroupMembership view = new WatchedGroupMembership(observer, "service");
+        assertEquals(GroupMembership.GROUPS + "/service", view.getGroupPath());
+        final List<String> events = new CopyOnWriteArrayList<>();
+        view.addListener(new GroupMembership.Listener() {
+            @Override
+            public void memberAdded(String memberId, byte[] payload) {
+                events.add("+" + memberId + "=" + new String(payload));
+            }
+
+            @Override
+            public void memberUpdated(String memberId, byte[] payload) {
+                events.add("~" + memberId + "=" + new String(payload));
+            }
+
+            @Override
+            public void memberRemoved(String memberId) {
+                events.add("-" + memberId);
+            }
+        });
+        view.start();
+        assertTrue(view.getMembers().isEmpty());
+
+        WatchedGroupMembership member1 = new WatchedGroupMembership(zkc1, "service");
+        WatchedGroupMembership member2 = new WatchedGroupMembership(zkc2, "service");
+        member1.join("node1", "node1:9000".getBytes());
+        awaitMembers(view, 1);
+        member2.join("node2", "node2:9000".getBytes());
+        awaitMembers(view, 2);
+        Map<String, byte[]> snapshot = view.getMembers();
+        assertEquals("node2:9000", new String(snapshot.get("node2")));
+        // members already known are not read again
+        assertEquals(2, view.getReads());
+
+        member2.update("node2:9001".getBytes());
+        awaitEvents(events, 3);
+        assertEquals("~node2=node2:9001", events.get(2));
+        assertEquals("node2:9001", new String(view.getMembers().get("node2")));
+        // snapshots are immutable
+        assertEquals("node2:9000", new String(snapshot.get("node2")));
+        try {
+            snapshot.remove("node1");
+            fail("snapshot modified");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        member1.leave();
+        awaitMembers(view, 1);
+        // session loss removes member
+        zkc2.close();
+        awaitMembers(view, 0);
+        awaitEvents(events, 5);
+        assertEquals("+node1=node1:9000", events.get(0));
+        assertEquals("+node2=node2:9000", events.get(1));
+        assertEquals("-node1", events.get(3));
+        assertEquals("-node2", events.get(4));
+        assertEquals(3, view.getReads());
+
+        view.close();
+        zkc1.close();
+        observer.close();
+    }
+
+    @Test
+    public void testSessionExpired() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection observer = new ZooKeeperConnection(zkNodes, 10000);
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 10000);
+        observer.connect();
+        zkc1.connect();
+
+        WatchedGroupMembership view = new WatchedGroupMembership(observer, "service");
+        final List<String> events = new CopyOnWriteArrayList<>();
+        view.addListener(new GroupMembership.Listener() {
+            @Override
+            public void memberAdded(String memberId, byte[] payload) {
+                events.add("+" + memberId + "=" + new String(payload));
+            }
+
+            @Override
+            public void memberUpdated(String memberId, byte[] payload) {
+                events.add("~" + memberId + "=" + new String(payload));
+            }
+
+            @Override
+            public void memberRemoved(String memberId) {
+                events.add("-" + memberId);
+            }
+        });
+        WatchedGroupMembership member1 = new WatchedGroupMembership(zkc1, "service");
+        WatchedGroupMembership member2 = new WatchedGroupMembership(zkc1, "service");
+        member1.join("node1", "node1:9000".getBytes());
+        member2.join("node2", "node2:9000".getBytes());
+        view.start();
+        awaitEvents(events, 2);
+
+        // changed while the session is gone, refreshes fail until connected again
+        zk.expire(observer);
+        member1.update("node1:9001".getBytes());
+        member2.leave();
+        WatchedGroupMembership member3 = new WatchedGroupMembership(zkc1, "service");
+        member3.join("node3", "node3:9000".getBytes());
+        Thread.sleep(300);
+        assertEquals(2, events.size());
+        observer.connect();
+
+        awaitEvents(events, 5);
+        assertEquals("-node2", events.get(2));
+        assertEquals("~node1=node1:9001", events.get(3));
+        assertEquals("+node3=node3:9000", events.get(4));
+        assertEquals("node3:9000", new String(view.getMembers().get("node3")));
+
+        // watches are set again
+        member3.update("node3:9001".getBytes());
+        member1.leave();
+        awaitEvents(events, 7);
+        assertTrue(events.contains("~node3=node3:9001"));
+        assertTrue(events.contains("-node1"));
+
+        view.close();
+        zkc1.close();
+        observer.close();
+    }
+}
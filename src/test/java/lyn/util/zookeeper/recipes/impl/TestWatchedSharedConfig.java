@@ -0,0 +1,238 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import lyn.util.zookeeper.MiniZooKeeperCluster;
+import lyn.util.zookeeper.ZooKeeperConnection;
+import lyn.util.zookeeper.recipes.SharedConfig;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.Transaction;
+import org.apache.zookeeper.ZooDefs;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestWatchedSharedConfig {
+    private MiniZooKeeperCluster zk;
+    private String tempDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = System.getProperty("java.io.tmpdir") + "zk.tmp";
+        zk = new MiniZooKeeperCluster(tempDir, 6000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (zk != null) {
+            zk.shutdown();
+        }
+
+        Files.walkFileTree(Paths.get(tempDir), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static final SharedConfig.Decoder<Integer> INTEGER = new SharedConfig.Decoder<Integer>() {
+        @Override
+        public Integer decode(byte[] data) {
+            return Integer.valueOf(new String(data));
+        }
+    };
+
+    private static SharedConfig.Snapshot awaitVersion(SharedConfig config, long version) throws InterruptedException {
+        final long START_TIMESTAMP = System.currentTimeMillis();
+        while (config.getSnapshot().getVersion() < version && System.currentTimeMillis() - START_TIMESTAMP < 10000)
+            Thread.sleep(20);
+        assertTrue(config.getSnapshot().getVersion() >= version);
+        return config.getSnapshot();
+    }
+
+    @Test
+    public void testSnapshot() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc = new ZooKeeperConnection(zkNodes, 10000);
+        final ZooKeeperConnection admin = new ZooKeeperConnection(zkNodes, 10000);
+        zkc.connect();
+        admin.connect();
+        final String ROOT = SharedConfig.CONFIGS + "/search";
+        ZooKeeperConnection.createFullPath(admin, ROOT + "/db/url", "jdbc:test".getBytes(), CreateMode.PERSISTENT);
+        admin.create(ROOT + "/db/pool", "8".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        admin.create(ROOT + "/timeout", "100".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+        WatchedSharedConfig config = new WatchedSharedConfig(zkc, "search");
+        assertEquals(ROOT, config.getConfigPath());
+        final List<Set<String>> changes = new CopyOnWriteArrayList<>();
+        config.addListener(new SharedConfig.Listener() {
+            @Override
+            public void configChanged(SharedConfig.Snapshot snapshot, Set<String> changedKeys) {
+                changes.add(changedKeys);
+            }
+        });
+        config.start();
+        SharedConfig.Snapshot first = config.getSnapshot();
+        assertEquals(1, first.getVersion());
+        assertEquals(Arrays.asList("db", "db/pool", "db/url", "timeout"), Arrays.asList(first.keys().toArray()));
+        assertEquals("jdbc:test", new String(first.get("db/url")));
+        assertEquals(4, config.getReads() - 1);
+
+        // decoded once per change
+        assertEquals(Integer.valueOf(100), first.get("timeout", INTEGER));
+        assertEquals(Integer.valueOf(100), first.get("timeout", INTEGER));
+        assertEquals(1, config.getDecodes());
+        assertNull(first.get("missing", INTEGER));
+        assertEquals(-1, first.getMzxid("missing"));
+
+        // updates applied together by one transaction
+        Transaction tx = admin.transaction();
+        ZooKeeperConnection.setData(tx, ROOT + "/timeout", "200".getBytes(), -1);
+        ZooKeeperConnection.create(tx, ROOT + "/db/user", "reader".getBytes(), CreateMode.PERSISTENT);
+        ZooKeeperConnection.commit(tx);
+        SharedConfig.Snapshot second = awaitVersion(config, 2);
+        while (second.get("db/user") == null || second.get("timeout", INTEGER) != 200)
+            second = awaitVersion(config, second.getVersion() + 1);
+        assertEquals("reader", new String(second.get("db/user")));
+        assertEquals(2, config.getDecodes());
+        // an unchanged key keeps its decoded value
+        assertEquals(first.getMzxid("db/pool"), second.getMzxid("db/pool"));
+        assertEquals(Integer.valueOf(8), second.get("db/pool", INTEGER));
+        assertEquals(Integer.valueOf(8), first.get("db/pool", INTEGER));
+        assertEquals(3, config.getDecodes());
+        // older snapshots are untouched
+        assertEquals(Integer.valueOf(100), first.get("timeout", INTEGER));
+        assertNull(first.get("db/user"));
+        try {
+            second.keys().remove("timeout");
+            fail("snapshot modified");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        // deleting a subtree removes all of its keys
+        admin.delete(ROOT + "/db/url", -1);
+        admin.delete(ROOT + "/db/pool", -1);
+        admin.delete(ROOT + "/db/user", -1);
+        admin.delete(ROOT + "/db", -1);
+        final long START_TIMESTAMP = System.currentTimeMillis();
+        while (config.getSnapshot().keys().size() > 1 && System.currentTimeMillis() - START_TIMESTAMP < 10000)
+            Thread.sleep(20);
+        assertEquals(Arrays.asList("timeout"), Arrays.asList(config.getSnapshot().keys().toArray()));
+        assertTrue(changes.get(0).contains("db/url"));
+        boolean reported = false;
+        for (Set<String> changedKeys : changes)
+            reported |= changedKeys.contains("db") && changedKeys != changes.get(0);
+        assertTrue(reported);
+
+        config.close();
+        zkc.close();
+        admin.close();
+    }
+
+    @Test
+    public void testSessionExpired() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc = new ZooKeeperConnection(zkNodes, 10000);
+        final ZooKeeperConnection admin = new ZooKeeperConnection(zkNodes, 10000);
+        zkc.connect();
+        admin.connect();
+        final String ROOT = SharedConfig.CONFIGS + "/mail";
+        ZooKeeperConnection.createFullPath(admin, ROOT + "/smtp/host", "mx1".getBytes(), CreateMode.PERSISTENT);
+        admin.create(ROOT + "/timeout", "100".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+        WatchedSharedConfig config = new WatchedSharedConfig(zkc, "mail");
+        final List<Set<String>> changes = new CopyOnWriteArrayList<>();
+        config.addListener(new SharedConfig.Listener() {
+            @Override
+            public void configChanged(SharedConfig.Snapshot snapshot, Set<String> changedKeys) {
+                changes.add(changedKeys);
+            }
+        });
+        config.start();
+        final SharedConfig.Snapshot FIRST = config.getSnapshot();
+        assertEquals(Integer.valueOf(100), FIRST.get("timeout", INTEGER));
+
+        // changed while the session is gone, refreshes fail until connected again
+        zk.expire(zkc);
+        admin.setData(ROOT + "/smtp/host", "mx2".getBytes(), -1);
+        admin.create(ROOT + "/retries", "3".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        Thread.sleep(300);
+        assertSame(FIRST, config.getSnapshot());
+        zkc.connect();
+
+        SharedConfig.Snapshot reloaded = awaitVersion(config, 2);
+        assertEquals("mx2", new String(reloaded.get("smtp/host")));
+        assertEquals(Integer.valueOf(3), reloaded.get("retries", INTEGER));
+        assertEquals(new TreeSet<>(Arrays.asList("retries", "smtp/host")), changes.get(1));
+        // an unchanged key keeps its entry and decoded value
+        final long DECODES = config.getDecodes();
+        assertEquals(Integer.valueOf(100), reloaded.get("timeout", INTEGER));
+        assertEquals(DECODES, config.getDecodes());
+
+        // watches are set again
+        admin.setData(ROOT + "/timeout", "200".getBytes(), -1);
+        admin.delete(ROOT + "/retries", -1);
+        SharedConfig.Snapshot updated = awaitVersion(config, 3);
+        while (updated.get("retries") != null || updated.get("timeout", INTEGER) != 200)
+            updated = awaitVersion(config, updated.getVersion() + 1);
+
+        config.close();
+        zkc.close();
+        admin.close();
+    }
+
+    @Test
+    public void testRecreated() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc = new ZooKeeperConnection(zkNodes, 10000);
+        final ZooKeeperConnection admin = new ZooKeeperConnection(zkNodes, 10000);
+        zkc.connect();
+        admin.connect();
+        final String ROOT = SharedConfig.CONFIGS + "/app";
+        ZooKeeperConnection.createFullPath(admin, ROOT + "/k", "1".getBytes(), CreateMode.PERSISTENT);
+
+        WatchedSharedConfig config = new WatchedSharedConfig(zkc, "app");
+        config.start();
+        assertEquals(Integer.valueOf(1), config.getSnapshot().get("k", INTEGER));
+
+        // deleted and created again before the parent is listed
+        admin.multi(Arrays.asList(Op.delete(ROOT + "/k", -1),
+                Op.create(ROOT + "/k", "2".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT)));
+        SharedConfig.Snapshot recreated = awaitVersion(config, 2);
+        assertEquals(Integer.valueOf(2), recreated.get("k", INTEGER));
+
+        // and watched again
+        admin.setData(ROOT + "/k", "3".getBytes(), -1);
+        SharedConfig.Snapshot updated = awaitVersion(config, recreated.getVersion() + 1);
+        assertEquals(Integer.valueOf(3), updated.get("k", INTEGER));
+
+        config.close();
+        zkc.close();
+        admin.close();
+    }
+}
@@ -0,0 +1,188 @@
+package lyn.util.zookeeper.recipes.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import lyn.util.zookeeper.CountingZooKeeperConnection;
+import lyn.util.zookeeper.MiniZooKeeperCluster;
+import lyn.util.zookeeper.ZooKeeperConnection;
+import lyn.util.zookeeper.recipes.Elect.ElectState;
+
+import org.apache.zookeeper.KeeperException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestWeightedElect {
+    private MiniZooKeeperCluster zk;
+    private String tempDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = System.getProperty("java.io.tmpdir") + "zk.tmp";
+        zk = new MiniZooKeeperCluster(tempDir, 6000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (zk != null) {
+            zk.shutdown();
+        }
+
+        Files.walkFileTree(Paths.get(tempDir), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static void awaitState(NaiveElect elect, ElectState expected) throws InterruptedException {
+        final long START_TIMESTAMP = System.currentTimeMillis();
+        while (elect.getStat() != expected && System.currentTimeMillis() - START_TIMESTAMP < 10000) {
+            Thread.sleep(20);
+        }
+        assertEquals(expected, elect.getStat());
+    }
+
+    @Test
+    public void testParseScore() {
+        assertEquals(2.5, WeightedElect.parseScore(new WeightedElect(2.5, 0).memberData()), 0);
+        assertEquals(Double.NEGATIVE_INFINITY, WeightedElect.parseScore(new byte[4]), 0);
+        assertTrue(new WeightedElect.Scored("wgt_0000000002", 2).isBetterThan(
+                new WeightedElect.Scored("wgt_0000000001", 1)));
+        assertTrue(new WeightedElect.Scored("wgt_0000000001", 2).isBetterThan(
+                new WeightedElect.Scored("wgt_0000000002", 2)));
+    }
+
+    @Test
+    public void testWeightedElection() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zkNodes, 30000);
+        final ZooKeeperConnection zkc2 = new ZooKeeperConnection(zkNodes, 10000);
+        final ZooKeeperConnection zkc3 = new ZooKeeperConnection(zkNodes, 10000);
+        zkc1.connect();
+        zkc2.connect();
+        zkc3.connect();
+
+        WeightedElect low = new WeightedElect(1, 1);
+        WeightedElect high = new WeightedElect(5, 1);
+        WeightedElect close = new WeightedElect(5.5, 1);
+        close.setPayload("close".getBytes());
+
+        // sole candidate leads whatever its score is
+        assertEquals(ElectState.LEADING, low.participate(zkc1, true));
+        final long LOW_TOKEN = low.getFencingToken();
+
+        // a better candidate takes over when joining
+        assertEquals(ElectState.LEADING, close.participate(zkc3, false));
+        awaitState(low, ElectState.LEADED);
+        assertTrue(close.getFencingToken() > LOW_TOKEN);
+        assertFalse(close.isValidFencingToken(LOW_TOKEN));
+
+        // within hysteresis, no re-ranking
+        assertEquals(ElectState.LEADED, high.participate(zkc2, false));
+        high.updateScore(zkc2, 6.4);
+        assertEquals(ZooKeeperConnection.getName(close.getMemberPath()), new String(zkc1.getData("/elect", false,
+                null)));
+
+        // crossing hysteresis
+        high.updateScore(zkc2, 6.6);
+        awaitState(high, ElectState.LEADING);
+        awaitState(close, ElectState.LEADED);
+
+        // incumbent degrading below the best challenger
+        high.updateScore(zkc2, 0);
+        awaitState(close, ElectState.LEADING);
+        awaitState(high, ElectState.LEADED);
+
+        LeaderLookup lookup = new LeaderLookup(zkc1);
+        lookup.start();
+        assertEquals(ZooKeeperConnection.getName(close.getMemberPath()), lookup.getLeader().getName());
+        assertArrayEquals("close".getBytes(), lookup.getLeaderPayload());
+
+        // losing incumbent, best remaining one is elected
+        zkc3.close();
+        awaitState(low, ElectState.LEADING);
+        assertEquals(ElectState.LEADED, high.getStat());
+
+        // handing off to the best remaining candidate
+        assertTrue(low.abdicate(zkc1, 10000));
+        awaitState(high, ElectState.LEADING);
+        lookup.close();
+
+        zkc1.close();
+        zkc2.close();
+    }
+
+    @Test
+    public void testNoHerd() throws IOException, InterruptedException, KeeperException {
+        final String zkNodes = zk.getZkNodes();
+        final CountingZooKeeperConnection zkc1 = new CountingZooKeeperConnection(zkNodes, 10000);
+        final CountingZooKeeperConnection zkc2 = new CountingZooKeeperConnection(zkNodes, 10000);
+        final ZooKeeperConnection zkc3 = new ZooKeeperConnection(zkNodes, 10000);
+        zkc1.connect();
+        zkc2.connect();
+        zkc3.connect();
+
+        WeightedElect leader = new WeightedElect(5, 1);
+        WeightedElect follower = new WeightedElect(1, 1);
+        assertEquals(ElectState.LEADING, leader.participate(zkc1, true));
+        assertEquals(ElectState.LEADED, follower.participate(zkc2, false));
+        zkc1.reset();
+        zkc2.reset();
+
+        // candidates joining and leaving wake up nobody
+        for (int i = 0; i < 5; i++) {
+            WeightedElect joining = new WeightedElect(2, 1);
+            assertEquals(ElectState.LEADED, joining.participate(zkc3, false));
+            joining.abdicate(zkc3, 1000);
+        }
+        Thread.sleep(200);
+        assertEquals(0, zkc1.getNotifications());
+        assertEquals(0, zkc2.getNotifications());
+
+        // losing incumbent still wakes up the others
+        zkc1.close();
+        awaitState(follower, ElectState.LEADING);
+
+        zkc2.close();
+        zkc3.close();
+    }
+
+    @Test
+    public void testElectionPath() throws IOException, InterruptedException, KeeperException {
+        final ZooKeeperConnection zkc1 = new ZooKeeperConnection(zk.getZkNodes(), 10000);
+        final ZooKeeperConnection zkc2 = new ZooKeeperConnection(zk.getZkNodes(), 10000);
+        zkc1.connect();
+        zkc2.connect();
+
+        // parents of the election znode are created on participating
+        WeightedElect leader = new WeightedElect("/weighted/app/elect", 5, 1);
+        WeightedElect follower = new WeightedElect("/weighted/app/elect", 1, 1);
+        assertEquals("/weighted/app/elect", leader.getElection());
+        assertEquals(ElectState.LEADING, leader.participate(zkc1, true));
+        assertEquals(ElectState.LEADED, follower.participate(zkc2, false));
+        assertTrue(leader.getMemberPath().startsWith("/weighted/app/elect/"));
+        assertEquals(ZooKeeperConnection.getName(leader.getMemberPath()), new String(zkc2.getData(
+                "/weighted/app/elect", false, null)));
+
+        zkc1.close();
+        awaitState(follower, ElectState.LEADING);
+        zkc2.close();
+    }
+}